@@ -0,0 +1,99 @@
+/* -*-mode:java; c-basic-offset:2; indent-tabs-mode:nil -*- */
+/*
+Copyright (c) 2002-2016 ymnk, JCraft,Inc. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+  1. Redistributions of source code must retain the above copyright notice,
+     this list of conditions and the following disclaimer.
+
+  2. Redistributions in binary form must reproduce the above copyright 
+     notice, this list of conditions and the following disclaimer in 
+     the documentation and/or other materials provided with the distribution.
+
+  3. The names of the authors may not be used to endorse or promote products
+     derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL JCRAFT,
+INC. OR ANY CONTRIBUTORS TO THIS SOFTWARE BE LIABLE FOR ANY DIRECT, INDIRECT,
+INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.jcraft.jsch;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * The put and get primitives of {@link Buffer}, used for every
+ * packet built or parsed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations=3, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class BufferBenchmark{
+
+  @Param({"16", "1024", "32768"})
+  public int size;
+
+  private Buffer buf;
+  private byte[] data;
+  private byte[] mpint;
+
+  @Setup
+  public void setup(){
+    buf=new Buffer(size+1024);
+    data=Transports.key(size, 5);
+    mpint=Transports.key(257, 9);
+    mpint[0]=(byte)0x80;
+  }
+
+  @Benchmark
+  public int putGetInt(){
+    buf.reset();
+    for(int i=0; i<64; i++){
+      buf.putInt(i);
+    }
+    int sum=0;
+    for(int i=0; i<64; i++){
+      sum+=buf.getInt();
+    }
+    return sum;
+  }
+
+  @Benchmark
+  public byte[] putGetString(){
+    buf.reset();
+    buf.putString(data);
+    return buf.getString();
+  }
+
+  @Benchmark
+  public int putGetStringInPlace(){
+    int[] start=new int[1];
+    int[] length=new int[1];
+    buf.reset();
+    buf.putString(data);
+    buf.getString(start, length);
+    return start[0]+length[0];
+  }
+
+  @Benchmark
+  public byte[] putGetMPInt(){
+    buf.reset();
+    buf.putMPInt(mpint);
+    return buf.getMPInt();
+  }
+}
@@ -0,0 +1,118 @@
+/* -*-mode:java; c-basic-offset:2; indent-tabs-mode:nil -*- */
+/*
+Copyright (c) 2002-2016 ymnk, JCraft,Inc. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+  1. Redistributions of source code must retain the above copyright notice,
+     this list of conditions and the following disclaimer.
+
+  2. Redistributions in binary form must reproduce the above copyright 
+     notice, this list of conditions and the following disclaimer in 
+     the documentation and/or other materials provided with the distribution.
+
+  3. The names of the authors may not be used to endorse or promote products
+     derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL JCRAFT,
+INC. OR ANY CONTRIBUTORS TO THIS SOFTWARE BE LIABLE FOR ANY DIRECT, INDIRECT,
+INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.jcraft.jsch;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Round trips and bulk transfers on an exec channel of a
+ * {@link LoopbackServer}, with the server's window size as
+ * parameter. A small window makes the writers wait for window
+ * adjustments, so the latency distribution shows how fast they
+ * are woken up.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=3, time=2)
+@Measurement(iterations=5, time=2)
+@Fork(1)
+public class ChannelLatencyBenchmark{
+
+  @Param({"32768", "2097152"})
+  public int window;
+
+  @Param({"64", "65536"})
+  public int size;
+
+  private File root;
+  private LoopbackServer server;
+  private Session session;
+  private ChannelExec channel;
+  private InputStream in;
+  private OutputStream out;
+  private byte[] data;
+  private byte[] buf;
+
+  @Setup
+  public void setup() throws Exception{
+    root=File.createTempFile("jsch", "bench");
+    root.delete();
+    root.mkdir();
+    server=new LoopbackServer(root);
+    server.setWindowSize(window);
+    server.setMaxPacketSize(Math.min(window, 32768));
+    server.start();
+    session=server.getSession(new JSch(), "bench");
+    session.connect();
+
+    channel=(ChannelExec)session.openChannel("exec");
+    channel.setCommand("cat");
+    in=channel.getInputStream();
+    out=channel.getOutputStream();
+    channel.connect();
+
+    data=new byte[size];
+    buf=new byte[size];
+  }
+
+  @TearDown
+  public void tearDown(){
+    channel.disconnect();
+    session.disconnect();
+    server.stop();
+    root.delete();
+  }
+
+  /**
+   * sends {@code size} bytes to {@code cat} and waits until all
+   * of them came back.
+   */
+  @Benchmark
+  public int roundTrip() throws IOException{
+    out.write(data, 0, data.length);
+    out.flush();
+    int i=0;
+    while(i<buf.length){
+      int j=in.read(buf, i, buf.length-i);
+      if(j<0){
+        throw new IOException("channel closed");
+      }
+      i+=j;
+    }
+    return i;
+  }
+}
@@ -0,0 +1,107 @@
+/* -*-mode:java; c-basic-offset:2; indent-tabs-mode:nil -*- */
+/*
+Copyright (c) 2002-2016 ymnk, JCraft,Inc. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+  1. Redistributions of source code must retain the above copyright notice,
+     this list of conditions and the following disclaimer.
+
+  2. Redistributions in binary form must reproduce the above copyright 
+     notice, this list of conditions and the following disclaimer in 
+     the documentation and/or other materials provided with the distribution.
+
+  3. The names of the authors may not be used to endorse or promote products
+     derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL JCRAFT,
+INC. OR ANY CONTRIBUTORS TO THIS SOFTWARE BE LIABLE FOR ANY DIRECT, INDIRECT,
+INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.jcraft.jsch;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * {@link Compression#compress} and {@link Compression#uncompress}
+ * of the jzlib based implementation, on packet sized chunks of
+ * text-like data, as done by the session with {@code zlib} or
+ * {@code zlib@openssh.com} compression.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations=3, time=2)
+@Measurement(iterations=5, time=2)
+@Fork(1)
+public class CompressionBenchmark{
+
+  @Param({"1024", "32768"})
+  public int size;
+
+  @Param({"1", "6"})
+  public int level;
+
+  private Compression deflater;
+  private Compression inflater;
+  private byte[] data;
+  private byte[] buf;
+  private byte[] compressed;
+  private int[] length=new int[1];
+
+  @Setup
+  public void setup(){
+    deflater=new com.jcraft.jsch.jcraft.Compression();
+    deflater.init(Compression.DEFLATER, level);
+    inflater=new com.jcraft.jsch.jcraft.Compression();
+    inflater.init(Compression.INFLATER, 0);
+
+    String text="drwxr-xr-x  2 user group 4096 Jan  1 00:00 directory-";
+    data=new byte[size];
+    for(int i=0; i<size; i++){
+      data[i]=(byte)text.charAt((i*7+i/text.length())%text.length());
+    }
+    buf=new byte[5+size+Session.buffer_margin];
+
+    // one chunk compressed with a separate deflater; the inflater
+    // state is reset before each uncompress() by a new instance.
+    Compression _deflater=new com.jcraft.jsch.jcraft.Compression();
+    _deflater.init(Compression.DEFLATER, level);
+    byte[] foo=new byte[5+size+Session.buffer_margin];
+    System.arraycopy(data, 0, foo, 5, size);
+    length[0]=5+size;
+    foo=_deflater.compress(foo, 5, length);
+    compressed=new byte[length[0]];
+    System.arraycopy(foo, 0, compressed, 0, length[0]);
+  }
+
+  @Benchmark
+  public int compress(){
+    System.arraycopy(data, 0, buf, 5, size);
+    length[0]=5+size;
+    buf=deflater.compress(buf, 5, length);
+    return length[0];
+  }
+
+  @Benchmark
+  public int uncompress(){
+    Compression _inflater=new com.jcraft.jsch.jcraft.Compression();
+    _inflater.init(Compression.INFLATER, 0);
+    byte[] foo=new byte[compressed.length+size];
+    System.arraycopy(compressed, 0, foo, 0, compressed.length);
+    length[0]=compressed.length-5;
+    _inflater.uncompress(foo, 5, length);
+    return length[0];
+  }
+}
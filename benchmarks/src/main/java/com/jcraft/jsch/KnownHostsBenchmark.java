@@ -0,0 +1,99 @@
+/* -*-mode:java; c-basic-offset:2; indent-tabs-mode:nil -*- */
+/*
+Copyright (c) 2002-2016 ymnk, JCraft,Inc. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+  1. Redistributions of source code must retain the above copyright notice,
+     this list of conditions and the following disclaimer.
+
+  2. Redistributions in binary form must reproduce the above copyright 
+     notice, this list of conditions and the following disclaimer in 
+     the documentation and/or other materials provided with the distribution.
+
+  3. The names of the authors may not be used to endorse or promote products
+     derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL JCRAFT,
+INC. OR ANY CONTRIBUTORS TO THIS SOFTWARE BE LIABLE FOR ANY DIRECT, INDIRECT,
+INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.jcraft.jsch;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * {@link KnownHosts#check} with a large known_hosts file, for a host
+ * at the end of the file and for an unknown host, with plain and
+ * hashed host names.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=3, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class KnownHostsBenchmark{
+
+  @Param({"1000", "10000"})
+  public int hosts;
+
+  @Param({"false", "true"})
+  public boolean hashed;
+
+  private KnownHosts known_hosts;
+  private byte[] last_key;
+
+  @Setup
+  public void setup() throws Exception{
+    JSch jsch=new JSch();
+    KnownHosts foo=new KnownHosts(jsch);
+    StringBuffer sb=new StringBuffer();
+    for(int i=0; i<hosts; i++){
+      String host="host"+i+".example.com";
+      byte[] key=key(i);
+      HostKey hk=(hashed ? foo.createHashedHostKey(host, key)
+                         : new HostKey(host, key));
+      sb.append(hk.getHost()).append(' ')
+        .append(hk.getType()).append(' ')
+        .append(hk.getKey()).append('\n');
+      last_key=key;
+    }
+    known_hosts=new KnownHosts(jsch);
+    known_hosts.setKnownHosts(new ByteArrayInputStream(Util.str2byte(sb.toString())));
+  }
+
+  private static byte[] key(int i){
+    Buffer buf=new Buffer(1024);
+    buf.putString(Util.str2byte("ssh-rsa"));
+    buf.putMPInt(new byte[]{1, 0, 1});
+    byte[] n=Transports.key(257, i);
+    n[0]=0;
+    buf.putMPInt(n);
+    byte[] foo=new byte[buf.getLength()];
+    buf.getByte(foo);
+    return foo;
+  }
+
+  @Benchmark
+  public int checkLast(){
+    return known_hosts.check("host"+(hosts-1)+".example.com", last_key);
+  }
+
+  @Benchmark
+  public int checkUnknown(){
+    return known_hosts.check("unknown.example.com", last_key);
+  }
+}
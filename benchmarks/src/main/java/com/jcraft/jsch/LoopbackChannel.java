@@ -0,0 +1,411 @@
+/* -*-mode:java; c-basic-offset:2; indent-tabs-mode:nil -*- */
+/*
+Copyright (c) 2002-2016 ymnk, JCraft,Inc. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+  1. Redistributions of source code must retain the above copyright notice,
+     this list of conditions and the following disclaimer.
+
+  2. Redistributions in binary form must reproduce the above copyright 
+     notice, this list of conditions and the following disclaimer in 
+     the documentation and/or other materials provided with the distribution.
+
+  3. The names of the authors may not be used to endorse or promote products
+     derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL JCRAFT,
+INC. OR ANY CONTRIBUTORS TO THIS SOFTWARE BE LIABLE FOR ANY DIRECT, INDIRECT,
+INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.jcraft.jsch;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/**
+ * The server side of one channel of a {@link LoopbackConnection}.
+ *
+ * Incoming data is put into a {@link ChannelPipe}; the window is
+ * enlarged only when it has been read from there, so the pipe never
+ * has to hold more than one window. Outgoing data waits for the
+ * client's window.
+ */
+class LoopbackChannel implements Runnable{
+
+  private final LoopbackConnection connection;
+  private final int id;
+  private final int recipient;
+  private final int rmpsize;
+  private long rwsize;
+  private final int lwsize_max;
+
+  private final ChannelPipe pipe;
+  private final InputStream in;
+  private final OutputStream out;
+  private final OutputStream err;
+
+  private String command=null;
+  private Socket target=null;
+
+  private boolean eof_sent=false;
+  private boolean close_sent=false;
+  private boolean closed=false;
+
+  LoopbackChannel(LoopbackConnection connection, int id, int recipient,
+                  long window, int max_packet){
+    this.connection=connection;
+    this.id=id;
+    this.recipient=recipient;
+    this.rwsize=window;
+    this.rmpsize=max_packet;
+    this.lwsize_max=connection.getServer().getWindowSize();
+    this.pipe=new ChannelPipe(32*1024, lwsize_max);
+    this.in=new Input(pipe.getInputStream());
+    this.out=new Output(false);
+    this.err=new Output(true);
+  }
+
+  int getId(){ return id; }
+  int getRecipient(){ return recipient; }
+
+  synchronized void addRemoteWindowSize(long foo){
+    rwsize+=foo;
+    notifyAll();
+  }
+
+  void received(byte[] foo, int s, int l) throws IOException{
+    pipe.getOutputStream().write(foo, s, l);
+  }
+
+  void eofReceived() throws IOException{
+    pipe.getOutputStream().close();
+  }
+
+  void closeReceived() throws Exception{
+    sendClose();
+    closed();
+  }
+
+  void closed(){
+    synchronized(this){
+      closed=true;
+      notifyAll();
+    }
+    try{
+      pipe.getOutputStream().close();
+      if(target!=null){
+        target.close();
+      }
+    }
+    catch(IOException e){
+    }
+  }
+
+  /**
+   * handles a channel request.
+   * @return true if the request is accepted.
+   */
+  boolean request(String type, Buffer buf){
+    if(command!=null || target!=null){
+      return false;
+    }
+    if(type.equals("exec")){
+      command=Util.byte2str(buf.getString());
+      return true;
+    }
+    if(type.equals("shell")){
+      command="cat";
+      return true;
+    }
+    if(type.equals("subsystem")){
+      String name=Util.byte2str(buf.getString());
+      if(name.equals("sftp")){
+        command="sftp";
+        return true;
+      }
+      return false;
+    }
+    return type.equals("pty-req") || type.equals("env") ||
+           type.equals("window-change") || type.equals("signal");
+  }
+
+  /**
+   * called after the reply to a successful request has been sent.
+   */
+  void requestDone(String type){
+    if(command!=null &&
+       (type.equals("exec") || type.equals("shell") || type.equals("subsystem"))){
+      start(this, "exec");
+    }
+  }
+
+  void forward(Socket target){
+    this.target=target;
+  }
+
+  /**
+   * called after the open confirmation has been sent.
+   */
+  void opened(){
+    if(target==null){
+      return;
+    }
+    start(new Runnable(){
+        public void run(){
+          byte[] buf=new byte[32*1024];
+          try{
+            InputStream _in=target.getInputStream();
+            int i;
+            while((i=_in.read(buf, 0, buf.length))>=0){
+              out.write(buf, 0, i);
+            }
+            sendEof();
+          }
+          catch(Exception e){
+          }
+          try{
+            sendClose();
+          }
+          catch(Exception e){
+          }
+        }
+      }, "forward-in");
+    start(new Runnable(){
+        public void run(){
+          byte[] buf=new byte[32*1024];
+          try{
+            OutputStream _out=target.getOutputStream();
+            int i;
+            while((i=in.read(buf, 0, buf.length))>=0){
+              _out.write(buf, 0, i);
+            }
+            target.shutdownOutput();
+          }
+          catch(Exception e){
+          }
+        }
+      }, "forward-out");
+  }
+
+  private void start(Runnable runnable, String name){
+    Thread thread=new Thread(runnable);
+    thread.setName("LoopbackChannel "+id+" "+name);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  public void run(){
+    int status;
+    try{
+      status=execute(command);
+    }
+    catch(Exception e){
+      status=1;
+    }
+    try{
+      if(!closed){
+        Packet packet=LoopbackConnection.packet(64);
+        Buffer buf=packet.buffer;
+        buf.putByte((byte)Session.SSH_MSG_CHANNEL_REQUEST);
+        buf.putInt(recipient);
+        buf.putString(Util.str2byte("exit-status"));
+        buf.putByte((byte)0);
+        buf.putInt(status);
+        connection.write(packet);
+      }
+      sendEof();
+      sendClose();
+    }
+    catch(Exception e){
+    }
+  }
+
+  private int execute(String command) throws Exception{
+    byte[] buf=new byte[32*1024];
+    int i;
+    if(command.equals("sftp")){
+      new LoopbackSftp(connection.getServer().getRoot(), in, out,
+                       connection.getServer().getSftpExtensions()).run();
+      return 0;
+    }
+    if(command.equals("cat")){
+      while((i=in.read(buf, 0, buf.length))>=0){
+        out.write(buf, 0, i);
+      }
+      return 0;
+    }
+    if(command.equals("sink")){
+      while(in.read(buf, 0, buf.length)>=0){
+      }
+      return 0;
+    }
+    if(command.startsWith("source ")){
+      long length=Long.parseLong(command.substring(7).trim());
+      while(length>0){
+        i=(int)Math.min(length, buf.length);
+        out.write(buf, 0, i);
+        length-=i;
+      }
+      return 0;
+    }
+    if(command.startsWith("echo ")){
+      out.write(Util.str2byte(command.substring(5)+"\n"));
+      return 0;
+    }
+    if(command.startsWith("exit ")){
+      return Integer.parseInt(command.substring(5).trim());
+    }
+    err.write(Util.str2byte(command+": command not found\n"));
+    return 127;
+  }
+
+  private void sendEof() throws Exception{
+    synchronized(this){
+      if(eof_sent || closed){
+        return;
+      }
+      eof_sent=true;
+    }
+    Packet packet=LoopbackConnection.packet(16);
+    packet.buffer.putByte((byte)Session.SSH_MSG_CHANNEL_EOF);
+    packet.buffer.putInt(recipient);
+    connection.write(packet);
+  }
+
+  private void sendClose() throws Exception{
+    synchronized(this){
+      if(close_sent){
+        return;
+      }
+      close_sent=true;
+    }
+    Packet packet=LoopbackConnection.packet(16);
+    packet.buffer.putByte((byte)Session.SSH_MSG_CHANNEL_CLOSE);
+    packet.buffer.putInt(recipient);
+    connection.write(packet);
+  }
+
+  /**
+   * the input of a command, which enlarges the window as the
+   * data is consumed.
+   */
+  private class Input extends InputStream{
+    private final InputStream in;
+    private int consumed=0;
+    private final byte[] b=new byte[1];
+    Input(InputStream in){
+      this.in=in;
+    }
+    public int read() throws IOException{
+      int i=read(b, 0, 1);
+      return (i<0 ? -1 : b[0]&0xff);
+    }
+    public int read(byte[] buf, int s, int l) throws IOException{
+      int i=in.read(buf, s, l);
+      if(i>0){
+        consumed+=i;
+        if(consumed>=lwsize_max/2){
+          adjust(consumed);
+          consumed=0;
+        }
+      }
+      return i;
+    }
+    public int available() throws IOException{
+      return in.available();
+    }
+    private void adjust(int size) throws IOException{
+      synchronized(LoopbackChannel.this){
+        if(closed){
+          return;
+        }
+      }
+      Packet packet=LoopbackConnection.packet(16);
+      packet.buffer.putByte((byte)Session.SSH_MSG_CHANNEL_WINDOW_ADJUST);
+      packet.buffer.putInt(recipient);
+      packet.buffer.putInt(size);
+      try{
+        connection.write(packet);
+      }
+      catch(IOException e){
+        throw e;
+      }
+      catch(Exception e){
+        throw new IOException(e.toString());
+      }
+    }
+  }
+
+  /**
+   * the output of a command, sent as (extended) data within the
+   * client's window.
+   */
+  private class Output extends OutputStream{
+    private final boolean extended;
+    private Packet packet=null;
+    private final byte[] b=new byte[1];
+    Output(boolean extended){
+      this.extended=extended;
+    }
+    public void write(int c) throws IOException{
+      b[0]=(byte)c;
+      write(b, 0, 1);
+    }
+    public void write(byte[] buf, int s, int l) throws IOException{
+      if(packet==null){
+        packet=LoopbackConnection.packet(rmpsize+16);
+      }
+      while(l>0){
+        int n;
+        synchronized(LoopbackChannel.this){
+          while(rwsize<=0 && !closed){
+            try{ LoopbackChannel.this.wait(); }
+            catch(InterruptedException e){
+              throw new java.io.InterruptedIOException();
+            }
+          }
+          if(closed || eof_sent){
+            throw new IOException("channel is closed");
+          }
+          n=(int)Math.min(l, Math.min(rwsize, rmpsize));
+          rwsize-=n;
+        }
+        packet.reset();
+        Buffer _buf=packet.buffer;
+        if(extended){
+          _buf.putByte((byte)Session.SSH_MSG_CHANNEL_EXTENDED_DATA);
+          _buf.putInt(recipient);
+          _buf.putInt(1);   // SSH_EXTENDED_DATA_STDERR
+        }
+        else{
+          _buf.putByte((byte)Session.SSH_MSG_CHANNEL_DATA);
+          _buf.putInt(recipient);
+        }
+        _buf.putString(buf, s, n);
+        try{
+          connection.write(packet);
+        }
+        catch(IOException e){
+          throw e;
+        }
+        catch(Exception e){
+          throw new IOException(e.toString());
+        }
+        s+=n;
+        l-=n;
+      }
+    }
+  }
+}
@@ -0,0 +1,709 @@
+/* -*-mode:java; c-basic-offset:2; indent-tabs-mode:nil -*- */
+/*
+Copyright (c) 2002-2016 ymnk, JCraft,Inc. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+  1. Redistributions of source code must retain the above copyright notice,
+     this list of conditions and the following disclaimer.
+
+  2. Redistributions in binary form must reproduce the above copyright 
+     notice, this list of conditions and the following disclaimer in 
+     the documentation and/or other materials provided with the distribution.
+
+  3. The names of the authors may not be used to endorse or promote products
+     derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL JCRAFT,
+INC. OR ANY CONTRIBUTORS TO THIS SOFTWARE BE LIABLE FOR ANY DIRECT, INDIRECT,
+INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.jcraft.jsch;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/**
+ * The server side of one connection to a {@link LoopbackServer}:
+ * the transport layer (version exchange, key exchange, packet
+ * encoding and decoding), user authentication and the dispatching
+ * of the connection protocol messages to {@link LoopbackChannel}s.
+ */
+class LoopbackConnection implements Runnable{
+
+  private static final String VERSION="SSH-2.0-JSchLoopback_1.0";
+
+  private static final String KEXES="diffie-hellman-group14-sha1,diffie-hellman-group1-sha1";
+  private static final String CIPHERS="aes128-ctr,aes192-ctr,aes256-ctr,aes128-cbc,aes192-cbc,aes256-cbc,3des-ctr,3des-cbc,blowfish-cbc,aes128-gcm@openssh.com,aes256-gcm@openssh.com,chacha20-poly1305@openssh.com";
+  private static final String MACS="hmac-sha2-256-etm@openssh.com,hmac-sha2-512-etm@openssh.com,hmac-sha1-etm@openssh.com,hmac-sha2-256,hmac-sha1,hmac-md5,hmac-sha1-96,hmac-md5-96";
+
+  private final LoopbackServer server;
+  private final Socket socket;
+  private InputStream in;
+  private OutputStream out;
+
+  private byte[] V_C;
+  private byte[] V_S=Util.str2byte(VERSION);
+  private byte[] I_C;
+  private byte[] I_S;
+  private byte[] session_id;
+
+  private Cipher in_cipher;
+  private MAC in_mac;
+  private boolean in_etm=false;
+  private int in_block=8;
+  private byte[] in_mac_result1;
+  private byte[] in_mac_result2;
+  private int seqi=0;
+
+  private Cipher out_cipher;
+  private MAC out_mac;
+  private boolean out_etm=false;
+  private int out_block=8;
+  private int seqo=0;
+
+  // keys negotiated, but not yet in use.
+  private Cipher new_in_cipher;
+  private MAC new_in_mac;
+  private boolean new_in_etm;
+
+  private final Object write_lock=new Object();
+  private boolean in_kex=false;
+  private boolean authed=false;
+  private volatile boolean closed=false;
+
+  private String[] guess;
+  private DH dh;
+  private HASH sha;
+
+  private final java.util.Hashtable channels=new java.util.Hashtable();
+  private int next_id=0;
+
+  LoopbackConnection(LoopbackServer server, Socket socket){
+    this.server=server;
+    this.socket=socket;
+  }
+
+  void start(){
+    Thread thread=new Thread(this);
+    thread.setName("LoopbackConnection "+socket.getPort());
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  LoopbackServer getServer(){ return server; }
+
+  public void run(){
+    try{
+      in=new java.io.BufferedInputStream(socket.getInputStream(), 64*1024);
+      out=socket.getOutputStream();
+
+      out.write(Util.str2byte(VERSION+"\r\n"));
+      out.flush();
+      V_C=readVersion();
+
+      synchronized(write_lock){
+        in_kex=true;
+      }
+      sendKexInit();
+
+      Buffer buf=new Buffer(64*1024);
+      while(!closed){
+        read(buf);
+        dispatch(buf);
+      }
+    }
+    catch(Exception e){
+      // the connection has been closed or broken.
+    }
+    close();
+  }
+
+  private byte[] readVersion() throws IOException{
+    StringBuffer sb=new StringBuffer();
+    while(true){
+      int c=in.read();
+      if(c<0){
+        throw new IOException("connection closed");
+      }
+      if(c=='\n'){
+        String line=sb.toString();
+        if(line.startsWith("SSH-")){
+          return Util.str2byte(line);
+        }
+        sb.setLength(0);
+        continue;
+      }
+      if(c!='\r'){
+        sb.append((char)c);
+      }
+    }
+  }
+
+  void close(){
+    if(closed){
+      return;
+    }
+    closed=true;
+    synchronized(write_lock){
+      write_lock.notifyAll();
+    }
+    try{
+      socket.close();
+    }
+    catch(IOException e){
+    }
+    java.util.Enumeration e=channels.elements();
+    while(e.hasMoreElements()){
+      ((LoopbackChannel)e.nextElement()).closed();
+    }
+    channels.clear();
+    server.removeConnection(this);
+  }
+
+  boolean isClosed(){
+    return closed;
+  }
+
+  private void readFully(byte[] foo, int start, int length) throws IOException{
+    while(length>0){
+      int i=in.read(foo, start, length);
+      if(i<0){
+        throw new IOException("connection closed");
+      }
+      start+=i;
+      length-=i;
+    }
+  }
+
+  /**
+   * reads and decrypts one packet. Afterwards the offset of
+   * {@code buf} points to the message type.
+   */
+  private void read(Buffer buf) throws Exception{
+    buf.reset();
+    // AEAD ciphers and encrypt-then-MAC process the packet length
+    // separately.
+    AEADCipher aead=(in_cipher instanceof AEADCipher ?
+                     (AEADCipher)in_cipher : null);
+    int head=(aead!=null || in_etm ? 4 : in_block);
+    readFully(buf.buffer, 0, head);
+    if(aead!=null){
+      aead.setSequenceNumber(seqi);
+      aead.updateAAD(buf.buffer, 0, 4);
+    }
+    else if(in_cipher!=null && !in_etm){
+      in_cipher.update(buf.buffer, 0, in_block, buf.buffer, 0);
+    }
+    int length=buf.getInt();
+    if(length<5 || length>256*1024){
+      throw new IOException("invalid packet length "+length);
+    }
+    int need=length+4-head;
+    int tag=(aead!=null ? aead.getTagSize() : 0);
+    if(buf.buffer.length<length+4+tag){
+      byte[] foo=new byte[length+4+tag];
+      System.arraycopy(buf.buffer, 0, foo, 0, head);
+      buf.buffer=foo;
+    }
+    readFully(buf.buffer, head, need+tag);
+    buf.index=length+4;
+    if(aead!=null){
+      aead.doFinal(buf.buffer, 4, need, buf.buffer, 4);
+    }
+    else if(in_etm){
+      checkMac(buf);
+      in_cipher.update(buf.buffer, 4, need, buf.buffer, 4);
+    }
+    else{
+      if(in_cipher!=null){
+        in_cipher.update(buf.buffer, in_block, need, buf.buffer, in_block);
+      }
+      if(in_mac!=null){
+        checkMac(buf);
+      }
+    }
+    seqi++;
+    int pad=buf.buffer[4]&0xff;
+    buf.index-=pad;
+    buf.rewind();
+    buf.getInt();
+    buf.getByte();
+  }
+
+  private void checkMac(Buffer buf) throws Exception{
+    in_mac.update(seqi);
+    in_mac.update(buf.buffer, 0, buf.index);
+    in_mac.doFinal(in_mac_result1, 0);
+    readFully(in_mac_result2, 0, in_mac_result2.length);
+    if(!java.util.Arrays.equals(in_mac_result1, in_mac_result2)){
+      throw new IOException("MAC error");
+    }
+  }
+
+  private static boolean isKex(int command){
+    return command>=Session.SSH_MSG_KEXINIT && command<=49 ||
+           command==Session.SSH_MSG_DISCONNECT;
+  }
+
+  /**
+   * encodes and sends a packet. Packets other than key exchange
+   * messages wait while a key exchange is running.
+   */
+  void write(Packet packet) throws Exception{
+    int command=packet.buffer.getCommand()&0xff;
+    synchronized(write_lock){
+      while(in_kex && !isKex(command) && !closed){
+        write_lock.wait();
+      }
+      if(closed){
+        throw new IOException("connection closed");
+      }
+      Buffer buf=packet.buffer;
+      if(out_cipher instanceof AEADCipher){
+        AEADCipher aead=(AEADCipher)out_cipher;
+        packet.padding(out_block, 4);
+        aead.setSequenceNumber(seqo);
+        aead.updateAAD(buf.buffer, 0, 4);
+        aead.doFinal(buf.buffer, 4, buf.index-4, buf.buffer, 4);
+        buf.skip(aead.getTagSize());
+      }
+      else if(out_etm){
+        packet.padding(out_block, 4);
+        out_cipher.update(buf.buffer, 4, buf.index-4, buf.buffer, 4);
+        out_mac.update(seqo);
+        out_mac.update(buf.buffer, 0, buf.index);
+        out_mac.doFinal(buf.buffer, buf.index);
+        buf.skip(out_mac.getBlockSize());
+      }
+      else{
+        packet.padding(out_cipher!=null ? out_block : 8);
+        if(out_mac!=null){
+          out_mac.update(seqo);
+          out_mac.update(buf.buffer, 0, buf.index);
+          out_mac.doFinal(buf.buffer, buf.index);
+        }
+        if(out_cipher!=null){
+          out_cipher.update(buf.buffer, 0, buf.index, buf.buffer, 0);
+        }
+        if(out_mac!=null){
+          buf.skip(out_mac.getBlockSize());
+        }
+      }
+      out.write(buf.buffer, 0, buf.index);
+      out.flush();
+      seqo++;
+    }
+  }
+
+  /**
+   * creates a packet with room for {@code size} bytes of payload.
+   */
+  static Packet packet(int size){
+    Packet packet=new Packet(new Buffer(size+5+Session.buffer_margin));
+    packet.reset();
+    return packet;
+  }
+
+  private void dispatch(Buffer buf) throws Exception{
+    int command=buf.getCommand()&0xff;
+    buf.getByte();
+    switch(command){
+    case Session.SSH_MSG_DISCONNECT:
+      close();
+      return;
+    case Session.SSH_MSG_IGNORE:
+    case Session.SSH_MSG_DEBUG:
+    case Session.SSH_MSG_UNIMPLEMENTED:
+      return;
+    case Session.SSH_MSG_KEXINIT:
+      receiveKexInit(buf);
+      return;
+    case Session.SSH_MSG_KEXDH_INIT:
+      receiveKexDHInit(buf);
+      return;
+    case Session.SSH_MSG_NEWKEYS:
+      in_cipher=new_in_cipher;
+      in_mac=new_in_mac;
+      in_etm=new_in_etm;
+      in_block=Session.getCipherSize(in_cipher);
+      if(in_mac!=null){
+        in_mac_result1=new byte[in_mac.getBlockSize()];
+        in_mac_result2=new byte[in_mac.getBlockSize()];
+      }
+      return;
+    }
+
+    if(session_id==null){
+      throw new IOException("unexpected message "+command);
+    }
+
+    if(!authed){
+      authenticate(command, buf);
+      return;
+    }
+
+    LoopbackChannel channel;
+    switch(command){
+    case Session.SSH_MSG_GLOBAL_REQUEST:
+      buf.getString();
+      if(buf.getByte()!=0){
+        Packet packet=packet(16);
+        packet.buffer.putByte((byte)Session.SSH_MSG_REQUEST_FAILURE);
+        write(packet);
+      }
+      return;
+    case Session.SSH_MSG_CHANNEL_OPEN:
+      open(buf);
+      return;
+    case Session.SSH_MSG_CHANNEL_WINDOW_ADJUST:
+      channel=getChannel(buf.getInt());
+      if(channel!=null){
+        channel.addRemoteWindowSize(buf.getUInt());
+      }
+      return;
+    case Session.SSH_MSG_CHANNEL_DATA:
+    case Session.SSH_MSG_CHANNEL_EXTENDED_DATA:
+      channel=getChannel(buf.getInt());
+      if(command==Session.SSH_MSG_CHANNEL_EXTENDED_DATA){
+        buf.getInt();
+      }
+      if(channel!=null){
+        int[] start=new int[1];
+        int[] length=new int[1];
+        byte[] foo=buf.getString(start, length);
+        channel.received(foo, start[0], length[0]);
+      }
+      return;
+    case Session.SSH_MSG_CHANNEL_EOF:
+      channel=getChannel(buf.getInt());
+      if(channel!=null){
+        channel.eofReceived();
+      }
+      return;
+    case Session.SSH_MSG_CHANNEL_CLOSE:
+      channel=getChannel(buf.getInt());
+      if(channel!=null){
+        channel.closeReceived();
+        channels.remove(new Integer(channel.getId()));
+      }
+      return;
+    case Session.SSH_MSG_CHANNEL_REQUEST:
+      channel=getChannel(buf.getInt());
+      String type=Util.byte2str(buf.getString());
+      boolean reply=(buf.getByte()!=0);
+      boolean success=(channel!=null && channel.request(type, buf));
+      if(reply && channel!=null){
+        Packet packet=packet(16);
+        packet.buffer.putByte((byte)(success ? Session.SSH_MSG_CHANNEL_SUCCESS
+                                             : Session.SSH_MSG_CHANNEL_FAILURE));
+        packet.buffer.putInt(channel.getRecipient());
+        write(packet);
+      }
+      if(success){
+        channel.requestDone(type);
+      }
+      return;
+    case Session.SSH_MSG_CHANNEL_SUCCESS:
+    case Session.SSH_MSG_CHANNEL_FAILURE:
+      return;
+    default:
+      Packet packet=packet(16);
+      packet.buffer.putByte((byte)Session.SSH_MSG_UNIMPLEMENTED);
+      packet.buffer.putInt(seqi-1);
+      write(packet);
+    }
+  }
+
+  private LoopbackChannel getChannel(int id){
+    return (LoopbackChannel)channels.get(new Integer(id));
+  }
+
+  private void open(Buffer buf) throws Exception{
+    String type=Util.byte2str(buf.getString());
+    int recipient=buf.getInt();
+    long window=buf.getUInt();
+    int max_packet=buf.getInt();
+
+    LoopbackChannel channel=null;
+    int reason=3;   // SSH_OPEN_UNKNOWN_CHANNEL_TYPE
+    String message="unknown channel type";
+    if(type.equals("session")){
+      channel=new LoopbackChannel(this, next_id++, recipient, window, max_packet);
+    }
+    else if(type.equals("direct-tcpip")){
+      String host=Util.byte2str(buf.getString());
+      int port=buf.getInt();
+      try{
+        Socket target=new Socket(host, port);
+        channel=new LoopbackChannel(this, next_id++, recipient, window, max_packet);
+        channel.forward(target);
+      }
+      catch(IOException e){
+        reason=2;   // SSH_OPEN_CONNECT_FAILED
+        message=e.toString();
+      }
+    }
+
+    Packet packet=packet(64+message.length());
+    Buffer _buf=packet.buffer;
+    if(channel==null){
+      _buf.putByte((byte)Session.SSH_MSG_CHANNEL_OPEN_FAILURE);
+      _buf.putInt(recipient);
+      _buf.putInt(reason);
+      _buf.putString(Util.str2byte(message));
+      _buf.putString(Util.empty);
+      write(packet);
+      return;
+    }
+    channels.put(new Integer(channel.getId()), channel);
+    _buf.putByte((byte)Session.SSH_MSG_CHANNEL_OPEN_CONFIRMATION);
+    _buf.putInt(recipient);
+    _buf.putInt(channel.getId());
+    _buf.putInt(server.getWindowSize());
+    _buf.putInt(server.getMaxPacketSize());
+    write(packet);
+    channel.opened();
+  }
+
+  private void authenticate(int command, Buffer buf) throws Exception{
+    Packet packet=packet(128);
+    Buffer _buf=packet.buffer;
+    if(command==Session.SSH_MSG_SERVICE_REQUEST){
+      byte[] service=buf.getString();
+      _buf.putByte((byte)Session.SSH_MSG_SERVICE_ACCEPT);
+      _buf.putString(service);
+      write(packet);
+      return;
+    }
+    if(command!=UserAuth.SSH_MSG_USERAUTH_REQUEST){
+      throw new IOException("unexpected message "+command);
+    }
+    buf.getString();   // user
+    buf.getString();   // service
+    String method=Util.byte2str(buf.getString());
+    String password=server.getPassword();
+    boolean success=false;
+    if(method.equals("none")){
+      success=(password==null);
+    }
+    else if(method.equals("password")){
+      buf.getByte();
+      success=(password!=null &&
+               password.equals(Util.byte2str(buf.getString())));
+    }
+    if(success){
+      authed=true;
+      _buf.putByte((byte)UserAuth.SSH_MSG_USERAUTH_SUCCESS);
+    }
+    else{
+      _buf.putByte((byte)UserAuth.SSH_MSG_USERAUTH_FAILURE);
+      _buf.putString(Util.str2byte("password"));
+      _buf.putByte((byte)0);
+    }
+    write(packet);
+  }
+
+  private void sendKexInit() throws Exception{
+    Packet packet=packet(1024);
+    Buffer buf=packet.buffer;
+    buf.putByte((byte)Session.SSH_MSG_KEXINIT);
+    byte[] cookie=new byte[16];
+    Session.random.fill(cookie, 0, 16);
+    buf.putByte(cookie);
+    buf.putString(Util.str2byte(KEXES));
+    buf.putString(Util.str2byte("ssh-rsa"));
+    buf.putString(Util.str2byte(CIPHERS));
+    buf.putString(Util.str2byte(CIPHERS));
+    buf.putString(Util.str2byte(MACS));
+    buf.putString(Util.str2byte(MACS));
+    buf.putString(Util.str2byte("none"));
+    buf.putString(Util.str2byte("none"));
+    buf.putString(Util.empty);
+    buf.putString(Util.empty);
+    buf.putByte((byte)0);
+    buf.putInt(0);
+    I_S=new byte[buf.index-5];
+    System.arraycopy(buf.buffer, 5, I_S, 0, I_S.length);
+    write(packet);
+  }
+
+  private void receiveKexInit(Buffer buf) throws Exception{
+    boolean initial=(I_S!=null && I_C==null);
+    I_C=new byte[buf.index-5];
+    System.arraycopy(buf.buffer, 5, I_C, 0, I_C.length);
+    if(!initial){
+      // a rekeying started by the client
+      synchronized(write_lock){
+        in_kex=true;
+      }
+      sendKexInit();
+    }
+
+    buf.getByte(new byte[16]);
+    String[] client=new String[10];
+    for(int i=0; i<client.length; i++){
+      client[i]=Util.byte2str(buf.getString());
+    }
+    String[] server=new String[]{KEXES, "ssh-rsa", CIPHERS, CIPHERS,
+                                 MACS, MACS, "none", "none", "", ""};
+    guess=new String[8];
+    for(int i=0; i<guess.length; i++){
+      guess[i]=choose(client[i], server[i]);
+      if(guess[i]==null){
+        throw new IOException("no matching algorithm for "+client[i]);
+      }
+    }
+
+    sha=(HASH)(Class.forName(JSch.getConfig("sha-1")).newInstance());
+    sha.init();
+    dh=(DH)(Class.forName(JSch.getConfig("dh")).newInstance());
+    dh.init();
+    if(guess[0].equals("diffie-hellman-group14-sha1")){
+      dh.setP(DHG14.p);
+      dh.setG(DHG14.g);
+    }
+    else{
+      dh.setP(DHG1.p);
+      dh.setG(DHG1.g);
+    }
+  }
+
+  private static String choose(String client, String server){
+    String[] c=Util.split(client, ",");
+    String[] s=Util.split(server, ",");
+    for(int i=0; i<c.length; i++){
+      for(int j=0; j<s.length; j++){
+        if(c[i].equals(s[j])){
+          return c[i];
+        }
+      }
+    }
+    return null;
+  }
+
+  private void receiveKexDHInit(Buffer buf) throws Exception{
+    byte[] e=buf.getMPInt();
+    byte[] f=dh.getE();
+    dh.setF(e);
+    byte[] K=normalize(dh.getK());
+
+    Buffer tmp=new Buffer(8*1024);
+    tmp.putString(V_C); tmp.putString(V_S);
+    tmp.putString(I_C); tmp.putString(I_S);
+    tmp.putString(server.host_key);
+    tmp.putMPInt(e); tmp.putMPInt(f);
+    tmp.putMPInt(K);
+    sha.update(tmp.buffer, 0, tmp.index);
+    byte[] H=sha.digest();
+    if(session_id==null){
+      session_id=H;
+    }
+
+    SignatureRSA sig=(SignatureRSA)(Class.forName(JSch.getConfig("signature.rsa")).newInstance());
+    sig.init();
+    sig.setPrvKey(server.host_key_d, server.host_key_n);
+    sig.update(H);
+    byte[] sig_of_H=sig.sign();
+
+    Packet packet=packet(server.host_key.length+f.length+sig_of_H.length+64);
+    Buffer _buf=packet.buffer;
+    _buf.putByte((byte)Session.SSH_MSG_KEXDH_REPLY);
+    _buf.putString(server.host_key);
+    _buf.putMPInt(f);
+    tmp.reset();
+    tmp.putString(Util.str2byte("ssh-rsa"));
+    tmp.putString(sig_of_H);
+    _buf.putString(tmp.buffer, 0, tmp.index);
+    write(packet);
+
+    packet=packet(16);
+    packet.buffer.putByte((byte)Session.SSH_MSG_NEWKEYS);
+    write(packet);
+
+    // client to server: A (IV), C (key), E (MAC)
+    // server to client: B (IV), D (key), F (MAC)
+    Cipher c2s=cipher(guess[2]);
+    Cipher s2c=cipher(guess[3]);
+    // AEAD ciphers don't use the negotiated MAC.
+    MAC c2s_mac=(c2s instanceof AEADCipher ? null : mac(guess[4]));
+    MAC s2c_mac=(s2c instanceof AEADCipher ? null : mac(guess[5]));
+    c2s.init(Cipher.DECRYPT_MODE, key(K, H, 'C', c2s.getBlockSize()),
+             key(K, H, 'A', c2s.getIVSize()));
+    s2c.init(Cipher.ENCRYPT_MODE, key(K, H, 'D', s2c.getBlockSize()),
+             key(K, H, 'B', s2c.getIVSize()));
+    if(c2s_mac!=null){
+      c2s_mac.init(key(K, H, 'E', c2s_mac.getBlockSize()));
+    }
+    if(s2c_mac!=null){
+      s2c_mac.init(key(K, H, 'F', s2c_mac.getBlockSize()));
+    }
+
+    new_in_cipher=c2s;
+    new_in_mac=c2s_mac;
+    new_in_etm=(c2s_mac!=null && Session.isEtM(guess[4]));
+
+    synchronized(write_lock){
+      out_cipher=s2c;
+      out_mac=s2c_mac;
+      out_etm=(s2c_mac!=null && Session.isEtM(guess[5]));
+      out_block=Session.getCipherSize(s2c);
+      in_kex=false;
+      write_lock.notifyAll();
+    }
+  }
+
+  private static Cipher cipher(String name) throws Exception{
+    return (Cipher)(Class.forName(JSch.getConfig(name)).newInstance());
+  }
+
+  private static MAC mac(String name) throws Exception{
+    return (MAC)(Class.forName(JSch.getConfig(name)).newInstance());
+  }
+
+  /**
+   * derives a key as described in RFC 4253, section 7.2.
+   */
+  private byte[] key(byte[] K, byte[] H, char c, int length) throws Exception{
+    Buffer buf=new Buffer(K.length+H.length+session_id.length+1024);
+    buf.putMPInt(K);
+    buf.putByte(H);
+    buf.putByte((byte)c);
+    buf.putByte(session_id);
+    sha.update(buf.buffer, 0, buf.index);
+    byte[] result=sha.digest();
+    while(result.length<length){
+      buf.reset();
+      buf.putMPInt(K);
+      buf.putByte(H);
+      buf.putByte(result);
+      sha.update(buf.buffer, 0, buf.index);
+      byte[] foo=sha.digest();
+      byte[] bar=new byte[result.length+foo.length];
+      System.arraycopy(result, 0, bar, 0, result.length);
+      System.arraycopy(foo, 0, bar, result.length, foo.length);
+      result=bar;
+    }
+    return result;
+  }
+
+  private static byte[] normalize(byte[] secret){
+    while(secret.length>1 && secret[0]==0 && (secret[1]&0x80)==0){
+      byte[] tmp=new byte[secret.length-1];
+      System.arraycopy(secret, 1, tmp, 0, tmp.length);
+      secret=tmp;
+    }
+    return secret;
+  }
+}
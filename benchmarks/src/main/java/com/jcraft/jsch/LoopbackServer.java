@@ -0,0 +1,247 @@
+/* -*-mode:java; c-basic-offset:2; indent-tabs-mode:nil -*- */
+/*
+Copyright (c) 2002-2016 ymnk, JCraft,Inc. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+  1. Redistributions of source code must retain the above copyright notice,
+     this list of conditions and the following disclaimer.
+
+  2. Redistributions in binary form must reproduce the above copyright 
+     notice, this list of conditions and the following disclaimer in 
+     the documentation and/or other materials provided with the distribution.
+
+  3. The names of the authors may not be used to endorse or promote products
+     derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL JCRAFT,
+INC. OR ANY CONTRIBUTORS TO THIS SOFTWARE BE LIABLE FOR ANY DIRECT, INDIRECT,
+INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.jcraft.jsch;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.KeyPairGenerator;
+import java.security.interfaces.RSAPrivateKey;
+import java.security.interfaces.RSAPublicKey;
+
+/**
+ * A minimal SSH2 server running in the same process, to measure
+ * (and soak test) the client side of this library on a single box,
+ * without depending on an installed sshd.
+ *<p>
+ *  The server is built from the library's own parts: {@link Buffer},
+ *  {@link Packet}, the {@link Cipher}s, {@link MAC}s, {@link DH} and
+ *  {@link SignatureRSA} named in the {@link JSch} configuration. It
+ *  listens on a loopback port and supports:
+ *</p>
+ *<ul>
+ *  <li>key exchange with {@code diffie-hellman-group14-sha1} and
+ *   {@code diffie-hellman-group1-sha1}, an {@code ssh-rsa} host key
+ *   generated on construction, all ciphers and MACs known to
+ *   {@link JSch} and no compression. The client may rekey at any
+ *   time.</li>
+ *  <li>authentication with {@code none} (if no password is set) or
+ *   {@code password}, for any user name.</li>
+ *  <li>{@code session} channels with {@code exec}, {@code shell}
+ *   and the {@code sftp} subsystem (version 3, served from a local
+ *   directory), and {@code direct-tcpip} channels.</li>
+ *</ul>
+ *<p>
+ *  The commands understood by {@code exec} are:
+ *</p>
+ *<dl>
+ *  <dt>{@code cat}</dt><dd>copies the input to the output
+ *   (this is also what {@code shell} does).</dd>
+ *  <dt>{@code sink}</dt><dd>reads and discards the input.</dd>
+ *  <dt>{@code source} <i>n</i></dt><dd>writes <i>n</i> bytes.</dd>
+ *  <dt>{@code echo} <i>text</i></dt><dd>writes the text and a
+ *   newline.</dd>
+ *  <dt>{@code exit} <i>n</i></dt><dd>exits with status <i>n</i>.</dd>
+ *</dl>
+ *<p>
+ *  The server's host key is not known to the client, so sessions
+ *  created by {@link #getSession} do not check it.
+ *</p>
+ */
+public class LoopbackServer{
+
+  static{
+    if(Session.random==null){
+      try{
+        Session.random=(Random)(Class.forName(JSch.getConfig("random")).newInstance());
+      }
+      catch(Exception e){
+        throw new RuntimeException(e.toString());
+      }
+      Packet.setRandom(Session.random);
+    }
+  }
+
+  private final File root;
+  private String password=null;
+  private int window_size=2*1024*1024;
+  private int max_packet_size=32*1024;
+  private boolean sftp_extensions=true;
+
+  private ServerSocket server_socket;
+  private Thread thread;
+  private final java.util.Vector connections=new java.util.Vector();
+
+  final byte[] host_key;
+  final byte[] host_key_d;
+  final byte[] host_key_n;
+
+  /**
+   * creates a server, generating a new RSA host key.
+   * @param root the directory served by the sftp subsystem,
+   *   which will appear as {@code /} to the client.
+   */
+  public LoopbackServer(File root) throws Exception{
+    this.root=root;
+
+    KeyPairGenerator generator=KeyPairGenerator.getInstance("RSA");
+    generator.initialize(2048);
+    java.security.KeyPair pair=generator.generateKeyPair();
+    RSAPublicKey pub=(RSAPublicKey)pair.getPublic();
+    RSAPrivateKey prv=(RSAPrivateKey)pair.getPrivate();
+    host_key_n=pub.getModulus().toByteArray();
+    host_key_d=prv.getPrivateExponent().toByteArray();
+
+    Buffer buf=new Buffer(1024);
+    buf.putString(Util.str2byte("ssh-rsa"));
+    buf.putMPInt(pub.getPublicExponent().toByteArray());
+    buf.putMPInt(strip(host_key_n));
+    host_key=new byte[buf.getLength()];
+    buf.getByte(host_key);
+  }
+
+  private static byte[] strip(byte[] foo){
+    if(foo.length>1 && foo[0]==0 && (foo[1]&0x80)!=0){
+      byte[] bar=new byte[foo.length-1];
+      System.arraycopy(foo, 1, bar, 0, bar.length);
+      return bar;
+    }
+    return foo;
+  }
+
+  /**
+   * requires password authentication.
+   * @param password the password accepted for any user, or
+   *   {@code null} to accept the {@code none} method.
+   */
+  public void setPassword(String password){ this.password=password; }
+
+  /**
+   * sets the initial window size (and the amount of data
+   * acknowledged by each window adjustment) of the server's
+   * side of new channels. The default is 2 MB.
+   */
+  public void setWindowSize(int size){ this.window_size=size; }
+
+  /**
+   * sets the maximum packet size of the server's side of
+   * new channels. The default is 32 KB.
+   */
+  public void setMaxPacketSize(int size){ this.max_packet_size=size; }
+
+  /**
+   * enables or disables the SFTP extensions (copy-data, check-file
+   * and limits@openssh.com) for new sftp subsystems. They are
+   * enabled by default.
+   */
+  public void setSftpExtensions(boolean enable){ this.sftp_extensions=enable; }
+
+  String getPassword(){ return password; }
+  int getWindowSize(){ return window_size; }
+  int getMaxPacketSize(){ return max_packet_size; }
+  File getRoot(){ return root; }
+  boolean getSftpExtensions(){ return sftp_extensions; }
+
+  /**
+   * starts listening on an unused port of the loopback interface.
+   * @return the port.
+   */
+  public synchronized int start() throws IOException{
+    server_socket=new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+    thread=new Thread(){
+        public void run(){
+          accept();
+        }
+      };
+    thread.setName("LoopbackServer "+server_socket.getLocalPort());
+    thread.setDaemon(true);
+    thread.start();
+    return server_socket.getLocalPort();
+  }
+
+  /**
+   * returns the port the server listens on.
+   */
+  public int getPort(){
+    return server_socket.getLocalPort();
+  }
+
+  private void accept(){
+    try{
+      while(true){
+        Socket socket=server_socket.accept();
+        socket.setTcpNoDelay(true);
+        LoopbackConnection connection=new LoopbackConnection(this, socket);
+        connections.addElement(connection);
+        connection.start();
+      }
+    }
+    catch(IOException e){
+      // stopped
+    }
+  }
+
+  void removeConnection(LoopbackConnection connection){
+    connections.removeElement(connection);
+  }
+
+  /**
+   * stops listening and closes all connections.
+   */
+  public synchronized void stop(){
+    try{
+      if(server_socket!=null){
+        server_socket.close();
+      }
+    }
+    catch(IOException e){
+    }
+    Object[] foo=connections.toArray();
+    for(int i=0; i<foo.length; i++){
+      ((LoopbackConnection)foo[i]).close();
+    }
+  }
+
+  /**
+   * creates a session (not yet connected) to this server, which
+   * does not check the host key and knows the password.
+   */
+  public Session getSession(JSch jsch, String username) throws JSchException{
+    Session session=jsch.getSession(username, "127.0.0.1", getPort());
+    session.setConfig("StrictHostKeyChecking", "no");
+    if(password!=null){
+      session.setPassword(password);
+    }
+    return session;
+  }
+}
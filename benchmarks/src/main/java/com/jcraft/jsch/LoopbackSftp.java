@@ -0,0 +1,733 @@
+/* -*-mode:java; c-basic-offset:2; indent-tabs-mode:nil -*- */
+/*
+Copyright (c) 2002-2016 ymnk, JCraft,Inc. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+  1. Redistributions of source code must retain the above copyright notice,
+     this list of conditions and the following disclaimer.
+
+  2. Redistributions in binary form must reproduce the above copyright 
+     notice, this list of conditions and the following disclaimer in 
+     the documentation and/or other materials provided with the distribution.
+
+  3. The names of the authors may not be used to endorse or promote products
+     derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL JCRAFT,
+INC. OR ANY CONTRIBUTORS TO THIS SOFTWARE BE LIABLE FOR ANY DIRECT, INDIRECT,
+INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.jcraft.jsch;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Hashtable;
+import java.util.Locale;
+import java.util.Vector;
+
+/**
+ * A minimal SFTP (version 3) server on top of a directory, for the
+ * {@code sftp} subsystem of a {@link LoopbackChannel}.
+ *
+ * Paths are resolved below the root directory of the
+ * {@link LoopbackServer}; ownership and permissions are faked.
+ * Requests are served one after another, in the order they arrive.
+ * Optionally the extensions {@code copy-data}, {@code check-file-name},
+ * {@code check-file-handle} and {@code limits@openssh.com} are
+ * supported.
+ *
+ * @see <a href="http://tools.ietf.org/html/draft-ietf-secsh-filexfer-02">
+ *   draft-ietf-secsh-filexfer-02</a>
+ * @see <a href="http://tools.ietf.org/html/draft-ietf-secsh-filexfer-extensions-00">
+ *   draft-ietf-secsh-filexfer-extensions-00</a>
+ */
+class LoopbackSftp{
+
+  private static final byte SSH_FXP_INIT=           1;
+  private static final byte SSH_FXP_VERSION=        2;
+  private static final byte SSH_FXP_OPEN=           3;
+  private static final byte SSH_FXP_CLOSE=          4;
+  private static final byte SSH_FXP_READ=           5;
+  private static final byte SSH_FXP_WRITE=          6;
+  private static final byte SSH_FXP_LSTAT=          7;
+  private static final byte SSH_FXP_FSTAT=          8;
+  private static final byte SSH_FXP_SETSTAT=        9;
+  private static final byte SSH_FXP_FSETSTAT=      10;
+  private static final byte SSH_FXP_OPENDIR=       11;
+  private static final byte SSH_FXP_READDIR=       12;
+  private static final byte SSH_FXP_REMOVE=        13;
+  private static final byte SSH_FXP_MKDIR=         14;
+  private static final byte SSH_FXP_RMDIR=         15;
+  private static final byte SSH_FXP_REALPATH=      16;
+  private static final byte SSH_FXP_STAT=          17;
+  private static final byte SSH_FXP_RENAME=        18;
+  private static final byte SSH_FXP_STATUS=       101;
+  private static final byte SSH_FXP_HANDLE=       102;
+  private static final byte SSH_FXP_DATA=         103;
+  private static final byte SSH_FXP_NAME=         104;
+  private static final byte SSH_FXP_ATTRS=        105;
+  private static final byte SSH_FXP_EXTENDED=     (byte)200;
+  private static final byte SSH_FXP_EXTENDED_REPLY=(byte)201;
+
+  private static final int SSH_FXF_READ=           0x00000001;
+  private static final int SSH_FXF_WRITE=          0x00000002;
+  private static final int SSH_FXF_CREAT=          0x00000008;
+  private static final int SSH_FXF_TRUNC=          0x00000010;
+  private static final int SSH_FXF_EXCL=           0x00000020;
+
+  private static final int SSH_FILEXFER_ATTR_SIZE=        0x00000001;
+  private static final int SSH_FILEXFER_ATTR_UIDGID=      0x00000002;
+  private static final int SSH_FILEXFER_ATTR_PERMISSIONS= 0x00000004;
+  private static final int SSH_FILEXFER_ATTR_ACMODTIME=   0x00000008;
+
+  private static final int SSH_FX_OK=                0;
+  private static final int SSH_FX_EOF=               1;
+  private static final int SSH_FX_NO_SUCH_FILE=      2;
+  private static final int SSH_FX_FAILURE=           4;
+  private static final int SSH_FX_OP_UNSUPPORTED=    8;
+
+  private static final int MAX_READ=64*1024;
+  private static final int MAX_NAMES=100;
+
+  private final File root;
+  private final InputStream in;
+  private final OutputStream out;
+  private final boolean extensions;
+
+  private final Hashtable handles=new Hashtable();
+  private int handle_count=0;
+
+  private Buffer buf=new Buffer(MAX_READ+1024);
+  private Buffer reply=new Buffer(MAX_READ+1024);
+
+  private final SimpleDateFormat date_format=
+    new SimpleDateFormat("MMM dd HH:mm", Locale.US);
+
+  /**
+   * an open file or directory.
+   */
+  private static class Handle{
+    final File file;
+    RandomAccessFile raf;
+    File[] list;
+    int index;
+    Handle(File file){
+      this.file=file;
+    }
+  }
+
+  LoopbackSftp(File root, InputStream in, OutputStream out,
+               boolean extensions){
+    this.root=root;
+    this.in=in;
+    this.out=out;
+    this.extensions=extensions;
+  }
+
+  /**
+   * serves requests until the client closes the channel.
+   */
+  void run() throws IOException{
+    try{
+      while(true){
+        buf.reset();
+        if(!readFully(buf.buffer, 0, 4)){
+          return;
+        }
+        buf.index=4;
+        int length=buf.getInt();
+        if(length<=0){
+          throw new IOException("bad packet length: "+length);
+        }
+        buf.reset();
+        buf.checkFreeSize(length);
+        if(!readFully(buf.buffer, 0, length)){
+          return;
+        }
+        buf.index=length;
+        int type=buf.getByte();
+        if(type==SSH_FXP_INIT){
+          begin(SSH_FXP_VERSION);
+          reply.putInt(3);
+          if(extensions){
+            putExtension("limits@openssh.com", "1");
+            putExtension("copy-data", "1");
+            putExtension("check-file-name", "md5,sha1,sha256,sha384,sha512");
+            putExtension("check-file-handle", "md5,sha1,sha256,sha384,sha512");
+          }
+          send();
+          continue;
+        }
+        int id=buf.getInt();
+        try{
+          dispatch(type, id);
+        }
+        catch(IOException e){
+          sendStatus(id, SSH_FX_FAILURE, e.toString());
+        }
+      }
+    }
+    finally{
+      for(java.util.Enumeration e=handles.elements(); e.hasMoreElements();){
+        close((Handle)e.nextElement());
+      }
+      handles.clear();
+    }
+  }
+
+  private void dispatch(int type, int id) throws IOException{
+    File file;
+    Handle handle;
+    switch(type){
+    case SSH_FXP_OPEN:
+      file=resolve(buf.getString());
+      int pflags=buf.getInt();
+      skipAttrs();
+      if(file.isDirectory()){
+        sendStatus(id, SSH_FX_FAILURE, "is a directory");
+        return;
+      }
+      if(file.exists()){
+        if((pflags&SSH_FXF_EXCL)!=0){
+          sendStatus(id, SSH_FX_FAILURE, "file exists");
+          return;
+        }
+      }
+      else if((pflags&SSH_FXF_CREAT)==0){
+        sendStatus(id, SSH_FX_NO_SUCH_FILE, "no such file");
+        return;
+      }
+      handle=new Handle(file);
+      handle.raf=new RandomAccessFile(file,
+                                      (pflags&SSH_FXF_WRITE)!=0 ? "rw" : "r");
+      if((pflags&SSH_FXF_TRUNC)!=0){
+        handle.raf.setLength(0);
+      }
+      sendHandle(id, handle);
+      return;
+    case SSH_FXP_OPENDIR:
+      file=resolve(buf.getString());
+      if(!file.isDirectory()){
+        sendStatus(id, SSH_FX_NO_SUCH_FILE, "no such directory");
+        return;
+      }
+      handle=new Handle(file);
+      File[] list=file.listFiles();
+      if(list==null){
+        list=new File[0];
+      }
+      handle.list=new File[list.length+2];
+      handle.list[0]=new File(file, ".");
+      handle.list[1]=new File(file, "..");
+      System.arraycopy(list, 0, handle.list, 2, list.length);
+      sendHandle(id, handle);
+      return;
+    case SSH_FXP_CLOSE:
+      handle=(Handle)handles.remove(Util.byte2str(buf.getString()));
+      if(handle==null){
+        sendStatus(id, SSH_FX_FAILURE, "invalid handle");
+        return;
+      }
+      close(handle);
+      sendStatus(id, SSH_FX_OK, "");
+      return;
+    case SSH_FXP_READ:
+      handle=getHandle();
+      long offset=buf.getLong();
+      int length=Math.min(buf.getInt(), MAX_READ);
+      if(handle==null || handle.raf==null){
+        sendStatus(id, SSH_FX_FAILURE, "invalid handle");
+        return;
+      }
+      begin(SSH_FXP_DATA);
+      reply.putInt(id);
+      reply.checkFreeSize(4+length);
+      int s=reply.index+4;
+      handle.raf.seek(offset);
+      int i=0;
+      while(i<length){
+        int j=handle.raf.read(reply.buffer, s+i, length-i);
+        if(j<=0){
+          break;
+        }
+        i+=j;
+      }
+      if(i==0){
+        sendStatus(id, SSH_FX_EOF, "EOF");
+        return;
+      }
+      reply.putInt(i);
+      reply.skip(i);
+      send();
+      return;
+    case SSH_FXP_WRITE:
+      handle=getHandle();
+      offset=buf.getLong();
+      int[] start=new int[1];
+      int[] len=new int[1];
+      byte[] data=buf.getString(start, len);
+      if(handle==null || handle.raf==null){
+        sendStatus(id, SSH_FX_FAILURE, "invalid handle");
+        return;
+      }
+      handle.raf.seek(offset);
+      handle.raf.write(data, start[0], len[0]);
+      sendStatus(id, SSH_FX_OK, "");
+      return;
+    case SSH_FXP_READDIR:
+      handle=getHandle();
+      if(handle==null || handle.list==null){
+        sendStatus(id, SSH_FX_FAILURE, "invalid handle");
+        return;
+      }
+      if(handle.index>=handle.list.length){
+        sendStatus(id, SSH_FX_EOF, "EOF");
+        return;
+      }
+      int count=Math.min(handle.list.length-handle.index, MAX_NAMES);
+      begin(SSH_FXP_NAME);
+      reply.putInt(id);
+      reply.putInt(count);
+      for(int k=0; k<count; k++){
+        file=handle.list[handle.index++];
+        String name=file.getName();
+        reply.checkFreeSize(1024+name.length()*6);
+        reply.putString(Util.str2byte(name));
+        reply.putString(Util.str2byte(longname(file, name)));
+        putAttrs(file);
+      }
+      send();
+      return;
+    case SSH_FXP_STAT:
+    case SSH_FXP_LSTAT:
+      file=resolve(buf.getString());
+      if(!file.exists()){
+        sendStatus(id, SSH_FX_NO_SUCH_FILE, "no such file");
+        return;
+      }
+      sendAttrs(id, file);
+      return;
+    case SSH_FXP_FSTAT:
+      handle=getHandle();
+      if(handle==null){
+        sendStatus(id, SSH_FX_FAILURE, "invalid handle");
+        return;
+      }
+      sendAttrs(id, handle.file);
+      return;
+    case SSH_FXP_SETSTAT:
+      file=resolve(buf.getString());
+      if(!file.exists()){
+        sendStatus(id, SSH_FX_NO_SUCH_FILE, "no such file");
+        return;
+      }
+      setAttrs(file, null);
+      sendStatus(id, SSH_FX_OK, "");
+      return;
+    case SSH_FXP_FSETSTAT:
+      handle=getHandle();
+      if(handle==null){
+        sendStatus(id, SSH_FX_FAILURE, "invalid handle");
+        return;
+      }
+      setAttrs(handle.file, handle.raf);
+      sendStatus(id, SSH_FX_OK, "");
+      return;
+    case SSH_FXP_REMOVE:
+      file=resolve(buf.getString());
+      if(!file.isFile()){
+        sendStatus(id, SSH_FX_NO_SUCH_FILE, "no such file");
+        return;
+      }
+      sendStatus(id, file.delete() ? SSH_FX_OK : SSH_FX_FAILURE, "");
+      return;
+    case SSH_FXP_MKDIR:
+      file=resolve(buf.getString());
+      sendStatus(id, file.mkdir() ? SSH_FX_OK : SSH_FX_FAILURE, "");
+      return;
+    case SSH_FXP_RMDIR:
+      file=resolve(buf.getString());
+      if(!file.isDirectory()){
+        sendStatus(id, SSH_FX_NO_SUCH_FILE, "no such directory");
+        return;
+      }
+      sendStatus(id, file.delete() ? SSH_FX_OK : SSH_FX_FAILURE, "");
+      return;
+    case SSH_FXP_RENAME:
+      file=resolve(buf.getString());
+      File target=resolve(buf.getString());
+      if(!file.exists()){
+        sendStatus(id, SSH_FX_NO_SUCH_FILE, "no such file");
+        return;
+      }
+      if(target.exists()){
+        sendStatus(id, SSH_FX_FAILURE, "file exists");
+        return;
+      }
+      sendStatus(id, file.renameTo(target) ? SSH_FX_OK : SSH_FX_FAILURE, "");
+      return;
+    case SSH_FXP_REALPATH:
+      String path=normalize(Util.byte2str(buf.getString()));
+      begin(SSH_FXP_NAME);
+      reply.putInt(id);
+      reply.putInt(1);
+      reply.putString(Util.str2byte(path));
+      reply.putString(Util.str2byte(path));
+      reply.putInt(0);
+      send();
+      return;
+    case SSH_FXP_EXTENDED&0xff:
+      if(extensions){
+        extended(id, Util.byte2str(buf.getString()));
+        return;
+      }
+      sendStatus(id, SSH_FX_OP_UNSUPPORTED, "unsupported request: "+type);
+      return;
+    default:
+      // SSH_FXP_READLINK and SSH_FXP_SYMLINK
+      sendStatus(id, SSH_FX_OP_UNSUPPORTED, "unsupported request: "+type);
+    }
+  }
+
+  private void extended(int id, String request) throws IOException{
+    if(request.equals("limits@openssh.com")){
+      begin(SSH_FXP_EXTENDED_REPLY);
+      reply.putInt(id);
+      reply.putLong(MAX_READ+1024);     // max-packet-length
+      reply.putLong(MAX_READ);          // max-read-length
+      reply.putLong(MAX_READ);          // max-write-length
+      reply.putLong(0);                 // max-open-handles
+      send();
+      return;
+    }
+    if(request.equals("copy-data")){
+      Handle from=getHandle();
+      long offset=buf.getLong();
+      long length=buf.getLong();
+      Handle to=getHandle();
+      long position=buf.getLong();
+      if(from==null || from.raf==null || to==null || to.raf==null){
+        sendStatus(id, SSH_FX_FAILURE, "invalid handle");
+        return;
+      }
+      long end=(length==0 ? Long.MAX_VALUE : offset+length);
+      byte[] data=new byte[MAX_READ];
+      while(offset<end){
+        from.raf.seek(offset);
+        int n=from.raf.read(data, 0, (int)Math.min(end-offset, data.length));
+        if(n<=0){
+          break;
+        }
+        to.raf.seek(position);
+        to.raf.write(data, 0, n);
+        offset+=n;
+        position+=n;
+      }
+      sendStatus(id, SSH_FX_OK, "");
+      return;
+    }
+    if(request.equals("check-file-name") ||
+       request.equals("check-file-handle")){
+      RandomAccessFile raf;
+      boolean opened=false;
+      if(request.equals("check-file-name")){
+        File file=resolve(buf.getString());
+        if(!file.isFile()){
+          sendStatus(id, SSH_FX_NO_SUCH_FILE, file.getPath());
+          return;
+        }
+        raf=new RandomAccessFile(file, "r");
+        opened=true;
+      }
+      else{
+        Handle handle=getHandle();
+        if(handle==null || handle.raf==null){
+          sendStatus(id, SSH_FX_FAILURE, "invalid handle");
+          return;
+        }
+        raf=handle.raf;
+      }
+      try{
+        String[] algorithms=Util.split(Util.byte2str(buf.getString()), ",");
+        long offset=buf.getLong();
+        long length=buf.getLong();
+        int block_size=buf.getInt();
+        java.security.MessageDigest md=null;
+        String used=null;
+        for(int i=0; i<algorithms.length && md==null; i++){
+          String name=(String)DIGESTS.get(algorithms[i]);
+          if(name!=null){
+            try{
+              md=java.security.MessageDigest.getInstance(name);
+              used=algorithms[i];
+            }
+            catch(java.security.NoSuchAlgorithmException e){
+            }
+          }
+        }
+        if(md==null){
+          sendStatus(id, SSH_FX_OP_UNSUPPORTED, "no supported algorithm");
+          return;
+        }
+        begin(SSH_FXP_EXTENDED_REPLY);
+        reply.putInt(id);
+        reply.putString(Util.str2byte("check-file"));
+        reply.putString(Util.str2byte(used));
+
+        // one hash for each block, or for everything
+        long end=(length==0 ? Long.MAX_VALUE : offset+length);
+        long block_end=(block_size>0 ? offset+block_size : end);
+        boolean pending=false;
+        byte[] data=new byte[MAX_READ];
+        raf.seek(offset);
+        while(offset<end){
+          int n=raf.read(data, 0, (int)Math.min(Math.min(end, block_end)-offset,
+                                                data.length));
+          if(n<=0){
+            break;
+          }
+          md.update(data, 0, n);
+          pending=true;
+          offset+=n;
+          if(block_size>0 && offset==block_end){
+            reply.putByte(md.digest());
+            pending=false;
+            block_end+=block_size;
+          }
+        }
+        if(pending || block_size==0){
+          reply.putByte(md.digest());
+        }
+        send();
+      }
+      finally{
+        if(opened){
+          raf.close();
+        }
+      }
+      return;
+    }
+    sendStatus(id, SSH_FX_OP_UNSUPPORTED, "unsupported request: "+request);
+  }
+
+  /**
+   * the check-file algorithm names, mapped to MessageDigest names.
+   */
+  private static final Hashtable DIGESTS=new Hashtable();
+  static{
+    DIGESTS.put("md5", "MD5");
+    DIGESTS.put("sha1", "SHA-1");
+    DIGESTS.put("sha256", "SHA-256");
+    DIGESTS.put("sha384", "SHA-384");
+    DIGESTS.put("sha512", "SHA-512");
+  }
+
+  private void putExtension(String name, String data){
+    reply.putString(Util.str2byte(name));
+    reply.putString(Util.str2byte(data));
+  }
+
+  /**
+   * normalizes an absolute or relative (to the root) path,
+   * removing "." and ".." elements.
+   */
+  static String normalize(String path){
+    Vector names=new Vector();
+    int i=0;
+    while(i<=path.length()){
+      int j=path.indexOf('/', i);
+      if(j<0){
+        j=path.length();
+      }
+      String name=path.substring(i, j);
+      i=j+1;
+      if(name.length()==0 || name.equals(".")){
+        continue;
+      }
+      if(name.equals("..")){
+        if(names.size()>0){
+          names.removeElementAt(names.size()-1);
+        }
+        continue;
+      }
+      names.addElement(name);
+    }
+    if(names.size()==0){
+      return "/";
+    }
+    StringBuffer sb=new StringBuffer();
+    for(int k=0; k<names.size(); k++){
+      sb.append('/');
+      sb.append((String)names.elementAt(k));
+    }
+    return sb.toString();
+  }
+
+  private File resolve(byte[] path){
+    String foo=normalize(Util.byte2str(path));
+    if(foo.equals("/")){
+      return root;
+    }
+    return new File(root, foo.substring(1));
+  }
+
+  private Handle getHandle(){
+    return (Handle)handles.get(Util.byte2str(buf.getString()));
+  }
+
+  private void close(Handle handle){
+    if(handle.raf!=null){
+      try{
+        handle.raf.close();
+      }
+      catch(IOException e){
+      }
+    }
+  }
+
+  private void skipAttrs(){
+    int flags=buf.getInt();
+    if((flags&SSH_FILEXFER_ATTR_SIZE)!=0){
+      buf.getLong();
+    }
+    if((flags&SSH_FILEXFER_ATTR_UIDGID)!=0){
+      buf.getInt();
+      buf.getInt();
+    }
+    if((flags&SSH_FILEXFER_ATTR_PERMISSIONS)!=0){
+      buf.getInt();
+    }
+    if((flags&SSH_FILEXFER_ATTR_ACMODTIME)!=0){
+      buf.getInt();
+      buf.getInt();
+    }
+  }
+
+  /**
+   * applies the size and modification time of the attributes
+   * in the request; everything else is ignored.
+   */
+  private void setAttrs(File file, RandomAccessFile raf) throws IOException{
+    int flags=buf.getInt();
+    if((flags&SSH_FILEXFER_ATTR_SIZE)!=0){
+      long size=buf.getLong();
+      if(raf!=null){
+        raf.setLength(size);
+      }
+      else{
+        RandomAccessFile foo=new RandomAccessFile(file, "rw");
+        try{
+          foo.setLength(size);
+        }
+        finally{
+          foo.close();
+        }
+      }
+    }
+    if((flags&SSH_FILEXFER_ATTR_UIDGID)!=0){
+      buf.getInt();
+      buf.getInt();
+    }
+    if((flags&SSH_FILEXFER_ATTR_PERMISSIONS)!=0){
+      buf.getInt();
+    }
+    if((flags&SSH_FILEXFER_ATTR_ACMODTIME)!=0){
+      buf.getInt();
+      long mtime=buf.getUInt();
+      file.setLastModified(mtime*1000L);
+    }
+  }
+
+  private void putAttrs(File file){
+    reply.putInt(SSH_FILEXFER_ATTR_SIZE|SSH_FILEXFER_ATTR_UIDGID|
+                 SSH_FILEXFER_ATTR_PERMISSIONS|SSH_FILEXFER_ATTR_ACMODTIME);
+    reply.putLong(file.isDirectory() ? 4096 : file.length());
+    reply.putInt(0);
+    reply.putInt(0);
+    reply.putInt(file.isDirectory() ? 040755 : 0100644);
+    int mtime=(int)(file.lastModified()/1000L);
+    reply.putInt(mtime);
+    reply.putInt(mtime);
+  }
+
+  private String longname(File file, String name){
+    StringBuffer sb=new StringBuffer();
+    sb.append(file.isDirectory() ? "drwxr-xr-x" : "-rw-r--r--");
+    sb.append(" 1 0 0 ");
+    sb.append(file.isDirectory() ? 4096 : file.length());
+    sb.append(' ');
+    sb.append(date_format.format(new Date(file.lastModified())));
+    sb.append(' ');
+    sb.append(name);
+    return sb.toString();
+  }
+
+  private void begin(byte type){
+    reply.reset();
+    reply.putInt(0);
+    reply.putByte(type);
+  }
+
+  private void send() throws IOException{
+    int length=reply.index-4;
+    byte[] foo=reply.buffer;
+    foo[0]=(byte)(length>>>24);
+    foo[1]=(byte)(length>>>16);
+    foo[2]=(byte)(length>>>8);
+    foo[3]=(byte)(length);
+    out.write(foo, 0, reply.index);
+    out.flush();
+  }
+
+  private void sendStatus(int id, int code, String message) throws IOException{
+    begin(SSH_FXP_STATUS);
+    reply.putInt(id);
+    reply.putInt(code);
+    reply.putString(Util.str2byte(message));
+    reply.putString(Util.empty);
+    send();
+  }
+
+  private void sendHandle(int id, Handle handle) throws IOException{
+    String name=Integer.toString(handle_count++);
+    handles.put(name, handle);
+    begin(SSH_FXP_HANDLE);
+    reply.putInt(id);
+    reply.putString(Util.str2byte(name));
+    send();
+  }
+
+  private void sendAttrs(int id, File file) throws IOException{
+    begin(SSH_FXP_ATTRS);
+    reply.putInt(id);
+    putAttrs(file);
+    send();
+  }
+
+  private boolean readFully(byte[] foo, int start, int length) throws IOException{
+    while(length>0){
+      int i=in.read(foo, start, length);
+      if(i<0){
+        return false;
+      }
+      start+=i;
+      length-=i;
+    }
+    return true;
+  }
+}
@@ -0,0 +1,126 @@
+/* -*-mode:java; c-basic-offset:2; indent-tabs-mode:nil -*- */
+/*
+Copyright (c) 2002-2016 ymnk, JCraft,Inc. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+  1. Redistributions of source code must retain the above copyright notice,
+     this list of conditions and the following disclaimer.
+
+  2. Redistributions in binary form must reproduce the above copyright 
+     notice, this list of conditions and the following disclaimer in 
+     the documentation and/or other materials provided with the distribution.
+
+  3. The names of the authors may not be used to endorse or promote products
+     derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL JCRAFT,
+INC. OR ANY CONTRIBUTORS TO THIS SOFTWARE BE LIABLE FOR ANY DIRECT, INDIRECT,
+INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.jcraft.jsch;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Reading many small ranges of a remote file with an {@link SftpFile},
+ * one request after another versus all requests at once, against a
+ * {@link LoopbackServer}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations=3, time=2)
+@Measurement(iterations=5, time=2)
+@Fork(1)
+public class SftpFileBenchmark{
+
+  private static final int FILE_SIZE=64*1024*1024;
+
+  @Param({"16", "1024"})
+  public int ranges;
+
+  @Param({"4096"})
+  public int length;
+
+  private File root;
+  private LoopbackServer server;
+  private Session session;
+  private ChannelSftp sftp;
+  private SftpFile file;
+  private long[] positions;
+  private ByteBuffer[] buffers;
+
+  @Setup
+  public void setup() throws Exception{
+    root=File.createTempFile("jsch", "bench");
+    root.delete();
+    root.mkdir();
+
+    byte[] data=new byte[1024*1024];
+    OutputStream out=new FileOutputStream(new File(root, "index"));
+    for(int i=0; i<FILE_SIZE; i+=data.length){
+      out.write(data);
+    }
+    out.close();
+
+    server=new LoopbackServer(root);
+    server.start();
+    session=server.getSession(new JSch(), "bench");
+    session.connect();
+    sftp=(ChannelSftp)session.openChannel("sftp");
+    sftp.connect();
+    file=sftp.open("index", SftpFile.READ);
+
+    java.util.Random random=new java.util.Random(0);
+    positions=new long[ranges];
+    buffers=new ByteBuffer[ranges];
+    for(int i=0; i<ranges; i++){
+      positions[i]=random.nextInt(FILE_SIZE-length);
+      buffers[i]=ByteBuffer.allocate(length);
+    }
+  }
+
+  @TearDown
+  public void tearDown() throws Exception{
+    file.close();
+    sftp.disconnect();
+    session.disconnect();
+    server.stop();
+    new File(root, "index").delete();
+    root.delete();
+  }
+
+  @Benchmark
+  public int sequential() throws SftpException{
+    int count=0;
+    for(int i=0; i<ranges; i++){
+      buffers[i].clear();
+      count+=file.read(positions[i], buffers[i]);
+    }
+    return count;
+  }
+
+  @Benchmark
+  public int batch() throws SftpException{
+    for(int i=0; i<ranges; i++){
+      buffers[i].clear();
+    }
+    return file.read(positions, buffers).length;
+  }
+}
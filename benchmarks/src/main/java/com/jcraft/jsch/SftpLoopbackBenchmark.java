@@ -0,0 +1,153 @@
+/* -*-mode:java; c-basic-offset:2; indent-tabs-mode:nil -*- */
+/*
+Copyright (c) 2002-2016 ymnk, JCraft,Inc. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+  1. Redistributions of source code must retain the above copyright notice,
+     this list of conditions and the following disclaimer.
+
+  2. Redistributions in binary form must reproduce the above copyright 
+     notice, this list of conditions and the following disclaimer in 
+     the documentation and/or other materials provided with the distribution.
+
+  3. The names of the authors may not be used to endorse or promote products
+     derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL JCRAFT,
+INC. OR ANY CONTRIBUTORS TO THIS SOFTWARE BE LIABLE FOR ANY DIRECT, INDIRECT,
+INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.jcraft.jsch;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * SFTP uploads and downloads through a real session, against the
+ * {@link LoopbackServer} in the same process.
+ *
+ * The {@code option} parameter names a boolean configuration option
+ * of the session to enable, or "none".
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations=3, time=2)
+@Measurement(iterations=5, time=2)
+@Fork(1)
+public class SftpLoopbackBenchmark{
+
+  @Param({"1048576", "16777216"})
+  public int size;
+
+  @Param({"aes128-ctr", "aes256-ctr", "aes128-gcm@openssh.com",
+          "chacha20-poly1305@openssh.com"})
+  public String cipher;
+
+  @Param({"none", "UseNIO", "WriterThread", "WriteCoalescing"})
+  public String option;
+
+  private File root;
+  private LoopbackServer server;
+  private Session session;
+  private ChannelSftp sftp;
+  private byte[] data;
+
+  @Setup
+  public void setup() throws Exception{
+    root=File.createTempFile("jsch", "bench");
+    root.delete();
+    root.mkdir();
+
+    data=new byte[size];
+    new java.util.Random(0).nextBytes(data);
+    OutputStream out=new FileOutputStream(new File(root, "download"));
+    out.write(data);
+    out.close();
+
+    server=new LoopbackServer(root);
+    server.start();
+    session=server.getSession(new JSch(), "bench");
+    session.setConfig("cipher.c2s", cipher);
+    session.setConfig("cipher.s2c", cipher);
+    if(!option.equals("none")){
+      session.setConfig(option, "yes");
+    }
+    session.connect();
+    sftp=(ChannelSftp)session.openChannel("sftp");
+    sftp.connect();
+  }
+
+  @TearDown
+  public void tearDown(){
+    sftp.disconnect();
+    session.disconnect();
+    server.stop();
+    File[] files=root.listFiles();
+    for(int i=0; i<files.length; i++){
+      files[i].delete();
+    }
+    root.delete();
+  }
+
+  @Benchmark
+  public void put() throws SftpException{
+    sftp.put(new java.io.ByteArrayInputStream(data), "upload");
+  }
+
+  /**
+   * uploads a local file, reading it through its FileChannel.
+   */
+  @Benchmark
+  public void putFile() throws SftpException{
+    sftp.put(new File(root, "download").getPath(), "upload");
+  }
+
+  /**
+   * uploads the same local file through a FileInputStream, for
+   * comparison with {@link #putFile}.
+   */
+  @Benchmark
+  public void putFileStream() throws Exception{
+    FileInputStream in=new FileInputStream(new File(root, "download"));
+    try{
+      sftp.put(in, "upload");
+    }
+    finally{
+      in.close();
+    }
+  }
+
+  @Benchmark
+  public void get() throws SftpException{
+    sftp.get("download", new Sink());
+  }
+
+  @Benchmark
+  public void getFile() throws SftpException{
+    sftp.get("download", new File(root, "copy").getPath());
+  }
+
+  /**
+   * discards everything written to it.
+   */
+  static class Sink extends OutputStream{
+    public void write(int b){}
+    public void write(byte[] b, int off, int len){}
+  }
+}
@@ -0,0 +1,118 @@
+/* -*-mode:java; c-basic-offset:2; indent-tabs-mode:nil -*- */
+/*
+Copyright (c) 2002-2016 ymnk, JCraft,Inc. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+  1. Redistributions of source code must retain the above copyright notice,
+     this list of conditions and the following disclaimer.
+
+  2. Redistributions in binary form must reproduce the above copyright 
+     notice, this list of conditions and the following disclaimer in 
+     the documentation and/or other materials provided with the distribution.
+
+  3. The names of the authors may not be used to endorse or promote products
+     derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL JCRAFT,
+INC. OR ANY CONTRIBUTORS TO THIS SOFTWARE BE LIABLE FOR ANY DIRECT, INDIRECT,
+INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.jcraft.jsch;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Striped SFTP downloads and uploads of one file over several
+ * channels of a {@link LoopbackServer}, with a small window per
+ * channel, so that the window limits a single channel.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations=3, time=2)
+@Measurement(iterations=5, time=2)
+@Fork(1)
+public class SftpStripedBenchmark{
+
+  @Param({"67108864"})
+  public int size;
+
+  @Param({"1", "2", "4"})
+  public int channels;
+
+  @Param({"1", "2"})
+  public int sessions;
+
+  private File root;
+  private LoopbackServer server;
+  private Session[] _sessions;
+  private SftpStripedTransfer transfer;
+
+  @Setup
+  public void setup() throws Exception{
+    root=File.createTempFile("jsch", "bench");
+    root.delete();
+    root.mkdir();
+
+    byte[] data=new byte[1024*1024];
+    new java.util.Random(0).nextBytes(data);
+    OutputStream out=new FileOutputStream(new File(root, "download"));
+    for(int i=0; i<size; i+=data.length){
+      out.write(data, 0, Math.min(data.length, size-i));
+    }
+    out.close();
+
+    server=new LoopbackServer(root);
+    server.setWindowSize(256*1024);
+    server.start();
+    JSch jsch=new JSch();
+    _sessions=new Session[sessions];
+    for(int i=0; i<sessions; i++){
+      _sessions[i]=server.getSession(jsch, "bench");
+      _sessions[i].connect();
+    }
+    transfer=SftpStripedTransfer.open(_sessions, channels);
+    transfer.setStripeSize(8*1024*1024);
+  }
+
+  @TearDown
+  public void tearDown(){
+    transfer.disconnect();
+    for(int i=0; i<_sessions.length; i++){
+      _sessions[i].disconnect();
+    }
+    server.stop();
+    File[] files=root.listFiles();
+    for(int i=0; i<files.length; i++){
+      files[i].delete();
+    }
+    root.delete();
+  }
+
+  @Benchmark
+  public void get() throws SftpException{
+    transfer.get("download", new File(root, "copy").getPath(),
+                 null, ChannelSftp.OVERWRITE);
+  }
+
+  @Benchmark
+  public void put() throws SftpException{
+    transfer.put(new File(root, "download").getPath(), "upload",
+                 null, ChannelSftp.OVERWRITE);
+  }
+}
@@ -0,0 +1,156 @@
+/* -*-mode:java; c-basic-offset:2; indent-tabs-mode:nil -*- */
+/*
+Copyright (c) 2002-2016 ymnk, JCraft,Inc. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+  1. Redistributions of source code must retain the above copyright notice,
+     this list of conditions and the following disclaimer.
+
+  2. Redistributions in binary form must reproduce the above copyright 
+     notice, this list of conditions and the following disclaimer in 
+     the documentation and/or other materials provided with the distribution.
+
+  3. The names of the authors may not be used to endorse or promote products
+     derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL JCRAFT,
+INC. OR ANY CONTRIBUTORS TO THIS SOFTWARE BE LIABLE FOR ANY DIRECT, INDIRECT,
+INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.jcraft.jsch;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Throughput of {@link Session#encode} and {@link Session#read}
+ * (decryption and MAC check) for combinations of cipher and MAC,
+ * with {@code SSH_MSG_CHANNEL_DATA} packets of a given payload size.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations=3, time=2)
+@Measurement(iterations=5, time=2)
+@Fork(1)
+public class TransportBenchmark{
+
+  /**
+   * cipher and MAC, separated by a slash, or an AEAD cipher alone.
+   */
+  @Param({"aes128-ctr/hmac-sha1",
+          "aes128-ctr/hmac-sha2-256",
+          "aes128-ctr/hmac-sha2-256-etm@openssh.com",
+          "aes256-ctr/hmac-sha2-256",
+          "aes128-gcm@openssh.com",
+          "aes256-gcm@openssh.com",
+          "chacha20-poly1305@openssh.com",
+          "aes128-cbc/hmac-md5",
+          "aes128-cbc/hmac-sha1-etm@openssh.com",
+          "3des-cbc/hmac-sha1",
+          "blowfish-cbc/hmac-sha1"})
+  public String algorithms;
+
+  @Param({"64", "32768"})
+  public int size;
+
+  /**
+   * the number of packets decoded per invocation of {@link #decode}.
+   */
+  static final int PACKETS=64;
+
+  private String cipher;
+  private String mac;
+  private boolean etm;
+  private Session encoder;
+  private Session decoder;
+  private Buffer buf;
+  private Packet packet;
+  private Buffer rbuf;
+  private byte[] payload;
+  private byte[] stream;
+
+  @Setup(Level.Trial)
+  public void setup() throws Exception{
+    int i=algorithms.indexOf('/');
+    cipher=(i<0 ? algorithms : algorithms.substring(0, i));
+    mac=(i<0 ? null : algorithms.substring(i+1));
+    etm=(mac!=null && Session.isEtM(mac));
+
+    JSch jsch=new JSch();
+    encoder=Transports.newSession(jsch);
+    Transports.setOutgoing(encoder,
+                           Transports.cipher(cipher, Cipher.ENCRYPT_MODE),
+                           Transports.mac(mac), etm);
+
+    payload=Transports.key(size, 7);
+    buf=new Buffer(size+64+Session.buffer_margin);
+    packet=new Packet(buf);
+
+    // a stream of packets encoded from a fresh state, to be decoded
+    // again and again by decode().
+    Session _encoder=Transports.newSession(jsch);
+    Transports.setOutgoing(_encoder,
+                           Transports.cipher(cipher, Cipher.ENCRYPT_MODE),
+                           Transports.mac(mac), etm);
+    ByteArrayOutputStream out=new ByteArrayOutputStream();
+    for(int i=0; i<PACKETS; i++){
+      fill();
+      Transports.set(_encoder, "seqo", Integer.valueOf(i));
+      _encoder.encode(packet);
+      out.write(buf.buffer, 0, buf.index);
+    }
+    stream=out.toByteArray();
+
+    decoder=Transports.newSession(jsch);
+    rbuf=new Buffer(size+64+Session.buffer_margin);
+  }
+
+  @Setup(Level.Invocation)
+  public void rewind() throws Exception{
+    // the decoder has to start with the state the stream was
+    // encoded with.
+    Transports.setIncoming(decoder,
+                           Transports.cipher(cipher, Cipher.DECRYPT_MODE),
+                           Transports.mac(mac), etm);
+    Transports.setInput(decoder, new ByteArrayInputStream(stream));
+  }
+
+  private void fill(){
+    packet.reset();
+    buf.putByte((byte)Session.SSH_MSG_CHANNEL_DATA);
+    buf.putInt(0);
+    buf.putInt(size);
+    buf.putByte(payload, 0, size);
+  }
+
+  @Benchmark
+  public int encode() throws Exception{
+    fill();
+    encoder.encode(packet);
+    return buf.index;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(PACKETS)
+  public int decode() throws Exception{
+    int length=0;
+    for(int i=0; i<PACKETS; i++){
+      length+=decoder.read(rbuf).index;
+    }
+    return length;
+  }
+}
@@ -0,0 +1,137 @@
+/* -*-mode:java; c-basic-offset:2; indent-tabs-mode:nil -*- */
+/*
+Copyright (c) 2002-2016 ymnk, JCraft,Inc. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+  1. Redistributions of source code must retain the above copyright notice,
+     this list of conditions and the following disclaimer.
+
+  2. Redistributions in binary form must reproduce the above copyright 
+     notice, this list of conditions and the following disclaimer in 
+     the documentation and/or other materials provided with the distribution.
+
+  3. The names of the authors may not be used to endorse or promote products
+     derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL JCRAFT,
+INC. OR ANY CONTRIBUTORS TO THIS SOFTWARE BE LIABLE FOR ANY DIRECT, INDIRECT,
+INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.jcraft.jsch;
+
+import java.lang.reflect.Field;
+
+/**
+ * Helpers for the benchmarks: creates unconnected sessions and
+ * installs ciphers and MACs in them, as it would happen at the end
+ * of a key exchange.
+ *
+ * This lives in the package {@code com.jcraft.jsch} to reach the
+ * package private parts of the library; the private fields of
+ * {@link Session} are set by reflection.
+ */
+final class Transports{
+
+  private Transports(){ }
+
+  /**
+   * creates a session which is not connected.
+   */
+  static Session newSession(JSch jsch) throws JSchException{
+    if(Session.random==null){
+      Session.random=new com.jcraft.jsch.jce.Random();
+      Packet.setRandom(Session.random);
+    }
+    return jsch.getSession("bench", "127.0.0.1", 22);
+  }
+
+  /**
+   * creates and initializes a cipher with a fixed key and IV.
+   * @param name the SSH name of the cipher, like "aes128-ctr".
+   * @param mode {@link Cipher#ENCRYPT_MODE} or {@link Cipher#DECRYPT_MODE}.
+   */
+  static Cipher cipher(String name, int mode) throws Exception{
+    Cipher cipher=(Cipher)(Class.forName(JSch.getConfig(name)).newInstance());
+    cipher.init(mode, key(cipher.getBlockSize(), 1), key(cipher.getIVSize(), 2));
+    return cipher;
+  }
+
+  /**
+   * creates and initializes a MAC with a fixed key.
+   * @param name the SSH name of the MAC, like "hmac-sha1", or
+   *   {@code null} for none, as used with AEAD ciphers.
+   */
+  static MAC mac(String name) throws Exception{
+    if(name==null){
+      return null;
+    }
+    MAC mac=(MAC)(Class.forName(JSch.getConfig(name)).newInstance());
+    mac.init(key(mac.getBlockSize(), 3));
+    return mac;
+  }
+
+  static byte[] key(int length, int seed){
+    byte[] foo=new byte[length];
+    for(int i=0; i<length; i++){
+      foo[i]=(byte)(i*31+seed);
+    }
+    return foo;
+  }
+
+  /**
+   * installs the algorithms for outgoing packets, used by
+   * {@link Session#encode}.
+   * @param etm true for a *-etm@openssh.com MAC.
+   */
+  static void setOutgoing(Session session, Cipher cipher, MAC mac,
+                          boolean etm) throws Exception{
+    set(session, "c2scipher", cipher);
+    set(session, "c2scipher_size", Integer.valueOf(Session.getCipherSize(cipher)));
+    set(session, "c2smac", mac);
+    set(session, "c2smac_etm", Boolean.valueOf(etm));
+  }
+
+  /**
+   * installs the algorithms for incoming packets, used by
+   * {@link Session#read}.
+   * @param etm true for a *-etm@openssh.com MAC.
+   */
+  static void setIncoming(Session session, Cipher cipher, MAC mac,
+                          boolean etm) throws Exception{
+    set(session, "s2ccipher", cipher);
+    set(session, "s2ccipher_size", Integer.valueOf(Session.getCipherSize(cipher)));
+    set(session, "s2cmac", mac);
+    set(session, "s2cmac_etm", Boolean.valueOf(etm));
+    if(mac!=null){
+      set(session, "s2cmac_result1", new byte[mac.getBlockSize()]);
+      set(session, "s2cmac_result2", new byte[mac.getBlockSize()]);
+    }
+  }
+
+  /**
+   * lets the session read from the given stream, and resets the
+   * sequence number of incoming packets.
+   */
+  static void setInput(Session session, java.io.InputStream in) throws Exception{
+    IO io=new IO();
+    io.setInputStream(in);
+    set(session, "io", io);
+    set(session, "seqi", Integer.valueOf(0));
+  }
+
+  static void set(Object object, String name, Object value) throws Exception{
+    Field field=Session.class.getDeclaredField(name);
+    field.setAccessible(true);
+    field.set(object, value);
+  }
+}
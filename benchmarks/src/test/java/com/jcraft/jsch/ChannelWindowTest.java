@@ -0,0 +1,207 @@
+/* -*-mode:java; c-basic-offset:2; indent-tabs-mode:nil -*- */
+/*
+Copyright (c) 2002-2016 ymnk, JCraft,Inc. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+  1. Redistributions of source code must retain the above copyright notice,
+     this list of conditions and the following disclaimer.
+
+  2. Redistributions in binary form must reproduce the above copyright 
+     notice, this list of conditions and the following disclaimer in 
+     the documentation and/or other materials provided with the distribution.
+
+  3. The names of the authors may not be used to endorse or promote products
+     derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL JCRAFT,
+INC. OR ANY CONTRIBUTORS TO THIS SOFTWARE BE LIABLE FOR ANY DIRECT, INDIRECT,
+INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.jcraft.jsch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+
+import org.junit.Test;
+
+/**
+ * Tests of the flow control of the channels' input streams, against
+ * a {@link LoopbackServer}.
+ */
+public class ChannelWindowTest{
+
+  private static final int WINDOW=256*1024;
+
+  private static String exec(Session session, String command) throws Exception{
+    ChannelExec channel=(ChannelExec)session.openChannel("exec");
+    channel.setCommand(command);
+    InputStream in=channel.getInputStream();
+    channel.connect();
+    ByteArrayOutputStream out=new ByteArrayOutputStream();
+    byte[] buf=new byte[1024];
+    int i;
+    while((i=in.read(buf, 0, buf.length))>=0){
+      out.write(buf, 0, i);
+    }
+    channel.disconnect();
+    return new String(out.toByteArray(), "UTF-8");
+  }
+
+  private static void check(boolean nio) throws Exception{
+    File root=File.createTempFile("window", "");
+    root.delete();
+    root.mkdir();
+    LoopbackServer server=new LoopbackServer(root);
+    server.start();
+    try{
+      Session session=server.getSession(new JSch(), "test");
+      session.setConfig("UseNIO", nio ? "yes" : "no");
+      session.setConfig("WindowSize", String.valueOf(WINDOW));
+      session.connect();
+
+      int length=8*WINDOW;
+      ChannelExec channel=(ChannelExec)session.openChannel("exec");
+      channel.setCommand("source "+length);
+      InputStream in=channel.getInputStream();
+      channel.connect();
+
+      // the data which has not been read is not credited to the window
+      int last=-1;
+      for(int i=0; i<50 && in.available()!=last; i++){
+        last=in.available();
+        Thread.sleep(200);
+      }
+      assertTrue("unread: "+last, last>0 && last<=WINDOW);
+
+      // and the session does not wait for the reader
+      assertEquals("alive\n", exec(session, "echo alive"));
+
+      // reading adjusts the window again
+      byte[] buf=new byte[8*1024];
+      long count=0;
+      int i;
+      while((i=in.read(buf, 0, buf.length))>=0){
+        count+=i;
+      }
+      assertEquals(length, count);
+      channel.disconnect();
+      session.disconnect();
+    }
+    finally{
+      server.stop();
+      root.delete();
+    }
+  }
+
+  /**
+   * reads and writes through {@code cat} with a small window while
+   * key exchanges are started, so window adjustments are due on the
+   * reading thread during a key exchange.
+   */
+  private static void checkRekey(boolean nio) throws Exception{
+    File root=File.createTempFile("window", "");
+    root.delete();
+    root.mkdir();
+    LoopbackServer server=new LoopbackServer(root);
+    server.start();
+    try{
+      final Session session=server.getSession(new JSch(), "test");
+      session.setConfig("UseNIO", nio ? "yes" : "no");
+      session.setConfig("WindowSize", "16384");
+      session.setConfig("PacketSize", "4096");
+      session.connect();
+
+      final int length=16*1024*1024;
+      ChannelExec channel=(ChannelExec)session.openChannel("exec");
+      channel.setCommand("cat");
+      InputStream in=channel.getInputStream();
+      final java.io.OutputStream out=channel.getOutputStream();
+      channel.connect();
+
+      final Exception[] failure=new Exception[1];
+      Thread writer=new Thread(){
+          public void run(){
+            try{
+              byte[] buf=new byte[4096];
+              for(int n=0; n<length; n+=buf.length){
+                out.write(buf);
+              }
+              out.close();
+            }
+            catch(Exception e){
+              failure[0]=e;
+            }
+          }
+        };
+      writer.start();
+      Thread rekeyer=new Thread(){
+          public void run(){
+            try{
+              while(!isInterrupted()){
+                session.rekey();
+                Thread.sleep(2);
+              }
+            }
+            catch(InterruptedException e){
+            }
+            catch(Exception e){
+              failure[0]=e;
+            }
+          }
+        };
+      rekeyer.start();
+
+      byte[] buf=new byte[8*1024];
+      long count=0;
+      int i;
+      while(count<length && (i=in.read(buf, 0, buf.length))>=0){
+        count+=i;
+      }
+      rekeyer.interrupt();
+      rekeyer.join();
+      writer.join();
+      assertEquals(null, failure[0]);
+      assertEquals(length, count);
+      channel.disconnect();
+      session.disconnect();
+    }
+    finally{
+      server.stop();
+      root.delete();
+    }
+  }
+
+  @Test(timeout=60000)
+  public void unreadDataStopsTheSender() throws Exception{
+    check(false);
+  }
+
+  @Test(timeout=60000)
+  public void unreadDataStopsTheSenderWithNIO() throws Exception{
+    check(true);
+  }
+
+  @Test(timeout=60000)
+  public void readingDuringKeyExchange() throws Exception{
+    checkRekey(false);
+  }
+
+  @Test(timeout=60000)
+  public void readingDuringKeyExchangeWithNIO() throws Exception{
+    checkRekey(true);
+  }
+}
@@ -0,0 +1,121 @@
+/* -*-mode:java; c-basic-offset:2; indent-tabs-mode:nil -*- */
+/*
+Copyright (c) 2002-2016 ymnk, JCraft,Inc. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+  1. Redistributions of source code must retain the above copyright notice,
+     this list of conditions and the following disclaimer.
+
+  2. Redistributions in binary form must reproduce the above copyright 
+     notice, this list of conditions and the following disclaimer in 
+     the documentation and/or other materials provided with the distribution.
+
+  3. The names of the authors may not be used to endorse or promote products
+     derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL JCRAFT,
+INC. OR ANY CONTRIBUTORS TO THIS SOFTWARE BE LIABLE FOR ANY DIRECT, INDIRECT,
+INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.jcraft.jsch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+
+import org.junit.Test;
+
+/**
+ * Tests of the sessions served by {@link NIOTransport}, against a
+ * {@link LoopbackServer}.
+ */
+public class NIOTransportTest{
+
+  private static Session connect(LoopbackServer server) throws Exception{
+    Session session=server.getSession(new JSch(), "test");
+    session.setConfig("UseNIO", "yes");
+    session.setConfig("NIOSelectors", "1");
+    session.setConfig("WindowSize", "262144");
+    session.connect();
+    return session;
+  }
+
+  private static String exec(Session session, String command) throws Exception{
+    ChannelExec channel=(ChannelExec)session.openChannel("exec");
+    channel.setCommand(command);
+    InputStream in=channel.getInputStream();
+    channel.connect();
+    ByteArrayOutputStream out=new ByteArrayOutputStream();
+    byte[] buf=new byte[1024];
+    int i;
+    while((i=in.read(buf, 0, buf.length))>=0){
+      out.write(buf, 0, i);
+    }
+    channel.disconnect();
+    return new String(out.toByteArray(), "UTF-8");
+  }
+
+  /**
+   * waits until no more data arrives in a stream which is not read.
+   */
+  private static int awaitStalled(InputStream in) throws Exception{
+    int last=-1;
+    for(int i=0; i<100; i++){
+      Thread.sleep(200);
+      int available=in.available();
+      if(available>0 && available==last){
+        break;
+      }
+      last=available;
+    }
+    return in.available();
+  }
+
+  @Test(timeout=60000)
+  public void unreadChannelDoesNotStallOtherSessions() throws Exception{
+    File root=File.createTempFile("nio", "");
+    root.delete();
+    root.mkdir();
+    LoopbackServer server=new LoopbackServer(root);
+    server.start();
+    try{
+      Session slow=connect(server);
+      ChannelExec source=(ChannelExec)slow.openChannel("exec");
+      source.setCommand("source 100000000");
+      InputStream unread=source.getInputStream();
+      source.connect();
+      awaitStalled(unread);
+
+      // all sessions share the only selector thread
+      Session other=connect(server);
+      for(int i=0; i<20; i++){
+        assertEquals("hello "+i+"\n", exec(other, "echo hello "+i));
+      }
+
+      byte[] buf=new byte[64*1024];
+      assertTrue(unread.read(buf, 0, buf.length)>0);
+      source.disconnect();
+      assertEquals("done\n", exec(slow, "echo done"));
+
+      other.disconnect();
+      slow.disconnect();
+    }
+    finally{
+      server.stop();
+      root.delete();
+    }
+  }
+}
@@ -0,0 +1,222 @@
+/* -*-mode:java; c-basic-offset:2; indent-tabs-mode:nil -*- */
+/*
+Copyright (c) 2002-2016 ymnk, JCraft,Inc. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+  1. Redistributions of source code must retain the above copyright notice,
+     this list of conditions and the following disclaimer.
+
+  2. Redistributions in binary form must reproduce the above copyright 
+     notice, this list of conditions and the following disclaimer in 
+     the documentation and/or other materials provided with the distribution.
+
+  3. The names of the authors may not be used to endorse or promote products
+     derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL JCRAFT,
+INC. OR ANY CONTRIBUTORS TO THIS SOFTWARE BE LIABLE FOR ANY DIRECT, INDIRECT,
+INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.jcraft.jsch;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of the {@link ChannelSftp#DELTA} transfer mode, against a
+ * {@link LoopbackServer}. The bytes on the socket show how much of
+ * a file has been transferred.
+ */
+public class SftpDeltaTest{
+
+  private static final int BLOCK=64*1024;
+  private static final int SIZE=20*BLOCK+1234;
+
+  private File root;
+  private File local;
+  private LoopbackServer server;
+  private Session session;
+  private ChannelSftp sftp;
+  private long sent;
+  private long received;
+
+  @Before
+  public void setUp() throws Exception{
+    root=File.createTempFile("delta", "");
+    root.delete();
+    root.mkdir();
+    local=File.createTempFile("delta", ".local");
+    server=new LoopbackServer(root);
+  }
+
+  @After
+  public void tearDown() throws Exception{
+    if(session!=null){
+      session.disconnect();
+    }
+    server.stop();
+    File[] files=root.listFiles();
+    for(int i=0; files!=null && i<files.length; i++){
+      files[i].delete();
+    }
+    root.delete();
+    local.delete();
+  }
+
+  private void connect() throws Exception{
+    server.start();
+    session=server.getSession(new JSch(), "test");
+    session.setSocketFactory(new SocketFactory(){
+        public Socket createSocket(String host, int port) throws IOException{
+          return new Socket(host, port);
+        }
+        public InputStream getInputStream(Socket socket) throws IOException{
+          return new FilterInputStream(socket.getInputStream()){
+              public int read() throws IOException{
+                int i=super.read();
+                if(i>=0) received++;
+                return i;
+              }
+              public int read(byte[] b, int off, int len) throws IOException{
+                int i=super.read(b, off, len);
+                if(i>0) received+=i;
+                return i;
+              }
+            };
+        }
+        public OutputStream getOutputStream(Socket socket) throws IOException{
+          return new FilterOutputStream(socket.getOutputStream()){
+              public void write(int b) throws IOException{
+                sent++;
+                out.write(b);
+              }
+              public void write(byte[] b, int off, int len) throws IOException{
+                sent+=len;
+                out.write(b, off, len);
+              }
+            };
+        }
+      });
+    session.connect();
+    sftp=(ChannelSftp)session.openChannel("sftp");
+    sftp.connect();
+    sent=received=0;
+  }
+
+  private static byte[] random(int len, long seed){
+    byte[] foo=new byte[len];
+    new Random(seed).nextBytes(foo);
+    return foo;
+  }
+
+  private static void write(File file, byte[] data) throws IOException{
+    FileOutputStream out=new FileOutputStream(file);
+    out.write(data);
+    out.close();
+  }
+
+  private static byte[] read(File file) throws IOException{
+    byte[] foo=new byte[(int)file.length()];
+    FileInputStream in=new FileInputStream(file);
+    int off=0;
+    while(off<foo.length){
+      off+=in.read(foo, off, foo.length-off);
+    }
+    in.close();
+    return foo;
+  }
+
+  private void put() throws Exception{
+    sftp.put(local.getPath(), "/f", ChannelSftp.DELTA);
+  }
+
+  @Test(timeout=60000)
+  public void changedBlockIsSentOnly() throws Exception{
+    byte[] data=random(SIZE, 1);
+    write(new File(root, "f"), data);
+    data[7*BLOCK+100]^=1;
+    write(local, data);
+    connect();
+    put();
+    assertArrayEquals(data, read(new File(root, "f")));
+    assertTrue("sent "+sent, sent<3*BLOCK);
+  }
+
+  @Test(timeout=60000)
+  public void appendedTailIsSent() throws Exception{
+    byte[] data=random(SIZE, 2);
+    byte[] head=new byte[12*BLOCK];
+    System.arraycopy(data, 0, head, 0, head.length);
+    write(new File(root, "f"), head);
+    write(local, data);
+    connect();
+    put();
+    assertArrayEquals(data, read(new File(root, "f")));
+    assertTrue("sent "+sent, sent<SIZE-head.length+2*BLOCK);
+  }
+
+  @Test(timeout=60000)
+  public void longerDestinationIsTruncated() throws Exception{
+    byte[] data=random(SIZE, 3);
+    byte[] head=new byte[SIZE-3*BLOCK-17];
+    System.arraycopy(data, 0, head, 0, head.length);
+    write(new File(root, "f"), data);
+    write(local, head);
+    connect();
+    put();
+    assertArrayEquals(head, read(new File(root, "f")));
+    assertTrue("sent "+sent, sent<2*BLOCK);
+  }
+
+  @Test(timeout=60000)
+  public void downloadUpdatesAShorterFile() throws Exception{
+    byte[] data=random(SIZE, 4);
+    write(new File(root, "f"), data);
+    byte[] old=new byte[9*BLOCK+5];
+    System.arraycopy(data, 0, old, 0, old.length);
+    old[2*BLOCK]^=1;
+    write(local, old);
+    connect();
+    sftp.get("/f", local.getPath(), null, ChannelSftp.DELTA);
+    assertArrayEquals(data, read(local));
+    assertTrue("received "+received, received<SIZE-old.length+3*BLOCK);
+  }
+
+  @Test(timeout=60000)
+  public void withoutCheckFileTheFileIsSentInFull() throws Exception{
+    server.setSftpExtensions(false);
+    byte[] data=random(SIZE, 5);
+    write(new File(root, "f"), data);
+    data[BLOCK]^=1;
+    write(local, data);
+    connect();
+    put();
+    assertArrayEquals(data, read(new File(root, "f")));
+    assertTrue("sent "+sent, sent>=SIZE);
+  }
+}
@@ -0,0 +1,99 @@
+/* -*-mode:java; c-basic-offset:2; indent-tabs-mode:nil -*- */
+/*
+Copyright (c) 2002-2016 ymnk, JCraft,Inc. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+  1. Redistributions of source code must retain the above copyright notice,
+     this list of conditions and the following disclaimer.
+
+  2. Redistributions in binary form must reproduce the above copyright 
+     notice, this list of conditions and the following disclaimer in 
+     the documentation and/or other materials provided with the distribution.
+
+  3. The names of the authors may not be used to endorse or promote products
+     derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL JCRAFT,
+INC. OR ANY CONTRIBUTORS TO THIS SOFTWARE BE LIABLE FOR ANY DIRECT, INDIRECT,
+INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.jcraft.jsch;
+
+/**
+ * Usually not to be used by applications.
+ *
+ * A cipher which also authenticates the data, like AES in Galois/Counter
+ * mode (RFC 5647) or chacha20-poly1305@openssh.com.
+ *<p>
+ * When such a cipher is selected, the packet length is processed
+ * separately from the rest of the packet, as additional data, and
+ * the authentication tag takes the place of the MAC; the negotiated
+ * {@link MAC} is not used. Each packet is processed by
+ * {@link #setSequenceNumber}, {@link #updateAAD} and one call of
+ * {@link #doFinal}. {@link #update} may process a first part of the
+ * rest of the packet before {@code doFinal}, but the tag covers the
+ * whole packet, and is only written or checked by {@code doFinal}.
+ *</p>
+ */
+public interface AEADCipher extends Cipher{
+
+  /**
+   * Returns the length of the authentication tag appended to each
+   * packet.
+   */
+  int getTagSize();
+
+  /**
+   * Returns the block size to which the encrypted part of each packet
+   * (without the packet length) is padded.
+   */
+  int getPaddingBlockSize();
+
+  /**
+   * Starts a new packet.
+   * @param seq the sequence number of the packet, as used for MACs.
+   */
+  void setSequenceNumber(int seq) throws Exception;
+
+  /**
+   * Adds the additional data for the current packet, which is its
+   * packet length. This is authenticated, but only encrypted by some
+   * ciphers (like chacha20-poly1305), which then replace it in place
+   * by its encrypted or decrypted form.
+   * @param input the array containing the data.
+   * @param offset the position in {@code input} at which the data is
+   *    to be found.
+   * @param len the length of the data in bytes.
+   */
+  void updateAAD(byte[] input, int offset, int len) throws Exception;
+
+  /**
+   * Encrypts or decrypts the rest of the current packet, and prepares
+   * the cipher for the next one.
+   *<p>
+   * When encrypting, {@code len} bytes of ciphertext followed by the
+   * tag are written to {@code output}. When decrypting, the tag is
+   * expected in {@code input} after the {@code len} bytes of
+   * ciphertext, and an exception is thrown if it doesn't match.
+   *</p>
+   * @param input the array containing the data.
+   * @param inOffset the position in {@code input} at which the data is
+   *    to be found.
+   * @param len the length of the data in bytes, not including the tag.
+   * @param output the array into which the result will be written.
+   * @param outOffset the position in {@code output} from which on the
+   *    result should be written.
+   */
+  void doFinal(byte[] input, int inOffset, int len,
+               byte[] output, int outOffset) throws Exception;
+}
@@ -0,0 +1,227 @@
+/* -*-mode:java; c-basic-offset:2; indent-tabs-mode:nil -*- */
+/*
+Copyright (c) 2002-2016 ymnk, JCraft,Inc. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+  1. Redistributions of source code must retain the above copyright notice,
+     this list of conditions and the following disclaimer.
+
+  2. Redistributions in binary form must reproduce the above copyright 
+     notice, this list of conditions and the following disclaimer in 
+     the documentation and/or other materials provided with the distribution.
+
+  3. The names of the authors may not be used to endorse or promote products
+     derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL JCRAFT,
+INC. OR ANY CONTRIBUTORS TO THIS SOFTWARE BE LIABLE FOR ANY DIRECT, INDIRECT,
+INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.jcraft.jsch;
+
+/**
+ * Usually not to be used by applications.
+ *
+ * A pool of byte arrays for {@link Buffer}s, shared by all sessions.
+ *
+ * The arrays are kept in size classes, which are the powers of two
+ * from {@value #MIN_SIZE} to {@value #MAX_SIZE} bytes. A request is
+ * served from the smallest class which is large enough; larger
+ * requests are not pooled. Released arrays are kept (up to
+ * {@value #MAX_FREE} per class) if their length is exactly one of
+ * the class sizes, and discarded otherwise.
+ *
+ * An array must not be used anymore after it has been released.
+ *
+ * The static {@code get...} methods give some statistics about the
+ * pool's usage, which may help to judge its effect on the garbage
+ * collector.
+ */
+public class BufferPool{
+
+  static final int MIN_SIZE=1024;
+  static final int MAX_SIZE=256*1024;
+  static final int MAX_FREE=16;
+
+  private static final int MIN_SHIFT=10;
+  private static final int CLASSES=9;   // 1k, 2k, ..., 256k
+
+  private static final byte[][][] free=new byte[CLASSES][MAX_FREE][];
+  private static final int[] free_count=new int[CLASSES];
+
+  private static long allocated=0L;
+  private static long reused=0L;
+  private static long released=0L;
+  private static long discarded=0L;
+
+  private BufferPool(){ }
+
+  /**
+   * returns the index of the smallest class holding {@code size}
+   * bytes, or -1 if this is larger than {@link #MAX_SIZE}.
+   */
+  static int classOf(int size){
+    if(size>MAX_SIZE){
+      return -1;
+    }
+    int i=0;
+    while((MIN_SIZE<<i)<size){
+      i++;
+    }
+    return i;
+  }
+
+  /**
+   * returns an array of at least {@code size} bytes.
+   * Its content is undefined.
+   */
+  static byte[] allocate(int size){
+    int i=classOf(size);
+    if(i<0){
+      synchronized(free){
+        allocated++;
+      }
+      return new byte[size];
+    }
+    synchronized(free){
+      if(free_count[i]>0){
+        free_count[i]--;
+        byte[] foo=free[i][free_count[i]];
+        free[i][free_count[i]]=null;
+        reused++;
+        return foo;
+      }
+      allocated++;
+    }
+    return new byte[MIN_SIZE<<i];
+  }
+
+  /**
+   * returns an array to the pool.
+   * @param foo the array, which may be {@code null}.
+   */
+  static void release(byte[] foo){
+    if(foo==null){
+      return;
+    }
+    int i=classOf(foo.length);
+    synchronized(free){
+      if(i<0 || (MIN_SIZE<<i)!=foo.length || free_count[i]==MAX_FREE){
+        discarded++;
+        return;
+      }
+      free[i][free_count[i]]=foo;
+      free_count[i]++;
+      released++;
+    }
+  }
+
+  /**
+   * returns a new Buffer using a pooled array of at least
+   * {@code size} bytes.
+   */
+  static Buffer getBuffer(int size){
+    return new Buffer(allocate(size));
+  }
+
+  /**
+   * returns the array of a Buffer obtained by {@link #getBuffer}
+   * to the pool. The Buffer itself must not be used afterwards.
+   * @param buf the buffer, which may be {@code null}.
+   */
+  static void release(Buffer buf){
+    if(buf==null){
+      return;
+    }
+    byte[] foo=buf.buffer;
+    buf.buffer=empty;
+    buf.index=buf.s=0;
+    release(foo);
+  }
+
+  private static final byte[] empty=new byte[0];
+
+  /**
+   * returns a Buffer whose array is not longer than {@code limit},
+   * for callers which use the array's length as a limit (like the
+   * maximum packet size of a channel). If {@code limit} is at least
+   * {@link #MIN_SIZE}, the array comes from the pool and has the
+   * largest class size not above it. A smaller limit is not pooled,
+   * as the pool would round it up; the array then has exactly
+   * this length.
+   */
+  static Buffer getLimitedBuffer(int limit){
+    if(limit<MIN_SIZE){
+      return new Buffer(limit);
+    }
+    return getBuffer(fit(limit));
+  }
+
+  /**
+   * returns the largest pool class size which is not larger than
+   * {@code size}, which is at least {@link #MIN_SIZE}.
+   */
+  static int fit(int size){
+    int foo=MIN_SIZE;
+    while(foo<MAX_SIZE && (foo<<1)<=size){
+      foo<<=1;
+    }
+    return foo;
+  }
+
+  /**
+   * returns the number of arrays which have been newly allocated
+   * because the pool had none of the requested size.
+   */
+  public static long getAllocated(){
+    synchronized(free){ return allocated; }
+  }
+
+  /**
+   * returns the number of requests which have been served from
+   * the pool, i.e. without allocation.
+   */
+  public static long getReused(){
+    synchronized(free){ return reused; }
+  }
+
+  /**
+   * returns the number of arrays which have been returned to
+   * the pool.
+   */
+  public static long getReleased(){
+    synchronized(free){ return released; }
+  }
+
+  /**
+   * returns the number of arrays which have been given back, but
+   * not kept in the pool (because it was full, or the array did
+   * not have the size of a class).
+   */
+  public static long getDiscarded(){
+    synchronized(free){ return discarded; }
+  }
+
+  /**
+   * returns the number of bytes currently held in the pool.
+   */
+  public static long getPooledBytes(){
+    long size=0L;
+    synchronized(free){
+      for(int i=0; i<CLASSES; i++){
+        size+=((long)free_count[i])*(MIN_SIZE<<i);
+      }
+    }
+    return size;
+  }
+}
@@ -29,8 +29,6 @@ EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 
 package com.jcraft.jsch;
 
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.IOException;
@@ -58,7 +56,7 @@ public abstract class Channel implements Runnable{
   static final int SSH_OPEN_RESOURCE_SHORTAGE=              4;
 
   static int index=0; 
-  private static java.util.Vector pool=new java.util.Vector();
+  private static final Object index_lock=new Object();
   /**
    * Creates a new Channel of specified type.
    * This factory method is used by {@link Session#openChannel}
@@ -96,26 +94,21 @@ public abstract class Channel implements Runnable{
   }
 
   /**
-   * Retrieves a channel from the channel pool.
+   * Retrieves a channel from the channel table of a session.
    * @param id the session-specific identifier of the channel
    * @param session the session with which the channel is associated.
    */
   static Channel getChannel(int id, Session session){
-    synchronized(pool){
-      for(int i=0; i<pool.size(); i++){
-        Channel c=(Channel)(pool.elementAt(i));
-        if(c.id==id && c.session==session) return c;
-      }
-    }
-    return null;
+    return session.getChannel(id);
   }
 
   /**
-   * Removes a channel from the channel pool.
+   * Removes a channel from the channel table of its session.
    */
   static void del(Channel c){
-    synchronized(pool){
-      pool.removeElement(c);
+    Session _session=c.session;
+    if(_session!=null){
+      _session.removeChannel(c);
     }
   }
 
@@ -125,8 +118,21 @@ public abstract class Channel implements Runnable{
   volatile int lwsize_max=0x100000;
   volatile int lwsize=lwsize_max;     // local initial window size
   volatile int lmpsize=0x4000;     // local maximum packet size
+  volatile int lwsize_limit=0;     // the largest lwsize_max with auto-tuning,
+                                   //   or 0 if the window is fixed
+  private long adjust_time=0;      // when the window was adjusted last
+  private final Object window_lock=new Object();
+
+  // the pipes of getInputStream() and getExtInputStream() if their
+  // size follows the window, or null. The data held in them has not
+  // been consumed yet, so it is not credited to the window.
+  volatile ChannelPipe in_pipe=null;
+  volatile ChannelPipe ext_pipe=null;
+  long open_time=0;                // when the open request was sent
 
   volatile long rwsize=0;         // remote initial window size
+  volatile long rwsize_max=0;     // the window size the remote side
+                                  //   announced when opening
   volatile int rmpsize=0;        // remote maximum packet size
 
   IO io=null;    
@@ -149,9 +155,8 @@ public abstract class Channel implements Runnable{
   int notifyme=0; 
 
   Channel(){
-    synchronized(pool){
+    synchronized(index_lock){
       id=index++;
-      pool.addElement(this);
     }
   }
   synchronized void setRecipient(int foo){
@@ -236,6 +241,25 @@ public abstract class Channel implements Runnable{
     setRemotePacketSize(buf.getInt());
   }
 
+  private volatile ChannelDataListener listener=null;
+
+  /**
+   * Sets a listener which gets all data arriving from the remote
+   * side directly from the session's receive buffer, instead of
+   * having it written to the OutputStream of this channel (or
+   * the stream returned by {@link #getInputStream} and
+   * {@link #getExtInputStream}). This saves copying the data.
+   * This method should be called before {@link #connect}. It must
+   * not be used with channels which process the data themselves,
+   * like {@link ChannelSftp}.
+   * @param listener the listener, or {@code null} to use the
+   *   streams again.
+   * @see ChannelDataListener
+   */
+  public void setDataListener(ChannelDataListener listener){
+    this.listener=listener;
+  }
+
   /**
    * Sets the InputStream for this channel. The channel
    * will then read from this stream and forward the data
@@ -266,6 +290,7 @@ public abstract class Channel implements Runnable{
    * @see #getInputStream
    */
   public void setOutputStream(OutputStream out){
+    in_pipe=null;
     io.setOutputStream(out, false);
   }
   /**
@@ -278,6 +303,7 @@ public abstract class Channel implements Runnable{
    * @see #getInputStream
    */
   public void setOutputStream(OutputStream out, boolean dontclose){
+    in_pipe=null;
     io.setOutputStream(out, dontclose);
   }
 
@@ -297,6 +323,7 @@ public abstract class Channel implements Runnable{
    * @see #getExtInputStream
    */
   public void setExtOutputStream(OutputStream out){
+    ext_pipe=null;
     io.setExtOutputStream(out, false);
   }
 
@@ -318,6 +345,7 @@ public abstract class Channel implements Runnable{
    * @see #getExtInputStream
    */
   public void setExtOutputStream(OutputStream out, boolean dontclose){
+    ext_pipe=null;
     io.setExtOutputStream(out, dontclose);
   }
 
@@ -330,20 +358,10 @@ public abstract class Channel implements Runnable{
    * It should be called before {@link #connect}.
    */
   public InputStream getInputStream() throws IOException {
-    int max_input_buffer_size = 32*1024;
-    try {
-      max_input_buffer_size =
-        Integer.parseInt(getSession().getConfig("max_input_buffer_size"));
-    }
-    catch(Exception e){}
-    PipedInputStream in =
-      new MyPipedInputStream(
-                             32*1024,  // this value should be customizable.
-                             max_input_buffer_size
-                             );
-    boolean resizable = 32*1024<max_input_buffer_size;
-    io.setOutputStream(new PassiveOutputStream(in, resizable), false);
-    return in;
+    ChannelPipe pipe=createPipe();
+    io.setOutputStream(pipe.getOutputStream(), false);
+    in_pipe=pipe.isWindowed() ? pipe : null;
+    return pipe.getInputStream();
   }
 
   /**
@@ -356,20 +374,30 @@ public abstract class Channel implements Runnable{
    * It should be called before {@link #connect}.
    */
   public InputStream getExtInputStream() throws IOException {
-    int max_input_buffer_size = 32*1024;
+    ChannelPipe pipe=createPipe();
+    io.setExtOutputStream(pipe.getOutputStream(), false);
+    ext_pipe=pipe.isWindowed() ? pipe : null;
+    return pipe.getInputStream();
+  }
+
+  /**
+   * creates the pipe behind {@link #getInputStream} and
+   * {@link #getExtInputStream}. Unless the configuration option
+   * {@code max_input_buffer_size} limits it, the pipe may grow up to
+   * the local window size, and the data it holds is credited to the
+   * window only when it has been read.
+   */
+  private ChannelPipe createPipe(){
+    int max_input_buffer_size = -1;
     try {
       max_input_buffer_size =
         Integer.parseInt(getSession().getConfig("max_input_buffer_size"));
     }
     catch(Exception e){}
-    PipedInputStream in =
-      new MyPipedInputStream(
-                             32*1024,  // this value should be customizable.
-                             max_input_buffer_size
-                             );
-    boolean resizable = 32*1024<max_input_buffer_size;
-    io.setExtOutputStream(new PassiveOutputStream(in, resizable), false);
-    return in;
+    if(max_input_buffer_size > 0){
+      return new ChannelPipe(32*1024, max_input_buffer_size);
+    }
+    return new ChannelPipe(32*1024, lwsize_max, this);
   }
 
   /**
@@ -390,11 +418,12 @@ public abstract class Channel implements Runnable{
         private Packet packet=null;
         private boolean closed=false;
         private synchronized void init() throws java.io.IOException{
-          buffer=new Buffer(rmpsize);
+          buffer=BufferPool.getLimitedBuffer(rmpsize);
           packet=new Packet(buffer);
 
           byte[] _buf=buffer.buffer;
           if(_buf.length-(14+0)-Session.buffer_margin<=0){
+            BufferPool.release(buffer);
             buffer=null;
             packet=null;
             throw new IOException("failed to initialize the channel.");
@@ -478,106 +507,125 @@ public abstract class Channel implements Runnable{
           }
           channel.eof();
           closed=true;
+          BufferPool.release(buffer);
         }
       };
     return out;
   }
 
-  class MyPipedInputStream extends PipedInputStream{
-    private int BUFFER_SIZE = 1024;
-    private int max_buffer_size = BUFFER_SIZE;
-    MyPipedInputStream() throws IOException{ super(); }
-    MyPipedInputStream(int size) throws IOException{
-      super();
-      buffer=new byte[size];
-      BUFFER_SIZE = size;
-      max_buffer_size = size;
-    }
-    MyPipedInputStream(int size, int max_buffer_size) throws IOException{
-      this(size);
-      this.max_buffer_size = max_buffer_size;
+  void setLocalWindowSizeMax(int foo){ this.lwsize_max=foo; }
+  void setLocalWindowSize(int foo){ this.lwsize=foo; }
+  void setLocalPacketSize(int foo){ this.lmpsize=foo; }
+  void setLocalWindowSizeLimit(int foo){ this.lwsize_limit=foo; }
+
+  /**
+   * returns the largest size the local window may reach, which is
+   * more than the current size if the window is auto-tuned.
+   */
+  int getLocalWindowSizeLimit(){
+    return Math.max(lwsize_max, lwsize_limit);
+  }
+
+  /**
+   * returns the number of received bytes which are still held in
+   * the pipes, waiting for the application.
+   */
+  private int getUnreadSize(){
+    int n=0;
+    ChannelPipe pipe=in_pipe;
+    if(pipe!=null){
+      n+=pipe.available();
     }
-    MyPipedInputStream(PipedOutputStream out) throws IOException{ super(out); }
-    MyPipedInputStream(PipedOutputStream out, int size) throws IOException{
-      super(out);
-      buffer=new byte[size];
-      BUFFER_SIZE=size;
+    pipe=ext_pipe;
+    if(pipe!=null){
+      n+=pipe.available();
     }
+    return n;
+  }
 
-    /*
-     * TODO: We should have our own Piped[I/O]Stream implementation.
-     * Before accepting data, JDK's PipedInputStream will check the existence of
-     * reader thread, and if it is not alive, the stream will be closed.
-     * That behavior may cause the problem if multiple threads make access to it.
-     */
-    public synchronized void updateReadSide() throws IOException {
-      if(available() != 0){ // not empty
-        return;
-      }
-      in = 0;
-      out = 0;
-      buffer[in++] = 0;
-      read();
+  /**
+   * accounts for data received from the remote side. This is
+   * called after the data has been handed to the application (or
+   * to a pipe), so it is never credited to the window too early.
+   */
+  void consumeLocalWindow(int len){
+    synchronized(window_lock){
+      lwsize-=len;
     }
+  }
 
-    private int freeSpace(){
-      int size = 0;
-      if(out < in) {
-        size = buffer.length-in;
-      }
-      else if(in < out){
-        if(in == -1) size = buffer.length;
-        else size = out - in;
+  /**
+   * returns the size of a window adjustment which is due, and adds
+   * it to the local window. An adjustment is due when at least half
+   * of the window has been consumed, i.e. received and, if it went
+   * to a pipe, read by the application. The window is grown before,
+   * if it is auto-tuned.
+   * @param rtt the round trip time in nanoseconds, or 0 if unknown.
+   * @return the number of bytes to add to the remote side's view of
+   *   the window, or 0 if no adjustment is due.
+   */
+  int takeLocalWindowAdjustment(long rtt){
+    synchronized(window_lock){
+      int free=lwsize+getUnreadSize();
+      if(free>=lwsize_max/2){
+        return 0;
       }
-      return size;
-    } 
-    synchronized void checkSpace(int len) throws IOException {
-      int size = freeSpace();
-      if(size<len){
-        int datasize=buffer.length-size;
-        int foo = buffer.length;
-        while((foo - datasize) < len){
-          foo*=2;
-        }
+      tuneLocalWindowSize(rtt, lwsize_max-free);
+      int n=lwsize_max-free;
+      lwsize+=n;
+      return n;
+    }
+  }
 
-        if(foo > max_buffer_size){
-          foo = max_buffer_size;
-        }
-        if((foo - datasize) < len) return;
+  /**
+   * called by a pipe of this channel after the application has read
+   * from it, to adjust the window if that is due now.
+   */
+  void pipeRead(){
+    if(lwsize+getUnreadSize()>=lwsize_max/2){
+      return;
+    }
+    Session _session=session;
+    if(_session==null){
+      return;
+    }
+    try{
+      _session.pipeRead(this);
+    }
+    catch(Exception e){
+      // the channel or the session is going down
+    }
+  }
 
-        byte[] tmp = new byte[foo];
-        if(out < in) {
-          System.arraycopy(buffer, 0, tmp, 0, buffer.length);
-        }
-        else if(in < out){
-          if(in == -1) {
-          }
-          else {
-            System.arraycopy(buffer, 0, tmp, 0, in);
-            System.arraycopy(buffer, out, 
-                             tmp, tmp.length-(buffer.length-out),
-                             (buffer.length-out));
-            out = tmp.length-(buffer.length-out);
-          }
-        }
-        else if(in == out){
-          System.arraycopy(buffer, 0, tmp, 0, buffer.length);
-          in=buffer.length;
-        }
-        buffer=tmp;
-      }
-      else if(buffer.length == size && size > BUFFER_SIZE) { 
-        int  i = size/2;
-        if(i<BUFFER_SIZE) i = BUFFER_SIZE;
-        byte[] tmp = new byte[i];
-        buffer=tmp;
-      }
+  /**
+   * grows the local window if the remote side seems to be limited
+   * by it. This is called before each window adjustment, i.e. after
+   * about half of the window has been consumed.
+   *<p>
+   * The data consumed since the last adjustment, divided by the time
+   * it took, gives the rate at which the data is drained; times the
+   * round trip time this estimates the bandwidth-delay product. If
+   * the window is less than twice that (we adjust it only when half
+   * of it has been consumed), it is doubled, up to
+   * {@link #lwsize_limit}.
+   *</p>
+   * @param rtt the round trip time in nanoseconds, or 0 if unknown.
+   * @param used the number of bytes consumed since the last
+   *   adjustment.
+   */
+  private void tuneLocalWindowSize(long rtt, long used){
+    long now=System.nanoTime();
+    long last=adjust_time;
+    adjust_time=now;
+    if(lwsize_limit<=lwsize_max || last==0 || rtt<=0 || now<=last){
+      return;
+    }
+    long bdp=used*rtt/(now-last);
+    if(bdp*2>lwsize_max){
+      lwsize_max=(int)Math.min(2L*lwsize_max, lwsize_limit);
     }
   }
-  void setLocalWindowSizeMax(int foo){ this.lwsize_max=foo; }
-  void setLocalWindowSize(int foo){ this.lwsize=foo; }
-  void setLocalPacketSize(int foo){ this.lmpsize=foo; }
-  synchronized void setRemoteWindowSize(long foo){ this.rwsize=foo; }
+  synchronized void setRemoteWindowSize(long foo){ this.rwsize=this.rwsize_max=foo; }
   synchronized void addRemoteWindowSize(long foo){ 
     this.rwsize+=foo; 
     if(notifyme>0)
@@ -585,6 +633,16 @@ public abstract class Channel implements Runnable{
   }
   void setRemotePacketSize(int foo){ this.rmpsize=foo; }
 
+  /**
+   * wakes up threads waiting for remote window space in
+   * {@link Session#write(Packet,Channel,int)}, so they notice
+   * that this channel has been closed.
+   */
+  synchronized void wakeWriters(){
+    if(notifyme>0)
+      notifyAll();
+  }
+
   /**
    * not to be called externally.
    * This will be overridden by subclasses which need to do
@@ -597,11 +655,21 @@ public abstract class Channel implements Runnable{
     write(foo, 0, foo.length);
   }
   void write(byte[] foo, int s, int l) throws IOException {
+    ChannelDataListener _listener=listener;
+    if(_listener!=null){
+      _listener.dataReceived(this, foo, s, l, false);
+      return;
+    }
     try{
       io.put(foo, s, l);
     }catch(NullPointerException e){}
   }
   void write_ext(byte[] foo, int s, int l) throws IOException {
+    ChannelDataListener _listener=listener;
+    if(_listener!=null){
+      _listener.dataReceived(this, foo, s, l, true);
+      return;
+    }
     try{
       io.put_ext(foo, s, l);
     }catch(NullPointerException e){}
@@ -615,6 +683,15 @@ public abstract class Channel implements Runnable{
    */
   void eof_remote(){
     eof_remote=true;
+    ChannelDataListener _listener=listener;
+    if(_listener!=null){
+      try{
+        _listener.eofReceived(this);
+      }
+      catch(RuntimeException e){
+        try{disconnect();}catch(Exception ee){}
+      }
+    }
     try{
       io.out_close();
     }
@@ -688,6 +765,7 @@ public abstract class Channel implements Runnable{
     if(close)return;
     close=true;
     eof_local=eof_remote=true;
+    wakeWriters();
 
     int i = getRecipient();
     if(i == -1) return;
@@ -718,22 +796,8 @@ public abstract class Channel implements Runnable{
    * disconnects all channels for one session.
    */
   static void disconnect(Session session){
-    Channel[] channels=null;
-    int count=0;
-    synchronized(pool){
-      channels=new Channel[pool.size()];
-      for(int i=0; i<pool.size(); i++){
-	try{
-	  Channel c=((Channel)(pool.elementAt(i)));
-	  if(c.session==session){
-	    channels[count++]=c;
-	  }
-	}
-	catch(Exception e){
-	}
-      } 
-    }
-    for(int i=0; i<count; i++){
+    Channel[] channels=session.getChannels();
+    for(int i=0; i<channels.length; i++){
       channels[i].disconnect();
     }
   }
@@ -754,6 +818,7 @@ public abstract class Channel implements Runnable{
         connected=false;
       }
 
+      wakeWriters();
       close();
 
       eof_remote=eof_local=true;
@@ -815,46 +880,6 @@ public abstract class Channel implements Runnable{
   }
 */
 
-  class PassiveInputStream extends MyPipedInputStream{
-    PipedOutputStream out;
-    PassiveInputStream(PipedOutputStream out, int size) throws IOException{
-      super(out, size);
-      this.out=out;
-    }
-    PassiveInputStream(PipedOutputStream out) throws IOException{
-      super(out);
-      this.out=out;
-    }
-    public void close() throws IOException{
-      if(out!=null){
-        this.out.close();
-      }
-      out=null;
-    }
-  }
-  class PassiveOutputStream extends PipedOutputStream{
-    private MyPipedInputStream _sink=null;
-    PassiveOutputStream(PipedInputStream in,
-                        boolean resizable_buffer) throws IOException{
-      super(in);
-      if(resizable_buffer && (in instanceof MyPipedInputStream)) {
-        this._sink=(MyPipedInputStream)in;
-      }
-    }
-    public void write(int b) throws IOException {
-      if(_sink != null) {
-        _sink.checkSpace(1);
-      }
-      super.write(b);
-    }
-    public void write(byte[] b, int off, int len) throws IOException {
-      if(_sink != null) {
-        _sink.checkSpace(len);
-      }
-      super.write(b, off, len); 
-    }
-  }
-
   void setExitStatus(int status){ exitstatus=status; }
   /**
    * retrieves the exit status of the remote command corresponding
@@ -954,6 +979,7 @@ public abstract class Channel implements Runnable{
     }
 
     Packet packet = genChannelOpenPacket();
+    open_time=System.nanoTime();
     _session.write(packet);
 
     int retry=2000;
@@ -0,0 +1,90 @@
+/* -*-mode:java; c-basic-offset:2; indent-tabs-mode:nil -*- */
+/*
+Copyright (c) 2002-2016 ymnk, JCraft,Inc. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+  1. Redistributions of source code must retain the above copyright notice,
+     this list of conditions and the following disclaimer.
+
+  2. Redistributions in binary form must reproduce the above copyright 
+     notice, this list of conditions and the following disclaimer in 
+     the documentation and/or other materials provided with the distribution.
+
+  3. The names of the authors may not be used to endorse or promote products
+     derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL JCRAFT,
+INC. OR ANY CONTRIBUTORS TO THIS SOFTWARE BE LIABLE FOR ANY DIRECT, INDIRECT,
+INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.jcraft.jsch;
+
+/**
+ * A callback receiving the data of a channel directly from the
+ * session's receiving thread.
+ *<p>
+ *  Normally the data arriving in a channel is written to the
+ *  channel's output stream (or the pipe behind
+ *  {@link Channel#getInputStream}), from where the application has
+ *  to read (and copy) it again. An application which can process
+ *  the data as it comes, for example by writing it to a file, may
+ *  instead register a listener with
+ *  {@link Channel#setDataListener}, and gets the data handed out
+ *  as a slice of the decrypted packet.
+ *</p>
+ *<p>
+ *  The array passed to the methods is the session's receive buffer.
+ *  It is only valid during the call, and is reused for the next
+ *  packet afterwards. A listener which needs to keep some of the
+ *  data has to copy it.
+ *</p>
+ *<p>
+ *  The methods are called by the thread which reads from the
+ *  server, so they should return quickly: while they run, no other
+ *  channel of the session receives anything. The local window of the
+ *  channel is only enlarged after the call returned, so a slow
+ *  listener will throttle the server.
+ *</p>
+ *<p>
+ *  If a method throws an exception (including a
+ *  {@link RuntimeException}), the channel is disconnected; the
+ *  session and its other channels are not affected.
+ *</p>
+ *
+ * @see Channel#setDataListener
+ */
+public interface ChannelDataListener{
+
+  /**
+   * Will be called for each chunk of data received in the channel.
+   * @param channel the channel receiving the data.
+   * @param data an array containing the data. This must not be
+   *    modified, and is only valid until this method returns.
+   * @param offset the index of the first byte of data in {@code data}.
+   * @param length the number of bytes of data.
+   * @param extended true if this is extended data (i.e. from stderr),
+   *    false for the normal data stream.
+   * @throws java.io.IOException if the data can't be handled. The
+   *    channel will be disconnected.
+   */
+  void dataReceived(Channel channel, byte[] data, int offset, int length,
+                    boolean extended)
+    throws java.io.IOException;
+
+  /**
+   * Will be called when the remote side signalled that it will not
+   * send any more data.
+   * @param channel the channel.
+   */
+  void eofReceived(Channel channel);
+}
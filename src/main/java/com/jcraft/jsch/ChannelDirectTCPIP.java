@@ -106,10 +106,11 @@ public class ChannelDirectTCPIP extends Channel{
    */
   public void run(){
 
+    Buffer buf=null;
     try{
       sendChannelOpen();
 
-      Buffer buf=new Buffer(rmpsize);
+      buf=BufferPool.getLimitedBuffer(rmpsize);
       Packet packet=new Packet(buf);
       Session _session=getSession();
       int i=0;
@@ -145,9 +146,11 @@ public class ChannelDirectTCPIP extends Channel{
       if(!connected){
         connected=true;
       }
+      BufferPool.release(buf);
       disconnect();
       return;
     }
+    BufferPool.release(buf);
 
     eof();
     disconnect();
@@ -77,12 +77,10 @@ public class ChannelForwardedTCPIP extends Channel{
         Class c=Class.forName(_config.target);
         daemon=(ForwardedTCPIPDaemon)c.newInstance();
 
-        PipedOutputStream out=new PipedOutputStream();
-        io.setInputStream(new PassiveInputStream(out
-                                                 , 32*1024
-                                                 ), false);
+        ChannelPipe pipe=new ChannelPipe(32*1024, 32*1024);
+        io.setInputStream(pipe.getInputStream(), false);
 
-        daemon.setChannel(this, getInputStream(), out);
+        daemon.setChannel(this, getInputStream(), pipe.getOutputStream());
         daemon.setArg(_config.arg);
         new Thread(daemon).start();
       }
@@ -0,0 +1,363 @@
+/* -*-mode:java; c-basic-offset:2; indent-tabs-mode:nil -*- */
+/*
+Copyright (c) 2002-2016 ymnk, JCraft,Inc. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+  1. Redistributions of source code must retain the above copyright notice,
+     this list of conditions and the following disclaimer.
+
+  2. Redistributions in binary form must reproduce the above copyright 
+     notice, this list of conditions and the following disclaimer in 
+     the documentation and/or other materials provided with the distribution.
+
+  3. The names of the authors may not be used to endorse or promote products
+     derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL JCRAFT,
+INC. OR ANY CONTRIBUTORS TO THIS SOFTWARE BE LIABLE FOR ANY DIRECT, INDIRECT,
+INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.jcraft.jsch;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Usually not to be used by applications.
+ *
+ * A byte pipe between exactly one writing thread and one reading
+ * thread, used for the data arriving on a channel (and for the data
+ * handed to a channel by a {@link ForwardedTCPIPDaemon}). This replaces
+ * the JDK's {@link java.io.PipedInputStream}, which polls with timed
+ * waits and takes a lock for every call.
+ *<p>
+ * The data is kept in a ring buffer whose length is a power of two.
+ * The writer and the reader each own one position counter and only
+ * publish it through a volatile field, so neither side takes a lock
+ * while there is data (or space) available. A side which has to wait
+ * marks this in a flag and is woken by the other side as soon as it
+ * made progress.
+ *</p>
+ *<p>
+ * The ring buffer starts with the given size and grows (by the writer)
+ * when a write does not fit, up to the maximum size. The buffer shrinks
+ * back to the initial size when it has been drained.
+ *</p>
+ *<p>
+ * If the pipe belongs to a channel, the maximum follows the channel's
+ * local window size, and the data held in the pipe is credited to the
+ * window only when the reader has taken it out (see
+ * {@link Channel#takeLocalWindowAdjustment}). A reader which falls
+ * behind therefore stops the remote side, before the pipe is full, and
+ * the session's receiving thread does not have to wait for it. It only
+ * waits if the remote side sends more than the window allows. A pipe
+ * of fixed size (like the one used with the configuration option
+ * {@code max_input_buffer_size}) does not take part in this: when it
+ * is full, the receiving thread waits until the reader makes space,
+ * or until one of the streams is closed, like by
+ * {@link Channel#disconnect}.
+ *</p>
+ */
+class ChannelPipe{
+
+  private volatile byte[] buffer;
+  private volatile long head=0;     // number of bytes written
+  private volatile long tail=0;     // number of bytes read
+
+  private volatile boolean eof=false;     // closed by the writer
+  private volatile boolean closed=false;  // closed by the reader
+
+  private volatile boolean reader_waiting=false;
+  private volatile boolean writer_waiting=false;
+  private final Object lock=new Object();
+
+  private final int size;
+  private final int max_size;
+  private final Channel channel;
+
+  private final InputStream in=new PipeInputStream();
+  private final OutputStream out=new PipeOutputStream();
+
+  /**
+   * creates a pipe of fixed maximum size.
+   */
+  ChannelPipe(int size, int max_size){
+    this(size, max_size, null);
+  }
+
+  /**
+   * creates a pipe.
+   * @param size the initial size of the ring buffer.
+   * @param max_size the maximum size of the ring buffer. This is only
+   *   used if {@code channel} is null.
+   * @param channel if not null, the maximum size of the ring buffer
+   *   follows the local window size of this channel.
+   */
+  ChannelPipe(int size, int max_size, Channel channel){
+    this.size=size;
+    this.max_size=max_size;
+    this.channel=channel;
+    this.buffer=new byte[powerOfTwo(size)];
+  }
+
+  /**
+   * returns true if the maximum size of this pipe follows the window
+   * of its channel, and its data is credited to the window when it
+   * has been read.
+   */
+  boolean isWindowed(){
+    return channel!=null;
+  }
+
+  /**
+   * returns the stream from which the data written to the pipe
+   * can be read.
+   */
+  InputStream getInputStream(){ return in; }
+
+  /**
+   * returns the stream writing to the pipe.
+   */
+  OutputStream getOutputStream(){ return out; }
+
+  private static int powerOfTwo(int n){
+    int i=1024;
+    while(i<n){
+      i<<=1;
+    }
+    return i;
+  }
+
+  private int limit(){
+    int limit=max_size;
+    Channel c=channel;
+    if(c!=null){
+      limit=c.lwsize_max;
+    }
+    return (limit<size) ? size : limit;
+  }
+
+  private void signal(){
+    synchronized(lock){
+      lock.notifyAll();
+    }
+  }
+
+  void write(byte[] b, int off, int len) throws IOException{
+    while(len>0){
+      if(closed){
+        throw new IOException("Pipe closed");
+      }
+      if(eof){
+        throw new IOException("Write end dead");
+      }
+
+      byte[] buf=buffer;
+      long h=head;
+      int used=(int)(h-tail);
+      int limit=limit();
+
+      if(used==0 && buf.length>powerOfTwo(size) && len<=size){
+        buf=buffer=new byte[powerOfTwo(size)];
+      }
+      else if(buf.length-used<len && buf.length<limit){
+        buf=grow(buf, h, used+len, limit);
+      }
+
+      int free=((buf.length<limit) ? buf.length : limit)-used;
+      if(free<=0){
+        awaitSpace();
+        continue;
+      }
+
+      int n=(free<len) ? free : len;
+      int pos=(int)h&(buf.length-1);
+      int first=(n<buf.length-pos) ? n : buf.length-pos;
+      System.arraycopy(b, off, buf, pos, first);
+      if(first<n){
+        System.arraycopy(b, off+first, buf, 0, n-first);
+      }
+      head=h+n;
+      if(reader_waiting){
+        signal();
+      }
+      off+=n;
+      len-=n;
+    }
+  }
+
+  /**
+   * replaces the ring buffer by a bigger one. Only the writer calls
+   * this; a reader still using the old array finds there the same
+   * data as in the new one.
+   */
+  private byte[] grow(byte[] buf, long h, int needed, int limit){
+    int length=buf.length;
+    while(length<needed && length<limit){
+      length<<=1;
+    }
+    byte[] tmp=new byte[length];
+    long t=tail;
+    for(long i=t; i<h; ){
+      int pos=(int)i&(buf.length-1);
+      int npos=(int)i&(length-1);
+      int n=(int)(h-i);
+      if(n>buf.length-pos) n=buf.length-pos;
+      if(n>length-npos) n=length-npos;
+      System.arraycopy(buf, pos, tmp, npos, n);
+      i+=n;
+    }
+    buffer=tmp;
+    return tmp;
+  }
+
+  /**
+   * waits until the reader made space, or either side closed the
+   * pipe, which {@link #write} then reports by an IOException.
+   */
+  private void awaitSpace() throws IOException{
+    synchronized(lock){
+      writer_waiting=true;
+      try{
+        while(!closed && !eof && head-tail>=limit()){
+          lock.wait();
+        }
+      }
+      catch(InterruptedException e){
+        throw new InterruptedIOException(e.toString());
+      }
+      finally{
+        writer_waiting=false;
+      }
+    }
+  }
+
+  int read(byte[] b, int off, int len) throws IOException{
+    if(len==0){
+      return 0;
+    }
+    long t=tail;
+    long h;
+    while(true){
+      h=head;
+      if(h!=t){
+        break;
+      }
+      if(eof){
+        if(head==t){
+          return -1;
+        }
+        continue;
+      }
+      if(closed){
+        throw new IOException("Pipe closed");
+      }
+      awaitData();
+    }
+
+    byte[] buf=buffer;
+    int n=(int)(h-t);
+    if(n>len) n=len;
+    int pos=(int)t&(buf.length-1);
+    int first=(n<buf.length-pos) ? n : buf.length-pos;
+    System.arraycopy(buf, pos, b, off, first);
+    if(first<n){
+      System.arraycopy(buf, 0, b, off+first, n-first);
+    }
+    tail=t+n;
+    if(writer_waiting){
+      signal();
+    }
+    if(channel!=null){
+      channel.pipeRead();
+    }
+    return n;
+  }
+
+  private void awaitData() throws IOException{
+    synchronized(lock){
+      reader_waiting=true;
+      try{
+        while(head==tail && !eof && !closed){
+          lock.wait();
+        }
+      }
+      catch(InterruptedException e){
+        throw new InterruptedIOException(e.toString());
+      }
+      finally{
+        reader_waiting=false;
+      }
+    }
+  }
+
+  int available(){
+    return (int)(head-tail);
+  }
+
+  long skip(long n){
+    long t=tail;
+    long avail=head-t;
+    if(n>avail) n=avail;
+    if(n<=0) return 0;
+    tail=t+n;
+    if(writer_waiting){
+      signal();
+    }
+    if(channel!=null){
+      channel.pipeRead();
+    }
+    return n;
+  }
+
+  class PipeInputStream extends InputStream{
+    private final byte[] b1=new byte[1];
+    public int read() throws IOException{
+      int i=ChannelPipe.this.read(b1, 0, 1);
+      if(i<0) return -1;
+      return b1[0]&0xff;
+    }
+    public int read(byte[] b, int off, int len) throws IOException{
+      return ChannelPipe.this.read(b, off, len);
+    }
+    public int available() throws IOException{
+      return ChannelPipe.this.available();
+    }
+    public long skip(long n) throws IOException{
+      return ChannelPipe.this.skip(n);
+    }
+    public void close() throws IOException{
+      closed=true;
+      signal();
+    }
+  }
+
+  class PipeOutputStream extends OutputStream{
+    private final byte[] b1=new byte[1];
+    public void write(int b) throws IOException{
+      b1[0]=(byte)b;
+      ChannelPipe.this.write(b1, 0, 1);
+    }
+    public void write(byte[] b, int off, int len) throws IOException{
+      ChannelPipe.this.write(b, off, len);
+    }
+    public void flush() throws IOException{
+    }
+    public void close() throws IOException{
+      eof=true;
+      signal();
+    }
+  }
+}
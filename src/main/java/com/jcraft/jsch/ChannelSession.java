@@ -252,7 +252,7 @@ class ChannelSession extends Channel{
   public void run(){
     //System.err.println(this+":run >");
 
-    Buffer buf=new Buffer(rmpsize);
+    Buffer buf=BufferPool.getLimitedBuffer(rmpsize);
     Packet packet=new Packet(buf);
     int i=-1;
     try{
@@ -284,6 +284,7 @@ class ChannelSession extends Channel{
       //System.err.println("# ChannelExec.run");
       //e.printStackTrace();
     }
+    BufferPool.release(buf);
     Thread _thread=thread; 
     if(_thread!=null){
       synchronized(_thread){ _thread.notifyAll(); }
@@ -31,6 +31,8 @@ package com.jcraft.jsch;
 
 import java.io.*;
 
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Vector;
 
 /**
@@ -158,6 +160,10 @@ public class ChannelSftp extends ChannelSession{
 */
   private static final int MAX_MSG_LENGTH = 256* 1024;
 
+  // the largest number of WRITE requests an upload keeps outstanding,
+  // however large the server's window is
+  private static final int MAX_WRITE_REQUESTS = 1024;
+
   /**
    * file transfer mode: overwrite the existing file, if any.
    */
@@ -172,9 +178,25 @@ public class ChannelSftp extends ChannelSession{
    * file transfer mode: append to existing file, if any.
    */
   public static final int APPEND=2;
+  /**
+   * file transfer mode: update an existing file by transferring only
+   * the blocks which differ. The blocks are compared by their hashes,
+   * calculated by the server with the check-file extension; if the
+   * server doesn't support it, the whole file is transferred as with
+   * {@link #OVERWRITE}. This is supported for uploads and downloads
+   * between files, the methods using streams treat it like
+   * {@link #OVERWRITE}.
+   */
+  public static final int DELTA=3;
 
   private boolean interactive=false;
   private int seq=1;
+
+  /**
+   * serializes the requests of the {@link SftpFile}s of this channel.
+   * (The channel itself is locked by the session when data arrives.)
+   */
+  final Object file_lock=new Object();
   private int[] ackid=new int[1];
 
   private Buffer buf;
@@ -195,6 +217,13 @@ public class ChannelSftp extends ChannelSession{
   private boolean extension_statvfs = false;
   // private boolean extension_fstatvfs = false;
   private boolean extension_hardlink = false;
+  private boolean extension_copy_data = false;
+  private boolean extension_check_file_name = false;
+  private boolean extension_check_file_handle = false;
+
+  // the sizes announced with limits@openssh.com, or 0 if unknown
+  private long limit_read = 0;
+  private long limit_write = 0;
 
 /*
 10. Changes from previous protocol versions
@@ -251,6 +280,92 @@ public class ChannelSftp extends ChannelSession{
     return rq.size();
   }
 
+  private SftpCache cache=null;
+
+  /**
+   * Enables or disables the cache of remote metadata.
+   * If enabled, the results of {@link #stat stat}, {@link #lstat lstat},
+   * {@link #realpath realpath} (also used by {@link #cd cd}) and of
+   * the expansion of file name patterns are remembered for some time,
+   * as is the non-existence of a file. The entries for a path are
+   * dropped by the changes made through this channel (e.g. by
+   * {@code put}, {@code rm}, {@code rename}, {@code chmod}, {@code setStat}
+   * or {@code mkdir}), but not by changes made otherwise.
+   * The cache is disabled by default.
+   *
+   * @param ttl how long an entry is used, in milliseconds.
+   * @param size the number of entries kept at most; the least
+   *   recently used ones are dropped first. 0 disables the cache.
+   */
+  public void setCache(long ttl, int size){
+    if(ttl<=0 || size<=0){
+      cache=null;
+    }
+    else{
+      cache=new SftpCache(ttl, size);
+    }
+  }
+
+  /**
+   * drops all entries of the cache of remote metadata.
+   * @see #setCache
+   */
+  public void clearCache(){
+    SftpCache cache=this.cache;
+    if(cache!=null){
+      cache.clear();
+    }
+  }
+
+  /**
+   * returns how often the cache of remote metadata has been used
+   * instead of a request.
+   * @see #setCache
+   */
+  public long getCacheHits(){
+    SftpCache cache=this.cache;
+    return cache==null ? 0 : cache.getHits();
+  }
+
+  /**
+   * returns how often a request has been sent as the cache of remote
+   * metadata had no entry.
+   * @see #setCache
+   */
+  public long getCacheMisses(){
+    SftpCache cache=this.cache;
+    return cache==null ? 0 : cache.getMisses();
+  }
+
+  /**
+   * drops the cached metadata which may be affected by a change of
+   * the given absolute path.
+   */
+  void invalidate(String path){
+    SftpCache cache=this.cache;
+    if(cache!=null){
+      cache.invalidate(path);
+    }
+  }
+
+  private void invalidate(byte[] path){
+    if(cache!=null){
+      invalidate(Util.byte2str(path, fEncoding));
+    }
+  }
+
+  /**
+   * returns a copy of cached attributes, or throws the cached
+   * exception.
+   */
+  private static SftpATTRS cachedATTRS(Object value) throws SftpException{
+    if(value instanceof SftpException){
+      SftpException e=(SftpException)value;
+      throw new SftpException(e.id, e.getMessage());
+    }
+    return ((SftpATTRS)value).copy();
+  }
+
   public ChannelSftp(){
     super();
     setLocalWindowSizeMax(LOCAL_WINDOW_SIZE_MAX);
@@ -265,10 +380,10 @@ public class ChannelSftp extends ChannelSession{
   public void start() throws JSchException{
     try{
 
-      PipedOutputStream pos=new PipedOutputStream();
-      io.setOutputStream(pos);
-      PipedInputStream pis=new MyPipedInputStream(pos, rmpsize);
-      io.setInputStream(pis);
+      ChannelPipe pipe=new ChannelPipe(rmpsize, lwsize_max, this);
+      io.setOutputStream(pipe.getOutputStream());
+      io.setInputStream(pipe.getInputStream());
+      in_pipe=pipe;
 
       io_in=io.in;
 
@@ -349,6 +464,26 @@ public class ChannelSftp extends ChannelSession{
         extension_hardlink = true;
       } 
 
+      if(extensions.get("copy-data")!=null &&
+         extensions.get("copy-data").equals("1")){
+        extension_copy_data = true;
+      } 
+
+      // draft-ietf-secsh-filexfer-extensions-00 announces both as "check-file"
+      if(extensions.get("check-file-name")!=null ||
+         extensions.get("check-file")!=null){
+        extension_check_file_name = true;
+      } 
+      if(extensions.get("check-file-handle")!=null ||
+         extensions.get("check-file")!=null){
+        extension_check_file_handle = true;
+      } 
+
+      if(extensions.get("limits@openssh.com")!=null &&
+         extensions.get("limits@openssh.com").equals("1")){
+        readLimits();
+      } 
+
       lcwd=new File(".").getCanonicalPath();
     }
     catch(Exception e){
@@ -403,8 +538,6 @@ public class ChannelSftp extends ChannelSession{
    */
   public void cd(String path) throws SftpException{
     try{
-      ((MyPipedInputStream)io_in).updateReadSide();
-
       path=remoteAbsolutePath(path);
       path=isUnique(path);
 
@@ -454,7 +587,7 @@ public class ChannelSftp extends ChannelSession{
    * @param dst the remote destination file name, absolute or relative to the
    *   <a href="#current-directory">current remote directory</a>.
    * @param mode the transfer mode, one of {@link #RESUME}, {@link #APPEND},
-   *  {@link #OVERWRITE}.
+   *  {@link #OVERWRITE}, {@link #DELTA}.
    * @throws SftpException if some problem occurred.
    * @see #put(String,String,SftpProgressMonitor,int)
    */
@@ -489,15 +622,13 @@ public class ChannelSftp extends ChannelSession{
    *    of the operation. Can be {@code null}, then there will be no progress
    *   notification.
    * @param mode the transfer mode, one of {@link #RESUME}, {@link #APPEND},
-   *  {@link #OVERWRITE}.
+   *  {@link #OVERWRITE}, {@link #DELTA}.
    * @throws SftpException if some problem occurred.
    */
   public void put(String src, String dst, 
 		  SftpProgressMonitor monitor, int mode) throws SftpException{
 
     try{
-      ((MyPipedInputStream)io_in).updateReadSide();
-
       src=localAbsolutePath(src);
       dst=remoteAbsolutePath(dst);
 
@@ -582,7 +713,7 @@ public class ChannelSftp extends ChannelSession{
 	FileInputStream fis=null;
 	try{
 	  fis=new FileInputStream(_src);
-	  _put(fis, _dst, monitor, mode);
+	  _put(fis.getChannel(), _dst, monitor, mode);
 	}
 	finally{
 	  if(fis!=null) {
@@ -659,8 +790,6 @@ public class ChannelSftp extends ChannelSession{
   public void put(InputStream src, String dst, 
 		  SftpProgressMonitor monitor, int mode) throws SftpException{
     try{
-      ((MyPipedInputStream)io_in).updateReadSide();
-
       dst=remoteAbsolutePath(dst);
 
       Vector v=glob_remote(dst);
@@ -700,6 +829,120 @@ public class ChannelSftp extends ChannelSession{
     }
   }
 
+  /**
+   * Uploads a file from a FileChannel.
+   *<p>
+   * The data is read with positional reads directly into the
+   * outgoing packets, without an intermediate stream buffer, and
+   * several write requests are kept outstanding (as far as the
+   * channel's window allows).
+   *</p>
+   * @param src the source. The data from its current position to its
+   *   end is uploaded, and its position is set after the data written
+   *   without gaps.
+   * @param dst the remote destination file name, relative to the
+   *    <a href="#current-directory">current remote directory</a>.
+   * @param monitor an object receiving notifications about the progress
+   *    of the operation. Can be {@code null}, then there will be no progress
+   *   notification.
+   * @param mode the transfer mode, one of {@link #RESUME}, {@link #APPEND},
+   *  {@link #OVERWRITE}, {@link #DELTA}. For {@link #RESUME}, as many bytes of
+   *  {@code src} are skipped as the remote file already has.
+   * @throws SftpException if some problem occurred.
+   */
+  public void put(FileChannel src, String dst,
+                  SftpProgressMonitor monitor, int mode) throws SftpException{
+    try{
+      dst=remoteAbsolutePath(dst);
+
+      Vector v=glob_remote(dst);
+      int vsize=v.size();
+      if(vsize!=1){
+        if(vsize==0){
+          if(isPattern(dst))
+            throw new SftpException(SSH_FX_FAILURE, dst);
+          else
+            dst=Util.unquote(dst);
+        }
+        throw new SftpException(SSH_FX_FAILURE, v.toString());
+      }
+      else{
+        dst=(String)(v.elementAt(0));
+      }
+
+      if(monitor!=null){
+        monitor.init(SftpProgressMonitor.PUT, 
+                     "-", dst,
+                     src.size()-src.position());
+      }
+
+      _put(src, dst, monitor, mode);
+    }
+    catch(Exception e){
+      if(e instanceof SftpException) {
+        if(((SftpException)e).id == SSH_FX_FAILURE &&
+           isRemoteDir(dst)) {
+          throw new SftpException(SSH_FX_FAILURE, dst+" is a directory");
+        }
+        throw (SftpException)e;
+      }
+      if(e instanceof Throwable)
+        throw new SftpException(SSH_FX_FAILURE, e.toString(), (Throwable)e);
+      throw new SftpException(SSH_FX_FAILURE, e.toString());
+    }
+  }
+
+  /**
+   * The implementation of the {@code put} methods reading from files.
+   * @see #put(FileChannel, String, SftpProgressMonitor, int)
+   */
+  private void _put(FileChannel src, String dst,
+                    SftpProgressMonitor monitor, int mode) throws SftpException{
+    long[] done=new long[]{-1};
+    try{
+      long start=src.position();
+      done[0]=start;
+      if(mode==DELTA){
+        done[0]=start+_putDelta(src, start, dst, monitor);
+        return;
+      }
+      long skip=0;
+      if(mode==RESUME || mode==APPEND){
+	try{
+	  SftpATTRS attr=_stat(Util.str2byte(dst, fEncoding));
+	  skip=attr.getSize();
+	}
+	catch(Exception eee){
+	  //System.err.println(eee);
+	}
+      }
+      if(mode==RESUME){
+        if(start+skip>src.size()){
+	  throw new SftpException(SSH_FX_FAILURE, "failed to resume for "+dst);
+        }
+        start+=skip;
+        done[0]=start;
+      }
+      _put(src, start, Long.MAX_VALUE, dst, skip, mode==OVERWRITE,
+           monitor, done);
+    }
+    catch(Exception e){
+      if(e instanceof SftpException) throw (SftpException)e;
+      if(e instanceof Throwable)
+        throw new SftpException(SSH_FX_FAILURE, e.toString(), (Throwable)e);
+      throw new SftpException(SSH_FX_FAILURE, e.toString());
+    }
+    finally{
+      if(done[0]>=0){
+        try{
+          src.position(done[0]);
+        }
+        catch(IOException e){
+        }
+      }
+    }
+  }
+
   /**
    * Not for external use.
    * The implementation of all the {@code put} methods, without some of
@@ -710,8 +953,6 @@ public class ChannelSftp extends ChannelSession{
   public void _put(InputStream src, String dst, 
                    SftpProgressMonitor monitor, int mode) throws SftpException{
     try{
-      ((MyPipedInputStream)io_in).updateReadSide();
-
       byte[] dstb=Util.str2byte(dst, fEncoding);
       long skip=0;
       if(mode==RESUME || mode==APPEND){
@@ -730,7 +971,7 @@ public class ChannelSftp extends ChannelSession{
 	}
       }
 
-      if(mode==OVERWRITE){ sendOPENW(dstb); }
+      if(mode==OVERWRITE || mode==DELTA){ sendOPENW(dstb); }
       else{ sendOPENA(dstb); }
 
       Header header=new Header();
@@ -775,7 +1016,7 @@ public class ChannelSftp extends ChannelSession{
       else{
         data=obuf.buffer;
         _s=5+13+21+handle.length;
-        _datalen=obuf.buffer.length-_s-Session.buffer_margin;
+        _datalen=writeLength(obuf.buffer.length-_s-Session.buffer_margin);
       }
 
       int bulk_requests = rq.size();
@@ -823,7 +1064,7 @@ public class ChannelSftp extends ChannelSession{
             foo-=sendWRITE(handle, offset, data, 0, foo);
             if(data!=obuf.buffer){
               data=obuf.buffer;
-              _datalen=obuf.buffer.length-_s-Session.buffer_margin;
+              _datalen=writeLength(obuf.buffer.length-_s-Session.buffer_margin);
             }
           }
           else {
@@ -853,6 +1094,144 @@ public class ChannelSftp extends ChannelSession{
     }
   }
 
+  /**
+   * Uploads a part of a file from a FileChannel.
+   * The data is read at explicit positions, and the writes may be
+   * acknowledged in any order.
+   * @param src the source.
+   * @param start the position in {@code src} where we should start.
+   * @param end the position in {@code src} where we should stop. If
+   *   {@code src} ends before, the upload stops there.
+   * @param dst the absolute destination file name.
+   * @param position the offset in the remote file for the data at
+   *   {@code start}.
+   * @param truncate true if the remote file should be truncated
+   *   when opening it.
+   * @param done a length-1 array where we will put the position in
+   *   {@code src} up to which the data has been written without gaps,
+   *   also if the upload fails.
+   */
+  void _put(FileChannel src, long start, long end, String dst,
+            long position, boolean truncate,
+            SftpProgressMonitor monitor, long[] done) throws SftpException{
+    long offset=start;             // the next position to send
+    long hole=Long.MAX_VALUE;      // data not acknowledged due to a failure
+    ReadAhead ra=null;
+    try{
+      byte[] dstb=Util.str2byte(dst, fEncoding);
+      if(truncate){ sendOPENW(dstb); }
+      else{ sendOPENA(dstb); }
+
+      Header header=new Header();
+      header=header(buf, header);
+      int length=header.length;
+      int type=header.type;
+
+      fill(buf, length);
+
+      if(type!=SSH_FXP_STATUS && type!=SSH_FXP_HANDLE){
+	throw new SftpException(SSH_FX_FAILURE, "invalid type="+type);
+      }
+      if(type==SSH_FXP_STATUS){
+        int i=buf.getInt();
+        throwStatusError(buf, i);
+      }
+      byte[] handle=buf.getString();         // handle
+
+      int _s=5+13+21+handle.length;
+      int datalen=writeLength(obuf.buffer.length-_s-Session.buffer_margin);
+
+      ra=new ReadAhead(rq.size(), 1, writeRequests(datalen));
+      ByteBuffer bb=ByteBuffer.wrap(obuf.buffer);
+      SftpException error=null;
+      boolean cancelled=false;
+
+      while(true){
+        while(error==null && !cancelled &&
+              offset<end && ra.count()<ra.getLimit()){
+          bb.clear();
+          bb.position(_s);
+          bb.limit(_s+(int)Math.min(datalen, end-offset));
+          while(bb.hasRemaining()){
+            if(src.read(bb, offset+bb.position()-_s)<0){
+              end=offset+bb.position()-_s;
+              break;
+            }
+          }
+          int count=bb.position()-_s;
+          if(count==0){
+            break;
+          }
+          count=sendWRITE(handle, position+offset-start, obuf.buffer, 0, count);
+          ra.add(seq-1, offset, count);
+          offset+=count;
+        }
+        if(ra.count()==0){
+          break;
+        }
+
+        header=header(buf, header);
+        length=header.length;
+        type=header.type;
+        fill(buf, length);
+
+        int i=ra.find(header.rid);
+        if(i<0){
+          throw new SftpException(SSH_FX_FAILURE,
+                                  "unknown request id "+header.rid);
+        }
+        long rr_offset=ra.getOffset(i);
+        int rr_length=ra.getLength(i);
+        ra.remove(i, rr_length);
+
+        if(type!=SSH_FXP_STATUS){ 
+          throw new SftpException(SSH_FX_FAILURE, "invalid type="+type);
+        }
+        int status=buf.getInt();
+        if(status!=SSH_FX_OK){
+          if(error==null){
+            try{
+              throwStatusError(buf, status);
+            }
+            catch(SftpException e){
+              error=e;
+            }
+          }
+          if(rr_offset<hole){
+            hole=rr_offset;
+          }
+          continue;
+        }
+
+        if(monitor!=null && !cancelled && !monitor.count(rr_length)){
+          cancelled=true;
+        }
+      }
+
+      if(monitor!=null)monitor.end();
+
+      _sendCLOSE(handle, header);
+
+      if(error!=null){
+        throw error;
+      }
+    }
+    catch(Exception e){
+      if(e instanceof SftpException) throw (SftpException)e;
+      if(e instanceof Throwable)
+        throw new SftpException(SSH_FX_FAILURE, e.toString(), (Throwable)e);
+      throw new SftpException(SSH_FX_FAILURE, e.toString());
+    }
+    finally{
+      // everything before the first missing part has been written.
+      long _done=Math.min(offset, hole);
+      if(ra!=null){
+        _done=Math.min(_done, ra.lowest());
+      }
+      done[0]=_done;
+    }
+  }
+
   /**
    * Starts an upload by OutputStream.
    * We use {@link #OVERWRITE} mode, no progress monitor
@@ -929,8 +1308,6 @@ public class ChannelSftp extends ChannelSession{
    */
   public OutputStream put(String dst, final SftpProgressMonitor monitor, final int mode, long offset) throws SftpException{
     try{
-      ((MyPipedInputStream)io_in).updateReadSide();
-
       dst=remoteAbsolutePath(dst);
       dst=isUnique(dst);
 
@@ -938,7 +1315,7 @@ public class ChannelSftp extends ChannelSession{
 	throw new SftpException(SSH_FX_FAILURE, dst+" is a directory");
       }
 
-      byte[] dstb=Util.str2byte(dst, fEncoding);
+      final byte[] dstb=Util.str2byte(dst, fEncoding);
 
       long skip=0;
       if(mode==RESUME || mode==APPEND){
@@ -957,7 +1334,7 @@ public class ChannelSftp extends ChannelSession{
                      SftpProgressMonitor.UNKNOWN_SIZE);
       }
 
-      if(mode==OVERWRITE){ sendOPENW(dstb); }
+      if(mode==OVERWRITE || mode==DELTA){ sendOPENW(dstb); }
       else{ sendOPENA(dstb); }
 
       Header header=new Header();
@@ -1010,7 +1387,7 @@ public class ChannelSftp extends ChannelSession{
           try{
             int _len=len;
             while(_len>0){
-              int sent=sendWRITE(handle, _offset[0], d, s, _len);
+              int sent=sendWRITE(handle, _offset[0], d, s, writeLength(_len));
               writecount++;
               _offset[0]+=sent;
               s+=sent;
@@ -1078,6 +1455,9 @@ public class ChannelSftp extends ChannelSession{
           catch(Exception e){
             throw new IOException(e.toString());
           }
+          finally{
+            invalidate(dstb);
+          }
           isClosed=true;
         }
       };
@@ -1123,7 +1503,7 @@ public class ChannelSftp extends ChannelSession{
    *    of the operation. Can be {@code null}, then there will be no progress
    *   notification.
    * @param mode the transfer mode, one of {@link #RESUME}, {@link #APPEND},
-   *  {@link #OVERWRITE}.
+   *  {@link #OVERWRITE}, {@link #DELTA}.
    * @throws SftpException if some problem occurred.
    */
   public void get(String src, String dst,
@@ -1133,8 +1513,6 @@ public class ChannelSftp extends ChannelSession{
     boolean _dstExist = false;
     String _dst=null;
     try{
-      ((MyPipedInputStream)io_in).updateReadSide();
-
       src=remoteAbsolutePath(src);
       dst=localAbsolutePath(dst);
 
@@ -1207,21 +1585,34 @@ public class ChannelSftp extends ChannelSession{
 	  }
 	}
 
-        FileOutputStream fos=null;
+        RandomAccessFile raf=null;
         _dstExist = _dstFile.exists();
         try{
-          if(mode==OVERWRITE){
-            fos=new FileOutputStream(_dst);
+          raf=new RandomAccessFile(_dstFile, "rw");
+          FileChannel fc=raf.getChannel();
+          if(mode==DELTA){
+            _getDelta(_src, fc, monitor);
           }
           else{
-            fos=new FileOutputStream(_dst, true); // append
+            if(mode==OVERWRITE){
+              fc.truncate(0);
+            }
+            else{
+              fc.position(fc.size()); // append
+            }
+            // System.err.println("_get: "+_src+", "+_dst);
+            try{
+              _get(_src, fc, monitor, mode==RESUME ? fc.size() : 0);
+            }
+            finally{
+              // drop the data beyond a gap left by a failed download
+              fc.truncate(fc.position());
+            }
           }
-          // System.err.println("_get: "+_src+", "+_dst);
-          _get(_src, fos, monitor, mode, new File(_dst).length());
         }
         finally{
-          if(fos!=null){
-            fos.close();
+          if(raf!=null){
+            raf.close();
           }
         }
       }
@@ -1279,8 +1670,6 @@ public class ChannelSftp extends ChannelSession{
 		   SftpProgressMonitor monitor, int mode, long skip) throws SftpException{
 //System.err.println("get: "+src+", "+dst);
     try{
-      ((MyPipedInputStream)io_in).updateReadSide();
-
       src=remoteAbsolutePath(src);
       src=isUnique(src);
 
@@ -1339,8 +1728,7 @@ public class ChannelSftp extends ChannelSession{
       rq.init();
       long request_offset=offset;
 
-      int request_len = buf.buffer.length-13;
-      if(server_version==0){ request_len=1024; }
+      int request_len = readLength(false);
 
       loop:
       while(true){
@@ -1454,25 +1842,285 @@ public class ChannelSftp extends ChannelSession{
   }
 
 
-  private class RequestQueue {
-    class OutOfOrderException extends Exception {
-      long offset;
-      OutOfOrderException(long offset){
-        this.offset=offset;
+  /**
+   * Downloads a file into a FileChannel.
+   *<p>
+   * Several read requests are kept outstanding, and the data is
+   * written to {@code dst} at the corresponding positions in the order
+   * the responses arrive. The number of outstanding requests is
+   * adapted to the round trip time and throughput measured during
+   * the transfer; {@link #setBulkRequests} sets the initial number.
+   *</p>
+   * @param src the source file name, relative to the
+   *    <a href="#current-directory">current remote directory</a>.
+   * @param dst the destination. The file is written from its current
+   *   position on, and its position is set after the data downloaded
+   *   without gaps. (If the download fails or is cancelled, there
+   *   may be data of later parts of the file beyond this position.)
+   * @param monitor an object receiving notifications about the progress
+   *    of the operation. Can be {@code null}, then there will be no progress
+   *   notification.
+   * @param skip the position in the remote file where we should
+   *    start the download.
+   * @throws SftpException if some problem occurred.
+   */
+  public void get(String src, FileChannel dst,
+                  SftpProgressMonitor monitor, long skip) throws SftpException{
+    try{
+      src=remoteAbsolutePath(src);
+      src=isUnique(src);
+
+      if(monitor!=null){
+	SftpATTRS attr=_stat(src);
+        monitor.init(SftpProgressMonitor.GET, src, "??", attr.getSize());
+        monitor.count(skip);
       }
+      _get(src, dst, monitor, skip);
     }
-    class Request {
-      int id;
-      long offset;
-      long length;
+    catch(Exception e){
+      if(e instanceof SftpException) throw (SftpException)e;
+      if(e instanceof Throwable)
+        throw new SftpException(SSH_FX_FAILURE, "", (Throwable)e);
+      throw new SftpException(SSH_FX_FAILURE, "");
     }
+  }
 
-    Request[] rrq=null;
-    int head, count;
-    RequestQueue(int size){
-      rrq = new Request[size];
-      for(int i=0; i<rrq.length; i++){
-        rrq[i]=new Request();
+  /**
+   * The implementation of the {@code get} methods writing to files.
+   * @see #get(String, FileChannel, SftpProgressMonitor, long)
+   */
+  private void _get(String src, FileChannel dst,
+                    SftpProgressMonitor monitor, long skip) throws SftpException{
+    long position=0;
+    long[] done=new long[]{skip};
+    try{
+      position=dst.position();
+      _get(src, dst, position, monitor, skip, Long.MAX_VALUE, done);
+    }
+    catch(IOException e){
+      throw new SftpException(SSH_FX_FAILURE, "", e);
+    }
+    finally{
+      try{
+        dst.position(position+done[0]-skip);
+      }
+      catch(IOException e){
+      }
+    }
+  }
+
+  /**
+   * Downloads a part of a file into a FileChannel.
+   * @param src the absolute source file name.
+   * @param dst the destination.
+   * @param position the position in {@code dst} for the data at
+   *   {@code skip}.
+   * @param skip the offset in the remote file where we should start.
+   * @param end the offset in the remote file where we should stop.
+   * @param done a length-1 array where we will put the offset up to
+   *   which the data has been written without gaps, also if the
+   *   download fails.
+   */
+  void _get(String src, FileChannel dst, long position,
+            SftpProgressMonitor monitor, long skip, long end,
+            long[] done) throws SftpException{
+    byte[] srcb=Util.str2byte(src, fEncoding);
+    long base=position-skip;
+    long offset=skip;              // the next offset to request
+    long eof=end;                  // no data at or behind this offset
+    long hole=Long.MAX_VALUE;      // data not requested due to a failure
+    ReadAhead ra=null;
+    try{
+      sendOPENR(srcb);
+
+      Header header=new Header();
+      header=header(buf, header);
+      int length=header.length;
+      int type=header.type;
+
+      fill(buf, length);
+
+      if(type!=SSH_FXP_STATUS && type!=SSH_FXP_HANDLE){
+	throw new SftpException(SSH_FX_FAILURE, "");
+      }
+
+      if(type==SSH_FXP_STATUS){
+        int i=buf.getInt();
+        throwStatusError(buf, i);
+      }
+
+      byte[] handle=buf.getString();         // filename
+
+      int request_len = readLength(true);
+
+      ra=new ReadAhead(rq.size(), 1,
+                       Math.max(rq.size(),
+                                getLocalWindowSizeLimit()/request_len));
+      ByteBuffer bb=ByteBuffer.wrap(buf.buffer);
+      SftpException error=null;
+      boolean cancelled=false;
+      long probe=-1;               // the rest of a short read
+      int probe_len=0;
+
+      while(true){
+        while(error==null && !cancelled &&
+              offset<eof && ra.count()<ra.getLimit()){
+          int len=(int)Math.min(request_len, eof-offset);
+          sendREAD(handle, offset, len);
+          ra.add(seq-1, offset, len);
+          offset+=len;
+        }
+        if(ra.count()==0){
+          break;
+        }
+
+        header=header(buf, header);
+        length=header.length;
+        type=header.type;
+
+        int i=ra.find(header.rid);
+        if(i<0){
+          throw new SftpException(SSH_FX_FAILURE,
+                                  "unknown request id "+header.rid);
+        }
+        long rr_offset=ra.getOffset(i);
+        int rr_length=ra.getLength(i);
+
+        if(type==SSH_FXP_STATUS){
+          ra.remove(i, 0);
+          if(rr_offset==probe){
+            probe=-1;
+          }
+          fill(buf, length);
+          int status=buf.getInt();
+          if(status==SSH_FX_EOF){
+            if(rr_offset<eof){
+              eof=rr_offset;
+            }
+            continue;
+          }
+          if(error==null){
+            try{
+              throwStatusError(buf, status);
+            }
+            catch(SftpException e){
+              error=e;
+            }
+          }
+          if(rr_offset<hole){
+            hole=rr_offset;
+          }
+          continue;
+        }
+
+        if(type!=SSH_FXP_DATA){ 
+	  throw new SftpException(SSH_FX_FAILURE, "");
+        }
+
+        buf.rewind();
+        fill(buf.buffer, 0, 4); length-=4;
+        int length_of_data = buf.getInt();   // length of data 
+        int optional_data = length - length_of_data;
+        ra.remove(i, length_of_data);
+
+        long _position=base+rr_offset;
+        int foo=length_of_data;
+        while(foo>0){
+          int bar=foo;
+          if(bar>buf.buffer.length){
+            bar=buf.buffer.length;
+          }
+          int data_len=io_in.read(buf.buffer, 0, bar);
+          if(data_len<0){
+            throw new SftpException(SSH_FX_CONNECTION_LOST, "channel is closed");
+          }
+          bb.clear();
+          bb.limit(data_len);
+          while(bb.hasRemaining()){
+            _position+=dst.write(bb, _position);
+          }
+          foo-=data_len;
+        }
+        if(optional_data>0){
+          skip(optional_data);
+        }
+
+        if(monitor!=null && !cancelled && !monitor.count(length_of_data)){
+          cancelled=true;
+        }
+
+        if(rr_offset==probe){
+          if(length_of_data>0){
+            // the server limits the length of the data,
+            // so don't ask for more in the next requests.
+            request_len=probe_len;
+          }
+          probe=-1;
+        }
+
+        if(length_of_data<rr_length){
+          long rest=rr_offset+length_of_data;
+          if(error!=null || cancelled){
+            if(rest<hole){
+              hole=rest;
+            }
+          }
+          else if(rest<eof){
+            // a short read, at the end of the file or due to a limit
+            // of the server: the rest will tell.
+            if(rr_length==request_len && length_of_data>0 && probe<0){
+              probe=rest;
+              probe_len=length_of_data;
+            }
+            sendREAD(handle, rest, rr_length-length_of_data);
+            ra.add(seq-1, rest, rr_length-length_of_data);
+          }
+        }
+      }
+
+      if(monitor!=null)monitor.end();
+
+      _sendCLOSE(handle, header);
+
+      if(error!=null){
+        throw error;
+      }
+    }
+    catch(Exception e){
+      if(e instanceof SftpException) throw (SftpException)e;
+      if(e instanceof Throwable)
+        throw new SftpException(SSH_FX_FAILURE, "", (Throwable)e);
+      throw new SftpException(SSH_FX_FAILURE, "");
+    }
+    finally{
+      // everything before the first missing part has been written.
+      long _done=Math.min(Math.min(offset, eof), hole);
+      if(ra!=null){
+        _done=Math.min(_done, ra.lowest());
+      }
+      done[0]=_done;
+    }
+  }
+
+  private class RequestQueue {
+    class OutOfOrderException extends Exception {
+      long offset;
+      OutOfOrderException(long offset){
+        this.offset=offset;
+      }
+    }
+    class Request {
+      int id;
+      long offset;
+      long length;
+    }
+
+    Request[] rrq=null;
+    int head, count;
+    RequestQueue(int size){
+      rrq = new Request[size];
+      for(int i=0; i<rrq.length; i++){
+        rrq[i]=new Request();
       }
       init();
     }
@@ -1607,8 +2255,6 @@ public class ChannelSftp extends ChannelSession{
   public InputStream get(String src, final SftpProgressMonitor monitor, final long skip) throws SftpException{
 
     try{
-      ((MyPipedInputStream)io_in).updateReadSide();
-
       src=remoteAbsolutePath(src);
       src=isUnique(src);
 
@@ -1701,8 +2347,7 @@ public class ChannelSftp extends ChannelSession{
                 || true // working around slow transfer speed for
                         // some sftp servers including Titan FTP.
                ) {
-               int request_len = buf.buffer.length-13;
-               if(server_version==0){ request_len=1024; }
+               int request_len = readLength(false);
 
                while(rq.count() < request_max){
                  try{
@@ -1874,8 +2519,6 @@ public class ChannelSftp extends ChannelSession{
    public void ls(String path, LsEntrySelector selector) throws SftpException{
      //System.out.println("ls: "+path);
      try{
-       ((MyPipedInputStream)io_in).updateReadSide();
-
        path=remoteAbsolutePath(path);
        byte[] pattern=null;
        java.util.Vector v=new java.util.Vector();
@@ -2072,8 +2715,6 @@ public class ChannelSftp extends ChannelSession{
                                  "The remote sshd is too old to support symlink operation.");
        }
 
-       ((MyPipedInputStream)io_in).updateReadSide();
-
        path=remoteAbsolutePath(path);
 
        path=isUnique(path);
@@ -2142,8 +2783,6 @@ public class ChannelSftp extends ChannelSession{
      }
 
      try{
-       ((MyPipedInputStream)io_in).updateReadSide();
-
        String _oldpath=remoteAbsolutePath(oldpath);
        newpath=remoteAbsolutePath(newpath);
 
@@ -2194,8 +2833,6 @@ public class ChannelSftp extends ChannelSession{
      }
 
      try{
-       ((MyPipedInputStream)io_in).updateReadSide();
-
        String _oldpath=remoteAbsolutePath(oldpath);
        newpath=remoteAbsolutePath(newpath);
 
@@ -2213,85 +2850,1126 @@ public class ChannelSftp extends ChannelSession{
        }
        newpath=Util.unquote(newpath);
 
-       sendHARDLINK(Util.str2byte(oldpath, fEncoding),
-                   Util.str2byte(newpath, fEncoding));
+       sendHARDLINK(Util.str2byte(oldpath, fEncoding),
+                   Util.str2byte(newpath, fEncoding));
+
+       Header header=new Header();
+       header=header(buf, header);
+       int length=header.length;
+       int type=header.type;
+
+       fill(buf, length);
+
+       if(type!=SSH_FXP_STATUS){
+         throw new SftpException(SSH_FX_FAILURE, "");
+       }
+
+       int i=buf.getInt();
+       if(i==SSH_FX_OK) return;
+       throwStatusError(buf, i);
+     }
+     catch(Exception e){
+       if(e instanceof SftpException) throw (SftpException)e;
+       if(e instanceof Throwable)
+         throw new SftpException(SSH_FX_FAILURE, "", (Throwable)e);
+       throw new SftpException(SSH_FX_FAILURE, "");
+     }
+   }
+
+  /**
+   * Renames a file or directory.
+   * @param oldpath the old name of the file, relative to the
+   *    <a href="#current-directory">current remote directory</a>.
+   * @param newpath the new name of the file, relative to the
+   *    <a href="#current-directory">current remote directory</a>.
+   * @see <a href="http://tools.ietf.org/html/draft-ietf-secsh-filexfer-02#section-6.5">Internet draft, 6.5 Removing and Renaming Files</a>
+   */
+   public void rename(String oldpath, String newpath) throws SftpException{
+     if(server_version<2){
+       throw new SftpException(SSH_FX_OP_UNSUPPORTED, 
+                               "The remote sshd is too old to support rename operation.");
+     }
+
+     try{
+       oldpath=remoteAbsolutePath(oldpath);
+       newpath=remoteAbsolutePath(newpath);
+
+       oldpath=isUnique(oldpath);
+
+       Vector v=glob_remote(newpath);
+       int vsize=v.size();
+       if(vsize>=2){
+         throw new SftpException(SSH_FX_FAILURE, v.toString());
+       }
+       if(vsize==1){
+         newpath=(String)(v.elementAt(0));
+       }
+       else{  // vsize==0
+         if(isPattern(newpath))
+           throw new SftpException(SSH_FX_FAILURE, newpath);
+         newpath=Util.unquote(newpath);
+       }
+
+       sendRENAME(Util.str2byte(oldpath, fEncoding),
+                  Util.str2byte(newpath, fEncoding));
+
+       Header header=new Header();
+       header=header(buf, header);
+       int length=header.length;
+       int type=header.type;
+
+       fill(buf, length);
+
+       if(type!=SSH_FXP_STATUS){
+         throw new SftpException(SSH_FX_FAILURE, "");
+       }
+
+       int i=buf.getInt();
+       if(i==SSH_FX_OK) return;
+       throwStatusError(buf, i);
+    }
+    catch(Exception e){
+      if(e instanceof SftpException) throw (SftpException)e;
+      if(e instanceof Throwable)
+        throw new SftpException(SSH_FX_FAILURE, "", (Throwable)e);
+      throw new SftpException(SSH_FX_FAILURE, "");
+    }
+  }
+
+  // ------------ random access ----------------------------
+
+  /**
+   * Opens a remote file for reading and writing at explicit positions.
+   * @param path the file name, relative to the
+   *    <a href="#current-directory">current remote directory</a>.
+   *    It is not expanded as a pattern.
+   * @param flags a combination of {@link SftpFile#READ},
+   *   {@link SftpFile#WRITE}, {@link SftpFile#CREATE},
+   *   {@link SftpFile#TRUNCATE} and {@link SftpFile#EXCLUSIVE}.
+   * @return the open file. It should be closed after use.
+   * @throws SftpException if some problem occurred.
+   * @see <a href="http://tools.ietf.org/html/draft-ietf-secsh-filexfer-02#section-6.3">Internet draft, 6.3 Opening, Creating, and Closing Files</a>
+   */
+  public SftpFile open(String path, int flags) throws SftpException{
+    path=remoteAbsolutePath(path);
+    return new SftpFile(this, path, _open(path, flags));
+  }
+
+  /**
+   * opens a remote file.
+   * @param path the absolute file name.
+   * @param flags the SSH_FXF_* flags.
+   * @return the handle of the file.
+   */
+  private byte[] _open(String path, int flags) throws SftpException{
+    try{
+      sendOPEN(Util.str2byte(path, fEncoding), flags);
+
+      Header header=new Header();
+      header=header(buf, header);
+      int length=header.length;
+      int type=header.type;
+
+      fill(buf, length);
+
+      if(type!=SSH_FXP_STATUS && type!=SSH_FXP_HANDLE){
+	throw new SftpException(SSH_FX_FAILURE, "invalid type="+type);
+      }
+      if(type==SSH_FXP_STATUS){
+        int i=buf.getInt();
+        throwStatusError(buf, i);
+      }
+      return buf.getString();                // handle
+    }
+    catch(Exception e){
+      if(e instanceof SftpException) throw (SftpException)e;
+      if(e instanceof Throwable)
+        throw new SftpException(SSH_FX_FAILURE, "", (Throwable)e);
+      throw new SftpException(SSH_FX_FAILURE, "");
+    }
+  }
+
+  /**
+   * Reads several parts of an open file, keeping several read
+   * requests outstanding. The buffers are filled independently of
+   * each other, and their positions advanced accordingly.
+   * @param handle the handle of the file.
+   * @param positions the offsets in the file, one for each buffer.
+   * @param dsts the buffers to fill.
+   * @param counts an array where we will put the number of bytes read
+   *   into each buffer. This is less than the remaining space only at
+   *   the end of the file.
+   */
+  void _read(byte[] handle, long[] positions, ByteBuffer[] dsts,
+             int[] counts) throws SftpException{
+    int n=dsts.length;
+    // the buffers as parts of one long virtual buffer
+    long[] starts=new long[n+1];
+    long[] eofs=new long[n];
+    for(int j=0; j<n; j++){
+      eofs[j]=dsts[j].remaining();
+      starts[j+1]=starts[j]+eofs[j];
+    }
+    try{
+      int request_len = readLength(true);
+
+      ReadAhead ra=new ReadAhead(rq.size(), 1,
+                                 Math.max(rq.size(),
+                                          getLocalWindowSizeLimit()/request_len));
+      Header header=new Header();
+      SftpException error=null;
+      long offset=0;               // the next virtual offset to request
+      int b=0;                     // the buffer of this offset
+      long probe=-1;               // the rest of a short read
+      int probe_len=0;
+
+      while(true){
+        while(error==null && offset<starts[n] && ra.count()<ra.getLimit()){
+          while(offset>=starts[b+1]){
+            b++;
+          }
+          int len=(int)Math.min(request_len, starts[b+1]-offset);
+          sendREAD(handle, positions[b]+offset-starts[b], len);
+          ra.add(seq-1, offset, len);
+          offset+=len;
+        }
+        if(ra.count()==0){
+          break;
+        }
+
+        header=header(buf, header);
+        int length=header.length;
+        int type=header.type;
+
+        int i=ra.find(header.rid);
+        if(i<0){
+          throw new SftpException(SSH_FX_FAILURE,
+                                  "unknown request id "+header.rid);
+        }
+        long rr_offset=ra.getOffset(i);
+        int rr_length=ra.getLength(i);
+        int j=find(starts, rr_offset);
+        long rel=rr_offset-starts[j];
+
+        if(type==SSH_FXP_STATUS){
+          ra.remove(i, 0);
+          if(rr_offset==probe){
+            probe=-1;
+          }
+          fill(buf, length);
+          int status=buf.getInt();
+          if(status==SSH_FX_EOF){
+            if(rel<eofs[j]){
+              eofs[j]=rel;
+            }
+            continue;
+          }
+          if(error==null){
+            try{
+              throwStatusError(buf, status);
+            }
+            catch(SftpException e){
+              error=e;
+            }
+          }
+          continue;
+        }
+
+        if(type!=SSH_FXP_DATA){ 
+	  throw new SftpException(SSH_FX_FAILURE, "invalid type="+type);
+        }
+
+        buf.rewind();
+        fill(buf.buffer, 0, 4); length-=4;
+        int length_of_data = buf.getInt();   // length of data 
+        int optional_data = length - length_of_data;
+        ra.remove(i, length_of_data);
+        if(length_of_data>rr_length){
+	  throw new SftpException(SSH_FX_BAD_MESSAGE, "too much data");
+        }
+
+        ByteBuffer dst=dsts[j].duplicate();
+        dst.position(dsts[j].position()+(int)rel);
+        int foo=length_of_data;
+        while(foo>0){
+          int bar=foo;
+          if(bar>buf.buffer.length){
+            bar=buf.buffer.length;
+          }
+          int data_len=io_in.read(buf.buffer, 0, bar);
+          if(data_len<0){
+            throw new SftpException(SSH_FX_CONNECTION_LOST, "channel is closed");
+          }
+          dst.put(buf.buffer, 0, data_len);
+          foo-=data_len;
+        }
+        if(optional_data>0){
+          skip(optional_data);
+        }
+
+        if(rr_offset==probe){
+          if(length_of_data>0){
+            request_len=probe_len;    // a limit of the server
+          }
+          probe=-1;
+        }
+
+        if(length_of_data==0){
+          // no progress, treat it like the end of the file.
+          if(rel<eofs[j]){
+            eofs[j]=rel;
+          }
+        }
+        else if(length_of_data<rr_length && error==null){
+          long rest=rr_offset+length_of_data;
+          if(rest-starts[j]<eofs[j]){
+            if(rr_length==request_len && probe<0){
+              probe=rest;
+              probe_len=length_of_data;
+            }
+            sendREAD(handle, positions[j]+rest-starts[j],
+                     rr_length-length_of_data);
+            ra.add(seq-1, rest, rr_length-length_of_data);
+          }
+        }
+      }
+
+      if(error!=null){
+        throw error;
+      }
+      for(int j=0; j<n; j++){
+        counts[j]=(int)eofs[j];
+        dsts[j].position(dsts[j].position()+counts[j]);
+      }
+    }
+    catch(Exception e){
+      if(e instanceof SftpException) throw (SftpException)e;
+      if(e instanceof Throwable)
+        throw new SftpException(SSH_FX_FAILURE, "", (Throwable)e);
+      throw new SftpException(SSH_FX_FAILURE, "");
+    }
+  }
+
+  /**
+   * Writes several parts of an open file, keeping several write
+   * requests outstanding. If all data has been written, the
+   * positions of the buffers are set to their limits.
+   * @param handle the handle of the file.
+   * @param positions the offsets in the file, one for each buffer.
+   * @param srcs the data to write.
+   */
+  void _write(byte[] handle, long[] positions,
+              ByteBuffer[] srcs) throws SftpException{
+    int n=srcs.length;
+    long[] starts=new long[n+1];
+    for(int j=0; j<n; j++){
+      starts[j+1]=starts[j]+srcs[j].remaining();
+    }
+    try{
+      int _s=5+13+21+handle.length;
+      int datalen=writeLength(obuf.buffer.length-_s-Session.buffer_margin);
+
+      ReadAhead ra=new ReadAhead(rq.size(), 1, writeRequests(datalen));
+      Header header=new Header();
+      SftpException error=null;
+      long offset=0;
+      int b=0;
+
+      while(true){
+        while(error==null && offset<starts[n] && ra.count()<ra.getLimit()){
+          while(offset>=starts[b+1]){
+            b++;
+          }
+          int len=(int)Math.min(datalen, starts[b+1]-offset);
+          ByteBuffer src=srcs[b].duplicate();
+          src.position(srcs[b].position()+(int)(offset-starts[b]));
+          src.get(obuf.buffer, _s, len);
+          len=sendWRITE(handle, positions[b]+offset-starts[b],
+                        obuf.buffer, 0, len);
+          ra.add(seq-1, offset, len);
+          offset+=len;
+        }
+        if(ra.count()==0){
+          break;
+        }
+
+        header=header(buf, header);
+        int length=header.length;
+        int type=header.type;
+        fill(buf, length);
+
+        int i=ra.find(header.rid);
+        if(i<0){
+          throw new SftpException(SSH_FX_FAILURE,
+                                  "unknown request id "+header.rid);
+        }
+        ra.remove(i, ra.getLength(i));
+
+        if(type!=SSH_FXP_STATUS){ 
+          throw new SftpException(SSH_FX_FAILURE, "invalid type="+type);
+        }
+        int status=buf.getInt();
+        if(status!=SSH_FX_OK && error==null){
+          try{
+            throwStatusError(buf, status);
+          }
+          catch(SftpException e){
+            error=e;
+          }
+        }
+      }
+
+      if(error!=null){
+        throw error;
+      }
+      for(int j=0; j<n; j++){
+        srcs[j].position(srcs[j].limit());
+      }
+    }
+    catch(Exception e){
+      if(e instanceof SftpException) throw (SftpException)e;
+      if(e instanceof Throwable)
+        throw new SftpException(SSH_FX_FAILURE, "", (Throwable)e);
+      throw new SftpException(SSH_FX_FAILURE, "");
+    }
+  }
+
+  /**
+   * returns the index of the part containing an offset.
+   * @param starts the start offsets of the parts, in ascending order.
+   */
+  private static int find(long[] starts, long offset){
+    int low=0;
+    int high=starts.length-2;
+    while(low<high){
+      int mid=(low+high+1)>>>1;
+      if(starts[mid]<=offset){
+        low=mid;
+      }
+      else{
+        high=mid-1;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * returns the attributes of an open file.
+   */
+  SftpATTRS _fstat(byte[] handle) throws SftpException{
+    try{
+      sendFSTAT(handle);
+
+      Header header=new Header();
+      header=header(buf, header);
+      int length=header.length;
+      int type=header.type;
+
+      fill(buf, length);
+
+      if(type!=SSH_FXP_ATTRS){
+	if(type==SSH_FXP_STATUS){
+	  int i=buf.getInt();
+	  throwStatusError(buf, i);
+	}
+	throw new SftpException(SSH_FX_FAILURE, "");
+      }
+      return SftpATTRS.getATTR(buf);
+    }
+    catch(Exception e){
+      if(e instanceof SftpException) throw (SftpException)e;
+      if(e instanceof Throwable)
+        throw new SftpException(SSH_FX_FAILURE, "", (Throwable)e);
+      throw new SftpException(SSH_FX_FAILURE, "");
+    }
+  }
+
+  /**
+   * changes the attributes of an open file.
+   */
+  void _fsetstat(byte[] handle, SftpATTRS attr) throws SftpException{
+    try{
+      sendFSETSTAT(handle, attr);
+      checkStatus(null, new Header());
+    }
+    catch(Exception e){
+      if(e instanceof SftpException) throw (SftpException)e;
+      if(e instanceof Throwable)
+        throw new SftpException(SSH_FX_FAILURE, "", (Throwable)e);
+      throw new SftpException(SSH_FX_FAILURE, "");
+    }
+  }
+
+  /**
+   * closes an open file.
+   */
+  void _close(byte[] handle) throws SftpException{
+    try{
+      _sendCLOSE(handle, new Header());
+    }
+    catch(Exception e){
+      if(e instanceof SftpException) throw (SftpException)e;
+      if(e instanceof Throwable)
+        throw new SftpException(SSH_FX_FAILURE, "", (Throwable)e);
+      throw new SftpException(SSH_FX_FAILURE, "");
+    }
+  }
+
+  // ------------ server-side copy and checksums ----------------------
+
+  /**
+   * Copies a remote file to another remote file.
+   *
+   * If the server supports the {@code copy-data} extension, the data
+   * is copied by the server itself and doesn't pass through the
+   * network. Otherwise it is read to the client and written back.
+   *
+   * @param src the source file name, relative to the
+   *    <a href="#current-directory">current remote directory</a>.
+   *    This may be a pattern matching exactly one file.
+   * @param dst the destination file name, relative to the
+   *    <a href="#current-directory">current remote directory</a>.
+   *    An existing file is overwritten.
+   * @throws SftpException if some problem occurred.
+   * @see <a href="http://tools.ietf.org/html/draft-ietf-secsh-filexfer-extensions-00">Internet draft, SFTP extensions</a>
+   */
+  public void copy(String src, String dst) throws SftpException{
+    try{
+      src=remoteAbsolutePath(src);
+      dst=remoteAbsolutePath(dst);
+
+      src=isUnique(src);
+
+      Vector v=glob_remote(dst);
+      int vsize=v.size();
+      if(vsize>=2){
+        throw new SftpException(SSH_FX_FAILURE, v.toString());
+      }
+      if(vsize==1){
+        dst=(String)(v.elementAt(0));
+      }
+      else{  // vsize==0
+        if(isPattern(dst))
+          throw new SftpException(SSH_FX_FAILURE, dst);
+        dst=Util.unquote(dst);
+      }
+
+      byte[] from=_open(src, SSH_FXF_READ);
+      try{
+        byte[] to=_open(dst, SSH_FXF_WRITE|SSH_FXF_CREAT|SSH_FXF_TRUNC);
+        try{
+          _copy(from, 0, 0, to, 0);
+        }
+        finally{
+          _close(to);
+        }
+      }
+      finally{
+        _close(from);
+      }
+      invalidate(dst);
+    }
+    catch(Exception e){
+      if(e instanceof SftpException) throw (SftpException)e;
+      if(e instanceof Throwable)
+        throw new SftpException(SSH_FX_FAILURE, "", (Throwable)e);
+      throw new SftpException(SSH_FX_FAILURE, "");
+    }
+  }
+
+  /**
+   * Calculates a hash of (a part of) a remote file.
+   *
+   * If the server supports the {@code check-file-name} or
+   * {@code check-file-handle} extension with the requested algorithm,
+   * the hash is calculated by the server. Otherwise the data is read
+   * and the hash is calculated locally, using the implementation
+   * configured in {@link JSch#setConfig JSch}.
+   *
+   * @param path the file name, relative to the
+   *    <a href="#current-directory">current remote directory</a>.
+   *    This may be a pattern matching exactly one file.
+   * @param algorithm the hash algorithm, one of {@code "md5"},
+   *    {@code "sha1"}, {@code "sha256"}, {@code "sha384"} and
+   *    {@code "sha512"}.
+   * @param offset the start of the data in the file.
+   * @param length the length of the data, or 0 to use all data up
+   *    to the end of the file.
+   * @return the hash value.
+   * @throws SftpException if some problem occurred.
+   * @see <a href="http://tools.ietf.org/html/draft-ietf-secsh-filexfer-extensions-00">Internet draft, SFTP extensions</a>
+   */
+  public byte[] checksum(String path, String algorithm,
+                         long offset, long length) throws SftpException{
+    try{
+      path=remoteAbsolutePath(path);
+      path=isUnique(path);
+
+      if(extension_check_file_name){
+        String[] used=new String[1];
+        byte[] hash=_checkFile("check-file-name",
+                               Util.str2byte(path, fEncoding),
+                               algorithm, offset, length, 0, used);
+        if(hash!=null && used[0].equals(algorithm)){
+          return hash;
+        }
+      }
+
+      byte[] handle=_open(path, SSH_FXF_READ);
+      try{
+        return _checksum(handle, algorithm, offset, length);
+      }
+      finally{
+        _close(handle);
+      }
+    }
+    catch(Exception e){
+      if(e instanceof SftpException) throw (SftpException)e;
+      if(e instanceof Throwable)
+        throw new SftpException(SSH_FX_FAILURE, "", (Throwable)e);
+      throw new SftpException(SSH_FX_FAILURE, "");
+    }
+  }
+
+  /**
+   * copies data between two open files, on the server if it supports
+   * the {@code copy-data} extension.
+   * @param from the handle of the file to read.
+   * @param offset the position in {@code from}.
+   * @param length the number of bytes to copy, or 0 to copy up to
+   *    the end of {@code from}.
+   * @param to the handle of the file to write.
+   * @param position the position in {@code to}.
+   */
+  void _copy(byte[] from, long offset, long length,
+             byte[] to, long position) throws SftpException{
+    if(extension_copy_data){
+      try{
+        sendCOPYDATA(from, offset, length, to, position);
+        checkStatus(null, new Header());
+        return;
+      }
+      catch(Exception e){
+        if(e instanceof SftpException) throw (SftpException)e;
+        if(e instanceof Throwable)
+          throw new SftpException(SSH_FX_FAILURE, "", (Throwable)e);
+        throw new SftpException(SSH_FX_FAILURE, "");
+      }
+    }
+
+    ByteBuffer bb=ByteBuffer.allocate(rq.size()*readLength(false));
+    long done=0;
+    while(length==0 || done<length){
+      int count=readChunk(from, offset+done, length==0 ? 0 : length-done, bb);
+      if(count>0){
+        _write(to, new long[]{position+done}, new ByteBuffer[]{bb});
+        done+=count;
+      }
+      if(count<bb.capacity()){
+        break;
+      }
+    }
+  }
+
+  /**
+   * calculates a hash of a part of an open file, on the server if it
+   * supports the {@code check-file-handle} extension.
+   * @param handle the handle of the file.
+   * @param algorithm the algorithm name, like {@code "sha256"}.
+   * @param offset the start of the data.
+   * @param length the length of the data, or 0 to use all data up to
+   *    the end of the file.
+   */
+  byte[] _checksum(byte[] handle, String algorithm,
+                   long offset, long length) throws SftpException{
+    try{
+      if(extension_check_file_handle){
+        String[] used=new String[1];
+        byte[] hash=_checkFile("check-file-handle", handle,
+                               algorithm, offset, length, 0, used);
+        if(hash!=null && used[0].equals(algorithm)){
+          return hash;
+        }
+      }
+
+      String name=(String)HASH_NAMES.get(algorithm);
+      if(name==null){
+        throw new SftpException(SSH_FX_OP_UNSUPPORTED,
+                                "unknown hash algorithm: "+algorithm);
+      }
+      Class c=JSch.loadClass(JSch.getConfig(name));
+      HASH hash=(HASH)(c.newInstance());
+      hash.init();
+
+      ByteBuffer bb=ByteBuffer.allocate(rq.size()*readLength(false));
+      long done=0;
+      while(length==0 || done<length){
+        int count=readChunk(handle, offset+done, length==0 ? 0 : length-done, bb);
+        hash.update(bb.array(), 0, count);
+        done+=count;
+        if(count<bb.capacity()){
+          break;
+        }
+      }
+      return hash.digest();
+    }
+    catch(Exception e){
+      if(e instanceof SftpException) throw (SftpException)e;
+      if(e instanceof Throwable)
+        throw new SftpException(SSH_FX_FAILURE, "", (Throwable)e);
+      throw new SftpException(SSH_FX_FAILURE, "");
+    }
+  }
+
+  /**
+   * the names of the check-file algorithms, mapped to the
+   * configuration keys of our own implementations.
+   */
+  private static final java.util.Hashtable HASH_NAMES=new java.util.Hashtable();
+  static{
+    HASH_NAMES.put("md5", "md5");
+    HASH_NAMES.put("sha1", "sha-1");
+    HASH_NAMES.put("sha256", "sha-256");
+    HASH_NAMES.put("sha384", "sha-384");
+    HASH_NAMES.put("sha512", "sha-512");
+  }
+
+  /**
+   * reads the next part of a file for {@link #_copy} or
+   * {@link #_checksum}.
+   * @param length the length still wanted, or 0 for no limit.
+   * @param bb the buffer to fill, from its start. After the call,
+   *    it contains the data read.
+   * @return the number of bytes read. This is less than the buffer's
+   *    capacity only at the end of the file or of the wanted part.
+   */
+  private int readChunk(byte[] handle, long offset, long length,
+                        ByteBuffer bb) throws SftpException{
+    bb.clear();
+    if(length>0 && length<bb.capacity()){
+      bb.limit((int)length);
+    }
+    int[] count=new int[1];
+    _read(handle, new long[]{offset}, new ByteBuffer[]{bb}, count);
+    bb.flip();
+    return count[0];
+  }
+
+  /**
+   * sends a check-file-name or check-file-handle request and reads
+   * the answer.
+   * @param request the extension name.
+   * @param name the file name or handle.
+   * @param algorithms the acceptable algorithms, separated by commas,
+   *    in order of preference.
+   * @param block_size the length of the blocks to hash separately,
+   *    or 0 for one hash of all data.
+   * @param used a length-1 array where we will put the algorithm
+   *    chosen by the server.
+   * @return the hash values of all blocks, one after the other, or
+   *    null if the server doesn't support the request.
+   */
+  private byte[] _checkFile(String request, byte[] name, String algorithms,
+                            long offset, long length, int block_size,
+                            String[] used) throws Exception{
+    byte[] _request=Util.str2byte(request);
+    byte[] _algorithm=Util.str2byte(algorithms);
+
+    packet.reset();
+    int len=9+_request.length+4+name.length+4+_algorithm.length+8+8+4;
+    putHEAD(SSH_FXP_EXTENDED, len);
+    buf.putInt(seq++);
+    buf.putString(_request);
+    buf.putString(name);
+    buf.putString(_algorithm);
+    buf.putLong(offset);
+    buf.putLong(length);
+    buf.putInt(block_size);
+    getSession().write(packet, this, len+4);
+
+    Header header=new Header();
+    header=header(buf, header);
+    int type=header.type;
+    fill(buf, header.length);
+
+    if(type==SSH_FXP_STATUS){
+      int i=buf.getInt();
+      if(i==SSH_FX_OP_UNSUPPORTED){
+        return null;
+      }
+      throwStatusError(buf, i);
+    }
+    if(type!=(SSH_FXP_EXTENDED_REPLY&0xff)){
+      throw new SftpException(SSH_FX_FAILURE, "invalid type="+type);
+    }
+    buf.getString();                 // "check-file"
+    used[0]=Util.byte2str(buf.getString());
+    byte[] hash=new byte[buf.getLength()];
+    buf.getByte(hash, 0, hash.length);
+    return hash;
+  }
+
+  // ------------ delta transfers ----------------------
+
+  // the blocks compared in DELTA mode, and how many of them are
+  // hashed by one check-file request
+  private static final int DELTA_BLOCK_SIZE=64*1024;
+  private static final int DELTA_BLOCKS=512;
+  private static final String DELTA_HASHES="sha256,sha1,md5";
+
+  /**
+   * uploads a file in {@link #DELTA} mode.
+   * @param src the local file.
+   * @param start the position in {@code src} of the data for the
+   *   start of the remote file.
+   * @param dst the absolute remote file name.
+   * @return the length of the data written or found unchanged without
+   *   gaps, which is less than the length of the source only if the
+   *   upload was cancelled.
+   */
+  private long _putDelta(FileChannel src, long start, String dst,
+                         SftpProgressMonitor monitor) throws Exception{
+    byte[] handle=_open(dst, SSH_FXF_READ|SSH_FXF_WRITE|SSH_FXF_CREAT);
+    try{
+      long size=src.size()-start;
+      long dst_size=_fstat(handle).getSize();
+      Delta delta=new Delta(handle, Util.str2byte(dst, fEncoding),
+                            src, start, true, monitor);
+      delta.run(Math.min(size, dst_size));
+      if(delta.cancelled){
+        if(monitor!=null)monitor.end();
+        return delta.done;
+      }
+
+      // the rest, with pipelined writes
+      long[] done=new long[]{start+delta.done};
+      _put(src, done[0], Long.MAX_VALUE, dst, delta.done, false,
+           monitor, done);
+      if(dst_size>size && done[0]==start+size){
+        SftpATTRS attr=new SftpATTRS();
+        attr.setSIZE(size);
+        _fsetstat(handle, attr);
+      }
+      return done[0]-start;
+    }
+    finally{
+      _close(handle);
+    }
+  }
+
+  /**
+   * downloads a file in {@link #DELTA} mode.
+   * @param src the absolute remote file name.
+   * @param dst the local file, which is updated from its start.
+   */
+  private void _getDelta(String src, FileChannel dst,
+                         SftpProgressMonitor monitor) throws Exception{
+    byte[] handle=_open(src, SSH_FXF_READ);
+    try{
+      long size=_fstat(handle).getSize();
+      Delta delta=new Delta(handle, Util.str2byte(src, fEncoding),
+                            dst, 0, false, monitor);
+      delta.run(Math.min(size, dst.size()));
+      if(delta.cancelled){
+        if(monitor!=null)monitor.end();
+        return;
+      }
+
+      // the rest, with pipelined reads
+      long[] done=new long[]{delta.done};
+      _get(src, dst, delta.done, monitor, delta.done, Long.MAX_VALUE, done);
+      dst.truncate(done[0]);
+    }
+    finally{
+      _close(handle);
+    }
+  }
+
+  /**
+   * The comparing part of a transfer in {@link #DELTA} mode.
+   *
+   * The part where both files overlap is compared in batches of
+   * blocks: the server hashes the blocks of the remote file (with
+   * check-file), we hash those of the local file, and only the ranges
+   * of differing blocks are transferred.
+   */
+  private class Delta{
+    private final byte[] handle;     // the remote file,
+    private final byte[] path;       //   and its name
+    private final FileChannel local;
+    private final long start;        // the position in local for
+                                     //   offset 0 of the remote file
+    private final boolean upload;
+    private final SftpProgressMonitor monitor;
+    private final ByteBuffer bb=ByteBuffer.allocate(16*DELTA_BLOCK_SIZE);
+    private HASH hash=null;
+    private String hash_name=null;
+
+    /**
+     * the offset up to which the destination equals the source.
+     */
+    long done=0;
+    boolean cancelled=false;
+
+    Delta(byte[] handle, byte[] path, FileChannel local, long start,
+          boolean upload, SftpProgressMonitor monitor){
+      this.handle=handle;
+      this.path=path;
+      this.local=local;
+      this.start=start;
+      this.upload=upload;
+      this.monitor=monitor;
+    }
+
+    /**
+     * updates the part of the destination overlapping the source.
+     * This stops early if the server can't calculate the hashes.
+     * @param common the length of the overlapping part.
+     */
+    void run(long common) throws Exception{
+      while(done<common && !cancelled){
+        long offset=done;
+        long length=Math.min(common-offset, (long)DELTA_BLOCK_SIZE*DELTA_BLOCKS);
+        boolean[] differ=compare(offset, length);
+        if(differ==null){
+          return;
+        }
+        int i=0;
+        while(i<differ.length && !cancelled){
+          int j=i+1;
+          while(j<differ.length && differ[j]==differ[i]){
+            j++;
+          }
+          long to=Math.min(offset+(long)j*DELTA_BLOCK_SIZE, offset+length);
+          if(differ[i]){
+            transfer(to);
+          }
+          else{
+            count(to-done);
+          }
+          i=j;
+        }
+      }
+    }
+
+    /**
+     * compares a batch of blocks.
+     * @return a flag for each block, true if it differs, or null if
+     *   the server doesn't support check-file with a suitable
+     *   algorithm.
+     */
+    private boolean[] compare(long offset, long length) throws Exception{
+      if(!extension_check_file_handle && !extension_check_file_name){
+        return null;
+      }
+      String[] used=new String[1];
+      byte[] remote;
+      if(extension_check_file_handle){
+        remote=_checkFile("check-file-handle", handle, DELTA_HASHES,
+                          offset, length, DELTA_BLOCK_SIZE, used);
+      }
+      else{
+        remote=_checkFile("check-file-name", path, DELTA_HASHES,
+                          offset, length, DELTA_BLOCK_SIZE, used);
+      }
+      if(remote==null){
+        return null;
+      }
+      if(hash==null || !used[0].equals(hash_name)){
+        String name=(String)HASH_NAMES.get(used[0]);
+        if(name==null){
+          return null;
+        }
+        Class c=JSch.loadClass(JSch.getConfig(name));
+        hash=(HASH)(c.newInstance());
+        hash_name=used[0];
+      }
+      int hlen=hash.getBlockSize();
+      int n=(int)((length+DELTA_BLOCK_SIZE-1)/DELTA_BLOCK_SIZE);
+      if(remote.length!=n*hlen){
+        return null;
+      }
 
-       Header header=new Header();
-       header=header(buf, header);
-       int length=header.length;
-       int type=header.type;
+      boolean[] differ=new boolean[n];
+      byte[] data=bb.array();
+      int i=0;
+      while(i<n){
+        long from=offset+(long)i*DELTA_BLOCK_SIZE;
+        bb.clear();
+        bb.limit((int)Math.min(bb.capacity(), offset+length-from));
+        while(bb.hasRemaining()){
+          if(local.read(bb, start+from+bb.position())<0){
+            break;
+          }
+        }
+        int count=bb.position();
+        for(int s=0; s<bb.limit(); s+=DELTA_BLOCK_SIZE, i++){
+          if(s>=count){
+            differ[i]=true;              // the local file got shorter
+            continue;
+          }
+          hash.init();
+          hash.update(data, s, Math.min(DELTA_BLOCK_SIZE, count-s));
+          byte[] foo=hash.digest();
+          for(int k=0; k<hlen; k++){
+            if(foo[k]!=remote[i*hlen+k]){
+              differ[i]=true;
+              break;
+            }
+          }
+        }
+      }
+      return differ;
+    }
 
-       fill(buf, length);
+    /**
+     * transfers the source from {@link #done} up to the given offset.
+     */
+    private void transfer(long to) throws Exception{
+      while(done<to && !cancelled){
+        int count;
+        if(upload){
+          bb.clear();
+          bb.limit((int)Math.min(bb.capacity(), to-done));
+          while(bb.hasRemaining()){
+            if(local.read(bb, start+done+bb.position())<0){
+              break;
+            }
+          }
+          bb.flip();
+          count=bb.remaining();
+          if(count==0){
+            return;
+          }
+          _write(handle, new long[]{done}, new ByteBuffer[]{bb});
+        }
+        else{
+          count=readChunk(handle, done, to-done, bb);
+          if(count==0){
+            return;
+          }
+          while(bb.hasRemaining()){
+            local.write(bb, start+done+bb.position());
+          }
+        }
+        count(count);
+      }
+    }
 
-       if(type!=SSH_FXP_STATUS){
-         throw new SftpException(SSH_FX_FAILURE, "");
-       }
+    private void count(long count){
+      done+=count;
+      if(monitor!=null && !monitor.count(count)){
+        cancelled=true;
+      }
+    }
+  }
 
-       int i=buf.getInt();
-       if(i==SSH_FX_OK) return;
-       throwStatusError(buf, i);
-     }
-     catch(Exception e){
-       if(e instanceof SftpException) throw (SftpException)e;
-       if(e instanceof Throwable)
-         throw new SftpException(SSH_FX_FAILURE, "", (Throwable)e);
-       throw new SftpException(SSH_FX_FAILURE, "");
-     }
-   }
+  // ------------ directory streams ----------------------------
 
   /**
-   * Renames a file or directory.
-   * @param oldpath the old name of the file, relative to the
+   * Opens a remote directory for reading its entries one by one.
+   * The entries are decoded only when they are looked at, and only
+   * a few batches of them are held in memory, so this is suitable
+   * for very large directories.
+   * @param path the directory, relative to the
    *    <a href="#current-directory">current remote directory</a>.
-   * @param newpath the new name of the file, relative to the
-   *    <a href="#current-directory">current remote directory</a>.
-   * @see <a href="http://tools.ietf.org/html/draft-ietf-secsh-filexfer-02#section-6.5">Internet draft, 6.5 Removing and Renaming Files</a>
+   *    The last component may be a glob pattern with wildcards
+   *    ({@code *} or {@code ?}); then only the entries of the parent
+   *    directory matching it are returned.
+   * @return the open directory. It is closed after its last entry has
+   *    been read, else it should be closed after use.
+   * @throws SftpException if some problem occurred.
+   * @see <a href="http://tools.ietf.org/html/draft-ietf-secsh-filexfer-02#section-6.7">Internet draft, 6.7 Scanning Directories</a>
    */
-   public void rename(String oldpath, String newpath) throws SftpException{
-     if(server_version<2){
-       throw new SftpException(SSH_FX_OP_UNSUPPORTED, 
-                               "The remote sshd is too old to support rename operation.");
-     }
-
-     try{
-       ((MyPipedInputStream)io_in).updateReadSide();
+  public SftpDirectory openDirectory(String path) throws SftpException{
+    try{
+      path=remoteAbsolutePath(path);
+      byte[] pattern=null;
 
-       oldpath=remoteAbsolutePath(oldpath);
-       newpath=remoteAbsolutePath(newpath);
+      int foo=path.lastIndexOf('/');
+      byte[][] _pattern_utf8=new byte[1][];
+      if(isPattern(path.substring(foo+1), _pattern_utf8)){
+        pattern=_pattern_utf8[0];
+        path=path.substring(0, ((foo==0)?1:foo));
+      }
+      path=Util.unquote(path);
 
-       oldpath=isUnique(oldpath);
+      sendOPENDIR(Util.str2byte(path, fEncoding));
 
-       Vector v=glob_remote(newpath);
-       int vsize=v.size();
-       if(vsize>=2){
-         throw new SftpException(SSH_FX_FAILURE, v.toString());
-       }
-       if(vsize==1){
-         newpath=(String)(v.elementAt(0));
-       }
-       else{  // vsize==0
-         if(isPattern(newpath))
-           throw new SftpException(SSH_FX_FAILURE, newpath);
-         newpath=Util.unquote(newpath);
-       }
+      Header header=new Header();
+      header=header(buf, header);
+      int length=header.length;
+      int type=header.type;
 
-       sendRENAME(Util.str2byte(oldpath, fEncoding),
-                  Util.str2byte(newpath, fEncoding));
+      fill(buf, length);
 
-       Header header=new Header();
-       header=header(buf, header);
-       int length=header.length;
-       int type=header.type;
+      if(type!=SSH_FXP_STATUS && type!=SSH_FXP_HANDLE){
+        throw new SftpException(SSH_FX_FAILURE, "invalid type="+type);
+      }
+      if(type==SSH_FXP_STATUS){
+        int i=buf.getInt();
+        throwStatusError(buf, i);
+      }
+      byte[] handle=buf.getString();         // handle
+      return new SftpDirectory(this, handle, pattern);
+    }
+    catch(Exception e){
+      if(e instanceof SftpException) throw (SftpException)e;
+      if(e instanceof Throwable)
+        throw new SftpException(SSH_FX_FAILURE, "", (Throwable)e);
+      throw new SftpException(SSH_FX_FAILURE, "");
+    }
+  }
 
-       fill(buf, length);
+  /**
+   * sends a READDIR request for an open directory.
+   * @return the id of the request.
+   */
+  int _sendREADDIR(byte[] handle) throws SftpException{
+    try{
+      sendREADDIR(handle);
+      return seq-1;
+    }
+    catch(Exception e){
+      if(e instanceof SftpException) throw (SftpException)e;
+      if(e instanceof Throwable)
+        throw new SftpException(SSH_FX_FAILURE, "", (Throwable)e);
+      throw new SftpException(SSH_FX_FAILURE, "");
+    }
+  }
 
-       if(type!=SSH_FXP_STATUS){
-         throw new SftpException(SSH_FX_FAILURE, "");
-       }
+  /**
+   * reads the response to a READDIR request.
+   * @param id the id of the request, which must be the next one
+   *   answered.
+   * @return the SSH_FXP_NAME response after the id (starting with the
+   *   count of names), or {@code null} at the end of the directory.
+   */
+  byte[] _readNAME(int id) throws SftpException{
+    try{
+      Header header=new Header();
+      header=header(buf, header);
+      int length=header.length;
+      int type=header.type;
 
-       int i=buf.getInt();
-       if(i==SSH_FX_OK) return;
-       throwStatusError(buf, i);
+      if(header.rid!=id){
+        throw new SftpException(SSH_FX_FAILURE,
+                                "unexpected request id "+header.rid);
+      }
+      if(type==SSH_FXP_STATUS){
+        fill(buf, length);
+        int i=buf.getInt();
+        if(i==SSH_FX_EOF){
+          return null;
+        }
+        throwStatusError(buf, i);
+      }
+      if(type!=SSH_FXP_NAME){
+        throw new SftpException(SSH_FX_FAILURE, "invalid type="+type);
+      }
+      byte[] data=new byte[length];
+      fill(data, 0, length);
+      return data;
     }
     catch(Exception e){
       if(e instanceof SftpException) throw (SftpException)e;
@@ -2301,6 +3979,17 @@ public class ChannelSftp extends ChannelSession{
     }
   }
 
+  /**
+   * checks if a file name (in the filename encoding) matches a
+   * pattern (in UTF-8).
+   */
+  boolean matches(byte[] pattern, byte[] filename){
+    if(!fEncoding_is_utf8){
+      filename=Util.str2byte(Util.byte2str(filename, fEncoding), UTF8);
+    }
+    return Util.glob(pattern, filename);
+  }
+
   /**
    * removes one or several files.
    * @param path a glob pattern of the files to be removed, relative to the
@@ -2309,8 +3998,6 @@ public class ChannelSftp extends ChannelSession{
    */
   public void rm(String path) throws SftpException{
     try{
-      ((MyPipedInputStream)io_in).updateReadSide();
-
       path=remoteAbsolutePath(path);
 
       Vector v=glob_remote(path);
@@ -2374,8 +4061,6 @@ public class ChannelSftp extends ChannelSession{
    */
   public void chgrp(int gid, String path) throws SftpException{
     try{
-      ((MyPipedInputStream)io_in).updateReadSide();
-
       path=remoteAbsolutePath(path);
 
       Vector v=glob_remote(path);
@@ -2406,8 +4091,6 @@ public class ChannelSftp extends ChannelSession{
    */
   public void chown(int uid, String path) throws SftpException{
     try{
-      ((MyPipedInputStream)io_in).updateReadSide();
-
       path=remoteAbsolutePath(path);
 
       Vector v=glob_remote(path);
@@ -2439,8 +4122,6 @@ public class ChannelSftp extends ChannelSession{
    */
   public void chmod(int permissions, String path) throws SftpException{
     try{
-      ((MyPipedInputStream)io_in).updateReadSide();
-
       path=remoteAbsolutePath(path);
 
       Vector v=glob_remote(path);
@@ -2472,8 +4153,6 @@ public class ChannelSftp extends ChannelSession{
    */
   public void setMtime(String path, int mtime) throws SftpException{
     try{
-      ((MyPipedInputStream)io_in).updateReadSide();
-
       path=remoteAbsolutePath(path);
 
       Vector v=glob_remote(path);
@@ -2504,8 +4183,6 @@ public class ChannelSftp extends ChannelSession{
    */
   public void rmdir(String path) throws SftpException{
     try{
-      ((MyPipedInputStream)io_in).updateReadSide();
-
       path=remoteAbsolutePath(path);
 
       Vector v=glob_remote(path);
@@ -2549,8 +4226,6 @@ public class ChannelSftp extends ChannelSession{
    */
   public void mkdir(String path) throws SftpException{
     try{
-      ((MyPipedInputStream)io_in).updateReadSide();
-
       path=remoteAbsolutePath(path);
 
       sendMKDIR(Util.str2byte(path, fEncoding), null);
@@ -2590,8 +4265,6 @@ public class ChannelSftp extends ChannelSession{
    */
   public SftpATTRS stat(String path) throws SftpException{
     try{
-      ((MyPipedInputStream)io_in).updateReadSide();
-
       path=remoteAbsolutePath(path);
       path=isUnique(path);
 
@@ -2607,6 +4280,15 @@ public class ChannelSftp extends ChannelSession{
   }
 
   private SftpATTRS _stat(byte[] path) throws SftpException{
+    SftpCache cache=this.cache;
+    String key=null;
+    if(cache!=null){
+      key=Util.byte2str(path, fEncoding);
+      Object value=cache.get(SftpCache.STAT, key);
+      if(value!=null){
+        return cachedATTRS(value);
+      }
+    }
     try{
 
       sendSTAT(path);
@@ -2626,9 +4308,16 @@ public class ChannelSftp extends ChannelSession{
 	throw new SftpException(SSH_FX_FAILURE, "");
       }
       SftpATTRS attr=SftpATTRS.getATTR(buf);
+      if(key!=null){
+        cache.put(SftpCache.STAT, key, key, attr.copy());
+      }
       return attr;
     }
     catch(Exception e){
+      if(key!=null && e instanceof SftpException &&
+         ((SftpException)e).id==SSH_FX_NO_SUCH_FILE){
+        cache.put(SftpCache.STAT, key, key, e);
+      }
       if(e instanceof SftpException) throw (SftpException)e;
       if(e instanceof Throwable)
         throw new SftpException(SSH_FX_FAILURE, "", (Throwable)e);
@@ -2643,8 +4332,6 @@ public class ChannelSftp extends ChannelSession{
 
   public SftpStatVFS statVFS(String path) throws SftpException{
     try{
-      ((MyPipedInputStream)io_in).updateReadSide();
-
       path=remoteAbsolutePath(path);
       path=isUnique(path);
 
@@ -2713,8 +4400,6 @@ public class ChannelSftp extends ChannelSession{
    */
   public SftpATTRS lstat(String path) throws SftpException{
     try{
-      ((MyPipedInputStream)io_in).updateReadSide();
-
       path=remoteAbsolutePath(path);
       path=isUnique(path);
 
@@ -2729,6 +4414,13 @@ public class ChannelSftp extends ChannelSession{
   }
 
   private SftpATTRS _lstat(String path) throws SftpException{
+    SftpCache cache=this.cache;
+    if(cache!=null){
+      Object value=cache.get(SftpCache.LSTAT, path);
+      if(value!=null){
+        return cachedATTRS(value);
+      }
+    }
     try{
       sendLSTAT(Util.str2byte(path, fEncoding));
 
@@ -2747,9 +4439,16 @@ public class ChannelSftp extends ChannelSession{
 	throw new SftpException(SSH_FX_FAILURE, "");
       }
       SftpATTRS attr=SftpATTRS.getATTR(buf);
+      if(cache!=null){
+        cache.put(SftpCache.LSTAT, path, path, attr.copy());
+      }
       return attr;
     }
     catch(Exception e){
+      if(cache!=null && e instanceof SftpException &&
+         ((SftpException)e).id==SSH_FX_NO_SUCH_FILE){
+        cache.put(SftpCache.LSTAT, path, path, e);
+      }
       if(e instanceof SftpException) throw (SftpException)e;
       if(e instanceof Throwable)
         throw new SftpException(SSH_FX_FAILURE, "", (Throwable)e);
@@ -2758,6 +4457,13 @@ public class ChannelSftp extends ChannelSession{
   }
 
   private byte[] _realpath(String path) throws SftpException, IOException, Exception{
+    SftpCache cache=this.cache;
+    if(cache!=null){
+      byte[] value=(byte[])cache.get(SftpCache.REALPATH, path);
+      if(value!=null){
+        return value.clone();
+      }
+    }
     sendREALPATH(Util.str2byte(path, fEncoding));
 
     Header header=new Header();
@@ -2785,6 +4491,9 @@ public class ChannelSftp extends ChannelSession{
       }
       SftpATTRS attr=SftpATTRS.getATTR(buf);  // dummy attribute
     }
+    if(cache!=null && str!=null){
+      cache.put(SftpCache.REALPATH, path, path, str.clone());
+    }
     return str;
   }
 
@@ -2796,8 +4505,6 @@ public class ChannelSftp extends ChannelSession{
    */
   public void setStat(String path, SftpATTRS attr) throws SftpException{
     try{
-      ((MyPipedInputStream)io_in).updateReadSide();
-
       path=remoteAbsolutePath(path);
 
       Vector v=glob_remote(path);
@@ -2814,7 +4521,7 @@ public class ChannelSftp extends ChannelSession{
       throw new SftpException(SSH_FX_FAILURE, "");
     }
   }
-  private void _setStat(String path, SftpATTRS attr) throws SftpException{
+  void _setStat(String path, SftpATTRS attr) throws SftpException{
     try{
       sendSETSTAT(Util.str2byte(path, fEncoding), attr);
 
@@ -2864,8 +4571,6 @@ public class ChannelSftp extends ChannelSession{
   public String getHome() throws SftpException {
     if(home==null){
       try{
-        ((MyPipedInputStream)io_in).updateReadSide();
-
         byte[] _home=_realpath("");
         home=Util.byte2str(_home, fEncoding);
       }
@@ -2952,6 +4657,7 @@ public class ChannelSftp extends ChannelSession{
     sendPacketPath(SSH_FXP_FSTAT, handle);
   }
   private void sendSETSTAT(byte[] path, SftpATTRS attr) throws Exception{
+    invalidate(path);
     packet.reset();
     putHEAD(SSH_FXP_SETSTAT, 9+path.length+attr.length());
     buf.putInt(seq++);
@@ -2959,10 +4665,20 @@ public class ChannelSftp extends ChannelSession{
     attr.dump(buf);
     getSession().write(packet, this, 9+path.length+attr.length()+4);
   }
+  private void sendFSETSTAT(byte[] handle, SftpATTRS attr) throws Exception{
+    packet.reset();
+    putHEAD(SSH_FXP_FSETSTAT, 9+handle.length+attr.length());
+    buf.putInt(seq++);
+    buf.putString(handle);           // handle
+    attr.dump(buf);
+    getSession().write(packet, this, 9+handle.length+attr.length()+4);
+  }
   private void sendREMOVE(byte[] path) throws Exception{
+    invalidate(path);
     sendPacketPath(SSH_FXP_REMOVE, path);
   }
   private void sendMKDIR(byte[] path, SftpATTRS attr) throws Exception{
+    invalidate(path);
     packet.reset();
     putHEAD(SSH_FXP_MKDIR, 9+path.length+(attr!=null?attr.length():4));
     buf.putInt(seq++);
@@ -2972,12 +4688,15 @@ public class ChannelSftp extends ChannelSession{
     getSession().write(packet, this, 9+path.length+(attr!=null?attr.length():4)+4);
   }
   private void sendRMDIR(byte[] path) throws Exception{
+    invalidate(path);
     sendPacketPath(SSH_FXP_RMDIR, path);
   }
   private void sendSYMLINK(byte[] p1, byte[] p2) throws Exception{
+    invalidate(p2);
     sendPacketPath(SSH_FXP_SYMLINK, p1, p2);
   }
   private void sendHARDLINK(byte[] p1, byte[] p2) throws Exception{
+    invalidate(p2);
     sendPacketPath((byte)0, p1, p2, "hardlink@openssh.com");
   }
   private void sendREADLINK(byte[] path) throws Exception{
@@ -2990,6 +4709,8 @@ public class ChannelSftp extends ChannelSession{
     sendPacketPath(SSH_FXP_READDIR, path);
   }
   private void sendRENAME(byte[] p1, byte[] p2) throws Exception{
+    invalidate(p1);
+    invalidate(p2);
     sendPacketPath(SSH_FXP_RENAME, p1, p2,
                    extension_posix_rename ? "posix-rename@openssh.com" : null);
   }
@@ -3006,6 +4727,9 @@ public class ChannelSftp extends ChannelSession{
     sendOPEN(path, SSH_FXF_WRITE|/*SSH_FXF_APPEND|*/SSH_FXF_CREAT);
   }
   private void sendOPEN(byte[] path, int mode) throws Exception{
+    if((mode&(SSH_FXF_WRITE|SSH_FXF_CREAT|SSH_FXF_TRUNC))!=0){
+      invalidate(path);
+    }
     packet.reset();
     putHEAD(SSH_FXP_OPEN, 17+path.length);
     buf.putInt(seq++);
@@ -3014,6 +4738,21 @@ public class ChannelSftp extends ChannelSession{
     buf.putInt(0);           // attrs
     getSession().write(packet, this, 17+path.length+4);
   }
+  private void sendCOPYDATA(byte[] from, long offset, long length,
+                           byte[] to, long position) throws Exception{
+    byte[] request=Util.str2byte("copy-data");
+    packet.reset();
+    int len=9+request.length+4+from.length+8+8+4+to.length+8;
+    putHEAD(SSH_FXP_EXTENDED, len);
+    buf.putInt(seq++);
+    buf.putString(request);
+    buf.putString(from);
+    buf.putLong(offset);
+    buf.putLong(length);             // 0 means up to the end of the file
+    buf.putString(to);
+    buf.putLong(position);
+    getSession().write(packet, this, len+4);
+  }
   private void sendPacketPath(byte fxp, byte[] path) throws Exception{
     sendPacketPath(fxp, path, (String)null);
   }
@@ -3078,6 +4817,78 @@ public class ChannelSftp extends ChannelSession{
     getSession().write(opacket, this, 21+handle.length+_length+4);
     return _length;
   }
+  /**
+   * returns the length of data to ask for in one READ request.
+   * This is the size of our buffer, or the maximum announced by the
+   * server with limits@openssh.com, if that is smaller.
+   * @param large true if the caller passes the data on while reading
+   *   it, and thus can use a length larger than our buffer, too.
+   */
+  private int readLength(boolean large){
+    if(server_version==0){
+      return 1024;
+    }
+    int len=buf.buffer.length-13;
+    if(limit_read>0 && (large || limit_read<len)){
+      len=(int)Math.min(limit_read, MAX_MSG_LENGTH-13);
+    }
+    return len;
+  }
+
+  /**
+   * limits the length of data in one WRITE request to the maximum
+   * announced by the server with limits@openssh.com.
+   */
+  private int writeLength(int length){
+    if(limit_write>0 && limit_write<length){
+      return (int)limit_write;
+    }
+    return length;
+  }
+
+  /**
+   * returns the largest number of WRITE requests to keep outstanding:
+   * as many as fit into the server's window, which limits the data
+   * we may send before the server has processed it, but at least the
+   * configured request queue size.
+   * @param datalen the length of data in one WRITE request, which
+   *   already respects the server's packet size and limits.
+   */
+  private int writeRequests(int datalen){
+    long n=Math.max(rwsize, rwsize_max)/datalen;
+    if(n>MAX_WRITE_REQUESTS){
+      n=MAX_WRITE_REQUESTS;
+    }
+    return Math.max(rq.size(), (int)n);
+  }
+
+  /**
+   * asks the server for its limits, with limits@openssh.com.
+   * If this fails, we keep our defaults.
+   */
+  private void readLimits() throws Exception{
+    packet.reset();
+    byte[] request=Util.str2byte("limits@openssh.com");
+    int len=9+request.length;
+    putHEAD(SSH_FXP_EXTENDED, len);
+    buf.putInt(seq++);
+    buf.putString(request);
+    getSession().write(packet, this, len+4);
+
+    Header header=new Header();
+    header=header(buf, header);
+    int type=header.type;
+    fill(buf, header.length);
+
+    if(type!=(SSH_FXP_EXTENDED_REPLY&0xff)){
+      return;
+    }
+    buf.getLong();                   // max-packet-length
+    limit_read=buf.getLong();
+    limit_write=buf.getLong();
+    buf.getLong();                   // max-open-handles
+  }
+
   private void sendREAD(byte[] handle, long offset, int length) throws Exception{
     sendREAD(handle, offset, length, null);
   }
@@ -3135,6 +4946,14 @@ public class ChannelSftp extends ChannelSession{
 
     pattern=_pattern_utf8[0];
 
+    SftpCache cache=this.cache;
+    if(cache!=null){
+      Vector value=(Vector)cache.get(SftpCache.GLOB, _path);
+      if(value!=null){
+        return (Vector)value.clone();
+      }
+    }
+
     sendOPENDIR(Util.str2byte(dir, fEncoding));
 
     Header header=new Header();
@@ -3219,8 +5038,12 @@ public class ChannelSftp extends ChannelSession{
 	count--; 
       }
     }
-    if(_sendCLOSE(handle, header)) 
+    if(_sendCLOSE(handle, header)){
+      if(cache!=null){
+        cache.put(SftpCache.GLOB, _path, dir, v.clone());
+      }
       return v;
+    }
     return null;
   }
 
@@ -3374,7 +5197,7 @@ public class ChannelSftp extends ChannelSession{
     return header;
   }
 
-  private String remoteAbsolutePath(String path) throws SftpException{
+  String remoteAbsolutePath(String path) throws SftpException{
     if(path.charAt(0)=='/') return path;
     String cwd=getCwd();
 //    if(cwd.equals(getHome())) return path;
@@ -3412,6 +5235,29 @@ public class ChannelSftp extends ChannelSession{
     return server_version;
   }
 
+  /**
+   * returns the encoding of file names.
+   * @see #setFilenameEncoding
+   */
+  String getFilenameEncoding(){
+    return fEncoding;
+  }
+
+  /**
+   * returns a new request id, for requests sent around the methods
+   * of this class.
+   */
+  int nextRequestId(){
+    return seq++;
+  }
+
+  /**
+   * returns the stream of the responses sent by the server.
+   */
+  InputStream getResponseStream(){
+    return io_in;
+  }
+
   /**
    * Sets the encoding used to convert file names from Strings to bytes.
    * This should be the the same encoding actually used on the server.
@@ -3479,39 +5325,85 @@ public class ChannelSftp extends ChannelSession{
     private  String filename;
     private  String longname;
     private  SftpATTRS attrs;
+    // the raw entry, if the fields are decoded when first needed
+    private  byte[] data=null;
+    private  int filename_offset;
+    private  int longname_offset;
+    private  int attrs_offset;
     LsEntry(String filename, String longname, SftpATTRS attrs){
       setFilename(filename);
       setLongname(longname);
       setAttrs(attrs);
     }
+    /**
+     * creates an entry decoded lazily from a SSH_FXP_NAME response.
+     * @param data the response.
+     * @param filename_offset the offset of the file name.
+     * @param longname_offset the offset of the longname, or -1 if
+     *   there is none.
+     * @param attrs_offset the offset of the attributes.
+     */
+    LsEntry(byte[] data, int filename_offset,
+            int longname_offset, int attrs_offset){
+      this.data=data;
+      this.filename_offset=filename_offset;
+      this.longname_offset=longname_offset;
+      this.attrs_offset=attrs_offset;
+    }
+    private Buffer at(int offset){
+      Buffer buf=new Buffer(data);
+      buf.index=data.length;
+      buf.s=offset;
+      return buf;
+    }
     /**
      * gets the file name of this file.
      */
-    public String getFilename(){return filename;};
+    public String getFilename(){
+      if(filename==null && data!=null){
+        filename=Util.byte2str(at(filename_offset).getString(), fEncoding);
+      }
+      return filename;
+    }
     void setFilename(String filename){this.filename = filename;};
     /**
      * returns the "longname" of a file.
      *
      * What ist this? A whole "ls" output line including attributes?
      */
-    public String getLongname(){return longname;};
+    public String getLongname(){
+      if(longname==null && data!=null){
+        if(longname_offset>=0){
+          longname=Util.byte2str(at(longname_offset).getString(), fEncoding);
+        }
+        else{
+          longname=getAttrs().toString()+" "+getFilename();
+        }
+      }
+      return longname;
+    }
     void setLongname(String longname){this.longname = longname;};
     /**
      * return the attributes of the file.
      */
-    public SftpATTRS getAttrs(){return attrs;};
+    public SftpATTRS getAttrs(){
+      if(attrs==null && data!=null){
+        attrs=SftpATTRS.getATTR(at(attrs_offset));
+      }
+      return attrs;
+    }
     void setAttrs(SftpATTRS attrs) {this.attrs = attrs;};
     /**
      * toString simply returns the {@link #getLongname longname}.
      */
-    public String toString(){ return longname; }
+    public String toString(){ return getLongname(); }
     /**
      * compares this LsEntry to another LsEntry,
      * alphabetically by filename. This can be used for sorting.
      */
     public int compareTo(Object o) throws ClassCastException{
       if(o instanceof LsEntry){
-        return filename.compareTo(((LsEntry)o).getFilename());
+        return getFilename().compareTo(((LsEntry)o).getFilename());
       }
       throw new ClassCastException("a decendent of LsEntry must be given.");
     }
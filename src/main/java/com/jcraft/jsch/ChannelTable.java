@@ -0,0 +1,130 @@
+/* -*-mode:java; c-basic-offset:2; indent-tabs-mode:nil -*- */
+/*
+Copyright (c) 2002-2016 ymnk, JCraft,Inc. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+  1. Redistributions of source code must retain the above copyright notice,
+     this list of conditions and the following disclaimer.
+
+  2. Redistributions in binary form must reproduce the above copyright 
+     notice, this list of conditions and the following disclaimer in 
+     the documentation and/or other materials provided with the distribution.
+
+  3. The names of the authors may not be used to endorse or promote products
+     derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL JCRAFT,
+INC. OR ANY CONTRIBUTORS TO THIS SOFTWARE BE LIABLE FOR ANY DIRECT, INDIRECT,
+INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.jcraft.jsch;
+
+/**
+ * Usually not to be used by applications.
+ *
+ * The channels of one {@link Session}, keyed by their
+ * {@linkplain Channel#getId id}.
+ *<p>
+ * This is an open-addressing hash table with linear probing. Lookups,
+ * which happen for nearly every packet received, take no lock: they
+ * read the current table array, which is never modified after being
+ * published. Adding and removing a channel (which is rare in comparison)
+ * builds a new array under the table's lock.
+ *</p>
+ */
+class ChannelTable{
+
+  private volatile Channel[] table=new Channel[16];
+  private int count=0;
+
+  /**
+   * returns the channel with the given id, or null.
+   */
+  Channel get(int id){
+    Channel[] t=table;
+    int mask=t.length-1;
+    for(int i=hash(id)&mask; ; i=(i+1)&mask){
+      Channel c=t[i];
+      if(c==null) return null;
+      if(c.id==id) return c;
+    }
+  }
+
+  synchronized void put(Channel channel){
+    Channel[] t=table;
+    int length=t.length;
+    if((count+1)*2>length){
+      length*=2;
+    }
+    Channel[] tmp=new Channel[length];
+    int n=0;
+    for(int i=0; i<t.length; i++){
+      if(t[i]!=null && t[i]!=channel){
+        insert(tmp, t[i]);
+        n++;
+      }
+    }
+    insert(tmp, channel);
+    count=n+1;
+    table=tmp;
+  }
+
+  synchronized void remove(Channel channel){
+    Channel[] t=table;
+    Channel[] tmp=new Channel[t.length];
+    boolean found=false;
+    for(int i=0; i<t.length; i++){
+      if(t[i]==null) continue;
+      if(t[i]==channel){
+        found=true;
+        continue;
+      }
+      insert(tmp, t[i]);
+    }
+    if(found){
+      count--;
+      table=tmp;
+    }
+  }
+
+  /**
+   * returns a snapshot of all the channels in this table.
+   */
+  Channel[] toArray(){
+    Channel[] t=table;
+    int n=0;
+    for(int i=0; i<t.length; i++){
+      if(t[i]!=null) n++;
+    }
+    Channel[] result=new Channel[n];
+    n=0;
+    for(int i=0; i<t.length && n<result.length; i++){
+      if(t[i]!=null) result[n++]=t[i];
+    }
+    return result;
+  }
+
+  private static void insert(Channel[] t, Channel channel){
+    int mask=t.length-1;
+    int i=hash(channel.id)&mask;
+    while(t[i]!=null){
+      i=(i+1)&mask;
+    }
+    t[i]=channel;
+  }
+
+  private static int hash(int id){
+    int h=id*0x9e3779b9;
+    return h^(h>>>16);
+  }
+}
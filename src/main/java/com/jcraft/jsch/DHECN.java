@@ -61,7 +61,7 @@ public abstract class DHECN extends KeyExchange{
     this.I_C=I_C;      
 
     try{
-      Class c=Class.forName(session.getConfig(sha_name));
+      Class c=JSch.loadClass(session.getConfig(sha_name));
       sha=(HASH)(c.newInstance());
       sha.init();
     }
@@ -76,7 +76,7 @@ public abstract class DHECN extends KeyExchange{
     buf.putByte((byte)SSH_MSG_KEX_ECDH_INIT);
 
     try{
-      Class c=Class.forName(session.getConfig("ecdh-sha2-nistp"));
+      Class c=JSch.loadClass(session.getConfig("ecdh-sha2-nistp"));
       ecdh=(ECDH)(c.newInstance());
       ecdh.init(key_size);
 
@@ -90,7 +90,7 @@ public class DHG1 extends KeyExchange{
     this.I_C=I_C;      
 
     try{
-      Class c=Class.forName(session.getConfig("sha-1"));
+      Class c=JSch.loadClass(session.getConfig("sha-1"));
       sha=(HASH)(c.newInstance());
       sha.init();
     }
@@ -102,7 +102,7 @@ public class DHG1 extends KeyExchange{
     packet=new Packet(buf);
 
     try{
-      Class c=Class.forName(session.getConfig("dh"));
+      Class c=JSch.loadClass(session.getConfig("dh"));
       dh=(DH)(c.newInstance());
       dh.init();
     }
@@ -106,7 +106,7 @@ public class DHG14 extends KeyExchange{
     this.I_C=I_C;      
 
     try{
-      Class c=Class.forName(session.getConfig("sha-1"));
+      Class c=JSch.loadClass(session.getConfig("sha-1"));
       sha=(HASH)(c.newInstance());
       sha.init();
     }
@@ -118,7 +118,7 @@ public class DHG14 extends KeyExchange{
     packet=new Packet(buf);
 
     try{
-      Class c=Class.forName(session.getConfig("dh"));
+      Class c=JSch.loadClass(session.getConfig("dh"));
       dh=(DH)(c.newInstance());
       dh.init();
     }
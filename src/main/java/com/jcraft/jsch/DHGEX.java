@@ -85,7 +85,7 @@ public class DHGEX extends KeyExchange{
     this.I_C=I_C;      
 
     try{
-      Class c=Class.forName(session.getConfig(hash));
+      Class c=JSch.loadClass(session.getConfig(hash));
       sha=(HASH)(c.newInstance());
       sha.init();
     }
@@ -97,7 +97,7 @@ public class DHGEX extends KeyExchange{
     packet=new Packet(buf);
 
     try{
-      Class c=Class.forName(session.getConfig("dh"));
+      Class c=JSch.loadClass(session.getConfig("dh"));
       // Since JDK8, SunJCE has lifted the keysize restrictions
       // from 1024 to 2048 for DH.
       preferred = max = check2048(c, max); 
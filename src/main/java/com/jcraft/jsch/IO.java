@@ -69,6 +69,70 @@ public class IO{
     out.write(p.buffer.buffer, 0, p.buffer.index);
     out.flush();
   }
+
+  private byte[] pending=null;
+  private int pending_length=0;
+  private long pending_since=0L;
+  private long pending_delay=0L;
+
+  /**
+   * enables coalescing of outgoing packets.
+   * @param size the capacity of the buffer collecting the packets,
+   *   or 0 to disable coalescing.
+   * @param delay the maximal time in milliseconds a packet may be
+   *   held back while more packets are being queued.
+   */
+  void setCoalescing(int size, long delay){
+    pending=(size>0 ? new byte[size] : null);
+    pending_length=0;
+    pending_delay=delay;
+  }
+
+  /**
+   * writes a packet, possibly together with some following ones.
+   * If coalescing is enabled and {@code more} is true, the packet
+   * is only appended to the pending data, which will be written
+   * (with a single call) by a later invocation or {@link #flush}.
+   * The pending data is also written if it becomes too large or
+   * too old.
+   * @param p the packet to write.
+   * @param more true if the caller knows that another packet will
+   *   be written soon.
+   */
+  void put(Packet p, boolean more) throws IOException {
+    if(pending==null){
+      put(p);
+      return;
+    }
+    int length=p.buffer.index;
+    if(pending_length+length>pending.length){
+      flush();
+      if(length>pending.length){
+        put(p);
+        return;
+      }
+    }
+    if(pending_length==0){
+      pending_since=System.currentTimeMillis();
+    }
+    System.arraycopy(p.buffer.buffer, 0, pending, pending_length, length);
+    pending_length+=length;
+    if(!more ||
+       System.currentTimeMillis()-pending_since>=pending_delay){
+      flush();
+    }
+  }
+
+  /**
+   * writes all packets held back by {@link #put(Packet,boolean)}.
+   */
+  void flush() throws IOException {
+    if(pending_length>0){
+      int length=pending_length;
+      pending_length=0;
+      put(pending, 0, length);
+    }
+  }
   void put(byte[] array, int begin, int length) throws IOException {
     out.write(array, begin, length);
     out.flush();
@@ -78,6 +142,13 @@ public class IO{
     out_ext.flush();
   }
 
+  /**
+   * returns the number of bytes which can be read without blocking.
+   */
+  int available() throws IOException {
+    return in.available();
+  }
+
   int getByte() throws IOException {
     return in.read();
   }
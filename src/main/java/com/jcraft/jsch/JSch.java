@@ -57,12 +57,12 @@ public class JSch{
     config.put("kex", "ecdh-sha2-nistp256,ecdh-sha2-nistp384,ecdh-sha2-nistp521,diffie-hellman-group14-sha1,diffie-hellman-group-exchange-sha256,diffie-hellman-group-exchange-sha1,diffie-hellman-group1-sha1");
     config.put("server_host_key", "ssh-rsa,ssh-dss,ecdsa-sha2-nistp256,ecdsa-sha2-nistp384,ecdsa-sha2-nistp521");
     config.put("cipher.s2c", 
-               "aes128-ctr,aes128-cbc,3des-ctr,3des-cbc,blowfish-cbc,aes192-ctr,aes192-cbc,aes256-ctr,aes256-cbc");
+               "aes128-ctr,aes128-cbc,3des-ctr,3des-cbc,blowfish-cbc,aes192-ctr,aes192-cbc,aes256-ctr,aes256-cbc,aes128-gcm@openssh.com,aes256-gcm@openssh.com,chacha20-poly1305@openssh.com");
     config.put("cipher.c2s",
-               "aes128-ctr,aes128-cbc,3des-ctr,3des-cbc,blowfish-cbc,aes192-ctr,aes192-cbc,aes256-ctr,aes256-cbc");
+               "aes128-ctr,aes128-cbc,3des-ctr,3des-cbc,blowfish-cbc,aes192-ctr,aes192-cbc,aes256-ctr,aes256-cbc,aes128-gcm@openssh.com,aes256-gcm@openssh.com,chacha20-poly1305@openssh.com");
 
-    config.put("mac.s2c", "hmac-md5,hmac-sha1,hmac-sha2-256,hmac-sha1-96,hmac-md5-96");
-    config.put("mac.c2s", "hmac-md5,hmac-sha1,hmac-sha2-256,hmac-sha1-96,hmac-md5-96");
+    config.put("mac.s2c", "hmac-sha2-256-etm@openssh.com,hmac-sha2-512-etm@openssh.com,hmac-sha1-etm@openssh.com,hmac-md5,hmac-sha1,hmac-sha2-256,hmac-sha1-96,hmac-md5-96");
+    config.put("mac.c2s", "hmac-sha2-256-etm@openssh.com,hmac-sha2-512-etm@openssh.com,hmac-sha1-etm@openssh.com,hmac-md5,hmac-sha1,hmac-sha2-256,hmac-sha1-96,hmac-md5-96");
     config.put("compression.s2c", "none");
     config.put("compression.c2s", "none");
 
@@ -101,6 +101,9 @@ public class JSch{
     //config.put("hmac-sha2-512",  "com.jcraft.jsch.jce.HMACSHA512");
     config.put("hmac-md5",      "com.jcraft.jsch.jce.HMACMD5");
     config.put("hmac-md5-96",   "com.jcraft.jsch.jce.HMACMD596");
+    config.put("hmac-sha1-etm@openssh.com",     "com.jcraft.jsch.jce.HMACSHA1");
+    config.put("hmac-sha2-256-etm@openssh.com", "com.jcraft.jsch.jce.HMACSHA256");
+    config.put("hmac-sha2-512-etm@openssh.com", "com.jcraft.jsch.jce.HMACSHA512");
     config.put("sha-1",         "com.jcraft.jsch.jce.SHA1");
     config.put("sha-256",         "com.jcraft.jsch.jce.SHA256");
     config.put("sha-384",         "com.jcraft.jsch.jce.SHA384");
@@ -123,6 +126,9 @@ public class JSch{
     config.put("aes128-ctr",    "com.jcraft.jsch.jce.AES128CTR");
     config.put("aes192-ctr",    "com.jcraft.jsch.jce.AES192CTR");
     config.put("aes256-ctr",    "com.jcraft.jsch.jce.AES256CTR");
+    config.put("aes128-gcm@openssh.com", "com.jcraft.jsch.jce.AES128GCM");
+    config.put("aes256-gcm@openssh.com", "com.jcraft.jsch.jce.AES256GCM");
+    config.put("chacha20-poly1305@openssh.com", "com.jcraft.jsch.jcraft.ChaCha20Poly1305");
     config.put("3des-ctr",      "com.jcraft.jsch.jce.TripleDESCTR");
     config.put("arcfour",      "com.jcraft.jsch.jce.ARCFOUR");
     config.put("arcfour128",      "com.jcraft.jsch.jce.ARCFOUR128");
@@ -145,12 +151,26 @@ public class JSch{
 
     config.put("PreferredAuthentications", "gssapi-with-mic,publickey,keyboard-interactive,password");
 
-    config.put("CheckCiphers", "aes256-ctr,aes192-ctr,aes128-ctr,aes256-cbc,aes192-cbc,aes128-cbc,3des-ctr,arcfour,arcfour128,arcfour256");
+    config.put("CheckCiphers", "aes256-gcm@openssh.com,aes128-gcm@openssh.com,aes256-ctr,aes192-ctr,aes128-ctr,aes256-cbc,aes192-cbc,aes128-cbc,3des-ctr,arcfour,arcfour128,arcfour256");
     config.put("CheckKexes", "diffie-hellman-group14-sha1,ecdh-sha2-nistp256,ecdh-sha2-nistp384,ecdh-sha2-nistp521");
     config.put("CheckSignatures", "ecdsa-sha2-nistp256,ecdsa-sha2-nistp384,ecdsa-sha2-nistp521");
 
     config.put("MaxAuthTries", "6");
     config.put("ClearAllForwardings", "no");
+
+    config.put("UseNIO", "no");
+    config.put("NIOSelectors", "0");
+    config.put("NIOWorkers", "0");
+
+    config.put("WriteCoalescing", "no");
+    config.put("WriteCoalescingSize", "32768");
+    config.put("WriteCoalescingDelay", "1");
+
+    config.put("WriterThread", "no");
+    config.put("WriterQueueSize", "64");
+
+    config.put("WindowAutoTuning", "no");
+    config.put("WindowSizeMax", "16777216");
   }
 
   /**
@@ -608,7 +628,24 @@ public class JSch{
   public static String getConfig(String key){ 
     synchronized(config){
       return (String)(config.get(key));
-    } 
+    }
+  }
+
+  private static final java.util.Hashtable classes=new java.util.Hashtable();
+
+  /**
+   * loads an implementation class named by the configuration,
+   * like {@link Class#forName(String)}. The classes are remembered,
+   * as they are looked up again for each session and key exchange,
+   * and {@code Class.forName} has to ask the class loader each time.
+   */
+  static Class loadClass(String name) throws ClassNotFoundException{
+    Class c=(Class)(classes.get(name));
+    if(c==null){
+      c=Class.forName(name);
+      classes.put(name, c);
+    }
+    return c;
   }
 
   /**
@@ -733,6 +770,18 @@ public class JSch{
    *          128-bit key (RFC 4344)</dd>
    *   <dt>{@code aes192-ctr}</dt><dd>AES with 192-bit key (RFC 4344)</dd>
    *   <dt>{@code aes256-ctr}</dt><dd>AES with 256-bit key (RFC 4344)</dd>
+   *   <dt>{@code aes128-gcm@openssh.com}</dt><dd>AES in Galois/Counter
+   *          mode with 128-bit key (RFC 5647, with the changes of
+   *          OpenSSH's PROTOCOL file). This is an {@link AEADCipher}:
+   *          it authenticates the packets itself, and the negotiated
+   *          MAC is not used. Needs Java 7 or later.</dd>
+   *   <dt>{@code aes256-gcm@openssh.com}</dt><dd>AES in Galois/Counter
+   *          mode with 256-bit key.</dd>
+   *   <dt>{@code chacha20-poly1305@openssh.com}</dt><dd>the ChaCha20
+   *          stream cipher with the Poly1305 authenticator, also an
+   *          {@link AEADCipher} (OpenSSH's PROTOCOL.chacha20poly1305).
+   *          This is implemented in Java, and is faster than AES on
+   *          processors without AES instructions.</dd>
    *   <dt>{@code arcfour}</dt><dd>the ARCFOUR stream cipher with
    *      a 128-bit key (RFC 4253)</dd>
    *   <dt>{@code arcfour128}</dt><dd>a variant of the ARCFOUR cipher
@@ -757,6 +806,15 @@ public class JSch{
    *                               length = 16)</dd>
    *   <dt>{@code hmac-md5-96}</dt><dd>first 96 bits of HMAC-MD5 (digest
    *                               length = 12, key length = 16)</dd>
+   *   <dt>{@code hmac-sha1-etm@openssh.com},
+   *       {@code hmac-sha2-256-etm@openssh.com},
+   *       {@code hmac-sha2-512-etm@openssh.com}</dt>
+   *   <dd>HMAC-SHA1, HMAC-SHA2-256 and HMAC-SHA2-512 in encrypt-then-MAC
+   *     mode (OpenSSH's PROTOCOL file): the packet length is not
+   *     encrypted, and the MAC is calculated over the encrypted packet.
+   *     So a packet is only decrypted after it has been authenticated.
+   *     Any MAC whose name ends with {@code -etm@openssh.com} is used
+   *     in this way.</dd>
    * </dl>
    * <h4>Compression methods ({@link Compression})</h4>
    * <p>(It is now hardcoded that only these two (and {@code none}) are
@@ -861,7 +919,78 @@ public class JSch{
    *     working will be removed from the {@code ciphers.c2s} and
    *     {@code ciphers.s2c} before sending these lists to the server
    *     in a KEX_INIT message.</dd>
+   *   <dt>{@code UseNIO}</dt><dd>If this is "yes", the session will
+   *     not start its own thread to receive data from the server
+   *     after the authentication, but its socket will be served by
+   *     a pool of non-blocking selector threads shared with all other
+   *     such sessions, which hand the received data to pooled worker
+   *     threads. This is not used with a proxy or a socket
+   *     factory. The default is "no".</dd>
+   *   <dt>{@code NIOSelectors}</dt><dd>The number of selector threads
+   *     used for the sessions with {@code UseNIO}. This is read only
+   *     once, when the first such session is started. "0" (the
+   *     default) means one thread per available processor.</dd>
+   *   <dt>{@code NIOWorkers}</dt><dd>The number of pooled worker
+   *     threads processing the data received by the sessions with
+   *     {@code UseNIO}. A session whose processing blocks (like on
+   *     a channel whose input is not read) holds a worker meanwhile,
+   *     and the other sessions wait for the remaining workers. This
+   *     is read only once, when the first such session is started.
+   *     "0" (the default) means four threads per selector
+   *     thread.</dd>
+   *   <dt>{@code WriteCoalescing}</dt><dd>If this is "yes", packets
+   *     which several threads send at the same time (after the
+   *     authentication) are collected and written to the socket
+   *     together, instead of flushing the socket after each packet.
+   *     The default is "no".</dd>
+   *   <dt>{@code WriteCoalescingSize}</dt><dd>The number of bytes
+   *     which may be collected with {@code WriteCoalescing} before
+   *     they are written; "0" disables the collecting. The default
+   *     is "32768".</dd>
+   *   <dt>{@code WriteCoalescingDelay}</dt><dd>The time in
+   *     milliseconds a packet may be held back with
+   *     {@code WriteCoalescing} while other threads keep sending.
+   *     A packet is never held back if no other thread is about
+   *     to send one. The default is "1". For both options, a value
+   *     which is not a number, or is negative, is logged and
+   *     ignored.</dd>
+   *   <dt>{@code WriterThread}</dt><dd>If this is "yes", the session
+   *     starts a thread after the authentication which encodes and
+   *     writes the outgoing packets. Other threads only put copies of
+   *     their packets into a queue, where window adjustments and
+   *     global requests are preferred over channel data. Key exchange
+   *     messages are still written directly. The default is "no".</dd>
+   *   <dt>{@code WriterQueueSize}</dt><dd>The number of channel
+   *     packets which may be queued with {@code WriterThread}. If the
+   *     queue is full, a sending thread writes its packet itself
+   *     (after the queued ones), which slows it down to the speed of
+   *     the connection. The default is "64".</dd>
+   *   <dt>{@code WindowSize}</dt><dd>The initial size of the local
+   *     window of new channels, i.e. how much data the server may
+   *     send before we acknowledge it. If this is not set (the
+   *     default), each kind of channel uses its own size, from
+   *     128 KB for forwardings to 2 MB for {@code sftp}.</dd>
+   *   <dt>{@code PacketSize}</dt><dd>The maximum size of the data
+   *     packets the server may send on new channels (at most
+   *     255 KB). If this is not set (the default), each kind of
+   *     channel uses its own size.</dd>
+   *   <dt>{@code WindowAutoTuning}</dt><dd>If this is "yes", the local
+   *     window of a channel grows while the data arrives faster than
+   *     the window allows for the measured round trip time. The
+   *     default is "no".</dd>
+   *   <dt>{@code WindowSizeMax}</dt><dd>The largest size a window
+   *     may reach with {@code WindowAutoTuning}. The default is
+   *     "16777216".</dd>
    * </dl>
+   *<p>
+   * The four window options can also be set for a type of channel
+   * only, by appending the type passed to {@link Session#openChannel}
+   * (or the type of a channel opened by the server) to the key,
+   * like {@code WindowSize.sftp} or
+   * {@code WindowAutoTuning.direct-tcpip}. Such a setting takes
+   * precedence over the one without type. A size which is not a
+   * positive number is logged and ignored.
+   *</p>
    * </div>
    * @param key the option name.
    * @param value the option value.
@@ -218,7 +218,7 @@ public abstract class KeyExchange{
   public String getFingerPrint(){
     HASH hash=null;
     try{
-      Class c=Class.forName(session.getConfig("md5"));
+      Class c=JSch.loadClass(session.getConfig("md5"));
       hash=(HASH)(c.newInstance());
     }
     catch(Exception e){ System.err.println("getFingerPrint: "+e); }
@@ -272,7 +272,7 @@ public abstract class KeyExchange{
 	
       SignatureRSA sig=null;
       try{
-        Class c=Class.forName(session.getConfig("signature.rsa"));
+        Class c=JSch.loadClass(session.getConfig("signature.rsa"));
         sig=(SignatureRSA)(c.newInstance());
         sig.init();
       }
@@ -317,7 +317,7 @@ public abstract class KeyExchange{
 
       SignatureDSA sig=null;
       try{
-        Class c=Class.forName(session.getConfig("signature.dss"));
+        Class c=JSch.loadClass(session.getConfig("signature.dss"));
         sig=(SignatureDSA)(c.newInstance());
         sig.init();
       }
@@ -359,7 +359,7 @@ public abstract class KeyExchange{
 
       SignatureECDSA sig=null;
       try{
-        Class c=Class.forName(session.getConfig("signature.ecdsa"));
+        Class c=JSch.loadClass(session.getConfig("signature.ecdsa"));
         sig=(SignatureECDSA)(c.newInstance());
         sig.init();
       }
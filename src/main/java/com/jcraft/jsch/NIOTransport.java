@@ -0,0 +1,442 @@
+/* -*-mode:java; c-basic-offset:2; indent-tabs-mode:nil -*- */
+/*
+Copyright (c) 2002-2016 ymnk, JCraft,Inc. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+  1. Redistributions of source code must retain the above copyright notice,
+     this list of conditions and the following disclaimer.
+
+  2. Redistributions in binary form must reproduce the above copyright 
+     notice, this list of conditions and the following disclaimer in 
+     the documentation and/or other materials provided with the distribution.
+
+  3. The names of the authors may not be used to endorse or promote products
+     derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL JCRAFT,
+INC. OR ANY CONTRIBUTORS TO THIS SOFTWARE BE LIABLE FOR ANY DIRECT, INDIRECT,
+INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.jcraft.jsch;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Vector;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Usually not to be used by applications.
+ *
+ * A non-blocking transport for a {@link Session}. Instead of running
+ * a receiving thread for each session, the sockets of all sessions
+ * using this transport are served by a small pool of {@link Selector}
+ * threads shared by the whole VM. When a socket is readable, the
+ * selector thread hands the session to a worker thread, which reads
+ * the data, decodes and processes the complete packets by
+ * {@link Session#drain}, and then hands the socket back to the
+ * selector. The workers are a fixed pool shared by the whole VM,
+ * and only busy while a session has data to process.
+ *<p>
+ * A session uses this transport if the configuration option
+ * {@code UseNIO} is {@code yes} and neither a {@linkplain
+ * Session#setProxy proxy} nor a {@linkplain Session#setSocketFactory
+ * socket factory} is set. The key exchange and the authentication
+ * still use the blocking socket streams; the socket is switched to
+ * non-blocking mode after a successful authentication.
+ *</p>
+ *<p>
+ * The processing of a packet may block, for example while a key
+ * exchange is running or when an application does not read the data
+ * of a channel. This only holds up the worker of that session, never
+ * the selector thread, so the other sessions are not affected as long
+ * as there are workers left (see the option {@code NIOWorkers}).
+ *</p>
+ *<p>
+ * The selector thread also checks the sessions' timeouts, and only
+ * hands a session to a worker when its timeout has expired, to send
+ * a keep-alive message or to end the session.
+ *</p>
+ */
+class NIOTransport extends IO{
+
+  private static Looper[] loopers=null;
+  private static int next=0;
+  private static Executor workers=null;
+
+  private Session session;
+  private SocketChannel channel;
+  private Looper looper;
+  private Selector write_selector=null;
+
+  private byte[] inbuf=new byte[32*1024];
+  private int in_s=0;
+  private int in_e=0;
+
+  private Buffer buf=new Buffer();
+  private Packet packet=new Packet(buf);
+
+  private volatile long last_read=0L;
+  private int stimeout=0;
+  private volatile boolean closed=false;
+
+  // true while a worker runs this transport. This is only used by
+  // the selector thread, which does not select the socket while
+  // it is set.
+  private boolean busy=false;
+
+  NIOTransport(Session session, SocketChannel channel){
+    this.session=session;
+    this.channel=channel;
+  }
+
+  /**
+   * opens a socket which is backed by a {@link SocketChannel}, to be
+   * handed to a NIOTransport after the authentication.
+   */
+  static Socket createSocket(String host, int port, int timeout) throws JSchException{
+    SocketChannel channel=null;
+    try{
+      channel=SocketChannel.open();
+      channel.socket().connect(new InetSocketAddress(host, port), timeout);
+      return channel.socket();
+    }
+    catch(Exception e){
+      try{
+        if(channel!=null) channel.close();
+      }
+      catch(Exception ee){}
+      throw new JSchException(e.toString(), e);
+    }
+  }
+
+  /**
+   * switches the socket to non-blocking mode and hands it
+   * to one of the selector threads.
+   * @param selectors the number of selector threads to use
+   *   for the whole VM, or 0 for one per processor.
+   * @param threads the number of worker threads to use for the
+   *   whole VM, or 0 for four per selector thread.
+   *   Both are only used when the first session starts a
+   *   NIOTransport.
+   */
+  void start(int selectors, int threads) throws IOException{
+    channel.configureBlocking(false);
+    last_read=System.currentTimeMillis();
+    looper=getLooper(selectors, threads);
+    looper.register(this);
+  }
+
+  private static synchronized Looper getLooper(int selectors, int threads) throws IOException{
+    if(loopers==null){
+      if(selectors<=0){
+        selectors=Runtime.getRuntime().availableProcessors();
+      }
+      if(threads<=0){
+        threads=4*selectors;
+      }
+      Looper[] tmp=new Looper[selectors];
+      for(int i=0; i<tmp.length; i++){
+        tmp[i]=new Looper("NIO selector "+i);
+      }
+      loopers=tmp;
+      workers=Executors.newFixedThreadPool(threads, new ThreadFactory(){
+          private int count=0;
+          public synchronized Thread newThread(Runnable r){
+            Thread thread=new Thread(r);
+            thread.setName("NIO worker "+(count++));
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+    }
+    Looper looper=loopers[next];
+    next=(next+1)%loopers.length;
+    return looper;
+  }
+
+  int available(){
+    return in_e-in_s;
+  }
+
+  int getByte() throws IOException{
+    if(in_e==in_s){
+      throw new IOException("End of IO Stream Read");
+    }
+    return inbuf[in_s++]&0xff;
+  }
+
+  void getByte(byte[] array, int begin, int length) throws IOException{
+    if(in_e-in_s<length){
+      throw new IOException("End of IO Stream Read");
+    }
+    System.arraycopy(inbuf, in_s, array, begin, length);
+    in_s+=length;
+  }
+
+  public void put(Packet p) throws IOException{
+    put(p.buffer.buffer, 0, p.buffer.index);
+  }
+
+  void put(byte[] array, int begin, int length) throws IOException{
+    ByteBuffer bb=ByteBuffer.wrap(array, begin, length);
+    while(bb.hasRemaining()){
+      if(channel.write(bb)==0){
+        awaitWritable();
+      }
+    }
+  }
+
+  /**
+   * waits until the socket accepts more data. The writers are
+   * serialized by the session, so only one thread at a time uses
+   * the write selector.
+   */
+  private void awaitWritable() throws IOException{
+    if(closed){
+      throw new IOException("channel is broken");
+    }
+    if(write_selector==null){
+      write_selector=Selector.open();
+      channel.register(write_selector, SelectionKey.OP_WRITE);
+    }
+    long t=session.getTimeout();
+    long start=System.currentTimeMillis();
+    while(write_selector.select(t)==0){
+      if(closed){
+        throw new IOException("channel is broken");
+      }
+      if(t>0L && (System.currentTimeMillis()-start)>=t){
+        throw new IOException("timeout in writing to the socket");
+      }
+    }
+    write_selector.selectedKeys().clear();
+  }
+
+  /**
+   * hands this transport to a worker thread. The selector thread
+   * does not select the socket until the worker is finished.
+   * @param readable true if the socket is readable, false to check
+   *   for the timeout only.
+   */
+  private void schedule(final SelectionKey key, final boolean readable){
+    busy=true;
+    key.interestOps(0);
+    workers.execute(new Runnable(){
+        public void run(){
+          try{
+            if(readable){
+              readable();
+            }
+            else{
+              idle(System.currentTimeMillis());
+            }
+          }
+          catch(Exception e){
+            fail(key, e);
+            return;
+          }
+          looper.resume(key);
+        }
+      });
+  }
+
+  /**
+   * called by a worker thread when the socket is readable.
+   */
+  private void readable() throws Exception{
+    if(in_s==in_e){
+      in_s=in_e=0;
+    }
+    if(inbuf.length-in_e<4*1024){
+      int len=in_e-in_s;
+      byte[] tmp=inbuf;
+      if(inbuf.length-len<4*1024){
+        tmp=new byte[inbuf.length*2];
+      }
+      System.arraycopy(inbuf, in_s, tmp, 0, len);
+      inbuf=tmp;
+      in_s=0;
+      in_e=len;
+    }
+    int n=channel.read(ByteBuffer.wrap(inbuf, in_e, inbuf.length-in_e));
+    if(n<0){
+      throw new IOException("End of IO Stream Read");
+    }
+    if(n==0){
+      return;
+    }
+    in_e+=n;
+    last_read=System.currentTimeMillis();
+    stimeout=0;
+    session.drain(buf, packet);
+  }
+
+  /**
+   * called by the selector thread from time to time.
+   * @return true if the session's timeout has expired, and
+   *   {@link #idle} has to be called.
+   */
+  private boolean timedOut(long now){
+    int t=session.getTimeout();
+    return t>0 && now-last_read>=t;
+  }
+
+  /**
+   * called by a worker thread after the session's timeout has
+   * expired, to send a keep-alive message.
+   */
+  private void idle(long now) throws Exception{
+    if(!timedOut(now)){
+      return;
+    }
+    last_read=now;
+    if(!session.timedOut(stimeout)){
+      throw new IOException("timeout");
+    }
+    stimeout++;
+  }
+
+  private void fail(SelectionKey key, Exception e){
+    key.cancel();
+    session.leave(e);
+    close();
+  }
+
+  public void close(){
+    closed=true;
+    try{
+      if(write_selector!=null){
+        write_selector.close();
+      }
+    }
+    catch(Exception e){}
+  }
+
+  /**
+   * A selector thread, shared by many sessions.
+   */
+  static class Looper implements Runnable{
+    private Selector selector;
+    private Vector pending=new Vector();
+    private Vector resumed=new Vector();
+    private long last_check=0L;
+
+    Looper(String name) throws IOException{
+      selector=Selector.open();
+      Thread thread=new Thread(this);
+      thread.setName(name);
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    void register(NIOTransport transport){
+      pending.addElement(transport);
+      selector.wakeup();
+    }
+
+    /**
+     * selects the socket again after a worker has processed it. The
+     * interest set is changed by the selector thread itself, as this
+     * may block while the selector is selecting on some platforms.
+     */
+    void resume(SelectionKey key){
+      resumed.addElement(key);
+      selector.wakeup();
+    }
+
+    public void run(){
+      while(true){
+        try{
+          selector.select(1000);
+        }
+        catch(IOException e){
+          if(JSch.getLogger().isEnabled(Logger.ERROR)){
+            JSch.getLogger().log(Logger.ERROR, 
+                                 "NIO selector failed: "+e);
+          }
+          continue;
+        }
+
+        while(pending.size()>0){
+          NIOTransport t=(NIOTransport)pending.remove(0);
+          try{
+            t.channel.register(selector, SelectionKey.OP_READ, t);
+          }
+          catch(Exception e){
+            t.session.leave(e);
+            t.close();
+          }
+        }
+
+        while(resumed.size()>0){
+          SelectionKey key=(SelectionKey)resumed.remove(0);
+          ((NIOTransport)key.attachment()).busy=false;
+          try{
+            if(key.isValid()){
+              key.interestOps(SelectionKey.OP_READ);
+            }
+          }
+          catch(Exception e){
+            // cancelled in the meantime
+          }
+        }
+
+        Iterator it=selector.selectedKeys().iterator();
+        while(it.hasNext()){
+          SelectionKey key=(SelectionKey)it.next();
+          it.remove();
+          NIOTransport t=(NIOTransport)key.attachment();
+          try{
+            if(key.isValid() && key.isReadable()){
+              t.schedule(key, true);
+            }
+          }
+          catch(Exception e){
+            t.fail(key, e);
+          }
+        }
+
+        long now=System.currentTimeMillis();
+        if(now-last_check<1000){
+          continue;
+        }
+        last_check=now;
+        it=selector.keys().iterator();
+        while(it.hasNext()){
+          SelectionKey key=(SelectionKey)it.next();
+          if(!key.isValid()){
+            continue;
+          }
+          NIOTransport t=(NIOTransport)key.attachment();
+          if(t.busy || !t.timedOut(now)){
+            continue;
+          }
+          try{
+            t.schedule(key, false);
+          }
+          catch(Exception e){
+            t.fail(key, e);
+          }
+        }
+      }
+    }
+  }
+}
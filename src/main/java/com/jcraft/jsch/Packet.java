@@ -58,8 +58,19 @@ public class Packet{
     buffer.index=5;
   }
   void padding(int bsize){
+    padding(bsize, 0);
+  }
+
+  /**
+   * adds random padding and fills in the packet length.
+   * @param bsize the block size to pad to.
+   * @param skip the number of bytes at the start of the packet which
+   *   don't count for the alignment, like the packet length which
+   *   AEAD ciphers leave unencrypted.
+   */
+  void padding(int bsize, int skip){
     int len=buffer.index;
-    int pad=(-len)&(bsize-1);
+    int pad=(-(len-skip))&(bsize-1);
     if(pad<bsize){
       pad+=bsize;
     }
@@ -0,0 +1,260 @@
+/* -*-mode:java; c-basic-offset:2; indent-tabs-mode:nil -*- */
+/*
+Copyright (c) 2002-2016 ymnk, JCraft,Inc. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+  1. Redistributions of source code must retain the above copyright notice,
+     this list of conditions and the following disclaimer.
+
+  2. Redistributions in binary form must reproduce the above copyright 
+     notice, this list of conditions and the following disclaimer in 
+     the documentation and/or other materials provided with the distribution.
+
+  3. The names of the authors may not be used to endorse or promote products
+     derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL JCRAFT,
+INC. OR ANY CONTRIBUTORS TO THIS SOFTWARE BE LIABLE FOR ANY DIRECT, INDIRECT,
+INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.jcraft.jsch;
+
+/**
+ * The outbound packet queue of a session, together with the thread
+ * encoding and writing the queued packets.
+ *
+ * Any number of threads may {@link #offer} packets; they are copied
+ * (into arrays from the {@link BufferPool}), so the caller may reuse
+ * its packet at once. A single thread takes
+ * them from the queue and writes them with
+ * {@link Session#send(Packet,boolean)}, holding the session's write
+ * lock. Packets which are not relevant for the order of a channel's
+ * data (window adjustments, global requests and the like) are kept
+ * in a separate queue and written before the bulk ones.
+ *
+ * Key exchange messages and the disconnect message are never queued:
+ * they are written by the calling thread, after all queued packets
+ * (see {@link #drain}).
+ *
+ * If writing fails, the packets still queued are dropped, and the
+ * failure is thrown to the next caller of {@link #offer}, so the
+ * producers learn that their packets have not been sent.
+ */
+class PacketWriter implements Runnable{
+
+  private final Session session;
+
+  private Packet[] bulk;
+  private int bulk_head=0;
+  private int bulk_count=0;
+
+  private Packet[] urgent=new Packet[8];
+  private int urgent_head=0;
+  private int urgent_count=0;
+
+  private boolean closed=false;
+  private Exception failure=null;
+  private Thread thread;
+
+  /**
+   * @param session the session whose packets are written.
+   * @param size the maximal number of bulk packets in the queue.
+   *   If this is reached, {@link #offer} refuses further packets,
+   *   and the producers have to write them themselves.
+   */
+  PacketWriter(Session session, int size){
+    this.session=session;
+    bulk=new Packet[size<1 ? 1 : size];
+  }
+
+  /**
+   * starts the writing thread.
+   */
+  void start(String name, boolean daemon){
+    thread=new Thread(this);
+    thread.setName(name);
+    if(daemon){
+      thread.setDaemon(daemon);
+    }
+    thread.start();
+  }
+
+  /**
+   * tries to queue a packet.
+   * @return false if the packet has not been queued, because it has
+   *   to be written synchronously, the queue is full or the writer
+   *   has been stopped. The caller has to write it itself then.
+   * @throws java.io.IOException if writing the queued packets has
+   *   failed before.
+   */
+  boolean offer(Packet packet) throws java.io.IOException{
+    int command=packet.buffer.getCommand()&0xff;
+    boolean urgent=false;
+    switch(command){
+    case Session.SSH_MSG_IGNORE:
+    case Session.SSH_MSG_UNIMPLEMENTED:
+    case Session.SSH_MSG_DEBUG:
+    case Session.SSH_MSG_GLOBAL_REQUEST:
+    case Session.SSH_MSG_REQUEST_SUCCESS:
+    case Session.SSH_MSG_REQUEST_FAILURE:
+    case Session.SSH_MSG_CHANNEL_WINDOW_ADJUST:
+      urgent=true;
+      break;
+    default:
+      if(command<50){
+        // transport layer and key exchange
+        return false;
+      }
+    }
+
+    synchronized(this){
+      if(failure!=null){
+        java.io.IOException e=
+          new java.io.IOException("writing the queued packets failed: "+failure);
+        e.initCause(failure);
+        throw e;
+      }
+      if(closed){
+        return false;
+      }
+      if(urgent){
+        if(urgent_count==this.urgent.length){
+          Packet[] tmp=new Packet[this.urgent.length*2];
+          for(int i=0; i<urgent_count; i++){
+            tmp[i]=this.urgent[(urgent_head+i)%this.urgent.length];
+          }
+          this.urgent=tmp;
+          urgent_head=0;
+        }
+        this.urgent[(urgent_head+urgent_count)%this.urgent.length]=copy(packet);
+        urgent_count++;
+      }
+      else{
+        if(bulk_count==bulk.length){
+          return false;
+        }
+        bulk[(bulk_head+bulk_count)%bulk.length]=copy(packet);
+        bulk_count++;
+      }
+      if(urgent_count+bulk_count==1){
+        notifyAll();
+      }
+    }
+    return true;
+  }
+
+  private static Packet copy(Packet packet){
+    int length=packet.buffer.index;
+    Buffer buf=BufferPool.getBuffer(length+Session.buffer_margin);
+    System.arraycopy(packet.buffer.buffer, 0, buf.buffer, 0, length);
+    buf.index=length;
+    return new Packet(buf);
+  }
+
+  private synchronized Packet poll(){
+    Packet packet=null;
+    if(urgent_count>0){
+      packet=urgent[urgent_head];
+      urgent[urgent_head]=null;
+      urgent_head=(urgent_head+1)%urgent.length;
+      urgent_count--;
+    }
+    else if(bulk_count>0){
+      packet=bulk[bulk_head];
+      bulk[bulk_head]=null;
+      bulk_head=(bulk_head+1)%bulk.length;
+      bulk_count--;
+    }
+    return packet;
+  }
+
+  private synchronized boolean isEmpty(){
+    return urgent_count==0 && bulk_count==0;
+  }
+
+  /**
+   * writes all queued packets.
+   * The caller has to hold the session's write lock.
+   * @param more true if the caller will write another packet
+   *   immediately afterwards.
+   */
+  void drain(boolean more) throws Exception{
+    Packet packet;
+    while((packet=poll())!=null){
+      try{
+        session.send(packet, more || !isEmpty());
+      }
+      catch(Exception e){
+        fail(e);
+        throw e;
+      }
+      finally{
+        BufferPool.release(packet.buffer);
+      }
+    }
+  }
+
+  /**
+   * records a failure to write, which is thrown by the following
+   * calls of {@link #offer}, and drops the queued packets.
+   */
+  private void fail(Exception e){
+    synchronized(this){
+      if(failure==null){
+        failure=e;
+      }
+    }
+    stop();
+  }
+
+  /**
+   * stops the writing thread. Packets still queued are discarded,
+   * unless the caller has called {@link #drain} before.
+   */
+  void stop(){
+    synchronized(this){
+      closed=true;
+      Packet packet;
+      while((packet=poll())!=null){
+        BufferPool.release(packet.buffer);
+      }
+      notifyAll();
+    }
+    thread=null;
+  }
+
+  public void run(){
+    try{
+      while(true){
+        synchronized(this){
+          while(!closed && urgent_count+bulk_count==0){
+            try{ wait(); }
+            catch(java.lang.InterruptedException e){}
+          }
+          if(closed){
+            break;
+          }
+        }
+        session.drainWriter(this);
+      }
+    }
+    catch(Exception e){
+      if(JSch.getLogger().isEnabled(Logger.WARN)){
+        JSch.getLogger().log(Logger.WARN,
+                             "Caught an exception, leaving writer loop due to " + e.getMessage());
+      }
+      // the producers get the failure from offer().
+      fail(e);
+    }
+  }
+}
@@ -0,0 +1,192 @@
+/* -*-mode:java; c-basic-offset:2; indent-tabs-mode:nil -*- */
+/*
+Copyright (c) 2002-2016 ymnk, JCraft,Inc. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+  1. Redistributions of source code must retain the above copyright notice,
+     this list of conditions and the following disclaimer.
+
+  2. Redistributions in binary form must reproduce the above copyright 
+     notice, this list of conditions and the following disclaimer in 
+     the documentation and/or other materials provided with the distribution.
+
+  3. The names of the authors may not be used to endorse or promote products
+     derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL JCRAFT,
+INC. OR ANY CONTRIBUTORS TO THIS SOFTWARE BE LIABLE FOR ANY DIRECT, INDIRECT,
+INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.jcraft.jsch;
+
+/**
+ * The outstanding requests of a transfer (the reads of a download or
+ * the writes of an upload), and the number of requests the transfer
+ * should keep outstanding.
+ *<p>
+ * The limit starts like TCP's slow start: it is doubled after every
+ * round (a limit's worth of responses) as long as the throughput
+ * grows. After that, the round trip times of a round are compared
+ * with the smallest one seen so far, which estimates how many of
+ * the requests are only waiting at the server: while this is small,
+ * the limit grows by one per round; when most requests are waiting
+ * and more of them don't raise the throughput, it shrinks again.
+ *</p>
+ * Requests may be completed in any order.
+ */
+class ReadAhead{
+
+  private final int min;
+  private final int max;
+  private int limit;
+  private boolean slow_start=true;
+
+  private final int[] ids;
+  private final long[] offsets;
+  private final int[] lengths;
+  private final long[] times;
+  private int count=0;
+
+  private long min_rtt=Long.MAX_VALUE;
+  private long round_start=0;
+  private long round_rtt=0;
+  private long round_bytes=0;
+  private int round_responses=0;
+  private double rate=0;
+
+  /**
+   * @param initial the initial limit.
+   * @param min the smallest limit.
+   * @param max the largest limit.
+   */
+  ReadAhead(int initial, int min, int max){
+    this.min=Math.max(min, 1);
+    this.max=Math.max(max, this.min);
+    this.limit=Math.min(Math.max(initial, this.min), this.max);
+    ids=new int[this.max];
+    offsets=new long[this.max];
+    lengths=new int[this.max];
+    times=new long[this.max];
+  }
+
+  /**
+   * returns how many requests should be outstanding now.
+   */
+  int getLimit(){
+    return limit;
+  }
+
+  /**
+   * returns the number of outstanding requests.
+   */
+  int count(){
+    return count;
+  }
+
+  /**
+   * registers a request which was just sent.
+   */
+  void add(int id, long offset, int length){
+    long now=System.nanoTime();
+    if(round_start==0){
+      round_start=now;
+    }
+    ids[count]=id;
+    offsets[count]=offset;
+    lengths[count]=length;
+    times[count]=now;
+    count++;
+  }
+
+  /**
+   * returns the index of the request with the given id,
+   * or -1 if there is no such request.
+   */
+  int find(int id){
+    for(int i=0; i<count; i++){
+      if(ids[i]==id){
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  long getOffset(int i){ return offsets[i]; }
+  int getLength(int i){ return lengths[i]; }
+
+  /**
+   * removes a request, after its response has been received.
+   * @param i the index of the request.
+   * @param bytes the amount of data returned by the server,
+   *   to be taken into account for the limit.
+   */
+  void remove(int i, int bytes){
+    long now=System.nanoTime();
+    long rtt=now-times[i];
+    count--;
+    ids[i]=ids[count];
+    offsets[i]=offsets[count];
+    lengths[i]=lengths[count];
+    times[i]=times[count];
+
+    if(rtt<min_rtt){
+      min_rtt=rtt;
+    }
+    round_rtt+=rtt;
+    round_bytes+=bytes;
+    round_responses++;
+    if(round_responses<limit){
+      return;
+    }
+
+    long elapsed=now-round_start;
+    double _rate=(elapsed>0 ? (double)round_bytes/elapsed : 0);
+    long avg_rtt=round_rtt/round_responses;
+    if(slow_start){
+      if(_rate>rate*1.1){
+        limit=Math.min(limit*2, max);
+      }
+      else{
+        slow_start=false;
+      }
+    }
+    else{
+      double queued=(avg_rtt>0 ? limit*(1.0-(double)min_rtt/avg_rtt) : 0);
+      if(queued<2 || _rate>rate*1.05){
+        limit=Math.min(limit+1, max);
+      }
+      else if(queued>limit/2 && _rate<=rate){
+        limit=Math.max(limit-Math.max(limit/4, 1), min);
+      }
+    }
+    rate=_rate;
+    round_start=now;
+    round_rtt=0;
+    round_bytes=0;
+    round_responses=0;
+  }
+
+  /**
+   * returns the smallest offset of the outstanding requests,
+   * or {@code Long.MAX_VALUE} if there are none.
+   */
+  long lowest(){
+    long result=Long.MAX_VALUE;
+    for(int i=0; i<count; i++){
+      if(offsets[i]<result){
+        result=offsets[i];
+      }
+    }
+    return result;
+  }
+}
@@ -103,6 +103,10 @@ public class Session implements Runnable{
   private Cipher c2scipher;
   private MAC s2cmac;
   private MAC c2smac;
+  // true for the *-etm@openssh.com MACs, which are calculated over
+  // the encrypted packet.
+  private boolean s2cmac_etm=false;
+  private boolean c2smac_etm=false;
   //private byte[] mac_buf;
   private byte[] s2cmac_result1;
   private byte[] s2cmac_result2;
@@ -217,7 +221,7 @@ public class Session implements Runnable{
     io=new IO();
     if(random==null){
       try{
-	Class c=Class.forName(getConfig("random"));
+	Class c=JSch.loadClass(getConfig("random"));
         random=(Random)(c.newInstance());
       }
       catch(Exception e){ 
@@ -238,7 +242,12 @@ public class Session implements Runnable{
         InputStream in;
         OutputStream out;
 	if(socket_factory==null){
-          socket=Util.createSocket(host, port, connectTimeout);
+          if("yes".equals(getConfig("UseNIO"))){
+            socket=NIOTransport.createSocket(host, port, connectTimeout);
+          }
+          else{
+            socket=Util.createSocket(host, port, connectTimeout);
+          }
 	  in=socket.getInputStream();
 	  out=socket.getOutputStream();
 	}
@@ -334,7 +343,7 @@ public class Session implements Runnable{
 
       buf=read(buf);
       if(buf.getCommand()!=SSH_MSG_KEXINIT){
-        in_kex=false;
+        endKex();
 	throw new JSchException("invalid protocol: "+buf.getCommand());
       }
 
@@ -352,12 +361,12 @@ public class Session implements Runnable{
           boolean result=kex.next(buf);
 	  if(!result){
 	    //System.err.println("verify: "+result);
-            in_kex=false;
+            endKex();
 	    throw new JSchException("verify: "+result);
 	  }
 	}
 	else{
-          in_kex=false;
+          endKex();
 	  throw new JSchException("invalid protocol(kex): "+buf.getCommand());
 	}
 	if(kex.getState()==KeyExchange.STATE_END){
@@ -373,7 +382,7 @@ public class Session implements Runnable{
         kex_start_time+=(System.currentTimeMillis()-tmp);
       }
       catch(JSchException ee){
-        in_kex=false;
+        endKex();
         in_prompt = false;
         throw ee;
       }
@@ -393,7 +402,7 @@ public class Session implements Runnable{
 	receive_newkeys(buf, kex);
       }
       else{
-        in_kex=false;
+        endKex();
 	throw new JSchException("invalid protocol(newkyes): "+buf.getCommand());
       }
 
@@ -412,7 +421,7 @@ public class Session implements Runnable{
 
       UserAuth ua=null;
       try{
-	Class c=Class.forName(getConfig("userauth.none"));
+	Class c=JSch.loadClass(getConfig("userauth.none"));
         ua=(UserAuth)(c.newInstance());
       }
       catch(Exception e){ 
@@ -479,7 +488,7 @@ public class Session implements Runnable{
           try{
             Class c=null;
             if(getConfig("userauth."+method)!=null){
-              c=Class.forName(getConfig("userauth."+method));
+              c=JSch.loadClass(getConfig("userauth."+method));
               ua=(UserAuth)(c.newInstance());
             }
           }
@@ -553,12 +562,43 @@ public class Session implements Runnable{
 
       synchronized(lock){
         if(isConnected){
-          connectThread=new Thread(this);
-          connectThread.setName("Connect thread "+host+" session");
-          if(daemon_thread){
-            connectThread.setDaemon(daemon_thread);
+          if(socket!=null && socket.getChannel()!=null){
+            int selectors=0;
+            try{ selectors=Integer.parseInt(getConfig("NIOSelectors")); }
+            catch(Exception ee){ }
+            int workers=0;
+            try{ workers=Integer.parseInt(getConfig("NIOWorkers")); }
+            catch(Exception ee){ }
+            NIOTransport transport=
+              new NIOTransport(this, socket.getChannel());
+            io=transport;
+            transport.start(selectors, workers);
+          }
+          else{
+            connectThread=new Thread(this);
+            connectThread.setName("Connect thread "+host+" session");
+            if(daemon_thread){
+              connectThread.setDaemon(daemon_thread);
+            }
+            connectThread.start();
+          }
+
+          if("yes".equals(getConfig("WriterThread"))){
+            int size=64;
+            try{ size=Integer.parseInt(getConfig("WriterQueueSize")); }
+            catch(Exception ee){ }
+            writer=new PacketWriter(this, size);
+            writer.start("Writer thread "+host+" session", daemon_thread);
+          }
+
+          if("yes".equals(getConfig("WriteCoalescing"))){
+            int size=(int)getConfigNumber("WriteCoalescingSize",
+                                          0, Integer.MAX_VALUE, 32*1024);
+            long delay=getConfigNumber("WriteCoalescingDelay",
+                                       0, Long.MAX_VALUE, 1L);
+            io.setCoalescing(size, delay);
+            coalesce=(size>0);
           }
-          connectThread.start();
 
           requestPortForwarding();
         }
@@ -569,7 +609,7 @@ public class Session implements Runnable{
       }
     }
     catch(Exception e) {
-      in_kex=false;
+      endKex();
       try{
         if(isConnected){
           String message = e.toString();
@@ -628,7 +668,7 @@ public class Session implements Runnable{
 
     KeyExchange kex=null;
     try{
-      Class c=Class.forName(getConfig(guess[KeyExchange.PROPOSAL_KEX_ALGS]));
+      Class c=JSch.loadClass(getConfig(guess[KeyExchange.PROPOSAL_KEX_ALGS]));
       kex=(KeyExchange)(c.newInstance());
     }
     catch(Exception e){ 
@@ -642,6 +682,49 @@ public class Session implements Runnable{
   private volatile boolean in_kex=false;
   private volatile boolean in_prompt=false;
 
+  /**
+   * monitor on which writers wait for a running key exchange
+   * to finish. It is notified by {@link #endKex}.
+   */
+  private final Object kex_lock=new Object();
+
+  /**
+   * marks the end of a key exchange (successful or not) and
+   * wakes up all threads waiting for it in {@link #awaitKex}.
+   */
+  private void endKex(){
+    synchronized(kex_lock){
+      in_kex=false;
+      kex_lock.notifyAll();
+    }
+  }
+
+  /**
+   * blocks until no key exchange is running.
+   * @param t the session timeout, or 0 to wait without limit.
+   * @param prompt if true, time spent while the user is asked
+   *   about the host key does not count towards the timeout.
+   * @throws JSchException if the key exchange did not finish in time.
+   */
+  private void awaitKex(long t, boolean prompt) throws JSchException{
+    synchronized(kex_lock){
+      while(in_kex){
+        long wait=0L;
+        if(t>0L){
+          wait=t-(System.currentTimeMillis()-kex_start_time);
+          if(wait<=0L){
+            if(!(prompt && in_prompt)){
+              throw new JSchException("timeout in waiting for rekeying process.");
+            }
+            wait=t;
+          }
+        }
+        try{ kex_lock.wait(wait); }
+        catch(java.lang.InterruptedException e){}
+      }
+    }
+  }
+
   /**
    * initiates a new key exchange. This is
    * necessary for some changes on the configuration
@@ -922,6 +1005,7 @@ key_type+" key fingerprint is "+key_fprint+".\n"+
     try{
       Channel channel=Channel.getChannel(type);
       addChannel(channel);
+      applyConfigWindow(channel, type);
       channel.init();
       if(channel instanceof ChannelSession){
         applyConfigChannel((ChannelSession)channel);
@@ -950,9 +1034,18 @@ key_type+" key fingerprint is "+key_fprint+".\n"+
                                              5, compress_len);
       packet.buffer.index=compress_len[0];
     }
+    // some messages are built in small buffers (like the 100 bytes
+    // used by Channel), which may lack room for a 64 byte MAC.
+    packet.buffer.checkFreeSize(0);
     if(c2scipher!=null){
       //packet.padding(c2scipher.getIVSize());
-      packet.padding(c2scipher_size);
+      if(c2scipher instanceof AEADCipher || c2smac_etm){
+        // the packet length is processed separately
+        packet.padding(c2scipher_size, 4);
+      }
+      else{
+        packet.padding(c2scipher_size);
+      }
       // doesn't packet.padding(...) already add random padding
       // to the packet? Why do we overwrite them again with
       // new random data?   -- P.E.
@@ -965,12 +1058,28 @@ key_type+" key fingerprint is "+key_fprint+".\n"+
       packet.padding(8);
     }
 
-    if(c2smac!=null){
+    if(c2smac_etm){
+      // encrypt-then-MAC, leaving the packet length unencrypted
+      byte[] buf=packet.buffer.buffer;
+      c2scipher.update(buf, 4, packet.buffer.index-4, buf, 4);
+      c2smac.update(seqo);
+      c2smac.update(buf, 0, packet.buffer.index);
+      c2smac.doFinal(buf, packet.buffer.index);
+    }
+    else if(c2smac!=null){
       c2smac.update(seqo);
       c2smac.update(packet.buffer.buffer, 0, packet.buffer.index);
       c2smac.doFinal(packet.buffer.buffer, packet.buffer.index);
     }
-    if(c2scipher!=null){
+    if(c2scipher instanceof AEADCipher){
+      AEADCipher aead=(AEADCipher)c2scipher;
+      byte[] buf=packet.buffer.buffer;
+      aead.setSequenceNumber(seqo);
+      aead.updateAAD(buf, 0, 4);
+      aead.doFinal(buf, 4, packet.buffer.index-4, buf, 4);
+      packet.buffer.skip(aead.getTagSize());
+    }
+    else if(c2scipher!=null && !c2smac_etm){
       byte[] buf=packet.buffer.buffer;
       c2scipher.update(buf, 0, packet.buffer.index, buf, 0);
     }
@@ -985,154 +1094,303 @@ key_type+" key fingerprint is "+key_fprint+".\n"+
   private int s2ccipher_size=8;
   private int c2scipher_size=8;
 
+  /**
+   * returns the block size to which packets encrypted by the given
+   * cipher are padded.
+   */
+  static int getCipherSize(Cipher cipher){
+    if(cipher instanceof AEADCipher){
+      return ((AEADCipher)cipher).getPaddingBlockSize();
+    }
+    return cipher.getIVSize();
+  }
+
+  /**
+   * checks whether the named MAC algorithm is calculated over the
+   * encrypted packet (encrypt-then-MAC), like
+   * {@code hmac-sha2-256-etm@openssh.com}.
+   */
+  static boolean isEtM(String method){
+    return method.endsWith("-etm@openssh.com");
+  }
+
+  /**
+   * returns the number of bytes following each packet, for the MAC or
+   * the authentication tag.
+   */
+  private static int getTrailerSize(Cipher cipher, MAC mac){
+    if(cipher instanceof AEADCipher){
+      return ((AEADCipher)cipher).getTagSize();
+    }
+    return (mac!=null ? mac.getBlockSize() : 0);
+  }
+
   /**
    * reads some bytes - not to be used from outside.
    */
   public Buffer read(Buffer buf) throws Exception{
-    int j=0;
     while(true){
       buf.reset();
-      io.getByte(buf.buffer, buf.index, s2ccipher_size); 
-      buf.index+=s2ccipher_size;
-      if(s2ccipher!=null){
-        s2ccipher.update(buf.buffer, 0, s2ccipher_size, buf.buffer, 0);
-      }
-      j=((buf.buffer[0]<<24)&0xff000000)|
-        ((buf.buffer[1]<<16)&0x00ff0000)|
-        ((buf.buffer[2]<< 8)&0x0000ff00)|
-        ((buf.buffer[3]    )&0x000000ff);
-      // RFC 4253 6.1. Maximum Packet Length
-      if(j<5 || j>PACKET_MAX_SIZE){
-        start_discard(buf, s2ccipher, s2cmac, j, PACKET_MAX_SIZE);
-      }
-      int need = j+4-s2ccipher_size;
-      //if(need<0){
-      //  throw new IOException("invalid data");
-      //}
-      if((buf.index+need)>buf.buffer.length){
-        byte[] foo=new byte[buf.index+need];
-        System.arraycopy(buf.buffer, 0, foo, 0, buf.index);
-        buf.buffer=foo;
+      readHead(buf);
+      if(!readTail(buf)){
+        break;
+      }
+      if(!filter(buf)){
+        break;
       }
+    }
+    buf.rewind();
+    return buf;
+  }
 
-      if((need%s2ccipher_size)!=0){
-        String message="Bad packet length "+need;
-        if(JSch.getLogger().isEnabled(Logger.FATAL)){
-          JSch.getLogger().log(Logger.FATAL, message); 
+  /**
+   * reads a packet only if the transport has buffered enough input
+   * for it. This is the non-blocking counterpart of {@link #read},
+   * used by {@link NIOTransport}, which calls it again on the same
+   * buffer when more data has arrived.
+   * @return the buffer containing the packet, or {@code null} if
+   *   more input is needed.
+   */
+  Buffer readAvailable(Buffer buf) throws Exception{
+    while(true){
+      if(read_need<0){
+        if(io.available()<getHeadSize()){
+          return null;
         }
-        start_discard(buf, s2ccipher, s2cmac, j, PACKET_MAX_SIZE-s2ccipher_size);
+        buf.reset();
+        readHead(buf);
+      }
+      if(io.available()<read_need+getTrailerSize(s2ccipher, s2cmac)){
+        return null;
+      }
+      if(readTail(buf) && filter(buf)){
+        continue;
       }
+      buf.rewind();
+      return buf;
+    }
+  }
 
-      if(need>0){
-	io.getByte(buf.buffer, buf.index, need); buf.index+=(need);
-	if(s2ccipher!=null){
-	  s2ccipher.update(buf.buffer, s2ccipher_size, need, buf.buffer, s2ccipher_size);
-	}
+  private int read_length=0;
+  private int read_need=-1;
+
+  /**
+   * returns the number of bytes {@link #readHead} needs to find the
+   * packet length: just the length for AEAD ciphers and
+   * encrypt-then-MAC, otherwise the first cipher block.
+   */
+  private int getHeadSize(){
+    if(s2ccipher instanceof AEADCipher || s2cmac_etm){
+      return 4;
+    }
+    return s2ccipher_size;
+  }
+
+  /**
+   * reads and decrypts the first cipher block of a packet, and checks
+   * the packet length found there.
+   */
+  private void readHead(Buffer buf) throws Exception{
+    int head=getHeadSize();
+    io.getByte(buf.buffer, buf.index, head); 
+    buf.index+=head;
+    if(s2ccipher instanceof AEADCipher){
+      AEADCipher aead=(AEADCipher)s2ccipher;
+      aead.setSequenceNumber(seqi);
+      aead.updateAAD(buf.buffer, 0, 4);
+    }
+    else if(s2ccipher!=null && !s2cmac_etm){
+      s2ccipher.update(buf.buffer, 0, s2ccipher_size, buf.buffer, 0);
+    }
+    int j=((buf.buffer[0]<<24)&0xff000000)|
+      ((buf.buffer[1]<<16)&0x00ff0000)|
+      ((buf.buffer[2]<< 8)&0x0000ff00)|
+      ((buf.buffer[3]    )&0x000000ff);
+    // RFC 4253 6.1. Maximum Packet Length
+    if(j<5 || j>PACKET_MAX_SIZE){
+      start_discard(buf, s2ccipher, s2cmac, j, PACKET_MAX_SIZE);
+    }
+    int need = j+4-head;
+    //if(need<0){
+    //  throw new IOException("invalid data");
+    //}
+    // the authentication tag is read behind the packet.
+    int tag=(s2ccipher instanceof AEADCipher ?
+             ((AEADCipher)s2ccipher).getTagSize() : 0);
+    if((buf.index+need+tag)>buf.buffer.length){
+      byte[] foo=BufferPool.allocate(buf.index+need+tag);
+      System.arraycopy(buf.buffer, 0, foo, 0, buf.index);
+      BufferPool.release(buf.buffer);
+      buf.buffer=foo;
+    }
+
+    if((need%s2ccipher_size)!=0){
+      String message="Bad packet length "+need;
+      if(JSch.getLogger().isEnabled(Logger.FATAL)){
+        JSch.getLogger().log(Logger.FATAL, message); 
       }
+      start_discard(buf, s2ccipher, s2cmac, j, PACKET_MAX_SIZE-s2ccipher_size);
+    }
 
-      if(s2cmac!=null){
-	s2cmac.update(seqi);
-	s2cmac.update(buf.buffer, 0, buf.index);
+    read_length=j;
+    read_need=(need>0 ? need : 0);
+  }
 
-        s2cmac.doFinal(s2cmac_result1, 0);
-	io.getByte(s2cmac_result2, 0, s2cmac_result2.length);
-        if(!java.util.Arrays.equals(s2cmac_result1, s2cmac_result2)){
-          if(need > PACKET_MAX_SIZE){
-            throw new IOException("MAC Error");
-          }
-          start_discard(buf, s2ccipher, s2cmac, j, PACKET_MAX_SIZE-need);
-          continue;
-	}
+  /**
+   * reads and decrypts the rest of the packet started by
+   * {@link #readHead}, verifies the MAC and uncompresses the payload.
+   * @return false if the payload could not be uncompressed.
+   */
+  private boolean readTail(Buffer buf) throws Exception{
+    int j=read_length;
+    int need=read_need;
+    read_need=-1;
+
+    if(s2ccipher instanceof AEADCipher){
+      AEADCipher aead=(AEADCipher)s2ccipher;
+      io.getByte(buf.buffer, buf.index, need+aead.getTagSize());
+      try{
+        aead.doFinal(buf.buffer, 4, need, buf.buffer, 4);
+      }
+      catch(Exception e){
+        IOException ee=new IOException("MAC Error");
+        ee.initCause(e);
+        throw ee;
+      }
+      buf.index+=need;
+    }
+    else if(s2cmac_etm){
+      // the MAC is checked before anything is decrypted
+      io.getByte(buf.buffer, buf.index, need); buf.index+=(need);
+      s2cmac.update(seqi);
+      s2cmac.update(buf.buffer, 0, buf.index);
+      s2cmac.doFinal(s2cmac_result1, 0);
+      io.getByte(s2cmac_result2, 0, s2cmac_result2.length);
+      if(!java.util.Arrays.equals(s2cmac_result1, s2cmac_result2)){
+        throw new IOException("MAC Error");
       }
+      s2ccipher.update(buf.buffer, 4, need, buf.buffer, 4);
+    }
+    else if(need>0){
+      io.getByte(buf.buffer, buf.index, need); buf.index+=(need);
+      if(s2ccipher!=null){
+        s2ccipher.update(buf.buffer, s2ccipher_size, need, buf.buffer, s2ccipher_size);
+      }
+    }
 
-      seqi++;
+    if(s2cmac!=null && !s2cmac_etm){
+      s2cmac.update(seqi);
+      s2cmac.update(buf.buffer, 0, buf.index);
 
-      if(inflater!=null){
-        //inflater.uncompress(buf);
-	int pad=buf.buffer[4];
-	uncompress_len[0]=buf.index-5-pad;
-	byte[] foo=inflater.uncompress(buf.buffer, 5, uncompress_len);
-	if(foo!=null){
-	  buf.buffer=foo;
-	  buf.index=5+uncompress_len[0];
-	}
-	else{
-	  System.err.println("fail in inflater");
-	  break;
-	}
+      s2cmac.doFinal(s2cmac_result1, 0);
+      io.getByte(s2cmac_result2, 0, s2cmac_result2.length);
+      if(!java.util.Arrays.equals(s2cmac_result1, s2cmac_result2)){
+        if(need > PACKET_MAX_SIZE){
+          throw new IOException("MAC Error");
+        }
+        start_discard(buf, s2ccipher, s2cmac, j, PACKET_MAX_SIZE-need);
       }
+    }
 
-      int type=buf.getCommand()&0xff;
-      //System.err.println("read: "+type);
-      if(type==SSH_MSG_DISCONNECT){
-        buf.rewind();
-        buf.getInt();buf.getShort();
-	int reason_code=buf.getInt();
-	byte[] description=buf.getString();
-	byte[] language_tag=buf.getString();
-	throw new JSchException("SSH_MSG_DISCONNECT: "+
-				    reason_code+
-				" "+Util.byte2str(description)+
-				" "+Util.byte2str(language_tag));
-	//break;
-      }
-      else if(type==SSH_MSG_IGNORE){
-      }
-      else if(type==SSH_MSG_UNIMPLEMENTED){
-        buf.rewind();
-        buf.getInt();buf.getShort();
-	int reason_id=buf.getInt();
-        if(JSch.getLogger().isEnabled(Logger.INFO)){
-          JSch.getLogger().log(Logger.INFO, 
-                               "Received SSH_MSG_UNIMPLEMENTED for "+reason_id);
+    seqi++;
+
+    if(inflater!=null){
+      //inflater.uncompress(buf);
+      int pad=buf.buffer[4];
+      uncompress_len[0]=buf.index-5-pad;
+      byte[] foo=inflater.uncompress(buf.buffer, 5, uncompress_len);
+      if(foo!=null){
+        if(foo!=buf.buffer){
+          BufferPool.release(buf.buffer);
         }
+        buf.buffer=foo;
+        buf.index=5+uncompress_len[0];
       }
-      else if(type==SSH_MSG_DEBUG){
-        buf.rewind();
-        buf.getInt();buf.getShort();
-/*
-	byte always_display=(byte)buf.getByte();
-	byte[] message=buf.getString();
-	byte[] language_tag=buf.getString();
-	System.err.println("SSH_MSG_DEBUG:"+
-			   " "+Util.byte2str(message)+
-			   " "+Util.byte2str(language_tag));
-*/
+      else{
+        System.err.println("fail in inflater");
+        return false;
       }
-      else if(type==SSH_MSG_CHANNEL_WINDOW_ADJUST){
-          buf.rewind();
-          buf.getInt();buf.getShort();
-	  Channel c=Channel.getChannel(buf.getInt(), this);
-	  if(c==null){
-	  }
-	  else{
-	    c.addRemoteWindowSize(buf.getUInt()); 
-	  }
+    }
+    return true;
+  }
+
+  /**
+   * handles the transport layer messages which are never passed on
+   * to the callers of {@link #read}.
+   * @return true if the packet was consumed here and the next one
+   *   should be read, false if it is to be returned to the caller.
+   */
+  private boolean filter(Buffer buf) throws Exception{
+    int type=buf.getCommand()&0xff;
+    //System.err.println("read: "+type);
+    if(type==SSH_MSG_DISCONNECT){
+      buf.rewind();
+      buf.getInt();buf.getShort();
+      int reason_code=buf.getInt();
+      byte[] description=buf.getString();
+      byte[] language_tag=buf.getString();
+      throw new JSchException("SSH_MSG_DISCONNECT: "+
+                              reason_code+
+                              " "+Util.byte2str(description)+
+                              " "+Util.byte2str(language_tag));
+    }
+    else if(type==SSH_MSG_IGNORE){
+    }
+    else if(type==SSH_MSG_UNIMPLEMENTED){
+      buf.rewind();
+      buf.getInt();buf.getShort();
+      int reason_id=buf.getInt();
+      if(JSch.getLogger().isEnabled(Logger.INFO)){
+        JSch.getLogger().log(Logger.INFO, 
+                             "Received SSH_MSG_UNIMPLEMENTED for "+reason_id);
       }
-      else if(type==UserAuth.SSH_MSG_USERAUTH_SUCCESS){
-        isAuthed=true;
-        if(inflater==null && deflater==null){
-          String method;
-          method=guess[KeyExchange.PROPOSAL_COMP_ALGS_CTOS];
-          initDeflater(method);
-          method=guess[KeyExchange.PROPOSAL_COMP_ALGS_STOC];
-          initInflater(method);
-        }
-        break;
+    }
+    else if(type==SSH_MSG_DEBUG){
+      buf.rewind();
+      buf.getInt();buf.getShort();
+/*
+      byte always_display=(byte)buf.getByte();
+      byte[] message=buf.getString();
+      byte[] language_tag=buf.getString();
+      System.err.println("SSH_MSG_DEBUG:"+
+                         " "+Util.byte2str(message)+
+                         " "+Util.byte2str(language_tag));
+*/
+    }
+    else if(type==SSH_MSG_CHANNEL_WINDOW_ADJUST){
+      buf.rewind();
+      buf.getInt();buf.getShort();
+      Channel c=Channel.getChannel(buf.getInt(), this);
+      if(c==null){
       }
       else{
-        break;
+        c.addRemoteWindowSize(buf.getUInt()); 
       }
     }
-    buf.rewind();
-    return buf;
+    else if(type==UserAuth.SSH_MSG_USERAUTH_SUCCESS){
+      isAuthed=true;
+      if(inflater==null && deflater==null){
+        String method;
+        method=guess[KeyExchange.PROPOSAL_COMP_ALGS_CTOS];
+        initDeflater(method);
+        method=guess[KeyExchange.PROPOSAL_COMP_ALGS_STOC];
+        initInflater(method);
+      }
+      return false;
+    }
+    else{
+      return false;
+    }
+    return true;
   }
 
   private void start_discard(Buffer buf, Cipher cipher, MAC mac, 
                              int packet_length, int discard) throws JSchException, IOException{
     MAC discard_mac = null;
 
-    if(!cipher.isCBC()){
+    // with encrypt-then-MAC, the packet length was not decrypted,
+    // so there is nothing to hide by discarding.
+    if(!cipher.isCBC() || s2cmac_etm){
       // this error message is not really useful here, is it?
       // how does it relate to the condition?  -- P.E.
       throw new JSchException("Packet corrupt");
@@ -1167,7 +1425,7 @@ key_type+" key fingerprint is "+key_fprint+".\n"+
 
   private void receive_newkeys(Buffer buf, KeyExchange kex) throws Exception {
     updateKeys(kex);
-    in_kex=false;
+    endKex();
   }
   private void updateKeys(KeyExchange kex) throws Exception{
     byte[] K=kex.getK();
@@ -1223,8 +1481,14 @@ key_type+" key fingerprint is "+key_fprint+".\n"+
       String method;
   
       method=guess[KeyExchange.PROPOSAL_ENC_ALGS_STOC];
-      c=Class.forName(getConfig(method));
-      s2ccipher=(Cipher)(c.newInstance());
+      c=JSch.loadClass(getConfig(method));
+      // On a rekey with the same algorithm, the ciphers and MACs are
+      // only initialized again, keeping the provider's instances.
+      // Like replacing them, this relies on write() holding back
+      // other packets while the keys are exchanged.
+      if(s2ccipher==null || s2ccipher.getClass()!=c){
+        s2ccipher=(Cipher)(c.newInstance());
+      }
       while(s2ccipher.getBlockSize()>Es2c.length){
         buf.reset();
         buf.putMPInt(K);
@@ -1238,20 +1502,32 @@ key_type+" key fingerprint is "+key_fprint+".\n"+
 	Es2c=bar;
       }
       s2ccipher.init(Cipher.DECRYPT_MODE, Es2c, IVs2c);
-      s2ccipher_size=s2ccipher.getIVSize();
+      s2ccipher_size=getCipherSize(s2ccipher);
 
-      method=guess[KeyExchange.PROPOSAL_MAC_ALGS_STOC];
-      c=Class.forName(getConfig(method));
-      s2cmac=(MAC)(c.newInstance());
-      MACs2c = expandKey(buf, K, H, MACs2c, hash, s2cmac.getBlockSize());
-      s2cmac.init(MACs2c);
-      //mac_buf=new byte[s2cmac.getBlockSize()];
-      s2cmac_result1=new byte[s2cmac.getBlockSize()];
-      s2cmac_result2=new byte[s2cmac.getBlockSize()];
+      if(s2ccipher instanceof AEADCipher){
+        // the negotiated MAC is replaced by the authentication tag
+        s2cmac=null;
+        s2cmac_etm=false;
+      }
+      else{
+        method=guess[KeyExchange.PROPOSAL_MAC_ALGS_STOC];
+        s2cmac_etm=isEtM(method);
+        c=JSch.loadClass(getConfig(method));
+        if(s2cmac==null || s2cmac.getClass()!=c){
+          s2cmac=(MAC)(c.newInstance());
+        }
+        MACs2c = expandKey(buf, K, H, MACs2c, hash, s2cmac.getBlockSize());
+        s2cmac.init(MACs2c);
+        //mac_buf=new byte[s2cmac.getBlockSize()];
+        s2cmac_result1=new byte[s2cmac.getBlockSize()];
+        s2cmac_result2=new byte[s2cmac.getBlockSize()];
+      }
 
       method=guess[KeyExchange.PROPOSAL_ENC_ALGS_CTOS];
-      c=Class.forName(getConfig(method));
-      c2scipher=(Cipher)(c.newInstance());
+      c=JSch.loadClass(getConfig(method));
+      if(c2scipher==null || c2scipher.getClass()!=c){
+        c2scipher=(Cipher)(c.newInstance());
+      }
       while(c2scipher.getBlockSize()>Ec2s.length){
         buf.reset();
         buf.putMPInt(K);
@@ -1265,13 +1541,22 @@ key_type+" key fingerprint is "+key_fprint+".\n"+
 	Ec2s=bar;
       }
       c2scipher.init(Cipher.ENCRYPT_MODE, Ec2s, IVc2s);
-      c2scipher_size=c2scipher.getIVSize();
+      c2scipher_size=getCipherSize(c2scipher);
 
-      method=guess[KeyExchange.PROPOSAL_MAC_ALGS_CTOS];
-      c=Class.forName(getConfig(method));
-      c2smac=(MAC)(c.newInstance());
-      MACc2s = expandKey(buf, K, H, MACc2s, hash, c2smac.getBlockSize());
-      c2smac.init(MACc2s);
+      if(c2scipher instanceof AEADCipher){
+        c2smac=null;
+        c2smac_etm=false;
+      }
+      else{
+        method=guess[KeyExchange.PROPOSAL_MAC_ALGS_CTOS];
+        c2smac_etm=isEtM(method);
+        c=JSch.loadClass(getConfig(method));
+        if(c2smac==null || c2smac.getClass()!=c){
+          c2smac=(MAC)(c.newInstance());
+        }
+        MACc2s = expandKey(buf, K, H, MACc2s, hash, c2smac.getBlockSize());
+        c2smac.init(MACc2s);
+      }
 
       method=guess[KeyExchange.PROPOSAL_COMP_ALGS_CTOS];
       initDeflater(method);
@@ -1325,19 +1610,17 @@ key_type+" key fingerprint is "+key_fprint+".\n"+
     long t = getTimeout();
     while(true){
       if(in_kex){
-        if(t>0L && (System.currentTimeMillis()-kex_start_time)>t){
-          throw new JSchException("timeout in waiting for rekeying process.");
-        }
-        try{Thread.sleep(10);}
-        catch(java.lang.InterruptedException e){};
+        awaitKex(t, false);
         continue;
       }
       synchronized(c){
 
-        if(c.rwsize<length){
+        // woken up by addRemoteWindowSize() or when the channel
+        // gets closed.
+        while(c.rwsize<=0 && !in_kex && !c.close && c.isConnected()){
           try{ 
             c.notifyme++;
-            c.wait(100); 
+            c.wait(); 
           }
           catch(java.lang.InterruptedException e){
           }
@@ -1373,7 +1656,7 @@ key_type+" key fingerprint is "+key_fprint+".\n"+
           if(len!=length){
             s=packet.shift((int)len, 
                            (c2scipher!=null ? c2scipher_size : 8),
-                           (c2smac!=null ? c2smac.getBlockSize() : 0));
+                           getTrailerSize(c2scipher, c2smac));
           }
 	  command=packet.buffer.getCommand();
 	  recipient=c.getRecipient();
@@ -1419,40 +1702,92 @@ key_type+" key fingerprint is "+key_fprint+".\n"+
    */
   public void write(Packet packet) throws Exception{
     // System.err.println("in_kex="+in_kex+" "+(packet.buffer.getCommand()));
-    long t = getTimeout();
-    while(in_kex){
-      if(t>0L &&
-         (System.currentTimeMillis()-kex_start_time)>t &&
-         !in_prompt
-         ){
-        throw new JSchException("timeout in waiting for rekeying process.");
-      }
+    if(in_kex){
       byte command=packet.buffer.getCommand();
       //System.err.println("command: "+command);
-      if(command==SSH_MSG_KEXINIT ||
-         command==SSH_MSG_NEWKEYS ||
-         command==SSH_MSG_KEXDH_INIT ||
-         command==SSH_MSG_KEXDH_REPLY ||
-         command==SSH_MSG_KEX_DH_GEX_GROUP ||
-         command==SSH_MSG_KEX_DH_GEX_INIT ||
-         command==SSH_MSG_KEX_DH_GEX_REPLY ||
-         command==SSH_MSG_KEX_DH_GEX_REQUEST ||
-         command==SSH_MSG_DISCONNECT){
-        break;
+      if(!(command==SSH_MSG_KEXINIT ||
+           command==SSH_MSG_NEWKEYS ||
+           command==SSH_MSG_KEXDH_INIT ||
+           command==SSH_MSG_KEXDH_REPLY ||
+           command==SSH_MSG_KEX_DH_GEX_GROUP ||
+           command==SSH_MSG_KEX_DH_GEX_INIT ||
+           command==SSH_MSG_KEX_DH_GEX_REPLY ||
+           command==SSH_MSG_KEX_DH_GEX_REQUEST ||
+           command==SSH_MSG_DISCONNECT)){
+        awaitKex(getTimeout(), true);
       }
-      try{Thread.sleep(10);}
-      catch(java.lang.InterruptedException e){};
     }
     _write(packet);
   }
 
+  /**
+   * true if the packets should be coalesced, see {@link IO#put(Packet,boolean)}.
+   */
+  private volatile boolean coalesce=false;
+  /**
+   * the number of threads in {@link #_write} waiting for {@link #lock},
+   * guarded by {@link #writers_lock}.
+   */
+  private int writers=0;
+  private final Object writers_lock=new Object();
+
   private void _write(Packet packet) throws Exception{
+    PacketWriter _writer=writer;
+    if(_writer!=null && _writer.offer(packet)){
+      return;
+    }
+
+    if(!coalesce && _writer==null){
+      synchronized(lock){
+        send(packet, false);
+      }
+      return;
+    }
+
+    synchronized(writers_lock){
+      writers++;
+    }
     synchronized(lock){
-      encode(packet);
-      if(io!=null){
-        io.put(packet);
-        seqo++;
+      boolean more;
+      synchronized(writers_lock){
+        writers--;
+        more=(writers>0);
       }
+      // Packets queued before this one have to be written first.
+      if(_writer!=null){
+        _writer.drain(true);
+      }
+      // If another thread is waiting, it will write our packet
+      // together with its own one.
+      send(packet, more);
+    }
+  }
+
+  /**
+   * encodes and writes one packet. The caller has to hold {@link #lock}.
+   * @param more true if another packet will be written immediately
+   *   afterwards, see {@link IO#put(Packet,boolean)}.
+   */
+  void send(Packet packet, boolean more) throws Exception{
+    encode(packet);
+    if(io!=null){
+      io.put(packet, more);
+      seqo++;
+    }
+  }
+
+  /**
+   * the outbound packet queue, if the {@code WriterThread} option
+   * is enabled.
+   */
+  private volatile PacketWriter writer=null;
+
+  /**
+   * called by the writer thread to write the queued packets.
+   */
+  void drainWriter(PacketWriter _writer) throws Exception{
+    synchronized(lock){
+      _writer.drain(false);
     }
   }
 
@@ -1465,14 +1800,8 @@ key_type+" key fingerprint is "+key_fprint+".\n"+
   public void run(){
     thread=this;
 
-    byte[] foo;
-    Buffer buf=new Buffer();
+    Buffer buf=BufferPool.getBuffer(1024*10*2);
     Packet packet=new Packet(buf);
-    int i=0;
-    Channel channel;
-    int[] start=new int[1];
-    int[] length=new int[1];
-    KeyExchange kex=null;
 
     int stimeout=0;
     try{
@@ -1495,358 +1824,418 @@ key_type+" key fingerprint is "+key_fprint+".\n"+
           throw ee;
         }
 
-	int msgType=buf.getCommand()&0xff;
+        dispatch(buf, packet);
+      }
+    }
+    catch(Exception e){
+      BufferPool.release(buf);
+      leave(e);
+      return;
+    }
+    BufferPool.release(buf);
+    leave(null);
+  }
 
-	if(kex!=null && kex.getState()==msgType){
-          kex_start_time=System.currentTimeMillis();
-	  boolean result=kex.next(buf);
-	  if(!result){
-	    throw new JSchException("verify: "+result);
-	  }
-	  continue;
-	}
+  /**
+   * processes all the packets a non-blocking transport has buffered
+   * completely. This is the counterpart of the loop in {@link #run}
+   * for sessions driven by a {@link NIOTransport}.
+   */
+  void drain(Buffer buf, Packet packet) throws Exception{
+    while(isConnected){
+      if(readAvailable(buf)==null){
+        break;
+      }
+      dispatch(buf, packet);
+    }
+  }
 
-        if(jsch.getLogger().isEnabled(Logger.DEBUG)) {
-          jsch.getLogger().log(Logger.DEBUG, "packet received, type: " +
-                               msgType);
-        }
-        
+  /**
+   * called by a non-blocking transport if nothing has been received
+   * within the timeout. This mirrors the handling of socket timeouts
+   * in {@link #run}.
+   * @param count the number of timeouts in a row before this one.
+   * @return false if the server should be considered dead.
+   */
+  boolean timedOut(int count) throws Exception{
+    if(count>=serverAliveCountMax){
+      return false;
+    }
+    if(!in_kex){
+      sendKeepAliveMsg();
+    }
+    return true;
+  }
 
-        switch(msgType){
-	case SSH_MSG_KEXINIT:
-          if(jsch.getLogger().isEnabled(Logger.INFO)) {
-            jsch.getLogger().log(Logger.INFO, "SSH_MSG_KEXINIT received");
-          }
+  /**
+   * shuts the session down after the receiving loop has ended.
+   * @param e the exception which stopped the loop, or null.
+   */
+  void leave(Exception e){
+    if(e!=null){
+      endKex();
+      if(JSch.getLogger().isEnabled(Logger.INFO)){
+        JSch.getLogger().log(Logger.INFO,
+                             "Caught an exception, leaving main loop due to " + e.getMessage());
+      }
+      //System.err.println("# Session.run");
+      //e.printStackTrace();
+    }
+    try{
+      disconnect();
+    }
+    catch(NullPointerException ee){
+      //System.err.println("@1");
+      //e.printStackTrace();
+    }
+    catch(Exception ee){
+      //System.err.println("@2");
+      //e.printStackTrace();
+    }
+    isConnected=false;
+  }
+
+  private KeyExchange kex=null;
+
+  // the shortest time from a channel open request to its
+  // confirmation (in nanoseconds, 0 if unknown), used as
+  // round trip time for tuning the windows
+  private volatile long rtt=0;
+
+  private int[] start=new int[1];
+  private int[] length=new int[1];
+
+  /**
+   * interprets one packet received from the server.
+   * @param buf the buffer containing the packet.
+   * @param packet a packet wrapping {@code buf}, used for replies.
+   */
+  private void dispatch(Buffer buf, Packet packet) throws Exception{
+    byte[] foo;
+    int i=0;
+    Channel channel;
+
+    int msgType=buf.getCommand()&0xff;
+
+    if(kex!=null && kex.getState()==msgType){
+      kex_start_time=System.currentTimeMillis();
+      boolean result=kex.next(buf);
+      if(!result){
+        throw new JSchException("verify: "+result);
+      }
+      return;
+    }
+
+    if(jsch.getLogger().isEnabled(Logger.DEBUG)) {
+      jsch.getLogger().log(Logger.DEBUG, "packet received, type: " +
+                           msgType);
+    }
+
+    switch(msgType){
+    case SSH_MSG_KEXINIT:
+      if(jsch.getLogger().isEnabled(Logger.INFO)) {
+        jsch.getLogger().log(Logger.INFO, "SSH_MSG_KEXINIT received");
+      }
 //System.err.println("KEXINIT");
-	  kex=receive_kexinit(buf);
-	  break;
+      kex=receive_kexinit(buf);
+      break;
 
-	case SSH_MSG_NEWKEYS:
-          if(jsch.getLogger().isEnabled(Logger.INFO)) {
-            jsch.getLogger().log(Logger.INFO, "SSH_MSG_NEWKEYS received");
-          }
+    case SSH_MSG_NEWKEYS:
+      if(jsch.getLogger().isEnabled(Logger.INFO)) {
+        jsch.getLogger().log(Logger.INFO, "SSH_MSG_NEWKEYS received");
+      }
 //System.err.println("NEWKEYS");
-          send_newkeys();
-	  receive_newkeys(buf, kex);
-	  kex=null;
-	  break;
-
-	case SSH_MSG_CHANNEL_DATA:
-          buf.getInt(); 
-          buf.getByte(); 
-          buf.getByte(); 
-          i=buf.getInt(); 
-	  channel=Channel.getChannel(i, this);
-	  foo=buf.getString(start, length);
-          if(jsch.getLogger().isEnabled(Logger.INFO)) {
-            jsch.getLogger().log(Logger.INFO, "SSH_MSG_CHANNEL_DATA received, channel: "+i + ", len: " + length[0]);
-          }
-	  if(channel==null){
-	    break;
-	  }
+      send_newkeys();
+      receive_newkeys(buf, kex);
+      kex=null;
+      // the adjustments held back during the key exchange
+      Channel[] _channels=getChannels();
+      for(int j=0; j<_channels.length; j++){
+        adjustWindow(_channels[j], buf, packet);
+      }
+      break;
+
+    case SSH_MSG_CHANNEL_DATA:
+      buf.getInt(); 
+      buf.getByte(); 
+      buf.getByte(); 
+      i=buf.getInt(); 
+      channel=Channel.getChannel(i, this);
+      foo=buf.getString(start, length);
+      if(jsch.getLogger().isEnabled(Logger.INFO)) {
+        jsch.getLogger().log(Logger.INFO, "SSH_MSG_CHANNEL_DATA received, channel: "+i + ", len: " + length[0]);
+      }
+      if(channel==null){
+        break;
+      }
 
-          if(length[0]==0){
-	    break;
-          }
+      if(length[0]==0){
+        break;
+      }
 
 try{
-	  channel.write(foo, start[0], length[0]);
+      channel.write(foo, start[0], length[0]);
 }
 catch(Exception e){
 //System.err.println(e);
   try{channel.disconnect();}catch(Exception ee){}
 break;
 }
-	  int len=length[0];
-	  channel.setLocalWindowSize(channel.lwsize-len);
- 	  if(channel.lwsize<channel.lwsize_max/2){
-            packet.reset();
-	    buf.putByte((byte)SSH_MSG_CHANNEL_WINDOW_ADJUST);
-	    buf.putInt(channel.getRecipient());
-	    buf.putInt(channel.lwsize_max-channel.lwsize);
-            synchronized(channel){
-              if(!channel.close)
-                write(packet);
-            }
-	    channel.setLocalWindowSize(channel.lwsize_max);
-	  }
-	  break;
-
-        case SSH_MSG_CHANNEL_EXTENDED_DATA:
-          buf.getInt();
-	  buf.getShort();
-	  i=buf.getInt();
-	  channel=Channel.getChannel(i, this);
-	  int type_code = buf.getInt();                   // data_type_code == 1
-	  foo=buf.getString(start, length);
-	  //System.err.println("stderr: "+new String(foo,start[0],length[0]));
-	  if(channel==null){
-	    break;
-	  }
+      consumeWindow(channel, length[0], buf, packet);
+      break;
+
+    case SSH_MSG_CHANNEL_EXTENDED_DATA:
+      buf.getInt();
+      buf.getShort();
+      i=buf.getInt();
+      channel=Channel.getChannel(i, this);
+      int type_code = buf.getInt();                   // data_type_code == 1
+      foo=buf.getString(start, length);
+      //System.err.println("stderr: "+new String(foo,start[0],length[0]));
+      if(channel==null){
+        break;
+      }
 
-          if(jsch.getLogger().isEnabled(Logger.INFO)) {
-            jsch.getLogger().log(Logger.INFO, "SSH_MSG_CHANNEL__EXTENDED_DATA received, channel: "+i + ", len: " + length[0] +", type: " + type_code);
-          }
+      if(jsch.getLogger().isEnabled(Logger.INFO)) {
+        jsch.getLogger().log(Logger.INFO, "SSH_MSG_CHANNEL__EXTENDED_DATA received, channel: "+i + ", len: " + length[0] +", type: " + type_code);
+      }
 
-          if(length[0]==0){
-	    break;
-          }
+      if(length[0]==0){
+        break;
+      }
 
-	  channel.write_ext(foo, start[0], length[0]);
-
-	  len=length[0];
-	  channel.setLocalWindowSize(channel.lwsize-len);
- 	  if(channel.lwsize<channel.lwsize_max/2){
-            packet.reset();
-	    buf.putByte((byte)SSH_MSG_CHANNEL_WINDOW_ADJUST);
-	    buf.putInt(channel.getRecipient());
-	    buf.putInt(channel.lwsize_max-channel.lwsize);
-            synchronized(channel){
-              if(!channel.close)
-                write(packet);
-            }
-	    channel.setLocalWindowSize(channel.lwsize_max);
-	  }
-	  break;
+      try{
+        channel.write_ext(foo, start[0], length[0]);
+      }
+      catch(Exception e){
+        try{channel.disconnect();}catch(Exception ee){}
+        break;
+      }
+      consumeWindow(channel, length[0], buf, packet);
+      break;
 
-	case SSH_MSG_CHANNEL_WINDOW_ADJUST:
-          buf.getInt(); 
-	  buf.getShort(); 
-	  i=buf.getInt(); 
-	  channel=Channel.getChannel(i, this);
-	  if(channel==null){
-	    break;
-	  }
-          long remoteSize = buf.getUInt();
-          if(jsch.getLogger().isEnabled(Logger.INFO)) {
-            jsch.getLogger().log(Logger.INFO, "SSH_MSG_CHANNEL_DATA received, channel: "+i + ", bytes: " + remoteSize);
-          }
-	  channel.addRemoteWindowSize(remoteSize); 
-	  break;
+    case SSH_MSG_CHANNEL_WINDOW_ADJUST:
+      buf.getInt(); 
+      buf.getShort(); 
+      i=buf.getInt(); 
+      channel=Channel.getChannel(i, this);
+      if(channel==null){
+        break;
+      }
+      long remoteSize = buf.getUInt();
+      if(jsch.getLogger().isEnabled(Logger.INFO)) {
+        jsch.getLogger().log(Logger.INFO, "SSH_MSG_CHANNEL_DATA received, channel: "+i + ", bytes: " + remoteSize);
+      }
+      channel.addRemoteWindowSize(remoteSize); 
+      break;
 
-	case SSH_MSG_CHANNEL_EOF:
-          buf.getInt(); 
-          buf.getShort(); 
-          i=buf.getInt(); 
-          if(jsch.getLogger().isEnabled(Logger.INFO)) {
-            jsch.getLogger().log(Logger.INFO, "SSH_MSG_CHANNEL_EOF received, channel: "+i);
-          }
-	  channel=Channel.getChannel(i, this);
-	  if(channel!=null){
-	    //channel.eof_remote=true;
-	    //channel.eof();
-	    channel.eof_remote();
-	  }
-	  /*
-	  packet.reset();
-	  buf.putByte((byte)SSH_MSG_CHANNEL_EOF);
-	  buf.putInt(channel.getRecipient());
-	  write(packet);
-	  */
-	  break;
-	case SSH_MSG_CHANNEL_CLOSE:
-          buf.getInt(); 
-	  buf.getShort(); 
-	  i=buf.getInt(); 
-          if(jsch.getLogger().isEnabled(Logger.INFO)) {
-            jsch.getLogger().log(Logger.INFO, "SSH_MSG_CHANNEL_CLOSE received, channel: "+i);
-          }
-	  channel=Channel.getChannel(i, this);
-	  if(channel!=null){
+    case SSH_MSG_CHANNEL_EOF:
+      buf.getInt(); 
+      buf.getShort(); 
+      i=buf.getInt(); 
+      if(jsch.getLogger().isEnabled(Logger.INFO)) {
+        jsch.getLogger().log(Logger.INFO, "SSH_MSG_CHANNEL_EOF received, channel: "+i);
+      }
+      channel=Channel.getChannel(i, this);
+      if(channel!=null){
+        //channel.eof_remote=true;
+        //channel.eof();
+        channel.eof_remote();
+      }
+      /*
+      packet.reset();
+      buf.putByte((byte)SSH_MSG_CHANNEL_EOF);
+      buf.putInt(channel.getRecipient());
+      write(packet);
+      */
+      break;
+    case SSH_MSG_CHANNEL_CLOSE:
+      buf.getInt(); 
+      buf.getShort(); 
+      i=buf.getInt(); 
+      if(jsch.getLogger().isEnabled(Logger.INFO)) {
+        jsch.getLogger().log(Logger.INFO, "SSH_MSG_CHANNEL_CLOSE received, channel: "+i);
+      }
+      channel=Channel.getChannel(i, this);
+      if(channel!=null){
 //	      channel.close();
-	    channel.disconnect();
-	  }
-	  /*
-          if(Channel.pool.size()==0){
-	    thread=null;
-	  }
-	  */
-	  break;
-	case SSH_MSG_CHANNEL_OPEN_CONFIRMATION:
-          buf.getInt(); 
-	  buf.getShort(); 
-	  i=buf.getInt(); 
-	  channel=Channel.getChannel(i, this);
-          if(jsch.getLogger().isEnabled(Logger.INFO)) {
-            jsch.getLogger().log(Logger.INFO, "SSH_MSG_CHANNEL_OPEN_CONFIRMATION received, channel: "+i);
+        channel.disconnect();
+      }
+      /*
+      if(Channel.pool.size()==0){
+        thread=null;
+      }
+      */
+      break;
+    case SSH_MSG_CHANNEL_OPEN_CONFIRMATION:
+      buf.getInt(); 
+      buf.getShort(); 
+      i=buf.getInt(); 
+      channel=Channel.getChannel(i, this);
+      if(jsch.getLogger().isEnabled(Logger.INFO)) {
+        jsch.getLogger().log(Logger.INFO, "SSH_MSG_CHANNEL_OPEN_CONFIRMATION received, channel: "+i);
+      }
+      int r=buf.getInt();
+      long rws=buf.getUInt();
+      int rps=buf.getInt();
+      if(channel!=null){
+        if(channel.open_time!=0){
+          long _rtt=System.nanoTime()-channel.open_time;
+          if(rtt==0 || _rtt<rtt){
+            rtt=_rtt;
           }
-          int r=buf.getInt();
-          long rws=buf.getUInt();
-          int rps=buf.getInt();
-          if(channel!=null){
-            channel.setRemoteWindowSize(rws);
-            channel.setRemotePacketSize(rps);
-            channel.open_confirmation=true;
-            channel.setRecipient(r);
-          }
-          break;
-	case SSH_MSG_CHANNEL_OPEN_FAILURE:
-          buf.getInt(); 
-	  buf.getShort(); 
-	  i=buf.getInt(); 
-	  channel=Channel.getChannel(i, this);
-          if(channel!=null){
-            int reason_code=buf.getInt(); 
-            if(jsch.getLogger().isEnabled(Logger.INFO)) {
-                // additional textual information
-                String descr =Util.byte2str(buf.getString());
-                //foo=buf.getString();  // language tag 
-                jsch.getLogger().log(Logger.INFO, "SSH_MSG_CHANNEL_OPEN_FAILURE received, reason: " + reason_code+", channel: "+i+", description: " + descr);
-              }
-            //foo=buf.getString();  // additional textual information
+        }
+        channel.setRemoteWindowSize(rws);
+        channel.setRemotePacketSize(rps);
+        channel.open_confirmation=true;
+        channel.setRecipient(r);
+      }
+      break;
+    case SSH_MSG_CHANNEL_OPEN_FAILURE:
+      buf.getInt(); 
+      buf.getShort(); 
+      i=buf.getInt(); 
+      channel=Channel.getChannel(i, this);
+      if(channel!=null){
+        int reason_code=buf.getInt(); 
+        if(jsch.getLogger().isEnabled(Logger.INFO)) {
+            // additional textual information
+            String descr =Util.byte2str(buf.getString());
             //foo=buf.getString();  // language tag 
-            channel.setExitStatus(reason_code);
-            channel.close=true;
-            channel.eof_remote=true;
-            channel.setRecipient(0);
+            jsch.getLogger().log(Logger.INFO, "SSH_MSG_CHANNEL_OPEN_FAILURE received, reason: " + reason_code+", channel: "+i+", description: " + descr);
           }
-	  break;
-	case SSH_MSG_CHANNEL_REQUEST:
-          buf.getInt(); 
-	  buf.getShort(); 
-	  i=buf.getInt(); 
-	  foo=buf.getString(); 
-          boolean reply=(buf.getByte()!=0);
-          if(jsch.getLogger().isEnabled(Logger.INFO)) {
-            jsch.getLogger().log(Logger.INFO, "SSH_MSG_CHANNEL_REQUEST received, channel: "+i +", type: " + foo + ", want reply: " + reply);
-          }
-	  channel=Channel.getChannel(i, this);
-	  if(channel!=null){
-	    byte reply_type=(byte)SSH_MSG_CHANNEL_FAILURE;
-	    if((Util.byte2str(foo)).equals("exit-status")){
-	      i=buf.getInt();             // exit-status
-	      channel.setExitStatus(i);
-	      reply_type=(byte)SSH_MSG_CHANNEL_SUCCESS;
-	    }
-	    if(reply){
-	      packet.reset();
-	      buf.putByte(reply_type);
-	      buf.putInt(channel.getRecipient());
-	      write(packet);
-	    }
-	  }
-	  else{
-	  }
-	  break;
-	case SSH_MSG_CHANNEL_OPEN:
-          buf.getInt(); 
-	  buf.getShort(); 
-	  foo=buf.getString();
-	  String ctyp=Util.byte2str(foo);
-          if(jsch.getLogger().isEnabled(Logger.INFO)) {
-            jsch.getLogger().log(Logger.INFO, "SSH_MSG_CHANNEL_OPEN received, type: " + ctyp);
-          }
-          if(!"forwarded-tcpip".equals(ctyp) &&
-	     !("x11".equals(ctyp) && x11_forwarding) &&
-	     !("auth-agent@openssh.com".equals(ctyp) && agent_forwarding)){
-            //System.err.println("Session.run: CHANNEL OPEN "+ctyp); 
-	    //throw new IOException("Session.run: CHANNEL OPEN "+ctyp);
-	    packet.reset();
-	    buf.putByte((byte)SSH_MSG_CHANNEL_OPEN_FAILURE);
-	    buf.putInt(buf.getInt());
+        //foo=buf.getString();  // additional textual information
+        //foo=buf.getString();  // language tag 
+        channel.setExitStatus(reason_code);
+        channel.close=true;
+        channel.eof_remote=true;
+        channel.setRecipient(0);
+      }
+      break;
+    case SSH_MSG_CHANNEL_REQUEST:
+      buf.getInt(); 
+      buf.getShort(); 
+      i=buf.getInt(); 
+      foo=buf.getString(); 
+      boolean reply=(buf.getByte()!=0);
+      if(jsch.getLogger().isEnabled(Logger.INFO)) {
+        jsch.getLogger().log(Logger.INFO, "SSH_MSG_CHANNEL_REQUEST received, channel: "+i +", type: " + foo + ", want reply: " + reply);
+      }
+      channel=Channel.getChannel(i, this);
+      if(channel!=null){
+        byte reply_type=(byte)SSH_MSG_CHANNEL_FAILURE;
+        if((Util.byte2str(foo)).equals("exit-status")){
+          i=buf.getInt();             // exit-status
+          channel.setExitStatus(i);
+          reply_type=(byte)SSH_MSG_CHANNEL_SUCCESS;
+        }
+        if(reply){
+          packet.reset();
+          buf.putByte(reply_type);
+          buf.putInt(channel.getRecipient());
+          write(packet);
+        }
+      }
+      else{
+      }
+      break;
+    case SSH_MSG_CHANNEL_OPEN:
+      buf.getInt(); 
+      buf.getShort(); 
+      foo=buf.getString();
+      String ctyp=Util.byte2str(foo);
+      if(jsch.getLogger().isEnabled(Logger.INFO)) {
+        jsch.getLogger().log(Logger.INFO, "SSH_MSG_CHANNEL_OPEN received, type: " + ctyp);
+      }
+      if(!"forwarded-tcpip".equals(ctyp) &&
+         !("x11".equals(ctyp) && x11_forwarding) &&
+         !("auth-agent@openssh.com".equals(ctyp) && agent_forwarding)){
+        //System.err.println("Session.run: CHANNEL OPEN "+ctyp); 
+        //throw new IOException("Session.run: CHANNEL OPEN "+ctyp);
+        packet.reset();
+        buf.putByte((byte)SSH_MSG_CHANNEL_OPEN_FAILURE);
+        buf.putInt(buf.getInt());
  	    buf.putInt(Channel.SSH_OPEN_ADMINISTRATIVELY_PROHIBITED);
-	    buf.putString(Util.empty);
-	    buf.putString(Util.empty);
-	    write(packet);
-	  }
-	  else{
-	    channel=Channel.getChannel(ctyp);
-	    addChannel(channel);
-	    channel.getData(buf);
-	    channel.init();
-
-	    Thread tmp=new Thread(channel);
-	    tmp.setName("Channel "+ctyp+" "+host);
-            if(daemon_thread){
-              tmp.setDaemon(daemon_thread);
-            }
-	    tmp.start();
-	  }
-          break;
-	case SSH_MSG_CHANNEL_SUCCESS:
-          buf.getInt(); 
-	  buf.getShort(); 
-	  i=buf.getInt(); 
-          if(jsch.getLogger().isEnabled(Logger.INFO)) {
-            jsch.getLogger().log(Logger.INFO, "SSH_MSG_CHANNEL_SUCCESS received, channel: " + i);
-          }
-	  channel=Channel.getChannel(i, this);
-	  if(channel==null){
-	    break;
-	  }
-	  channel.reply=1;
-	  break;
-	case SSH_MSG_CHANNEL_FAILURE:
-	  buf.getInt(); 
-	  buf.getShort(); 
-	  i=buf.getInt(); 
-          if(jsch.getLogger().isEnabled(Logger.INFO)) {
-            jsch.getLogger().log(Logger.INFO, "SSH_MSG_CHANNEL_FAILURE received, channel: " + i);
-          }
-	  channel=Channel.getChannel(i, this);
-	  if(channel==null){
-	    break;
-	  }
-	  channel.reply=0;
-	  break;
-	case SSH_MSG_GLOBAL_REQUEST:
-	  buf.getInt(); 
-	  buf.getShort(); 
-	  foo=buf.getString();       // request name
-	  reply=(buf.getByte()!=0);
-          if(jsch.getLogger().isEnabled(Logger.INFO)) {
-            jsch.getLogger().log(Logger.INFO, "SSH_MSG_GLOBAL_REQUEST received, request: " + Util.byte2str(foo) + ", want reply: " + reply);
-          }
-	  if(reply){
-            // no global requests implemented
-	    packet.reset();
-	    buf.putByte((byte)SSH_MSG_REQUEST_FAILURE);
-	    write(packet);
-	  }
-	  break;
-	case SSH_MSG_REQUEST_FAILURE:
-	case SSH_MSG_REQUEST_SUCCESS:
-          if(jsch.getLogger().isEnabled(Logger.INFO)) {
-            jsch.getLogger().log(Logger.INFO, "SSH_MSG_REQUEST_" +(msgType==SSH_MSG_REQUEST_SUCCESS ? "SUCCESS" : "FAILURE")+" received.");
-          }
-          Thread t=grr.getThread();
-          if(t!=null){
-            grr.setReply(msgType==SSH_MSG_REQUEST_SUCCESS? 1 : 0);
-            if(msgType==SSH_MSG_REQUEST_SUCCESS && grr.getPort()==0){
-              buf.getInt(); 
-              buf.getShort(); 
-              grr.setPort(buf.getInt());
-            }
-            t.interrupt();
-          }
-	  break;
-	default:
-          //System.err.println("Session.run: unsupported type "+msgType); 
-	  throw new IOException("Unknown SSH message type "+msgType);
-	}
+        buf.putString(Util.empty);
+        buf.putString(Util.empty);
+        write(packet);
       }
-    }
-    catch(Exception e){
-      in_kex=false;
-      if(JSch.getLogger().isEnabled(Logger.INFO)){
-        JSch.getLogger().log(Logger.INFO,
-                             "Caught an exception, leaving main loop due to " + e.getMessage());
+      else{
+        channel=Channel.getChannel(ctyp);
+        addChannel(channel);
+        applyConfigWindow(channel, ctyp);
+        channel.getData(buf);
+        channel.init();
+
+        Thread tmp=new Thread(channel);
+        tmp.setName("Channel "+ctyp+" "+host);
+        if(daemon_thread){
+          tmp.setDaemon(daemon_thread);
+        }
+        tmp.start();
+      }
+      break;
+    case SSH_MSG_CHANNEL_SUCCESS:
+      buf.getInt(); 
+      buf.getShort(); 
+      i=buf.getInt(); 
+      if(jsch.getLogger().isEnabled(Logger.INFO)) {
+        jsch.getLogger().log(Logger.INFO, "SSH_MSG_CHANNEL_SUCCESS received, channel: " + i);
+      }
+      channel=Channel.getChannel(i, this);
+      if(channel==null){
+        break;
       }
-      //System.err.println("# Session.run");
-      //e.printStackTrace();
-    }
-    try{
-      disconnect();
-    }
-    catch(NullPointerException e){
-      //System.err.println("@1");
-      //e.printStackTrace();
-    }
-    catch(Exception e){
-      //System.err.println("@2");
-      //e.printStackTrace();
+      channel.reply=1;
+      break;
+    case SSH_MSG_CHANNEL_FAILURE:
+      buf.getInt(); 
+      buf.getShort(); 
+      i=buf.getInt(); 
+      if(jsch.getLogger().isEnabled(Logger.INFO)) {
+        jsch.getLogger().log(Logger.INFO, "SSH_MSG_CHANNEL_FAILURE received, channel: " + i);
+      }
+      channel=Channel.getChannel(i, this);
+      if(channel==null){
+        break;
+      }
+      channel.reply=0;
+      break;
+    case SSH_MSG_GLOBAL_REQUEST:
+      buf.getInt(); 
+      buf.getShort(); 
+      foo=buf.getString();       // request name
+      reply=(buf.getByte()!=0);
+      if(jsch.getLogger().isEnabled(Logger.INFO)) {
+        jsch.getLogger().log(Logger.INFO, "SSH_MSG_GLOBAL_REQUEST received, request: " + Util.byte2str(foo) + ", want reply: " + reply);
+      }
+      if(reply){
+        // no global requests implemented
+        packet.reset();
+        buf.putByte((byte)SSH_MSG_REQUEST_FAILURE);
+        write(packet);
+      }
+      break;
+    case SSH_MSG_REQUEST_FAILURE:
+    case SSH_MSG_REQUEST_SUCCESS:
+      if(jsch.getLogger().isEnabled(Logger.INFO)) {
+        jsch.getLogger().log(Logger.INFO, "SSH_MSG_REQUEST_" +(msgType==SSH_MSG_REQUEST_SUCCESS ? "SUCCESS" : "FAILURE")+" received.");
+      }
+      Thread t=grr.getThread();
+      if(t!=null){
+        grr.setReply(msgType==SSH_MSG_REQUEST_SUCCESS? 1 : 0);
+        if(msgType==SSH_MSG_REQUEST_SUCCESS && grr.getPort()==0){
+          buf.getInt(); 
+          buf.getShort(); 
+          grr.setPort(buf.getInt());
+        }
+        t.interrupt();
+      }
+      break;
+    default:
+      //System.err.println("Session.run: unsupported type "+msgType); 
+      throw new IOException("Unknown SSH message type "+msgType);
     }
-    isConnected=false;
   }
 
   /**
@@ -1881,6 +2270,15 @@ break;
     ChannelX11.removeFakedCookie(this);
 
     synchronized(lock){
+      if(writer!=null){
+        try{
+          writer.drain(false);
+        }
+        catch(Exception e){
+        }
+        writer.stop();
+        writer=null;
+      }
       if(connectThread!=null){
         Thread.yield();
         connectThread.interrupt();
@@ -1893,6 +2291,7 @@ break;
 	if(io.in!=null) io.in.close();
 	if(io.out!=null) io.out.close();
 	if(io.out_ext!=null) io.out_ext.close();
+        if(io instanceof NIOTransport) io.close();
       }
       if(proxy==null){
         if(socket!=null)
@@ -2386,7 +2785,7 @@ break;
       if(method.equals("zlib") ||
          (isAuthed && method.equals("zlib@openssh.com"))){
         try{
-          Class c=Class.forName(foo);
+          Class c=JSch.loadClass(foo);
           deflater=(Compression)(c.newInstance());
           int level=6;
           try{ level=Integer.parseInt(getConfig("compression_level"));}
@@ -2425,7 +2824,7 @@ break;
       if(method.equals("zlib") ||
          (isAuthed && method.equals("zlib@openssh.com"))){
         try{
-          Class c=Class.forName(foo);
+          Class c=JSch.loadClass(foo);
           inflater=(Compression)(c.newInstance());
           inflater.init(Compression.INFLATER, 0);
         }
@@ -2437,8 +2836,182 @@ break;
     }
   }
 
+  private ChannelTable channels=new ChannelTable();
+
   void addChannel(Channel channel){
     channel.setSession(this);
+    channels.put(channel);
+  }
+
+  /**
+   * accounts for data received on a channel, and adjusts its window
+   * if that is due. While a key exchange is running, the adjustment
+   * is left to the end of the exchange, as the receiving thread must
+   * not wait for it.
+   */
+  private void consumeWindow(Channel channel, int len,
+                             Buffer buf, Packet packet) throws Exception{
+    channel.consumeLocalWindow(len);
+    if(!in_kex){
+      adjustWindow(channel, buf, packet);
+    }
+  }
+
+  /**
+   * adjusts the window of a channel after the application has read
+   * from its pipe. During a key exchange this is left to the
+   * receiving thread, which sends the adjustments held back after
+   * SSH_MSG_NEWKEYS.
+   */
+  void pipeRead(Channel channel) throws Exception{
+    if(!in_kex){
+      adjustWindow(channel, null, null);
+    }
+  }
+
+  /**
+   * sends an SSH_MSG_CHANNEL_WINDOW_ADJUST for a channel if at least
+   * half of its window has been consumed, see
+   * {@link Channel#takeLocalWindowAdjustment}. This is called by the
+   * receiving thread, and by an application thread reading from the
+   * channel's pipe.
+   *<p>
+   * The message is written without holding the channel's monitor:
+   * {@link #write} may wait for a key exchange, which the receiving
+   * thread can only finish if it can enter the monitor.
+   *</p>
+   * @param buf the buffer to use for the message, or null.
+   * @param packet a packet wrapping {@code buf}, or null.
+   */
+  void adjustWindow(Channel channel, Buffer buf, Packet packet) throws Exception{
+    int n=channel.takeLocalWindowAdjustment(rtt);
+    if(n==0){
+      return;
+    }
+    if(packet==null){
+      buf=new Buffer(100);
+      packet=new Packet(buf);
+    }
+    packet.reset();
+    buf.putByte((byte)SSH_MSG_CHANNEL_WINDOW_ADJUST);
+    buf.putInt(channel.getRecipient());
+    buf.putInt(n);
+    boolean closed;
+    synchronized(channel){
+      closed=channel.close;
+    }
+    if(!closed){
+      write(packet);
+    }
+  }
+
+  /**
+   * applies the window options to a new channel. Each option is
+   * checked on its own: an invalid value is logged and ignored,
+   * keeping the default of the channel for this option only.
+   * @param type the type passed to {@link #openChannel}, or the
+   *   type of a channel opened by the server.
+   */
+  private void applyConfigWindow(Channel channel, String type){
+    int size=getChannelConfigSize("WindowSize", type);
+    if(size>0){
+      channel.setLocalWindowSizeMax(size);
+      channel.setLocalWindowSize(size);
+    }
+    size=getChannelConfigSize("PacketSize", type);
+    if(size>0){
+      channel.setLocalPacketSize(Math.min(size, PACKET_MAX_SIZE-1024));
+    }
+    if("yes".equals(getChannelConfig("WindowAutoTuning", type))){
+      size=getChannelConfigSize("WindowSizeMax", type);
+      if(size>0){
+        channel.setLocalWindowSizeLimit(size);
+      }
+    }
+  }
+
+  /**
+   * returns a size option for channels of some type.
+   * @return the value of the option, or -1 if it is not set or
+   *   not a positive number.
+   */
+  private int getChannelConfigSize(String key, String type){
+    String value=getChannelConfig(key, type);
+    if(value==null){
+      return -1;
+    }
+    int size=-1;
+    try{
+      size=Integer.parseInt(value.trim());
+    }
+    catch(NumberFormatException e){
+    }
+    if(size<=0){
+      if(jsch.getLogger().isEnabled(Logger.WARN)){
+        jsch.getLogger().log(Logger.WARN,
+                             "ignoring invalid value of "+key+" for "+type+
+                             " channels: "+value);
+      }
+      return -1;
+    }
+    return size;
+  }
+
+  /**
+   * returns a numeric option. Each option is checked on its own: an
+   * invalid value is logged and ignored.
+   * @param min the smallest valid value.
+   * @param max the largest valid value.
+   * @param def the value used if the option is not set or invalid.
+   */
+  private long getConfigNumber(String key, long min, long max, long def){
+    String value=getConfig(key);
+    if(value==null){
+      return def;
+    }
+    try{
+      long n=Long.parseLong(value.trim());
+      if(min<=n && n<=max){
+        return n;
+      }
+    }
+    catch(NumberFormatException e){
+    }
+    if(jsch.getLogger().isEnabled(Logger.WARN)){
+      jsch.getLogger().log(Logger.WARN,
+                           "ignoring invalid value of "+key+": "+value);
+    }
+    return def;
+  }
+
+  /**
+   * returns a configuration option for channels of some type: the
+   * value of {@code key.type} if set, else the value of {@code key}.
+   */
+  private String getChannelConfig(String key, String type){
+    String value=getConfig(key+"."+type);
+    if(value==null){
+      value=getConfig(key);
+    }
+    return value;
+  }
+
+  void removeChannel(Channel channel){
+    channels.remove(channel);
+  }
+
+  /**
+   * returns the channel with the given (local) id, or null.
+   */
+  Channel getChannel(int id){
+    return channels.get(id);
+  }
+
+  /**
+   * returns a snapshot of all the channels of this session.
+   */
+  Channel[] getChannels(){
+    return channels.toArray();
   }
 
   /**
@@ -2727,11 +3300,16 @@ break;
    * Rogaway attack).
    */
   public void sendIgnore() throws Exception{
-    Buffer buf=new Buffer();
+    Buffer buf=BufferPool.getBuffer(1024);
     Packet packet=new Packet(buf);
-    packet.reset();
-    buf.putByte((byte)SSH_MSG_IGNORE);
-    write(packet);
+    try{
+      packet.reset();
+      buf.putByte((byte)SSH_MSG_IGNORE);
+      write(packet);
+    }
+    finally{
+      BufferPool.release(buf);
+    }
   }
 
   private static final byte[] keepalivemsg=Util.str2byte("keepalive@jcraft.com");
@@ -2741,24 +3319,34 @@ break;
    * This is used internally, but can also be called by users.
    */
   public void sendKeepAliveMsg() throws Exception{
-    Buffer buf=new Buffer();
+    Buffer buf=BufferPool.getBuffer(1024);
     Packet packet=new Packet(buf);
-    packet.reset();
-    buf.putByte((byte)SSH_MSG_GLOBAL_REQUEST);
-    buf.putString(keepalivemsg);
-    buf.putByte((byte)1);
-    write(packet);
+    try{
+      packet.reset();
+      buf.putByte((byte)SSH_MSG_GLOBAL_REQUEST);
+      buf.putString(keepalivemsg);
+      buf.putByte((byte)1);
+      write(packet);
+    }
+    finally{
+      BufferPool.release(buf);
+    }
   }
 
   private static final byte[] nomoresessions=Util.str2byte("no-more-sessions@openssh.com");
   public void noMoreSessionChannels() throws Exception{
-    Buffer buf=new Buffer();
+    Buffer buf=BufferPool.getBuffer(1024);
     Packet packet=new Packet(buf);
-    packet.reset();
-    buf.putByte((byte)SSH_MSG_GLOBAL_REQUEST);
-    buf.putString(nomoresessions);
-    buf.putByte((byte)0);
-    write(packet);
+    try{
+      packet.reset();
+      buf.putByte((byte)SSH_MSG_GLOBAL_REQUEST);
+      buf.putString(nomoresessions);
+      buf.putByte((byte)0);
+      write(packet);
+    }
+    finally{
+      BufferPool.release(buf);
+    }
   }
   
   private HostKey hostkey=null;
@@ -2910,7 +3498,7 @@ break;
 
   static boolean checkCipher(String cipher){
     try{
-      Class c=Class.forName(cipher);
+      Class c=JSch.loadClass(cipher);
       Cipher _c=(Cipher)(c.newInstance());
       _c.init(Cipher.ENCRYPT_MODE,
               new byte[_c.getBlockSize()],
@@ -2920,6 +3508,10 @@ break;
     catch(Exception e){
       return false;
     }
+    catch(NoClassDefFoundError e){
+      // e.g. javax.crypto.spec.GCMParameterSpec before Java 7
+      return false;
+    }
   }
 
   private String[] checkKexes(String kexes){
@@ -2955,7 +3547,7 @@ break;
 
   static boolean checkKex(Session s, String kex){
     try{
-      Class c=Class.forName(kex);
+      Class c=JSch.loadClass(kex);
       KeyExchange _c=(KeyExchange)(c.newInstance());
       _c.init(s ,null, null, null, null);
       return true;
@@ -2976,7 +3568,7 @@ break;
     String[] _sigs=Util.split(sigs, ",");
     for(int i=0; i<_sigs.length; i++){
       try{      
-        Class c=Class.forName((String)jsch.getConfig(_sigs[i]));
+        Class c=JSch.loadClass((String)jsch.getConfig(_sigs[i]));
         final Signature sig=(Signature)(c.newInstance());
         sig.init();
       }
@@ -206,7 +206,7 @@ public class SftpATTRS {
   int mtime;
   String[] extended=null;
 
-  private SftpATTRS(){
+  SftpATTRS(){
   }
 
   /**
@@ -241,6 +241,42 @@ public class SftpATTRS {
     return attr;
   } 
 
+  /**
+   * returns a copy of this object.
+   */
+  SftpATTRS copy(){
+    SftpATTRS attr=new SftpATTRS();
+    attr.flags=flags;
+    attr.size=size;
+    attr.uid=uid;
+    attr.gid=gid;
+    attr.permissions=permissions;
+    attr.atime=atime;
+    attr.mtime=mtime;
+    if(extended!=null){
+      attr.extended=extended.clone();
+    }
+    return attr;
+  }
+
+  /**
+   * skips an ATTR structure in a buffer, without parsing it.
+   */
+  static void skipATTR(Buffer buf){
+    int flags=buf.getInt();
+    if((flags&SSH_FILEXFER_ATTR_SIZE)!=0){ buf.s+=8; }
+    if((flags&SSH_FILEXFER_ATTR_UIDGID)!=0){ buf.s+=8; }
+    if((flags&SSH_FILEXFER_ATTR_PERMISSIONS)!=0){ buf.s+=4; }
+    if((flags&SSH_FILEXFER_ATTR_ACMODTIME)!=0){ buf.s+=8; }
+    if((flags&SSH_FILEXFER_ATTR_EXTENDED)!=0){
+      int count=buf.getInt();
+      for(int i=0; i<count*2; i++){
+        int len=buf.getInt();
+        buf.s+=len;
+      }
+    }
+  }
+
   /**
    * returns the length of the ATTR structure this object
    * would be serialized to.
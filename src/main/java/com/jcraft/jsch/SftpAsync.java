@@ -0,0 +1,529 @@
+/* -*-mode:java; c-basic-offset:2; indent-tabs-mode:nil -*- */
+/*
+Copyright (c) 2002-2016 ymnk, JCraft,Inc. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+  1. Redistributions of source code must retain the above copyright notice,
+     this list of conditions and the following disclaimer.
+
+  2. Redistributions in binary form must reproduce the above copyright 
+     notice, this list of conditions and the following disclaimer in 
+     the documentation and/or other materials provided with the distribution.
+
+  3. The names of the authors may not be used to endorse or promote products
+     derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL JCRAFT,
+INC. OR ANY CONTRIBUTORS TO THIS SOFTWARE BE LIABLE FOR ANY DIRECT, INDIRECT,
+INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.jcraft.jsch;
+
+import java.io.InputStream;
+import java.io.IOException;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Vector;
+
+/**
+ * Sends SFTP requests without waiting for their responses.
+ *<p>
+ * Each method sends a request over the given {@link ChannelSftp}
+ * and returns a {@link SftpFuture} at once. Any number of requests
+ * may be outstanding; the responses are read by a background thread
+ * and matched to their requests by the request id, so that slow
+ * requests don't hold back the other ones. The thread exits when no
+ * requests are left.
+ *</p>
+ *<p>
+ * The blocking methods of the channel (and of its {@link SftpFile}s)
+ * must not be used while requests sent by this object are
+ * outstanding, as they read the same responses.
+ *</p>
+ * Paths are resolved relative to the current remote directory of
+ * the channel, but are not globbed.
+ */
+public class SftpAsync{
+
+  private static final byte SSH_FXP_OPENDIR=          11;
+  private static final byte SSH_FXP_READDIR=          12;
+  private static final byte SSH_FXP_CLOSE=             4;
+  private static final byte SSH_FXP_LSTAT=             7;
+  private static final byte SSH_FXP_SETSTAT=           9;
+  private static final byte SSH_FXP_REMOVE=           13;
+  private static final byte SSH_FXP_MKDIR=            14;
+  private static final byte SSH_FXP_RMDIR=            15;
+  private static final byte SSH_FXP_REALPATH=         16;
+  private static final byte SSH_FXP_STAT=             17;
+  private static final byte SSH_FXP_RENAME=           18;
+  private static final byte SSH_FXP_STATUS=          101;
+  private static final byte SSH_FXP_HANDLE=          102;
+  private static final byte SSH_FXP_NAME=            104;
+  private static final byte SSH_FXP_ATTRS=           105;
+
+  private final ChannelSftp channel;
+  private final Buffer buf;
+  private final Packet packet;
+
+  private final Hashtable pending=new Hashtable();
+  private Thread reader=null;
+
+  /**
+   * creates an object sending requests over the given channel.
+   * @param channel a connected channel.
+   */
+  public SftpAsync(ChannelSftp channel) throws SftpException{
+    if(!channel.isConnected()){
+      throw new SftpException(ChannelSftp.SSH_FX_FAILURE,
+                              "The channel is not connected.");
+    }
+    this.channel=channel;
+    buf=new Buffer(channel.rmpsize);
+    packet=new Packet(buf);
+  }
+
+  /**
+   * returns the number of requests waiting for their responses.
+   */
+  public int getPendingCount(){
+    return pending.size();
+  }
+
+  /**
+   * requests the attributes of a file, following symbolic links.
+   * The result is a {@link SftpATTRS}.
+   */
+  public SftpFuture stat(String path){
+    return send(SSH_FXP_STAT, path, new AttrsRequest());
+  }
+
+  /**
+   * requests the attributes of a file, not following symbolic links.
+   * The result is a {@link SftpATTRS}.
+   */
+  public SftpFuture lstat(String path){
+    return send(SSH_FXP_LSTAT, path, new AttrsRequest());
+  }
+
+  /**
+   * requests the canonical absolute path of a file.
+   * The result is a {@link String}.
+   */
+  public SftpFuture realpath(String path){
+    return send(SSH_FXP_REALPATH, path, new RealpathRequest());
+  }
+
+  /**
+   * requests the creation of a directory. The result is {@code null}.
+   */
+  public SftpFuture mkdir(String path){
+    Request r=new StatusRequest();
+    try{
+      byte[] _path=change(path);
+      synchronized(buf){
+        start(SSH_FXP_MKDIR, r, 4+_path.length+4);
+        buf.putString(_path);
+        buf.putInt(0);           // attrs
+        finish(r);
+      }
+    }
+    catch(Exception e){
+      fail(r, e);
+    }
+    return r.future;
+  }
+
+  /**
+   * requests the removal of an empty directory.
+   * The result is {@code null}.
+   */
+  public SftpFuture rmdir(String path){
+    Request r=new StatusRequest();
+    try{
+      send(SSH_FXP_RMDIR, change(path), r);
+    }
+    catch(Exception e){
+      fail(r, e);
+    }
+    return r.future;
+  }
+
+  /**
+   * requests the removal of a file. The result is {@code null}.
+   */
+  public SftpFuture rm(String path){
+    Request r=new StatusRequest();
+    try{
+      send(SSH_FXP_REMOVE, change(path), r);
+    }
+    catch(Exception e){
+      fail(r, e);
+    }
+    return r.future;
+  }
+
+  /**
+   * requests a file to be renamed. The result is {@code null}.
+   */
+  public SftpFuture rename(String oldpath, String newpath){
+    Request r=new StatusRequest();
+    try{
+      byte[] p1=change(oldpath);
+      byte[] p2=change(newpath);
+      synchronized(buf){
+        start(SSH_FXP_RENAME, r, 4+p1.length+4+p2.length);
+        buf.putString(p1);
+        buf.putString(p2);
+        finish(r);
+      }
+    }
+    catch(Exception e){
+      fail(r, e);
+    }
+    return r.future;
+  }
+
+  /**
+   * requests the attributes of a file to be changed.
+   * The result is {@code null}.
+   */
+  public SftpFuture setStat(String path, SftpATTRS attrs){
+    Request r=new StatusRequest();
+    try{
+      byte[] _path=change(path);
+      synchronized(buf){
+        start(SSH_FXP_SETSTAT, r, 4+_path.length+attrs.length());
+        buf.putString(_path);
+        attrs.dump(buf);
+        finish(r);
+      }
+    }
+    catch(Exception e){
+      fail(r, e);
+    }
+    return r.future;
+  }
+
+  /**
+   * requests the contents of a directory. The result is a
+   * {@link java.util.Vector} of {@link ChannelSftp.LsEntry}s.
+   */
+  public SftpFuture ls(String path){
+    Request r=new ListRequest();
+    return send(SSH_FXP_OPENDIR, path, r);
+  }
+
+  private byte[] encode(String path) throws SftpException{
+    return Util.str2byte(channel.remoteAbsolutePath(path),
+                         channel.getFilenameEncoding());
+  }
+
+  /**
+   * encodes a path to be changed, dropping the metadata cached by
+   * the channel for it.
+   */
+  private byte[] change(String path) throws SftpException{
+    path=channel.remoteAbsolutePath(path);
+    channel.invalidate(path);
+    return Util.str2byte(path, channel.getFilenameEncoding());
+  }
+
+  private SftpFuture send(byte type, String path, Request r){
+    try{
+      send(type, encode(path), r);
+    }
+    catch(Exception e){
+      fail(r, e);
+    }
+    return r.future;
+  }
+
+  private void send(byte type, byte[] str, Request r) throws Exception{
+    synchronized(buf){
+      start(type, r, 4+str.length);
+      buf.putString(str);
+      finish(r);
+    }
+  }
+
+  /**
+   * starts a request of the given type, whose fields after the id
+   * have the given length.
+   * @throws SftpException if the request does not fit into one
+   *   packet of the channel.
+   */
+  private void start(byte type, Request r, int length) throws SftpException{
+    if(1+4+4+4+1+4+length+Session.buffer_margin>buf.buffer.length){
+      throw new SftpException(ChannelSftp.SSH_FX_FAILURE,
+                              "request too long: "+length+" bytes");
+    }
+    r.id=channel.nextRequestId();
+    packet.reset();
+    buf.putByte((byte)Session.SSH_MSG_CHANNEL_DATA);
+    buf.putInt(channel.recipient);
+    buf.putInt(length+9+4);
+    buf.putInt(length+9);
+    buf.putByte(type);
+    buf.putInt(r.id);
+  }
+
+  private void finish(Request r) throws Exception{
+    int length=buf.getLength()-(1+4+4);
+    synchronized(pending){
+      pending.put(Integer.valueOf(r.id), r);
+      if(reader==null){
+        reader=new Thread(new Reader());
+        reader.setName("SftpAsync for "+channel.getSession().getHost());
+        reader.setDaemon(true);
+        reader.start();
+      }
+    }
+    try{
+      channel.getSession().write(packet, channel, length);
+    }
+    catch(Exception e){
+      forget(r);
+      throw e;
+    }
+  }
+
+  /**
+   * removes a request from the pending ones, if it is still waiting
+   * for the response to its last id. A {@link ListRequest} registers
+   * itself again with a new id for each step.
+   */
+  private void forget(Request r){
+    synchronized(pending){
+      Integer id=Integer.valueOf(r.id);
+      if(pending.get(id)==r){
+        pending.remove(id);
+      }
+    }
+  }
+
+  private void fail(Request r, Exception e){
+    if(e instanceof SftpException){
+      r.future.fail((SftpException)e);
+    }
+    else{
+      r.future.fail(new SftpException(ChannelSftp.SSH_FX_FAILURE,
+                                      e.toString(), e));
+    }
+  }
+
+  private SftpException statusError(Buffer buf, int i){
+    if(buf.getLength()>=4){
+      byte[] str=buf.getString();
+      return new SftpException(i, Util.byte2str(str, "UTF-8"));
+    }
+    return new SftpException(i, "Failure");
+  }
+
+  private SftpException unexpected(int type){
+    return new SftpException(ChannelSftp.SSH_FX_FAILURE,
+                             "unexpected response: "+type);
+  }
+
+  /**
+   * reads the responses and dispatches them to their requests.
+   */
+  private class Reader implements Runnable{
+    public void run(){
+      InputStream in=channel.getResponseStream();
+      byte[] head=new byte[9];
+      Buffer h=new Buffer(head);
+      try{
+        while(true){
+          synchronized(pending){
+            if(pending.isEmpty()){
+              reader=null;
+              return;
+            }
+          }
+          fill(in, head, 0, 9);
+          h.rewind();
+          int length=h.getInt()-5;
+          int type=h.getByte()&0xff;
+          int id=h.getInt();
+          if(length<0){
+            throw new IOException("invalid packet length: "+length);
+          }
+          byte[] data=new byte[length];
+          fill(in, data, 0, length);
+          Request r;
+          synchronized(pending){
+            r=(Request)pending.remove(Integer.valueOf(id));
+          }
+          if(r==null){
+            continue;
+          }
+          try{
+            r.response(type, new Buffer(data));
+          }
+          catch(Exception e){
+            // the request may have sent its next step already
+            forget(r);
+            fail(r, e);
+          }
+        }
+      }
+      catch(IOException e){
+        Vector requests=new Vector();
+        synchronized(pending){
+          for(Enumeration en=pending.elements(); en.hasMoreElements();){
+            requests.addElement(en.nextElement());
+          }
+          pending.clear();
+          reader=null;
+        }
+        for(int i=0; i<requests.size(); i++){
+          fail((Request)requests.elementAt(i), e);
+        }
+      }
+    }
+
+    private void fill(InputStream in, byte[] b, int s, int len)
+      throws IOException{
+      while(len>0){
+        int i=in.read(b, s, len);
+        if(i<=0){
+          throw new IOException("inputstream is closed");
+        }
+        s+=i;
+        len-=i;
+      }
+    }
+  }
+
+  private abstract class Request{
+    int id;
+    final SftpFuture future=new SftpFuture();
+    /**
+     * handles the response, which has the given type and whose
+     * fields after the id are in the buffer.
+     */
+    abstract void response(int type, Buffer buf) throws Exception;
+  }
+
+  private class StatusRequest extends Request{
+    void response(int type, Buffer buf) throws Exception{
+      if(type!=SSH_FXP_STATUS){
+        throw unexpected(type);
+      }
+      int i=buf.getInt();
+      if(i!=ChannelSftp.SSH_FX_OK){
+        throw statusError(buf, i);
+      }
+      future.set(null);
+    }
+  }
+
+  private class AttrsRequest extends Request{
+    void response(int type, Buffer buf) throws Exception{
+      if(type==SSH_FXP_STATUS){
+        throw statusError(buf, buf.getInt());
+      }
+      if(type!=SSH_FXP_ATTRS){
+        throw unexpected(type);
+      }
+      future.set(SftpATTRS.getATTR(buf));
+    }
+  }
+
+  private class RealpathRequest extends Request{
+    void response(int type, Buffer buf) throws Exception{
+      if(type==SSH_FXP_STATUS){
+        throw statusError(buf, buf.getInt());
+      }
+      if(type!=SSH_FXP_NAME){
+        throw unexpected(type);
+      }
+      int count=buf.getInt();
+      if(count<1){
+        throw unexpected(type);
+      }
+      byte[] str=buf.getString();
+      future.set(Util.byte2str(str, channel.getFilenameEncoding()));
+    }
+  }
+
+  /**
+   * lists a directory: opens it, then reads it until the end and
+   * closes it, each step being sent when the former one's response
+   * arrives.
+   */
+  private class ListRequest extends Request{
+    private byte[] handle=null;
+    private final Vector entries=new Vector();
+    private boolean closing=false;
+    private SftpException error=null;
+
+    void response(int type, Buffer buf) throws Exception{
+      if(type==SSH_FXP_STATUS){
+        int i=buf.getInt();
+        if(handle==null){
+          throw statusError(buf, i);
+        }
+        if(closing){
+          if(error!=null){
+            throw error;
+          }
+          if(i!=ChannelSftp.SSH_FX_OK){
+            throw statusError(buf, i);
+          }
+          future.set(entries);
+          return;
+        }
+        if(i!=ChannelSftp.SSH_FX_EOF){
+          error=statusError(buf, i);
+        }
+        closing=true;
+        next(SSH_FXP_CLOSE);
+        return;
+      }
+      if(type==SSH_FXP_HANDLE && handle==null){
+        handle=buf.getString();
+        next(SSH_FXP_READDIR);
+        return;
+      }
+      if(type!=SSH_FXP_NAME || handle==null){
+        throw unexpected(type);
+      }
+      int version=channel.getServerVersion();
+      int count=buf.getInt();
+      while(count>0){
+        byte[] filename=buf.getString();
+        byte[] longname=null;
+        if(version<=3){
+          longname=buf.getString();
+        }
+        SftpATTRS attrs=SftpATTRS.getATTR(buf);
+        String f=Util.byte2str(filename, channel.getFilenameEncoding());
+        String l=null;
+        if(longname==null){
+          l=attrs.toString()+" "+f;
+        }
+        else{
+          l=Util.byte2str(longname, channel.getFilenameEncoding());
+        }
+        entries.addElement(channel.new LsEntry(f, l, attrs));
+        count--;
+      }
+      next(SSH_FXP_READDIR);
+    }
+
+    private void next(byte type) throws Exception{
+      send(type, handle, this);
+    }
+  }
+}
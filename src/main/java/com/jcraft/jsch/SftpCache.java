@@ -0,0 +1,152 @@
+/* -*-mode:java; c-basic-offset:2; indent-tabs-mode:nil -*- */
+/*
+Copyright (c) 2002-2016 ymnk, JCraft,Inc. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+  1. Redistributions of source code must retain the above copyright notice,
+     this list of conditions and the following disclaimer.
+
+  2. Redistributions in binary form must reproduce the above copyright 
+     notice, this list of conditions and the following disclaimer in 
+     the documentation and/or other materials provided with the distribution.
+
+  3. The names of the authors may not be used to endorse or promote products
+     derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL JCRAFT,
+INC. OR ANY CONTRIBUTORS TO THIS SOFTWARE BE LIABLE FOR ANY DIRECT, INDIRECT,
+INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.jcraft.jsch;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A cache of remote metadata, for {@link ChannelSftp}.
+ *<p>
+ * The entries (attributes, canonical paths, glob results, or the
+ * fact that a file doesn't exist) are kept for a limited time, and
+ * only the least recently used ones are kept if there are too many.
+ * A change of a path drops all entries for the path, its parent
+ * directory and everything below it.
+ *</p>
+ */
+class SftpCache{
+
+  static final char STAT='s';
+  static final char LSTAT='l';
+  static final char REALPATH='r';
+  static final char GLOB='g';
+
+  private final long ttl;
+  private final LinkedHashMap entries;
+
+  private long hits=0;
+  private long misses=0;
+
+  private static class Entry{
+    final String path;        // the path whose changes invalidate this
+    final Object value;
+    final long expires;
+    Entry(String path, Object value, long expires){
+      this.path=path;
+      this.value=value;
+      this.expires=expires;
+    }
+  }
+
+  /**
+   * @param ttl how long an entry is valid, in milliseconds.
+   * @param max_size the number of entries kept at most.
+   */
+  SftpCache(long ttl, final int max_size){
+    this.ttl=ttl;
+    entries=new LinkedHashMap(16, 0.75f, true){
+        protected boolean removeEldestEntry(Map.Entry eldest){
+          return size()>max_size;
+        }
+      };
+  }
+
+  /**
+   * looks up an entry.
+   * @param kind the kind of the entry, e.g. {@link #STAT}.
+   * @param key the path (or pattern) it is for.
+   * @return the value, or {@code null} if there is no valid entry.
+   */
+  synchronized Object get(char kind, String key){
+    String k=kind+key;
+    Entry e=(Entry)entries.get(k);
+    if(e!=null && e.expires-System.currentTimeMillis()<0){
+      entries.remove(k);
+      e=null;
+    }
+    if(e==null){
+      misses++;
+      return null;
+    }
+    hits++;
+    return e.value;
+  }
+
+  /**
+   * adds an entry.
+   * @param kind the kind of the entry, e.g. {@link #STAT}.
+   * @param key the path (or pattern) it is for.
+   * @param path the path whose changes invalidate the entry.
+   * @param value the value.
+   */
+  synchronized void put(char kind, String key, String path, Object value){
+    entries.put(kind+key,
+                new Entry(path, value, System.currentTimeMillis()+ttl));
+  }
+
+  /**
+   * drops the entries which may have been changed by a change of a
+   * path.
+   */
+  synchronized void invalidate(String path){
+    if(entries.isEmpty()){
+      return;
+    }
+    String parent=path;
+    int i=path.lastIndexOf('/');
+    if(i>0){
+      parent=path.substring(0, i);
+    }
+    else if(i==0){
+      parent="/";
+    }
+    String prefix=path.endsWith("/") ? path : path+"/";
+    for(Iterator it=entries.values().iterator(); it.hasNext();){
+      String p=((Entry)it.next()).path;
+      if(p.equals(path) || p.equals(parent) || p.startsWith(prefix)){
+        it.remove();
+      }
+    }
+  }
+
+  synchronized void clear(){
+    entries.clear();
+  }
+
+  synchronized long getHits(){
+    return hits;
+  }
+
+  synchronized long getMisses(){
+    return misses;
+  }
+}
@@ -0,0 +1,226 @@
+/* -*-mode:java; c-basic-offset:2; indent-tabs-mode:nil -*- */
+/*
+Copyright (c) 2002-2016 ymnk, JCraft,Inc. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+  1. Redistributions of source code must retain the above copyright notice,
+     this list of conditions and the following disclaimer.
+
+  2. Redistributions in binary form must reproduce the above copyright 
+     notice, this list of conditions and the following disclaimer in 
+     the documentation and/or other materials provided with the distribution.
+
+  3. The names of the authors may not be used to endorse or promote products
+     derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL JCRAFT,
+INC. OR ANY CONTRIBUTORS TO THIS SOFTWARE BE LIABLE FOR ANY DIRECT, INDIRECT,
+INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.jcraft.jsch;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A remote directory opened for reading its entries, by
+ * {@link ChannelSftp#openDirectory ChannelSftp.openDirectory}.
+ *<p>
+ * The entries are returned as {@link ChannelSftp.LsEntry}s, which
+ * decode their file name, longname and attributes only when asked
+ * for them; only the responses to a few READDIR requests are held in
+ * memory at any time. The next READDIR requests are sent before the
+ * entries of the current one have been consumed, so reading the
+ * directory takes about one round trip per batch less.
+ *</p>
+ *<p>
+ * As long as the directory is open, requests for it are outstanding,
+ * so the channel must not be used otherwise until all entries have
+ * been read or the directory has been closed.
+ *</p>
+ * The {@link Iterator} methods throw an {@link IllegalStateException}
+ * with the {@link SftpException} as its cause if a request fails.
+ */
+public class SftpDirectory implements Iterator{
+
+  /**
+   * the number of READDIR requests kept outstanding.
+   */
+  private static final int AHEAD=4;
+
+  private final ChannelSftp channel;
+  private final byte[] pattern;
+  private final int version;
+  private byte[] handle;
+
+  private final int[] ids=new int[AHEAD];   // the outstanding requests,
+  private int first=0;                      //   from ids[first] on
+  private int outstanding=0;
+  private boolean eof=false;
+
+  private Buffer names=null;                // the current response
+  private int count=0;                      // the entries left in it
+  private ChannelSftp.LsEntry next=null;
+
+  SftpDirectory(ChannelSftp channel, byte[] handle, byte[] pattern)
+    throws SftpException{
+    this.channel=channel;
+    this.handle=handle;
+    this.pattern=pattern;
+    this.version=channel.getServerVersion();
+  }
+
+  /**
+   * returns the next entry.
+   * @return the entry, or {@code null} if all entries have been read.
+   * @throws SftpException if some problem occurred.
+   */
+  public ChannelSftp.LsEntry nextEntry() throws SftpException{
+    if(next!=null){
+      ChannelSftp.LsEntry entry=next;
+      next=null;
+      return entry;
+    }
+    return fetch();
+  }
+
+  public boolean hasNext(){
+    if(next==null){
+      try{
+        next=fetch();
+      }
+      catch(SftpException e){
+        throw new IllegalStateException(e.toString(), e);
+      }
+    }
+    return next!=null;
+  }
+
+  /**
+   * returns the next entry, as a {@link ChannelSftp.LsEntry}.
+   */
+  public Object next(){
+    if(!hasNext()){
+      throw new NoSuchElementException();
+    }
+    ChannelSftp.LsEntry entry=next;
+    next=null;
+    return entry;
+  }
+
+  /**
+   * is not supported.
+   */
+  public void remove(){
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * tells whether this directory is still open.
+   */
+  public boolean isOpen(){
+    return handle!=null;
+  }
+
+  /**
+   * closes this directory. This waits for the responses to the
+   * outstanding requests, which are dropped.
+   */
+  public void close() throws SftpException{
+    synchronized(channel.file_lock){
+      if(handle==null){
+        return;
+      }
+      eof=true;
+      while(outstanding>0){
+        try{
+          receive();
+        }
+        catch(SftpException e){
+        }
+      }
+      byte[] _handle=handle;
+      handle=null;
+      names=null;
+      count=0;
+      channel._close(_handle);
+    }
+  }
+
+  private ChannelSftp.LsEntry fetch() throws SftpException{
+    synchronized(channel.file_lock){
+      while(true){
+        while(count==0){
+          if(handle==null){
+            return null;
+          }
+          while(!eof && outstanding<AHEAD){
+            ids[(first+outstanding)%AHEAD]=channel._sendREADDIR(handle);
+            outstanding++;
+          }
+          if(outstanding==0){
+            close();
+            return null;
+          }
+          receive();
+        }
+        count--;
+
+        byte[] data=names.buffer;
+        int filename_offset=names.s;
+        byte[] filename=null;
+        if(pattern!=null){
+          filename=names.getString();
+        }
+        else{
+          int len=names.getInt();
+          names.s+=len;
+        }
+        int longname_offset=-1;
+        if(version<=3){
+          longname_offset=names.s;
+          int len=names.getInt();
+          names.s+=len;
+        }
+        int attrs_offset=names.s;
+        SftpATTRS.skipATTR(names);
+
+        if(filename!=null && !channel.matches(pattern, filename)){
+          continue;
+        }
+        return channel.new LsEntry(data, filename_offset,
+                                   longname_offset, attrs_offset);
+      }
+    }
+  }
+
+  /**
+   * reads the response to the first outstanding request.
+   */
+  private void receive() throws SftpException{
+    int id=ids[first];
+    first=(first+1)%AHEAD;
+    outstanding--;
+    byte[] data=channel._readNAME(id);
+    if(data==null){
+      eof=true;
+      return;
+    }
+    if(eof){
+      return;
+    }
+    names=new Buffer(data);
+    names.index=data.length;
+    count=names.getInt();
+  }
+}
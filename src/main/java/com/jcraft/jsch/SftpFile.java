@@ -0,0 +1,335 @@
+/* -*-mode:java; c-basic-offset:2; indent-tabs-mode:nil -*- */
+/*
+Copyright (c) 2002-2016 ymnk, JCraft,Inc. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+  1. Redistributions of source code must retain the above copyright notice,
+     this list of conditions and the following disclaimer.
+
+  2. Redistributions in binary form must reproduce the above copyright 
+     notice, this list of conditions and the following disclaimer in 
+     the documentation and/or other materials provided with the distribution.
+
+  3. The names of the authors may not be used to endorse or promote products
+     derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL JCRAFT,
+INC. OR ANY CONTRIBUTORS TO THIS SOFTWARE BE LIABLE FOR ANY DIRECT, INDIRECT,
+INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.jcraft.jsch;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+
+/**
+ * A remote file opened for random access, by
+ * {@link ChannelSftp#open ChannelSftp.open}.
+ *<p>
+ * The file is read and written at explicit positions, using the same
+ * handle for all requests. The variants taking several positions and
+ * buffers send their requests without waiting for the responses, so
+ * reading many small ranges costs about one round trip instead of one
+ * per range.
+ *</p>
+ *<p>
+ * This also is a {@link ByteChannel} with a current position, similar
+ * to a {@code java.nio.channels.SeekableByteChannel}.
+ *</p>
+ *<p>
+ * All requests go through the {@link ChannelSftp} which opened the
+ * file. The requests of its files are serialized, but the channel
+ * should not be used otherwise by other threads at the same time.
+ *</p>
+ */
+public class SftpFile implements ByteChannel{
+
+  /**
+   * Flag for {@link ChannelSftp#open}: open the file for reading.
+   */
+  public static final int READ=      0x00000001;
+
+  /**
+   * Flag for {@link ChannelSftp#open}: open the file for writing.
+   */
+  public static final int WRITE=     0x00000002;
+
+  /**
+   * Flag for {@link ChannelSftp#open}: create the file if it
+   * doesn't exist.
+   */
+  public static final int CREATE=    0x00000008;
+
+  /**
+   * Flag for {@link ChannelSftp#open}: truncate an existing file.
+   */
+  public static final int TRUNCATE=  0x00000010;
+
+  /**
+   * Flag for {@link ChannelSftp#open}: fail if the file exists
+   * (together with {@link #CREATE}).
+   */
+  public static final int EXCLUSIVE= 0x00000020;
+
+  private final ChannelSftp channel;
+  private final String path;
+  private byte[] handle;
+  private long position=0;
+
+  SftpFile(ChannelSftp channel, String path, byte[] handle){
+    this.channel=channel;
+    this.path=path;
+    this.handle=handle;
+  }
+
+  /**
+   * returns the absolute remote path of this file.
+   */
+  public String getPath(){
+    return path;
+  }
+
+  /**
+   * reads from the given position.
+   * @param position the offset in the file.
+   * @param dst the buffer to fill. Its position is advanced by the
+   *   number of bytes read.
+   * @return the number of bytes read, which is less than the space
+   *   in {@code dst} only at the end of the file, or -1 if
+   *   {@code position} is at or behind the end of the file.
+   */
+  public int read(long position, ByteBuffer dst) throws SftpException{
+    if(!dst.hasRemaining()){
+      return 0;
+    }
+    int[] counts=read(new long[]{position}, new ByteBuffer[]{dst});
+    return (counts[0]==0 ? -1 : counts[0]);
+  }
+
+  /**
+   * reads several ranges, with all requests outstanding at once
+   * (as far as the channel allows).
+   * @param positions the offsets in the file, one for each buffer.
+   * @param dsts the buffers to fill. Their positions are advanced
+   *   by the number of bytes read into them.
+   * @return the number of bytes read into each buffer, which is less
+   *   than its space only at the end of the file.
+   */
+  public int[] read(long[] positions, ByteBuffer[] dsts) throws SftpException{
+    if(positions.length!=dsts.length){
+      throw new IllegalArgumentException("positions and buffers differ in number");
+    }
+    int[] counts=new int[dsts.length];
+    synchronized(channel.file_lock){
+      channel._read(getHandle(), positions, dsts, counts);
+    }
+    return counts;
+  }
+
+  /**
+   * writes at the given position.
+   * @param position the offset in the file.
+   * @param src the data, which is written completely.
+   * @return the number of bytes written.
+   */
+  public int write(long position, ByteBuffer src) throws SftpException{
+    int count=src.remaining();
+    write(new long[]{position}, new ByteBuffer[]{src});
+    return count;
+  }
+
+  /**
+   * writes several ranges, with all requests outstanding at once
+   * (as far as the channel allows).
+   * @param positions the offsets in the file, one for each buffer.
+   * @param srcs the data, which is written completely.
+   */
+  public void write(long[] positions, ByteBuffer[] srcs) throws SftpException{
+    if(positions.length!=srcs.length){
+      throw new IllegalArgumentException("positions and buffers differ in number");
+    }
+    synchronized(channel.file_lock){
+      channel._write(getHandle(), positions, srcs);
+    }
+    channel.invalidate(path);
+  }
+
+  /**
+   * returns the attributes of this file.
+   */
+  public SftpATTRS stat() throws SftpException{
+    synchronized(channel.file_lock){
+      return channel._fstat(getHandle());
+    }
+  }
+
+  /**
+   * returns the current size of this file.
+   */
+  public long size() throws SftpException{
+    return stat().getSize();
+  }
+
+  /**
+   * changes the size of this file.
+   */
+  public void truncate(long size) throws SftpException{
+    synchronized(channel.file_lock){
+      SftpATTRS attr=channel._fstat(getHandle());
+      attr.setFLAGS(0);
+      attr.setSIZE(size);
+      channel._fsetstat(getHandle(), attr);
+    }
+    channel.invalidate(path);
+    if(position>size){
+      position=size;
+    }
+  }
+
+  /**
+   * copies a part of this file into another file opened by the same
+   * channel. If the server supports it, the data is copied by the
+   * server without passing through the network.
+   * @param position the offset in this file.
+   * @param count the number of bytes to copy, or 0 to copy everything
+   *   up to the end of this file.
+   * @param target the file to write.
+   * @param targetPosition the offset in {@code target}.
+   * @see ChannelSftp#copy
+   */
+  public void transferTo(long position, long count, SftpFile target,
+                         long targetPosition) throws SftpException{
+    if(target.channel!=channel){
+      throw new IllegalArgumentException("target belongs to another channel");
+    }
+    synchronized(channel.file_lock){
+      channel._copy(getHandle(), position, count,
+                    target.getHandle(), targetPosition);
+    }
+    channel.invalidate(target.path);
+  }
+
+  /**
+   * calculates a hash of a part of this file. If the server supports
+   * it, the hash is calculated by the server.
+   * @param algorithm the hash algorithm, like {@code "sha256"}.
+   * @param position the offset of the data.
+   * @param count the length of the data, or 0 to use everything up
+   *   to the end of this file.
+   * @see ChannelSftp#checksum
+   */
+  public byte[] checksum(String algorithm, long position,
+                         long count) throws SftpException{
+    synchronized(channel.file_lock){
+      return channel._checksum(getHandle(), algorithm, position, count);
+    }
+  }
+
+  /**
+   * returns the current position, used by {@link #read(ByteBuffer)}
+   * and {@link #write(ByteBuffer)}.
+   */
+  public long position(){
+    return position;
+  }
+
+  /**
+   * sets the current position.
+   * @return this file.
+   */
+  public SftpFile position(long position){
+    if(position<0){
+      throw new IllegalArgumentException("position: "+position);
+    }
+    this.position=position;
+    return this;
+  }
+
+  /**
+   * reads from the current position, and advances it.
+   * @return the number of bytes read, or -1 at the end of the file.
+   */
+  public int read(ByteBuffer dst) throws IOException{
+    try{
+      int i=read(position, dst);
+      if(i>0){
+        position+=i;
+      }
+      return i;
+    }
+    catch(SftpException e){
+      throw toIOException(e);
+    }
+  }
+
+  /**
+   * writes at the current position, and advances it.
+   * @return the number of bytes written.
+   */
+  public int write(ByteBuffer src) throws IOException{
+    try{
+      int i=write(position, src);
+      position+=i;
+      return i;
+    }
+    catch(SftpException e){
+      throw toIOException(e);
+    }
+  }
+
+  public boolean isOpen(){
+    return handle!=null;
+  }
+
+  /**
+   * closes the remote handle. This does not close the channel.
+   */
+  public void close() throws IOException{
+    byte[] _handle;
+    synchronized(this){
+      _handle=handle;
+      handle=null;
+    }
+    if(_handle==null){
+      return;
+    }
+    try{
+      synchronized(channel.file_lock){
+        channel._close(_handle);
+      }
+    }
+    catch(SftpException e){
+      throw toIOException(e);
+    }
+  }
+
+  private byte[] getHandle() throws SftpException{
+    byte[] _handle=handle;
+    if(_handle==null){
+      throw new SftpException(ChannelSftp.SSH_FX_FAILURE,
+                              "file is closed", new ClosedChannelException());
+    }
+    return _handle;
+  }
+
+  private static IOException toIOException(SftpException e){
+    if(e.getCause() instanceof IOException){
+      return (IOException)e.getCause();
+    }
+    IOException ee=new IOException(e.toString());
+    ee.initCause(e);
+    return ee;
+  }
+}
@@ -0,0 +1,186 @@
+/* -*-mode:java; c-basic-offset:2; indent-tabs-mode:nil -*- */
+/*
+Copyright (c) 2002-2016 ymnk, JCraft,Inc. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+  1. Redistributions of source code must retain the above copyright notice,
+     this list of conditions and the following disclaimer.
+
+  2. Redistributions in binary form must reproduce the above copyright 
+     notice, this list of conditions and the following disclaimer in 
+     the documentation and/or other materials provided with the distribution.
+
+  3. The names of the authors may not be used to endorse or promote products
+     derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL JCRAFT,
+INC. OR ANY CONTRIBUTORS TO THIS SOFTWARE BE LIABLE FOR ANY DIRECT, INDIRECT,
+INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.jcraft.jsch;
+
+import java.util.Vector;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The pending result of a request sent by {@link SftpAsync}.
+ *<p>
+ * The result can be waited for with {@link #getResult}, which
+ * throws the {@link SftpException} of a failed request, or with the
+ * methods of {@link Future}, which wrap it in an
+ * {@link ExecutionException}. A {@link Callback} is notified once the
+ * result is there.
+ *</p>
+ * Requests can't be cancelled once sent.
+ */
+public class SftpFuture implements Future{
+
+  /**
+   * is notified when a request has been completed.
+   */
+  public interface Callback{
+    /**
+     * called when the result is there, by the thread reading the
+     * responses. This should not block, and must not wait for other
+     * requests of the same {@link SftpAsync}.
+     */
+    void completed(SftpFuture future);
+  }
+
+  private boolean done=false;
+  private Object result=null;
+  private SftpException error=null;
+  private Vector callbacks=null;
+
+  SftpFuture(){
+  }
+
+  /**
+   * adds a callback, which is called at once if the request has
+   * already been completed.
+   */
+  public void addCallback(Callback callback){
+    synchronized(this){
+      if(!done){
+        if(callbacks==null){
+          callbacks=new Vector();
+        }
+        callbacks.addElement(callback);
+        return;
+      }
+    }
+    callback.completed(this);
+  }
+
+  /**
+   * waits for the result.
+   * @return the result, whose type depends on the request.
+   * @throws SftpException if the request failed.
+   */
+  public synchronized Object getResult() throws SftpException{
+    boolean interrupted=false;
+    while(!done){
+      try{
+        wait();
+      }
+      catch(InterruptedException e){
+        interrupted=true;
+      }
+    }
+    if(interrupted){
+      Thread.currentThread().interrupt();
+    }
+    if(error!=null){
+      throw error;
+    }
+    return result;
+  }
+
+  /**
+   * returns the exception of a failed request, or {@code null}
+   * if it has not failed (yet).
+   */
+  public synchronized SftpException getException(){
+    return error;
+  }
+
+  public boolean cancel(boolean mayInterruptIfRunning){
+    return false;
+  }
+
+  public boolean isCancelled(){
+    return false;
+  }
+
+  public synchronized boolean isDone(){
+    return done;
+  }
+
+  public synchronized Object get()
+    throws InterruptedException, ExecutionException{
+    while(!done){
+      wait();
+    }
+    if(error!=null){
+      throw new ExecutionException(error);
+    }
+    return result;
+  }
+
+  public synchronized Object get(long timeout, TimeUnit unit)
+    throws InterruptedException, ExecutionException, TimeoutException{
+    long end=System.currentTimeMillis()+unit.toMillis(timeout);
+    while(!done){
+      long t=end-System.currentTimeMillis();
+      if(t<=0){
+        throw new TimeoutException();
+      }
+      wait(t);
+    }
+    if(error!=null){
+      throw new ExecutionException(error);
+    }
+    return result;
+  }
+
+  void set(Object result){
+    complete(result, null);
+  }
+
+  void fail(SftpException error){
+    complete(null, error);
+  }
+
+  private void complete(Object result, SftpException error){
+    Vector _callbacks;
+    synchronized(this){
+      if(done){
+        return;
+      }
+      this.result=result;
+      this.error=error;
+      done=true;
+      notifyAll();
+      _callbacks=callbacks;
+      callbacks=null;
+    }
+    if(_callbacks!=null){
+      for(int i=0; i<_callbacks.size(); i++){
+        ((Callback)_callbacks.elementAt(i)).completed(this);
+      }
+    }
+  }
+}
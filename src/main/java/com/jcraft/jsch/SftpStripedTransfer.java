@@ -0,0 +1,474 @@
+/* -*-mode:java; c-basic-offset:2; indent-tabs-mode:nil -*- */
+/*
+Copyright (c) 2002-2016 ymnk, JCraft,Inc. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+  1. Redistributions of source code must retain the above copyright notice,
+     this list of conditions and the following disclaimer.
+
+  2. Redistributions in binary form must reproduce the above copyright 
+     notice, this list of conditions and the following disclaimer in 
+     the documentation and/or other materials provided with the distribution.
+
+  3. The names of the authors may not be used to endorse or promote products
+     derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL JCRAFT,
+INC. OR ANY CONTRIBUTORS TO THIS SOFTWARE BE LIABLE FOR ANY DIRECT, INDIRECT,
+INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.jcraft.jsch;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Vector;
+
+/**
+ * Transfers a single file over several sftp channels at once.
+ *<p>
+ * The file is split into stripes (byte ranges), which are handed out
+ * to the channels one after another; each channel reads or writes its
+ * stripes at explicit offsets. As every channel has its own window,
+ * this is faster than a single channel if the window, not the network,
+ * limits the throughput. The channels may belong to one session or to
+ * several ones (and then use several TCP connections).
+ *</p>
+ *<p>
+ * If a channel fails, the rest of its stripe is transferred by one of
+ * the others. The transfer only fails if no channel is left.
+ *</p>
+ *<p>
+ * The channels must not be used otherwise while a transfer is running.
+ * File names are not expanded as patterns.
+ *</p>
+ */
+public class SftpStripedTransfer{
+
+  private static final long MIN_STRIPE_SIZE=1024*1024;
+
+  private final ChannelSftp[] channels;
+  private long stripe_size=64*1024*1024;
+
+  /**
+   * creates a new striped transfer.
+   * @param channels the connected sftp channels to use. Relative file
+   *   names are resolved with the first one.
+   */
+  public SftpStripedTransfer(ChannelSftp[] channels){
+    if(channels.length==0){
+      throw new IllegalArgumentException("no channels");
+    }
+    this.channels=channels.clone();
+  }
+
+  /**
+   * opens sftp channels for a striped transfer.
+   * @param sessions the connected sessions to use, in turn.
+   * @param count the number of channels to open.
+   */
+  public static SftpStripedTransfer open(Session[] sessions, int count)
+    throws JSchException{
+    ChannelSftp[] channels=new ChannelSftp[count];
+    try{
+      for(int i=0; i<count; i++){
+        channels[i]=(ChannelSftp)sessions[i%sessions.length].openChannel("sftp");
+        channels[i].connect();
+      }
+    }
+    catch(JSchException e){
+      for(int i=0; i<count; i++){
+        if(channels[i]!=null){
+          channels[i].disconnect();
+        }
+      }
+      throw e;
+    }
+    return new SftpStripedTransfer(channels);
+  }
+
+  /**
+   * sets the largest size of a stripe. Smaller files are split into
+   * one stripe per channel. The default is 64 MB.
+   */
+  public void setStripeSize(long stripe_size){
+    if(stripe_size<=0){
+      throw new IllegalArgumentException("stripe size: "+stripe_size);
+    }
+    this.stripe_size=stripe_size;
+  }
+
+  /**
+   * disconnects all channels.
+   */
+  public void disconnect(){
+    for(int i=0; i<channels.length; i++){
+      channels[i].disconnect();
+    }
+  }
+
+  /**
+   * Downloads a file.
+   * @param src the source file name, relative to the current remote
+   *    directory of the first channel.
+   * @param dst the destination file name, relative to the current
+   *    local directory of the first channel.
+   * @param monitor an object receiving notifications about the progress
+   *    of the operation. Can be {@code null}.
+   * @param mode the transfer mode, one of {@link ChannelSftp#RESUME},
+   *  {@link ChannelSftp#APPEND}, {@link ChannelSftp#OVERWRITE}. If the
+   *  download fails, the destination is truncated after the data
+   *  received without gaps, so it can be resumed.
+   * @throws SftpException if some problem occurred.
+   */
+  public void get(String src, String dst,
+                  SftpProgressMonitor monitor, int mode) throws SftpException{
+    src=channels[0].remoteAbsolutePath(src);
+    dst=localPath(dst);
+    long size=channels[0].stat(src).getSize();
+    RandomAccessFile raf=null;
+    try{
+      raf=new RandomAccessFile(dst, "rw");
+      FileChannel fc=raf.getChannel();
+      if(mode==ChannelSftp.OVERWRITE){
+        fc.truncate(0);
+      }
+      long skip=(mode==ChannelSftp.RESUME ? fc.size() : 0);
+      if(skip>size){
+        throw new SftpException(ChannelSftp.SSH_FX_FAILURE,
+                                "failed to resume for "+dst);
+      }
+      long position=fc.size();
+      if(monitor!=null){
+        monitor.init(SftpProgressMonitor.GET, src, dst, size);
+        monitor.count(skip);
+      }
+      Transfer transfer=new Transfer(SftpProgressMonitor.GET, src, fc,
+                                     position, skip, size, monitor);
+      try{
+        transfer.run();
+      }
+      finally{
+        fc.truncate(position+transfer.getDone()-skip);
+      }
+      if(monitor!=null){
+        monitor.end();
+      }
+    }
+    catch(IOException e){
+      throw new SftpException(ChannelSftp.SSH_FX_FAILURE, e.toString(), e);
+    }
+    finally{
+      if(raf!=null){
+        try{ raf.close(); }
+        catch(IOException e){ }
+      }
+    }
+  }
+
+  /**
+   * Uploads a file.
+   * @param src the source file name, relative to the current local
+   *    directory of the first channel.
+   * @param dst the destination file name, relative to the current
+   *    remote directory of the first channel.
+   * @param monitor an object receiving notifications about the progress
+   *    of the operation. Can be {@code null}.
+   * @param mode the transfer mode, one of {@link ChannelSftp#RESUME},
+   *  {@link ChannelSftp#APPEND}, {@link ChannelSftp#OVERWRITE}. If the
+   *  upload fails, the destination is truncated (if any channel is still
+   *  usable) after the data written without gaps, so it can be resumed.
+   * @throws SftpException if some problem occurred.
+   */
+  public void put(String src, String dst,
+                  SftpProgressMonitor monitor, int mode) throws SftpException{
+    src=localPath(src);
+    dst=channels[0].remoteAbsolutePath(dst);
+    RandomAccessFile raf=null;
+    try{
+      raf=new RandomAccessFile(src, "r");
+      FileChannel fc=raf.getChannel();
+      long size=fc.size();
+      long remote=0;
+      if(mode==ChannelSftp.OVERWRITE){
+        // create or truncate the file before the stripes are written
+        channels[0]._put(fc, 0, 0, dst, 0, true, null, new long[1]);
+      }
+      else{
+        try{
+          remote=channels[0].stat(dst).getSize();
+        }
+        catch(SftpException e){
+          if(e.id!=ChannelSftp.SSH_FX_NO_SUCH_FILE){
+            throw e;
+          }
+        }
+      }
+      long skip=0;
+      long position=0;
+      if(mode==ChannelSftp.RESUME){
+        if(remote>size){
+          throw new SftpException(ChannelSftp.SSH_FX_FAILURE,
+                                  "failed to resume for "+dst);
+        }
+        skip=remote;
+        position=remote;
+      }
+      else if(mode==ChannelSftp.APPEND){
+        position=remote;
+      }
+      if(monitor!=null){
+        monitor.init(SftpProgressMonitor.PUT, src, dst, size);
+        monitor.count(skip);
+      }
+      Transfer transfer=new Transfer(SftpProgressMonitor.PUT, dst, fc,
+                                     position, skip, size, monitor);
+      try{
+        transfer.run();
+      }
+      catch(SftpException e){
+        transfer.truncate(position+transfer.getDone()-skip);
+        throw e;
+      }
+      if(monitor!=null){
+        monitor.end();
+      }
+    }
+    catch(IOException e){
+      throw new SftpException(ChannelSftp.SSH_FX_FAILURE, e.toString(), e);
+    }
+    finally{
+      if(raf!=null){
+        try{ raf.close(); }
+        catch(IOException e){ }
+      }
+    }
+  }
+
+  private String localPath(String path){
+    if(new File(path).isAbsolute()){
+      return path;
+    }
+    return new File(channels[0].lpwd(), path).getPath();
+  }
+
+  /**
+   * one striped transfer: the stripes still to be done, and the
+   * threads (one per channel) doing them.
+   */
+  private class Transfer implements SftpProgressMonitor{
+    private final int op;
+    private final String path;
+    private final FileChannel file;
+    private final long base;        // the position in the destination
+                                    //   is base+offset in the source
+    private final long size;
+    private final SftpProgressMonitor monitor;
+
+    private final Vector stripes=new Vector();   // of long[]{start, end}
+    private final long[][] running;              // per channel
+    private boolean cancelled=false;
+    private SftpException error=null;
+
+    Transfer(int op, String path, FileChannel file,
+             long position, long skip, long size,
+             SftpProgressMonitor monitor){
+      this.op=op;
+      this.path=path;
+      this.file=file;
+      this.base=position-skip;
+      this.size=size;
+      this.monitor=monitor;
+
+      long length=size-skip;
+      long stripe=Math.min(stripe_size,
+                           (length+channels.length-1)/channels.length);
+      stripe=Math.max(stripe, MIN_STRIPE_SIZE);
+      for(long start=skip; start<size; start+=stripe){
+        stripes.addElement(new long[]{start, Math.min(start+stripe, size)});
+      }
+      running=new long[channels.length][];
+    }
+
+    /**
+     * transfers all stripes.
+     * @throws SftpException the last error if no channel is left.
+     */
+    void run() throws SftpException{
+      Thread[] threads=new Thread[channels.length];
+      for(int i=0; i<channels.length; i++){
+        final int j=i;
+        threads[i]=new Thread(new Runnable(){
+            public void run(){
+              work(j);
+            }
+          });
+        threads[i].setName("SftpStripedTransfer "+i);
+        threads[i].start();
+      }
+      boolean interrupted=false;
+      for(int i=0; i<threads.length; i++){
+        while(true){
+          try{
+            threads[i].join();
+            break;
+          }
+          catch(InterruptedException e){
+            interrupted=true;
+            synchronized(this){
+              cancelled=true;
+            }
+          }
+        }
+      }
+      if(interrupted){
+        Thread.currentThread().interrupt();
+      }
+      synchronized(this){
+        if(!stripes.isEmpty() && error!=null){
+          throw error;
+        }
+      }
+    }
+
+    /**
+     * returns the offset in the source up to which the data has been
+     * transferred without gaps.
+     */
+    synchronized long getDone(){
+      long done=size;
+      for(int i=0; i<stripes.size(); i++){
+        done=Math.min(done, ((long[])stripes.elementAt(i))[0]);
+      }
+      for(int i=0; i<running.length; i++){
+        if(running[i]!=null){
+          done=Math.min(done, running[i][0]);
+        }
+      }
+      return done;
+    }
+
+    /**
+     * truncates the remote file, with any channel still usable.
+     */
+    void truncate(long size){
+      for(int i=0; i<channels.length; i++){
+        if(!channels[i].isConnected()){
+          continue;
+        }
+        try{
+          SftpATTRS attr=channels[i].stat(path);
+          if(attr.getSize()>size){
+            attr.setFLAGS(0);
+            attr.setSIZE(size);
+            channels[i].setStat(path, attr);
+          }
+          return;
+        }
+        catch(SftpException e){
+        }
+      }
+    }
+
+    /**
+     * returns the next stripe for a channel, or null if there is
+     * nothing left to do. While other channels are busy, this waits
+     * for them, as they might fail and leave a part of their stripe.
+     */
+    private synchronized long[] next(int i){
+      running[i]=null;
+      notifyAll();
+      while(!cancelled && stripes.isEmpty() && isRunning()){
+        try{
+          wait();
+        }
+        catch(InterruptedException e){
+          cancelled=true;
+        }
+      }
+      if(cancelled || stripes.isEmpty()){
+        return null;
+      }
+      long[] stripe=(long[])stripes.elementAt(0);
+      stripes.removeElementAt(0);
+      running[i]=stripe;
+      return stripe;
+    }
+
+    private boolean isRunning(){
+      for(int i=0; i<running.length; i++){
+        if(running[i]!=null){
+          return true;
+        }
+      }
+      return false;
+    }
+
+    private void work(int i){
+      ChannelSftp channel=channels[i];
+      long[] done=new long[1];
+      long[] stripe;
+      while((stripe=next(i))!=null){
+        long start=stripe[0];
+        long end=stripe[1];
+        done[0]=start;
+        try{
+          if(op==SftpProgressMonitor.GET){
+            channel._get(path, file, base+start, this, start, end, done);
+          }
+          else{
+            channel._put(file, start, end, path, base+start, false, this, done);
+          }
+          if(done[0]<end){   // cancelled
+            synchronized(this){
+              stripe[0]=done[0];
+              stripes.addElement(stripe);
+            }
+          }
+        }
+        catch(SftpException e){
+          synchronized(this){
+            // leave the rest of the stripe to the other channels
+            running[i]=null;
+            stripe[0]=done[0];
+            if(stripe[0]<end){
+              stripes.insertElementAt(stripe, 0);
+            }
+            error=e;
+            notifyAll();
+          }
+          return;
+        }
+      }
+    }
+
+    // SftpProgressMonitor, shared by all channels
+
+    public void init(int op, String src, String dest, long max){
+    }
+
+    public synchronized boolean count(long count){
+      if(cancelled){
+        return false;
+      }
+      if(monitor!=null && !monitor.count(count)){
+        cancelled=true;
+      }
+      return !cancelled;
+    }
+
+    public void end(){
+    }
+  }
+}
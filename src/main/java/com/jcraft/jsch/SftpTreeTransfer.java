@@ -0,0 +1,784 @@
+/* -*-mode:java; c-basic-offset:2; indent-tabs-mode:nil -*- */
+/*
+Copyright (c) 2002-2016 ymnk, JCraft,Inc. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+  1. Redistributions of source code must retain the above copyright notice,
+     this list of conditions and the following disclaimer.
+
+  2. Redistributions in binary form must reproduce the above copyright 
+     notice, this list of conditions and the following disclaimer in 
+     the documentation and/or other materials provided with the distribution.
+
+  3. The names of the authors may not be used to endorse or promote products
+     derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL JCRAFT,
+INC. OR ANY CONTRIBUTORS TO THIS SOFTWARE BE LIABLE FOR ANY DIRECT, INDIRECT,
+INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.jcraft.jsch;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Vector;
+
+/**
+ * Copies directory trees over one or several sftp channels.
+ *<p>
+ * The remote directories are listed with an {@link SftpAsync} on the
+ * first channel, several of them at once, so the walk is not slowed
+ * down by one round trip per directory. The files found are copied
+ * by the other channels in the meantime, one file per channel, and
+ * by the first channel too when the walk is done.
+ *</p>
+ *<p>
+ * Regular files whose size and modification time (in seconds) are
+ * the same at both ends are skipped; the copied files get the
+ * modification time of their source. Symbolic links and special
+ * files are left out. In mirror mode, files and directories missing
+ * in the source are removed from the destination.
+ *</p>
+ *<p>
+ * The channels must not be used otherwise while a transfer is running.
+ * File names are not expanded as patterns.
+ *</p>
+ */
+public class SftpTreeTransfer{
+
+  private final ChannelSftp[] channels;
+  private int max_listings=16;
+  private boolean mirror=false;
+
+  // statistics of the last transfer
+  private int file_count=0;
+  private int skip_count=0;
+  private int remove_count=0;
+  private long byte_count=0;
+  private long elapsed=0;       // nanoseconds
+
+  /**
+   * creates a new tree transfer.
+   * @param channels the connected sftp channels to use. Relative file
+   *   names are resolved with the first one.
+   */
+  public SftpTreeTransfer(ChannelSftp[] channels){
+    if(channels.length==0){
+      throw new IllegalArgumentException("no channels");
+    }
+    this.channels=channels.clone();
+  }
+
+  /**
+   * opens sftp channels for a tree transfer.
+   * @param sessions the connected sessions to use, in turn.
+   * @param count the number of channels to open, which is the number
+   *   of files transferred at once.
+   */
+  public static SftpTreeTransfer open(Session[] sessions, int count)
+    throws JSchException{
+    ChannelSftp[] channels=new ChannelSftp[count];
+    try{
+      for(int i=0; i<count; i++){
+        channels[i]=(ChannelSftp)sessions[i%sessions.length].openChannel("sftp");
+        channels[i].connect();
+      }
+    }
+    catch(JSchException e){
+      for(int i=0; i<count; i++){
+        if(channels[i]!=null){
+          channels[i].disconnect();
+        }
+      }
+      throw e;
+    }
+    return new SftpTreeTransfer(channels);
+  }
+
+  /**
+   * sets how many directories may be listed at once.
+   * The default is 16.
+   */
+  public void setMaxListings(int max_listings){
+    if(max_listings<=0){
+      throw new IllegalArgumentException("max listings: "+max_listings);
+    }
+    this.max_listings=max_listings;
+  }
+
+  /**
+   * enables or disables the mirror mode, where files and directories
+   * not existing in the source are removed from the destination.
+   * It is disabled by default.
+   */
+  public void setMirror(boolean mirror){
+    this.mirror=mirror;
+  }
+
+  /**
+   * disconnects all channels.
+   */
+  public void disconnect(){
+    for(int i=0; i<channels.length; i++){
+      channels[i].disconnect();
+    }
+  }
+
+  /**
+   * Downloads a directory tree (or a single file).
+   * @param src the source directory, relative to the current remote
+   *    directory of the first channel.
+   * @param dst the destination directory, relative to the current
+   *    local directory of the first channel. It is created if needed.
+   * @param monitor an object receiving notifications about the progress
+   *    of the operation, with the number of bytes of all files.
+   *    Can be {@code null}.
+   * @throws SftpException if some problem occurred. The files copied
+   *    so far are kept.
+   */
+  public void download(String src, String dst,
+                       SftpProgressMonitor monitor) throws SftpException{
+    src=channels[0].remoteAbsolutePath(src);
+    File local=new File(localPath(dst));
+    SftpATTRS attrs=channels[0].stat(src);
+    Sync sync=new Sync(SftpProgressMonitor.GET, monitor);
+    Dir root=null;
+    if(attrs.isDir()){
+      if(!local.isDirectory() && !local.mkdirs()){
+        throw new SftpException(ChannelSftp.SSH_FX_FAILURE,
+                                "failed to create "+local);
+      }
+      root=new Dir(src, local);
+    }
+    else if(unchanged(local, attrs)){
+      sync.skip_count++;
+    }
+    else{
+      sync.add(new Task(src, local, attrs.getSize(), attrs.getMTime()));
+    }
+    if(monitor!=null){
+      monitor.init(SftpProgressMonitor.GET, src, local.getPath(),
+                   SftpProgressMonitor.UNKNOWN_SIZE);
+    }
+    sync.run(root);
+  }
+
+  /**
+   * Uploads a directory tree (or a single file).
+   * @param src the source directory, relative to the current local
+   *    directory of the first channel.
+   * @param dst the destination directory, relative to the current
+   *    remote directory of the first channel. It is created if it
+   *    doesn't exist, but its parent must exist.
+   * @param monitor an object receiving notifications about the progress
+   *    of the operation, with the number of bytes of all files.
+   *    Can be {@code null}.
+   * @throws SftpException if some problem occurred. The files copied
+   *    so far are kept.
+   */
+  public void upload(String src, String dst,
+                     SftpProgressMonitor monitor) throws SftpException{
+    File local=new File(localPath(src));
+    dst=channels[0].remoteAbsolutePath(dst);
+    Sync sync=new Sync(SftpProgressMonitor.PUT, monitor);
+    Dir root=null;
+    if(local.isDirectory()){
+      root=new Dir(dst, local);
+    }
+    else if(local.isFile()){
+      SftpATTRS attrs=null;
+      try{
+        attrs=channels[0].stat(dst);
+      }
+      catch(SftpException e){
+        if(e.id!=ChannelSftp.SSH_FX_NO_SUCH_FILE){
+          throw e;
+        }
+      }
+      if(attrs!=null && unchanged(local, attrs)){
+        sync.skip_count++;
+      }
+      else{
+        sync.add(new Task(dst, local, local.length(),
+                          (int)(local.lastModified()/1000)));
+      }
+    }
+    else{
+      throw new SftpException(ChannelSftp.SSH_FX_NO_SUCH_FILE,
+                              "No such file: "+local);
+    }
+    if(monitor!=null){
+      monitor.init(SftpProgressMonitor.PUT, local.getPath(), dst,
+                   SftpProgressMonitor.UNKNOWN_SIZE);
+    }
+    sync.run(root);
+  }
+
+  /**
+   * returns the number of files copied by the last transfer.
+   */
+  public int getFileCount(){
+    return file_count;
+  }
+
+  /**
+   * returns the number of files skipped by the last transfer, as
+   * they were unchanged.
+   */
+  public int getSkippedCount(){
+    return skip_count;
+  }
+
+  /**
+   * returns the number of files and directories removed by the last
+   * transfer in mirror mode.
+   */
+  public int getRemovedCount(){
+    return remove_count;
+  }
+
+  /**
+   * returns the number of bytes copied by the last transfer.
+   */
+  public long getByteCount(){
+    return byte_count;
+  }
+
+  /**
+   * returns the duration of the last transfer in milliseconds.
+   */
+  public long getElapsedTime(){
+    return elapsed/1000000;
+  }
+
+  /**
+   * returns the average throughput of the last transfer, in bytes
+   * per second.
+   */
+  public long getThroughput(){
+    if(elapsed<=0){
+      return 0;
+    }
+    return (long)(byte_count*1e9/elapsed);
+  }
+
+  private String localPath(String path){
+    if(new File(path).isAbsolute()){
+      return path;
+    }
+    return new File(channels[0].lpwd(), path).getPath();
+  }
+
+  private static String child(String dir, String name){
+    if(dir.endsWith("/")){
+      return dir+name;
+    }
+    return dir+"/"+name;
+  }
+
+  private static boolean unchanged(File local, SftpATTRS attrs){
+    return attrs.isReg() && local.isFile() &&
+      local.length()==attrs.getSize() &&
+      local.lastModified()/1000==attrs.getMTime();
+  }
+
+  /**
+   * a directory to be listed (and, on upload, maybe created).
+   */
+  private static class Dir{
+    final String remote;
+    final File local;
+    boolean create=false;
+    SftpFuture future;
+    Dir(String remote, File local){
+      this.remote=remote;
+      this.local=local;
+    }
+  }
+
+  /**
+   * a file to be copied, with its size and modification time as
+   * found by the walk. Only this size is downloaded.
+   */
+  private static class Task{
+    final String remote;
+    final File local;
+    final long size;
+    final int mtime;
+    Task(String remote, File local, long size, int mtime){
+      this.remote=remote;
+      this.local=local;
+      this.size=size;
+      this.mtime=mtime;
+    }
+  }
+
+  private class Sync implements SftpProgressMonitor{
+    private final int op;
+    private final SftpProgressMonitor monitor;
+
+    // the walk, done by the calling thread with the first channel
+    private SftpAsync async;
+    private final Vector dirs=new Vector();       // Dirs not yet sent
+    private final Vector completed=new Vector();  // Dirs with a result
+    private int outstanding=0;
+
+    private final Vector tasks=new Vector();
+    private boolean listed=false;
+    private boolean cancelled=false;
+    private SftpException error=null;
+
+    int file_count=0;
+    int skip_count=0;
+    int remove_count=0;
+    long byte_count=0;
+
+    Sync(int op, SftpProgressMonitor monitor){
+      this.op=op;
+      this.monitor=monitor;
+    }
+
+    /**
+     * walks the tree from the given directory (if any) and copies
+     * the files found.
+     */
+    void run(Dir root) throws SftpException{
+      long start=System.nanoTime();
+      Thread[] threads=new Thread[channels.length-1];
+      for(int i=0; i<threads.length; i++){
+        final int j=i+1;
+        threads[i]=new Thread(new Runnable(){
+            public void run(){
+              work(j);
+            }
+          });
+        threads[i].setName("SftpTreeTransfer "+j);
+        threads[i].start();
+      }
+      try{
+        if(root!=null){
+          walk(root);
+        }
+      }
+      catch(SftpException e){
+        failed(e);
+      }
+      finally{
+        synchronized(this){
+          listed=true;
+          notifyAll();
+        }
+      }
+      work(0);
+      boolean interrupted=false;
+      for(int i=0; i<threads.length; i++){
+        while(true){
+          try{
+            threads[i].join();
+            break;
+          }
+          catch(InterruptedException e){
+            interrupted=true;
+            synchronized(this){
+              cancelled=true;
+            }
+          }
+        }
+      }
+      if(interrupted){
+        Thread.currentThread().interrupt();
+      }
+      synchronized(this){
+        SftpTreeTransfer.this.file_count=file_count;
+        SftpTreeTransfer.this.skip_count=skip_count;
+        SftpTreeTransfer.this.remove_count=remove_count;
+        SftpTreeTransfer.this.byte_count=byte_count;
+      }
+      elapsed=System.nanoTime()-start;
+      if(monitor!=null){
+        monitor.end();
+      }
+      synchronized(this){
+        if(error!=null){
+          throw error;
+        }
+      }
+    }
+
+    private synchronized void failed(SftpException e){
+      if(error==null){
+        error=e;
+      }
+      cancelled=true;
+      notifyAll();
+    }
+
+    synchronized void add(Task task){
+      tasks.addElement(task);
+      notifyAll();
+    }
+
+    /**
+     * lists the directories, keeping up to {@code max_listings}
+     * requests outstanding, and queues the files to be copied.
+     * Returns only when no request is outstanding any more, so the
+     * first channel can be used again.
+     */
+    private void walk(Dir root) throws SftpException{
+      async=new SftpAsync(channels[0]);
+      try{
+        send(root);
+        while(true){
+          Dir dir;
+          synchronized(this){
+            while(!cancelled && completed.isEmpty() && outstanding>0){
+              try{
+                wait();
+              }
+              catch(InterruptedException e){
+                cancelled=true;
+              }
+            }
+            if(cancelled || completed.isEmpty()){
+              break;
+            }
+            dir=(Dir)completed.elementAt(0);
+            completed.removeElementAt(0);
+          }
+          process(dir);
+          while(!dirs.isEmpty() && outstanding<max_listings){
+            Dir d=(Dir)dirs.elementAt(0);
+            dirs.removeElementAt(0);
+            send(d);
+          }
+        }
+      }
+      finally{
+        synchronized(this){
+          while(outstanding>0){
+            try{
+              wait();
+            }
+            catch(InterruptedException e){
+              cancelled=true;
+            }
+          }
+        }
+      }
+    }
+
+    /**
+     * sends the request for a directory, or queues it if there are
+     * too many outstanding.
+     */
+    private void send(final Dir dir){
+      synchronized(this){
+        if(outstanding>=max_listings){
+          dirs.addElement(dir);
+          return;
+        }
+        outstanding++;
+      }
+      if(dir.create){
+        dir.future=async.mkdir(dir.remote);
+      }
+      else{
+        dir.future=async.ls(dir.remote);
+      }
+      dir.future.addCallback(new SftpFuture.Callback(){
+          public void completed(SftpFuture future){
+            synchronized(Sync.this){
+              completed.addElement(dir);
+              outstanding--;
+              Sync.this.notifyAll();
+            }
+          }
+        });
+    }
+
+    private void process(Dir dir) throws SftpException{
+      Hashtable remote=new Hashtable();
+      try{
+        Object result=dir.future.getResult();
+        if(result!=null){
+          Vector entries=(Vector)result;
+          for(int i=0; i<entries.size(); i++){
+            ChannelSftp.LsEntry e=(ChannelSftp.LsEntry)entries.elementAt(i);
+            String name=e.getFilename();
+            if(!name.equals(".") && !name.equals("..")){
+              remote.put(name, e.getAttrs());
+            }
+          }
+        }
+      }
+      catch(SftpException e){
+        if(op==SftpProgressMonitor.PUT && !dir.create &&
+           e.id==ChannelSftp.SSH_FX_NO_SUCH_FILE){
+          dir.create=true;
+          send(dir);
+          return;
+        }
+        throw e;
+      }
+      if(op==SftpProgressMonitor.GET){
+        processGet(dir, remote);
+      }
+      else{
+        processPut(dir, remote);
+      }
+    }
+
+    private void processGet(Dir dir, Hashtable remote) throws SftpException{
+      for(Enumeration e=remote.keys(); e.hasMoreElements();){
+        String name=(String)e.nextElement();
+        SftpATTRS attrs=(SftpATTRS)remote.get(name);
+        File local=new File(dir.local, name);
+        String path=child(dir.remote, name);
+        if(attrs.isDir()){
+          if(!local.isDirectory()){
+            if(local.exists() && mirror){
+              removeLocal(local);
+            }
+            if(!local.mkdir()){
+              throw new SftpException(ChannelSftp.SSH_FX_FAILURE,
+                                      "failed to create "+local);
+            }
+          }
+          send(new Dir(path, local));
+        }
+        else if(attrs.isReg()){
+          if(unchanged(local, attrs)){
+            synchronized(this){ skip_count++; }
+          }
+          else{
+            if(local.isDirectory() && mirror){
+              removeLocal(local);
+            }
+            add(new Task(path, local, attrs.getSize(), attrs.getMTime()));
+          }
+        }
+      }
+      if(mirror){
+        String[] names=dir.local.list();
+        for(int i=0; names!=null && i<names.length; i++){
+          if(!remote.containsKey(names[i])){
+            removeLocal(new File(dir.local, names[i]));
+          }
+        }
+      }
+    }
+
+    private void processPut(Dir dir, Hashtable remote) throws SftpException{
+      File[] files=dir.local.listFiles();
+      if(files==null){
+        throw new SftpException(ChannelSftp.SSH_FX_FAILURE,
+                                "failed to list "+dir.local);
+      }
+      Hashtable local=new Hashtable();
+      for(int i=0; i<files.length; i++){
+        File file=files[i];
+        String name=file.getName();
+        String path=child(dir.remote, name);
+        SftpATTRS attrs=(SftpATTRS)remote.get(name);
+        local.put(name, file);
+        if(file.isDirectory()){
+          Dir d=new Dir(path, file);
+          if(attrs==null || !attrs.isDir()){
+            if(attrs!=null && mirror){
+              removeRemote(path, attrs);
+            }
+            d.create=true;
+          }
+          send(d);
+        }
+        else if(file.isFile()){
+          if(attrs!=null && unchanged(file, attrs)){
+            synchronized(this){ skip_count++; }
+          }
+          else{
+            if(attrs!=null && attrs.isDir() && mirror){
+              removeRemote(path, attrs);
+            }
+            add(new Task(path, file, file.length(),
+                         (int)(file.lastModified()/1000)));
+          }
+        }
+      }
+      if(mirror){
+        for(Enumeration e=remote.keys(); e.hasMoreElements();){
+          String name=(String)e.nextElement();
+          if(!local.containsKey(name)){
+            removeRemote(child(dir.remote, name),
+                         (SftpATTRS)remote.get(name));
+          }
+        }
+      }
+    }
+
+    private void removeLocal(File file) throws SftpException{
+      File[] files=file.isDirectory() ? file.listFiles() : null;
+      for(int i=0; files!=null && i<files.length; i++){
+        removeLocal(files[i]);
+      }
+      if(!file.delete()){
+        throw new SftpException(ChannelSftp.SSH_FX_FAILURE,
+                                "failed to remove "+file);
+      }
+      synchronized(this){ remove_count++; }
+    }
+
+    private void removeRemote(String path, SftpATTRS attrs)
+      throws SftpException{
+      if(attrs.isDir()){
+        Vector entries=(Vector)async.ls(path).getResult();
+        for(int i=0; i<entries.size(); i++){
+          ChannelSftp.LsEntry e=(ChannelSftp.LsEntry)entries.elementAt(i);
+          String name=e.getFilename();
+          if(!name.equals(".") && !name.equals("..")){
+            removeRemote(child(path, name), e.getAttrs());
+          }
+        }
+        async.rmdir(path).getResult();
+      }
+      else{
+        async.rm(path).getResult();
+      }
+      synchronized(this){ remove_count++; }
+    }
+
+    /**
+     * returns the next file to copy, or null if there is nothing
+     * left to do.
+     */
+    private synchronized Task next(){
+      while(!cancelled && tasks.isEmpty() && !listed){
+        try{
+          wait();
+        }
+        catch(InterruptedException e){
+          cancelled=true;
+        }
+      }
+      if(cancelled || tasks.isEmpty()){
+        return null;
+      }
+      Task task=(Task)tasks.elementAt(0);
+      tasks.removeElementAt(0);
+      return task;
+    }
+
+    private void work(int i){
+      ChannelSftp channel=channels[i];
+      Task task;
+      while((task=next())!=null){
+        try{
+          if(op==SftpProgressMonitor.GET){
+            get(channel, task);
+          }
+          else{
+            put(channel, task);
+          }
+        }
+        catch(SftpException e){
+          failed(e);
+          return;
+        }
+      }
+    }
+
+    private void get(ChannelSftp channel, Task task) throws SftpException{
+      long[] done=new long[1];
+      RandomAccessFile raf=null;
+      try{
+        raf=new RandomAccessFile(task.local, "rw");
+        FileChannel fc=raf.getChannel();
+        fc.truncate(0);
+        try{
+          // the size is known, so don't ask for more
+          channel._get(task.remote, fc, 0, this, 0, task.size, done);
+        }
+        finally{
+          fc.truncate(done[0]);
+        }
+      }
+      catch(IOException e){
+        throw new SftpException(ChannelSftp.SSH_FX_FAILURE, e.toString(), e);
+      }
+      finally{
+        if(raf!=null){
+          try{ raf.close(); }
+          catch(IOException e){ }
+        }
+      }
+      synchronized(this){
+        if(cancelled){
+          return;
+        }
+        file_count++;
+      }
+      task.local.setLastModified(task.mtime*1000L);
+    }
+
+    private void put(ChannelSftp channel, Task task) throws SftpException{
+      long[] done=new long[1];
+      RandomAccessFile raf=null;
+      try{
+        raf=new RandomAccessFile(task.local, "r");
+        channel._put(raf.getChannel(), 0, Long.MAX_VALUE, task.remote, 0,
+                     true, this, done);
+      }
+      catch(IOException e){
+        throw new SftpException(ChannelSftp.SSH_FX_FAILURE, e.toString(), e);
+      }
+      finally{
+        if(raf!=null){
+          try{ raf.close(); }
+          catch(IOException e){ }
+        }
+      }
+      synchronized(this){
+        if(cancelled){
+          return;
+        }
+        file_count++;
+      }
+      SftpATTRS attrs=new SftpATTRS();
+      attrs.setACMODTIME(task.mtime, task.mtime);
+      channel._setStat(task.remote, attrs);
+    }
+
+    // SftpProgressMonitor, shared by all channels
+
+    public void init(int op, String src, String dest, long max){
+    }
+
+    public synchronized boolean count(long count){
+      if(cancelled){
+        return false;
+      }
+      byte_count+=count;
+      if(monitor!=null && !monitor.count(count)){
+        cancelled=true;
+        notifyAll();
+      }
+      return !cancelled;
+    }
+
+    public void end(){
+    }
+  }
+}
@@ -147,7 +147,7 @@ public class UserAuthGSSAPIWithMIC extends UserAuth {
 
     GSSContext context=null;
     try{
-      Class c=Class.forName(session.getConfig(method));
+      Class c=JSch.loadClass(session.getConfig(method));
       context=(GSSContext)(c.newInstance());
     }
     catch(Exception e){ 
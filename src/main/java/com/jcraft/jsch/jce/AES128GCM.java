@@ -0,0 +1,112 @@
+/* -*-mode:java; c-basic-offset:2; indent-tabs-mode:nil -*- */
+/*
+Copyright (c) 2002-2016 ymnk, JCraft,Inc. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+  1. Redistributions of source code must retain the above copyright notice,
+     this list of conditions and the following disclaimer.
+
+  2. Redistributions in binary form must reproduce the above copyright 
+     notice, this list of conditions and the following disclaimer in 
+     the documentation and/or other materials provided with the distribution.
+
+  3. The names of the authors may not be used to endorse or promote products
+     derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL JCRAFT,
+INC. OR ANY CONTRIBUTORS TO THIS SOFTWARE BE LIABLE FOR ANY DIRECT, INDIRECT,
+INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.jcraft.jsch.jce;
+
+import com.jcraft.jsch.AEADCipher;
+import javax.crypto.spec.*;
+
+public class AES128GCM implements AEADCipher{
+  private static final int ivsize=12;
+  private static final int bsize=16;
+  private static final int tagsize=16;
+  private javax.crypto.Cipher cipher;    
+  private SecretKeySpec keyspec;
+  private int mode;
+  private byte[] iv;
+  private long counter;
+  public int getIVSize(){return ivsize;} 
+  public int getBlockSize(){return bsize;}
+  public int getTagSize(){return tagsize;}
+  public int getPaddingBlockSize(){return 16;}
+  public void init(int mode, byte[] key, byte[] iv) throws Exception{
+    String pad="NoPadding";      
+    byte[] tmp;
+    if(iv.length>ivsize){
+      tmp=new byte[ivsize];
+      System.arraycopy(iv, 0, tmp, 0, tmp.length);
+      iv=tmp;
+    }
+    if(key.length>bsize){
+      tmp=new byte[bsize];
+      System.arraycopy(key, 0, tmp, 0, tmp.length);
+      key=tmp;
+    }
+
+    try{
+      this.mode=(mode==ENCRYPT_MODE?
+                 javax.crypto.Cipher.ENCRYPT_MODE:
+                 javax.crypto.Cipher.DECRYPT_MODE);
+      this.iv=iv.clone();
+      // RFC 5647 7.1: a fixed field of 4 bytes and a 64-bit invocation
+      // counter, which is incremented for each packet.
+      counter=0;
+      for(int i=4; i<ivsize; i++){
+        counter=(counter<<8)|(iv[i]&0xff);
+      }
+      keyspec=new SecretKeySpec(key, "AES");
+      if(cipher==null){
+        cipher=javax.crypto.Cipher.getInstance("AES/GCM/"+pad);
+      }
+      cipher.init(this.mode, keyspec, new GCMParameterSpec(tagsize*8, iv));
+    }
+    catch(Exception e){
+      cipher=null;
+      throw e;
+    }
+  }
+  public void update(byte[] foo, int s1, int len, byte[] bar, int s2) throws Exception{
+    cipher.update(foo, s1, len, bar, s2);
+  }
+  public void setSequenceNumber(int seq){
+    // the nonce is counted by this cipher itself
+  }
+  public void updateAAD(byte[] foo, int s1, int len) throws Exception{
+    cipher.updateAAD(foo, s1, len);
+  }
+  public void doFinal(byte[] foo, int s1, int len, byte[] bar, int s2) throws Exception{
+    if(mode==javax.crypto.Cipher.DECRYPT_MODE){
+      len+=tagsize;
+    }
+    try{
+      cipher.doFinal(foo, s1, len, bar, s2);
+    }
+    finally{
+      counter++;
+      long c=counter;
+      for(int i=ivsize-1; i>=4; i--){
+        iv[i]=(byte)c;
+        c>>>=8;
+      }
+      cipher.init(mode, keyspec, new GCMParameterSpec(tagsize*8, iv));
+    }
+  }
+
+  public boolean isCBC(){return false; }
+}
@@ -49,14 +49,14 @@ public class ARCFOUR implements Cipher{
     }
 
     try{
-      cipher=javax.crypto.Cipher.getInstance("RC4");
+      if(cipher==null){
+        cipher=javax.crypto.Cipher.getInstance("RC4");
+      }
       SecretKeySpec _key = new SecretKeySpec(key, "RC4");
-      synchronized(javax.crypto.Cipher.class){
-        cipher.init((mode==ENCRYPT_MODE?
-                     javax.crypto.Cipher.ENCRYPT_MODE:
-                     javax.crypto.Cipher.DECRYPT_MODE),
+      cipher.init((mode==ENCRYPT_MODE?
+                   javax.crypto.Cipher.ENCRYPT_MODE:
+                   javax.crypto.Cipher.DECRYPT_MODE),
 		    _key);
-      }
     }
     catch(Exception e){
       cipher=null;
@@ -48,14 +48,14 @@ public class ARCFOUR256 implements Cipher{
       key=tmp;
     }
     try{
-      cipher=javax.crypto.Cipher.getInstance("RC4");
-      SecretKeySpec _key = new SecretKeySpec(key, "RC4");
-      synchronized(javax.crypto.Cipher.class){
-        cipher.init((mode==ENCRYPT_MODE?
-                     javax.crypto.Cipher.ENCRYPT_MODE:
-                     javax.crypto.Cipher.DECRYPT_MODE),
-                    _key);
+      if(cipher==null){
+        cipher=javax.crypto.Cipher.getInstance("RC4");
       }
+      SecretKeySpec _key = new SecretKeySpec(key, "RC4");
+      cipher.init((mode==ENCRYPT_MODE?
+                   javax.crypto.Cipher.ENCRYPT_MODE:
+                   javax.crypto.Cipher.DECRYPT_MODE),
+                  _key);
       byte[] foo=new byte[1];
       for(int i=0; i<skip; i++){
         cipher.update(foo, 0, 1, foo, 0);
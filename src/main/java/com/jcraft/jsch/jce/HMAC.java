@@ -50,7 +50,9 @@ abstract class HMAC implements MAC {
       key = tmp;
     }
     SecretKeySpec skey = new SecretKeySpec(key, algorithm);
-    mac = Mac.getInstance(algorithm);
+    if(mac==null){
+      mac = Mac.getInstance(algorithm);
+    }
     mac.init(skey);
   } 
 
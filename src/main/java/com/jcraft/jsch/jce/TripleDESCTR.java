@@ -55,7 +55,9 @@ public class TripleDESCTR implements Cipher{
     }
 
     try{
-      cipher=javax.crypto.Cipher.getInstance("DESede/CTR/"+pad);
+      if(cipher==null){
+        cipher=javax.crypto.Cipher.getInstance("DESede/CTR/"+pad);
+      }
 /*
       // The following code does not work on IBM's JDK 1.4.1
       SecretKeySpec skeySpec = new SecretKeySpec(key, "DESede");
@@ -67,12 +69,10 @@ public class TripleDESCTR implements Cipher{
       DESedeKeySpec keyspec=new DESedeKeySpec(key);
       SecretKeyFactory keyfactory=SecretKeyFactory.getInstance("DESede");
       SecretKey _key=keyfactory.generateSecret(keyspec);
-      synchronized(javax.crypto.Cipher.class){
-        cipher.init((mode==ENCRYPT_MODE?
-                     javax.crypto.Cipher.ENCRYPT_MODE:
-                     javax.crypto.Cipher.DECRYPT_MODE),
-                    _key, new IvParameterSpec(iv));
-      }
+      cipher.init((mode==ENCRYPT_MODE?
+                   javax.crypto.Cipher.ENCRYPT_MODE:
+                   javax.crypto.Cipher.DECRYPT_MODE),
+                  _key, new IvParameterSpec(iv));
     }
     catch(Exception e){
       cipher=null;
@@ -0,0 +1,189 @@
+/* -*-mode:java; c-basic-offset:2; indent-tabs-mode:nil -*- */
+/*
+Copyright (c) 2002-2016 ymnk, JCraft,Inc. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+  1. Redistributions of source code must retain the above copyright notice,
+     this list of conditions and the following disclaimer.
+
+  2. Redistributions in binary form must reproduce the above copyright 
+     notice, this list of conditions and the following disclaimer in 
+     the documentation and/or other materials provided with the distribution.
+
+  3. The names of the authors may not be used to endorse or promote products
+     derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL JCRAFT,
+INC. OR ANY CONTRIBUTORS TO THIS SOFTWARE BE LIABLE FOR ANY DIRECT, INDIRECT,
+INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.jcraft.jsch.jcraft;
+
+/**
+ * The ChaCha20 stream cipher in its original form, with a 64-bit
+ * nonce and a 64-bit block counter, as used by
+ * chacha20-poly1305@openssh.com.
+ *<p>
+ * This doesn't allocate any memory after construction.
+ *</p>
+ */
+class ChaCha20{
+
+  private final int[] state=new int[16];
+  private final int[] stream=new int[16];
+
+  /**
+   * sets the 256-bit key.
+   */
+  void setKey(byte[] key, int offset){
+    state[0]=0x61707865;
+    state[1]=0x3320646e;
+    state[2]=0x79622d32;
+    state[3]=0x6b206574;
+    for(int i=0; i<8; i++){
+      state[4+i]=getInt(key, offset+4*i);
+    }
+  }
+
+  /**
+   * sets the 64-bit nonce.
+   */
+  void setNonce(byte[] nonce, int offset){
+    state[14]=getInt(nonce, offset);
+    state[15]=getInt(nonce, offset+4);
+  }
+
+  /**
+   * encrypts or decrypts some data, starting with the given block of
+   * the key stream.
+   * @param counter the number of the first block (of 64 bytes).
+   */
+  void update(byte[] input, int inOffset, int len,
+              byte[] output, int outOffset, long counter){
+    update(input, inOffset, len, output, outOffset, counter, 0);
+  }
+
+  /**
+   * encrypts or decrypts some data, starting within the given block
+   * of the key stream.
+   * @param counter the number of the first block (of 64 bytes).
+   * @param skip the number of bytes of the first block which have
+   *   already been used, less than 64.
+   */
+  void update(byte[] input, int inOffset, int len,
+              byte[] output, int outOffset, long counter, int skip){
+    while(len>0){
+      state[12]=(int)counter;
+      state[13]=(int)(counter>>>32);
+      block();
+      counter++;
+      int n=64-skip;
+      if(len<n){
+        n=len;
+      }
+      int i=0;
+      if(skip==0){
+        for(; i+4<=n; i+=4){
+          putInt(output, outOffset+i,
+                 getInt(input, inOffset+i)^stream[i>>2]);
+        }
+      }
+      for(; i<n; i++){
+        int k=skip+i;
+        output[outOffset+i]=(byte)(input[inOffset+i]^
+                                   (stream[k>>2]>>>(8*(k&3))));
+      }
+      inOffset+=n;
+      outOffset+=n;
+      len-=n;
+      skip=0;
+    }
+  }
+
+  /**
+   * calculates the next 64 bytes of key stream into {@link #stream}.
+   */
+  private void block(){
+    int x0=state[0], x1=state[1], x2=state[2], x3=state[3];
+    int x4=state[4], x5=state[5], x6=state[6], x7=state[7];
+    int x8=state[8], x9=state[9], x10=state[10], x11=state[11];
+    int x12=state[12], x13=state[13], x14=state[14], x15=state[15];
+
+    for(int i=0; i<10; i++){
+      // column rounds
+      x0+=x4; x12^=x0; x12=(x12<<16)|(x12>>>16);
+      x8+=x12; x4^=x8; x4=(x4<<12)|(x4>>>20);
+      x0+=x4; x12^=x0; x12=(x12<<8)|(x12>>>24);
+      x8+=x12; x4^=x8; x4=(x4<<7)|(x4>>>25);
+
+      x1+=x5; x13^=x1; x13=(x13<<16)|(x13>>>16);
+      x9+=x13; x5^=x9; x5=(x5<<12)|(x5>>>20);
+      x1+=x5; x13^=x1; x13=(x13<<8)|(x13>>>24);
+      x9+=x13; x5^=x9; x5=(x5<<7)|(x5>>>25);
+
+      x2+=x6; x14^=x2; x14=(x14<<16)|(x14>>>16);
+      x10+=x14; x6^=x10; x6=(x6<<12)|(x6>>>20);
+      x2+=x6; x14^=x2; x14=(x14<<8)|(x14>>>24);
+      x10+=x14; x6^=x10; x6=(x6<<7)|(x6>>>25);
+
+      x3+=x7; x15^=x3; x15=(x15<<16)|(x15>>>16);
+      x11+=x15; x7^=x11; x7=(x7<<12)|(x7>>>20);
+      x3+=x7; x15^=x3; x15=(x15<<8)|(x15>>>24);
+      x11+=x15; x7^=x11; x7=(x7<<7)|(x7>>>25);
+
+      // diagonal rounds
+      x0+=x5; x15^=x0; x15=(x15<<16)|(x15>>>16);
+      x10+=x15; x5^=x10; x5=(x5<<12)|(x5>>>20);
+      x0+=x5; x15^=x0; x15=(x15<<8)|(x15>>>24);
+      x10+=x15; x5^=x10; x5=(x5<<7)|(x5>>>25);
+
+      x1+=x6; x12^=x1; x12=(x12<<16)|(x12>>>16);
+      x11+=x12; x6^=x11; x6=(x6<<12)|(x6>>>20);
+      x1+=x6; x12^=x1; x12=(x12<<8)|(x12>>>24);
+      x11+=x12; x6^=x11; x6=(x6<<7)|(x6>>>25);
+
+      x2+=x7; x13^=x2; x13=(x13<<16)|(x13>>>16);
+      x8+=x13; x7^=x8; x7=(x7<<12)|(x7>>>20);
+      x2+=x7; x13^=x2; x13=(x13<<8)|(x13>>>24);
+      x8+=x13; x7^=x8; x7=(x7<<7)|(x7>>>25);
+
+      x3+=x4; x14^=x3; x14=(x14<<16)|(x14>>>16);
+      x9+=x14; x4^=x9; x4=(x4<<12)|(x4>>>20);
+      x3+=x4; x14^=x3; x14=(x14<<8)|(x14>>>24);
+      x9+=x14; x4^=x9; x4=(x4<<7)|(x4>>>25);
+    }
+
+    stream[0]=x0+state[0]; stream[1]=x1+state[1];
+    stream[2]=x2+state[2]; stream[3]=x3+state[3];
+    stream[4]=x4+state[4]; stream[5]=x5+state[5];
+    stream[6]=x6+state[6]; stream[7]=x7+state[7];
+    stream[8]=x8+state[8]; stream[9]=x9+state[9];
+    stream[10]=x10+state[10]; stream[11]=x11+state[11];
+    stream[12]=x12+state[12]; stream[13]=x13+state[13];
+    stream[14]=x14+state[14]; stream[15]=x15+state[15];
+  }
+
+  static int getInt(byte[] buf, int offset){
+    return (buf[offset]&0xff)|
+           ((buf[offset+1]&0xff)<<8)|
+           ((buf[offset+2]&0xff)<<16)|
+           ((buf[offset+3]&0xff)<<24);
+  }
+
+  static void putInt(byte[] buf, int offset, int value){
+    buf[offset]=(byte)value;
+    buf[offset+1]=(byte)(value>>>8);
+    buf[offset+2]=(byte)(value>>>16);
+    buf[offset+3]=(byte)(value>>>24);
+  }
+}
@@ -0,0 +1,164 @@
+/* -*-mode:java; c-basic-offset:2; indent-tabs-mode:nil -*- */
+/*
+Copyright (c) 2002-2016 ymnk, JCraft,Inc. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+  1. Redistributions of source code must retain the above copyright notice,
+     this list of conditions and the following disclaimer.
+
+  2. Redistributions in binary form must reproduce the above copyright 
+     notice, this list of conditions and the following disclaimer in 
+     the documentation and/or other materials provided with the distribution.
+
+  3. The names of the authors may not be used to endorse or promote products
+     derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL JCRAFT,
+INC. OR ANY CONTRIBUTORS TO THIS SOFTWARE BE LIABLE FOR ANY DIRECT, INDIRECT,
+INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.jcraft.jsch.jcraft;
+
+import com.jcraft.jsch.AEADCipher;
+
+/**
+ * The chacha20-poly1305@openssh.com cipher, as described in the file
+ * PROTOCOL.chacha20poly1305 of OpenSSH.
+ *<p>
+ * The 512 bits of key material make up two ChaCha20 keys: the second
+ * half encrypts the packet length, the first one the rest of the
+ * packet, and its first block of key stream is the Poly1305 key for
+ * the tag. The nonce is the packet sequence number.
+ *</p>
+ *<p>
+ * The rest of a packet may be processed in parts by {@link #update}
+ * before {@link #doFinal}. When decrypting, the output of
+ * {@code update} is only authenticated once {@code doFinal} has
+ * checked the tag.
+ *</p>
+ *<p>
+ * This is implemented in Java, and doesn't allocate any memory per
+ * packet.
+ *</p>
+ */
+public class ChaCha20Poly1305 implements AEADCipher{
+  private static final int ivsize=0;
+  private static final int bsize=64;
+  private static final int tagsize=Poly1305.TAG_SIZE;
+  private final ChaCha20 header=new ChaCha20();
+  private final ChaCha20 main=new ChaCha20();
+  private final Poly1305 poly=new Poly1305();
+  private final byte[] nonce=new byte[8];
+  private final byte[] poly_key=new byte[32];
+  private final byte[] length=new byte[4];
+  private final byte[] tag=new byte[tagsize];
+  private int mode;
+  /**
+   * the number of bytes of the current packet processed after the
+   * packet length, or -1 if the packet has not been started yet.
+   */
+  private int position=-1;
+  public int getIVSize(){return ivsize;} 
+  public int getBlockSize(){return bsize;}
+  public int getTagSize(){return tagsize;}
+  public int getPaddingBlockSize(){return 8;}
+  public void init(int mode, byte[] key, byte[] iv) throws Exception{
+    if(key.length<bsize){
+      throw new IllegalArgumentException("key too short: "+key.length);
+    }
+    this.mode=mode;
+    main.setKey(key, 0);
+    header.setKey(key, 32);
+    position=-1;
+  }
+  public void update(byte[] foo, int s1, int len, byte[] bar, int s2) throws Exception{
+    start();
+    crypt(foo, s1, len, bar, s2);
+  }
+  public void setSequenceNumber(int seq){
+    nonce[4]=(byte)(seq>>>24);
+    nonce[5]=(byte)(seq>>>16);
+    nonce[6]=(byte)(seq>>>8);
+    nonce[7]=(byte)seq;
+    header.setNonce(nonce, 0);
+    main.setNonce(nonce, 0);
+    position=-1;
+  }
+  public void updateAAD(byte[] foo, int s1, int len) throws Exception{
+    // the tag is calculated over the encrypted length
+    if(mode==ENCRYPT_MODE){
+      header.update(foo, s1, len, foo, s1, 0);
+      System.arraycopy(foo, s1, length, 0, len);
+    }
+    else{
+      System.arraycopy(foo, s1, length, 0, len);
+      header.update(foo, s1, len, foo, s1, 0);
+    }
+  }
+  public void doFinal(byte[] foo, int s1, int len, byte[] bar, int s2) throws Exception{
+    start();
+    int end=position;
+    position=-1;
+    if(mode==ENCRYPT_MODE){
+      main.update(foo, s1, len, bar, s2, 1+end/64, end%64);
+      poly.update(bar, s2, len);
+      poly.doFinal(bar, s2+len);
+    }
+    else{
+      poly.update(foo, s1, len);
+      poly.doFinal(tag, 0);
+      int d=0;
+      for(int i=0; i<tagsize; i++){
+        d|=tag[i]^foo[s1+len+i];
+      }
+      if(d!=0){
+        throw new javax.crypto.BadPaddingException("Tag mismatch");
+      }
+      main.update(foo, s1, len, bar, s2, 1+end/64, end%64);
+    }
+  }
+
+  /**
+   * starts the tag of the current packet, if this has not been done.
+   */
+  private void start(){
+    if(position>=0){
+      return;
+    }
+    for(int i=0; i<poly_key.length; i++){
+      poly_key[i]=0;
+    }
+    main.update(poly_key, 0, poly_key.length, poly_key, 0, 0);
+    poly.init(poly_key, 0);
+    poly.update(length, 0, length.length);
+    position=0;
+  }
+
+  /**
+   * encrypts or decrypts a part of the current packet, adding the
+   * ciphertext to the tag.
+   */
+  private void crypt(byte[] foo, int s1, int len, byte[] bar, int s2){
+    if(mode==ENCRYPT_MODE){
+      main.update(foo, s1, len, bar, s2, 1+position/64, position%64);
+      poly.update(bar, s2, len);
+    }
+    else{
+      poly.update(foo, s1, len);
+      main.update(foo, s1, len, bar, s2, 1+position/64, position%64);
+    }
+    position+=len;
+  }
+
+  public boolean isCBC(){return false; }
+}
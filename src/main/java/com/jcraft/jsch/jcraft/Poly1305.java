@@ -0,0 +1,181 @@
+/* -*-mode:java; c-basic-offset:2; indent-tabs-mode:nil -*- */
+/*
+Copyright (c) 2002-2016 ymnk, JCraft,Inc. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+  1. Redistributions of source code must retain the above copyright notice,
+     this list of conditions and the following disclaimer.
+
+  2. Redistributions in binary form must reproduce the above copyright 
+     notice, this list of conditions and the following disclaimer in 
+     the documentation and/or other materials provided with the distribution.
+
+  3. The names of the authors may not be used to endorse or promote products
+     derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL JCRAFT,
+INC. OR ANY CONTRIBUTORS TO THIS SOFTWARE BE LIABLE FOR ANY DIRECT, INDIRECT,
+INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.jcraft.jsch.jcraft;
+
+/**
+ * The Poly1305 one-time authenticator, calculated with 26-bit limbs
+ * (like poly1305-donna).
+ *<p>
+ * This doesn't allocate any memory after construction.
+ *</p>
+ */
+class Poly1305{
+
+  static final int TAG_SIZE=16;
+
+  private int r0, r1, r2, r3, r4;
+  private int s1, s2, s3, s4;
+  private int h0, h1, h2, h3, h4;
+  private int pad0, pad1, pad2, pad3;
+
+  private final byte[] pending=new byte[16];
+  private int pending_length;
+
+  /**
+   * starts a new calculation with the given 256-bit one-time key.
+   */
+  void init(byte[] key, int offset){
+    int t0=ChaCha20.getInt(key, offset);
+    int t1=ChaCha20.getInt(key, offset+4);
+    int t2=ChaCha20.getInt(key, offset+8);
+    int t3=ChaCha20.getInt(key, offset+12);
+
+    // r is clamped as required by the algorithm
+    r0=t0&0x3ffffff;
+    r1=((t0>>>26)|(t1<<6))&0x3ffff03;
+    r2=((t1>>>20)|(t2<<12))&0x3ffc0ff;
+    r3=((t2>>>14)|(t3<<18))&0x3f03fff;
+    r4=(t3>>>8)&0x00fffff;
+
+    s1=r1*5; s2=r2*5; s3=r3*5; s4=r4*5;
+
+    pad0=ChaCha20.getInt(key, offset+16);
+    pad1=ChaCha20.getInt(key, offset+20);
+    pad2=ChaCha20.getInt(key, offset+24);
+    pad3=ChaCha20.getInt(key, offset+28);
+
+    h0=h1=h2=h3=h4=0;
+    pending_length=0;
+  }
+
+  void update(byte[] input, int offset, int len){
+    if(pending_length>0){
+      int n=16-pending_length;
+      if(n>len){
+        n=len;
+      }
+      System.arraycopy(input, offset, pending, pending_length, n);
+      pending_length+=n;
+      offset+=n;
+      len-=n;
+      if(pending_length<16){
+        return;
+      }
+      block(pending, 0, 1<<24);
+      pending_length=0;
+    }
+    while(len>=16){
+      block(input, offset, 1<<24);
+      offset+=16;
+      len-=16;
+    }
+    if(len>0){
+      System.arraycopy(input, offset, pending, 0, len);
+      pending_length=len;
+    }
+  }
+
+  /**
+   * writes the 16 bytes of the tag.
+   */
+  void doFinal(byte[] output, int offset){
+    if(pending_length>0){
+      pending[pending_length++]=1;
+      while(pending_length<16){
+        pending[pending_length++]=0;
+      }
+      block(pending, 0, 0);
+      pending_length=0;
+    }
+
+    // fully carry h
+    int c;
+    c=h1>>>26; h1&=0x3ffffff;
+    h2+=c; c=h2>>>26; h2&=0x3ffffff;
+    h3+=c; c=h3>>>26; h3&=0x3ffffff;
+    h4+=c; c=h4>>>26; h4&=0x3ffffff;
+    h0+=c*5; c=h0>>>26; h0&=0x3ffffff;
+    h1+=c;
+
+    // compute h-p, and select it if it is not negative
+    int g0=h0+5; c=g0>>>26; g0&=0x3ffffff;
+    int g1=h1+c; c=g1>>>26; g1&=0x3ffffff;
+    int g2=h2+c; c=g2>>>26; g2&=0x3ffffff;
+    int g3=h3+c; c=g3>>>26; g3&=0x3ffffff;
+    int g4=h4+c-(1<<26);
+
+    int mask=(g4>>>31)-1;
+    g0&=mask; g1&=mask; g2&=mask; g3&=mask; g4&=mask;
+    mask=~mask;
+    h0=(h0&mask)|g0;
+    h1=(h1&mask)|g1;
+    h2=(h2&mask)|g2;
+    h3=(h3&mask)|g3;
+    h4=(h4&mask)|g4;
+
+    // h%(2^128), plus pad
+    long f;
+    f=((h0|(h1<<26))&0xffffffffL)+(pad0&0xffffffffL);
+    ChaCha20.putInt(output, offset, (int)f);
+    f=(((h1>>>6)|(h2<<20))&0xffffffffL)+(pad1&0xffffffffL)+(f>>>32);
+    ChaCha20.putInt(output, offset+4, (int)f);
+    f=(((h2>>>12)|(h3<<14))&0xffffffffL)+(pad2&0xffffffffL)+(f>>>32);
+    ChaCha20.putInt(output, offset+8, (int)f);
+    f=(((h3>>>18)|(h4<<8))&0xffffffffL)+(pad3&0xffffffffL)+(f>>>32);
+    ChaCha20.putInt(output, offset+12, (int)f);
+  }
+
+  /**
+   * adds one block of 16 bytes.
+   * @param hibit 1&lt;&lt;24 for full blocks, 0 for the padded last one.
+   */
+  private void block(byte[] m, int offset, int hibit){
+    h0+=ChaCha20.getInt(m, offset)&0x3ffffff;
+    h1+=(ChaCha20.getInt(m, offset+3)>>>2)&0x3ffffff;
+    h2+=(ChaCha20.getInt(m, offset+6)>>>4)&0x3ffffff;
+    h3+=(ChaCha20.getInt(m, offset+9)>>>6)&0x3ffffff;
+    h4+=(ChaCha20.getInt(m, offset+12)>>>8)|hibit;
+
+    long d0=(long)h0*r0+(long)h1*s4+(long)h2*s3+(long)h3*s2+(long)h4*s1;
+    long d1=(long)h0*r1+(long)h1*r0+(long)h2*s4+(long)h3*s3+(long)h4*s2;
+    long d2=(long)h0*r2+(long)h1*r1+(long)h2*r0+(long)h3*s4+(long)h4*s3;
+    long d3=(long)h0*r3+(long)h1*r2+(long)h2*r1+(long)h3*r0+(long)h4*s4;
+    long d4=(long)h0*r4+(long)h1*r3+(long)h2*r2+(long)h3*r1+(long)h4*r0;
+
+    long c;
+    c=d0>>>26; h0=(int)d0&0x3ffffff;
+    d1+=c; c=d1>>>26; h1=(int)d1&0x3ffffff;
+    d2+=c; c=d2>>>26; h2=(int)d2&0x3ffffff;
+    d3+=c; c=d3>>>26; h3=(int)d3&0x3ffffff;
+    d4+=c; c=d4>>>26; h4=(int)d4&0x3ffffff;
+    h0+=(int)c*5; c=h0>>>26; h0&=0x3ffffff;
+    h1+=(int)c;
+  }
+}
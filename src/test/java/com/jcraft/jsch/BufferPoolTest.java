@@ -0,0 +1,132 @@
+/* -*-mode:java; c-basic-offset:2; indent-tabs-mode:nil -*- */
+/*
+Copyright (c) 2002-2016 ymnk, JCraft,Inc. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+  1. Redistributions of source code must retain the above copyright notice,
+     this list of conditions and the following disclaimer.
+
+  2. Redistributions in binary form must reproduce the above copyright 
+     notice, this list of conditions and the following disclaimer in 
+     the documentation and/or other materials provided with the distribution.
+
+  3. The names of the authors may not be used to endorse or promote products
+     derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL JCRAFT,
+INC. OR ANY CONTRIBUTORS TO THIS SOFTWARE BE LIABLE FOR ANY DIRECT, INDIRECT,
+INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.jcraft.jsch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests of {@link BufferPool}.
+ */
+public class BufferPoolTest{
+
+  private static final int MIN=BufferPool.MIN_SIZE;
+  private static final int MAX=BufferPool.MAX_SIZE;
+
+  @Test
+  public void sizeClasses(){
+    assertEquals(0, BufferPool.classOf(0));
+    assertEquals(0, BufferPool.classOf(1));
+    assertEquals(0, BufferPool.classOf(MIN));
+    assertEquals(1, BufferPool.classOf(MIN+1));
+    assertEquals(1, BufferPool.classOf(2*MIN));
+    assertEquals(2, BufferPool.classOf(2*MIN+1));
+    assertEquals(8, BufferPool.classOf(MAX));
+    assertEquals(-1, BufferPool.classOf(MAX+1));
+  }
+
+  @Test
+  public void allocatedArraysHaveTheClassSize(){
+    assertEquals(MIN, BufferPool.allocate(1).length);
+    assertEquals(MIN, BufferPool.allocate(MIN).length);
+    assertEquals(2*MIN, BufferPool.allocate(MIN+1).length);
+    assertEquals(MAX, BufferPool.allocate(MAX/2+1).length);
+    assertEquals(MAX, BufferPool.allocate(MAX).length);
+    // larger requests are not pooled, and get exactly their size
+    assertEquals(MAX+1, BufferPool.allocate(MAX+1).length);
+  }
+
+  @Test
+  public void fitRoundsDown(){
+    assertEquals(MIN, BufferPool.fit(MIN));
+    assertEquals(MIN, BufferPool.fit(2*MIN-1));
+    assertEquals(2*MIN, BufferPool.fit(2*MIN));
+    assertEquals(32*1024, BufferPool.fit(32*1024+500));
+    assertEquals(MAX, BufferPool.fit(MAX));
+    assertEquals(MAX, BufferPool.fit(Integer.MAX_VALUE));
+  }
+
+  @Test
+  public void limitedBuffersDoNotExceedTheLimit(){
+    // small limits are not rounded up to the smallest class
+    assertEquals(1, BufferPool.getLimitedBuffer(1).buffer.length);
+    assertEquals(512, BufferPool.getLimitedBuffer(512).buffer.length);
+    assertEquals(MIN-1, BufferPool.getLimitedBuffer(MIN-1).buffer.length);
+    assertEquals(MIN, BufferPool.getLimitedBuffer(MIN).buffer.length);
+    assertEquals(4096, BufferPool.getLimitedBuffer(5000).buffer.length);
+    assertEquals(32768, BufferPool.getLimitedBuffer(32768).buffer.length);
+    assertEquals(MAX, BufferPool.getLimitedBuffer(MAX+12345).buffer.length);
+  }
+
+  @Test
+  public void releasedArraysAreReused(){
+    byte[] foo=BufferPool.allocate(64*1024);
+    BufferPool.release(foo);
+    assertTrue(foo==BufferPool.allocate(64*1024-1));
+  }
+
+  @Test
+  public void otherSizesAreDiscarded(){
+    long released=BufferPool.getReleased();
+    long discarded=BufferPool.getDiscarded();
+    BufferPool.release(new byte[MIN+1]);
+    BufferPool.release(new byte[MIN-1]);
+    BufferPool.release(new byte[MAX*2]);
+    BufferPool.release((byte[])null);
+    assertEquals(released, BufferPool.getReleased());
+    assertEquals(discarded+3, BufferPool.getDiscarded());
+  }
+
+  @Test
+  public void aFullClassDiscards(){
+    long discarded=BufferPool.getDiscarded();
+    for(int i=0; i<=BufferPool.MAX_FREE; i++){
+      BufferPool.release(new byte[8*1024]);
+    }
+    assertTrue(BufferPool.getDiscarded()>discarded);
+  }
+
+  @Test
+  public void aBufferIsReleasedOnce(){
+    Buffer buf=BufferPool.getBuffer(16*1024);
+    byte[] foo=buf.buffer;
+    BufferPool.release(buf);
+    // the Buffer no longer refers to the pooled array, so releasing
+    // it again does not put the array into the pool twice
+    assertEquals(0, buf.buffer.length);
+    BufferPool.release(buf);
+    byte[] a=BufferPool.allocate(16*1024);
+    byte[] b=BufferPool.allocate(16*1024);
+    assertTrue(a==foo);
+    assertTrue(b!=foo);
+  }
+}
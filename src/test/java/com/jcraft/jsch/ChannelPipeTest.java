@@ -0,0 +1,261 @@
+/* -*-mode:java; c-basic-offset:2; indent-tabs-mode:nil -*- */
+/*
+Copyright (c) 2002-2016 ymnk, JCraft,Inc. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+  1. Redistributions of source code must retain the above copyright notice,
+     this list of conditions and the following disclaimer.
+
+  2. Redistributions in binary form must reproduce the above copyright 
+     notice, this list of conditions and the following disclaimer in 
+     the documentation and/or other materials provided with the distribution.
+
+  3. The names of the authors may not be used to endorse or promote products
+     derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL JCRAFT,
+INC. OR ANY CONTRIBUTORS TO THIS SOFTWARE BE LIABLE FOR ANY DIRECT, INDIRECT,
+INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.jcraft.jsch;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.junit.Test;
+
+/**
+ * Tests of {@link ChannelPipe} and of the window credit of the data
+ * held in a channel's pipe.
+ */
+public class ChannelPipeTest{
+
+  private static byte[] data(int offset, int len){
+    byte[] foo=new byte[len];
+    for(int i=0; i<len; i++){
+      foo[i]=(byte)((offset+i)*31);
+    }
+    return foo;
+  }
+
+  private static byte[] readFully(InputStream in, int len) throws IOException{
+    byte[] foo=new byte[len];
+    int off=0;
+    while(off<len){
+      int i=in.read(foo, off, len-off);
+      if(i<0){
+        fail("unexpected end after "+off+" bytes");
+      }
+      off+=i;
+    }
+    return foo;
+  }
+
+  /**
+   * a thread running a write or read on a pipe, which records how
+   * it ended.
+   */
+  private static abstract class Blocked extends Thread{
+    volatile Object result=null;
+    abstract Object call() throws IOException;
+    public void run(){
+      try{
+        result=call();
+      }
+      catch(IOException e){
+        result=e;
+      }
+    }
+    /**
+     * starts this thread and waits until it is blocked in the pipe.
+     */
+    void startBlocked() throws InterruptedException{
+      setDaemon(true);
+      start();
+      for(int i=0; i<500 && getState()!=Thread.State.WAITING; i++){
+        Thread.sleep(10);
+      }
+      assertEquals(Thread.State.WAITING, getState());
+    }
+    Object await() throws InterruptedException{
+      join(5000);
+      assertTrue("still blocked", !isAlive());
+      return result;
+    }
+  }
+
+  private static Blocked write(final OutputStream out, final byte[] b){
+    return new Blocked(){
+        Object call() throws IOException{
+          out.write(b);
+          return null;
+        }
+      };
+  }
+
+  private static Blocked read(final InputStream in){
+    return new Blocked(){
+        Object call() throws IOException{
+          return Integer.valueOf(in.read());
+        }
+      };
+  }
+
+  @Test
+  public void wrapAround() throws Exception{
+    ChannelPipe pipe=new ChannelPipe(1024, 1024);
+    InputStream in=pipe.getInputStream();
+    OutputStream out=pipe.getOutputStream();
+    int offset=0;
+    for(int i=0; i<50; i++){
+      // 700 bytes do not divide 1024, so the positions wrap around
+      // at every point of the ring buffer
+      out.write(data(offset, 700));
+      assertEquals(700, in.available());
+      assertArrayEquals(data(offset, 300), readFully(in, 300));
+      assertArrayEquals(data(offset+300, 400), readFully(in, 400));
+      offset+=700;
+    }
+    assertEquals(0, in.available());
+  }
+
+  @Test
+  public void growsUpToTheMaximum() throws Exception{
+    ChannelPipe pipe=new ChannelPipe(1024, 16*1024);
+    InputStream in=pipe.getInputStream();
+    OutputStream out=pipe.getOutputStream();
+    out.write(data(0, 500));
+    assertArrayEquals(data(0, 100), readFully(in, 100));
+    // the data is moved into the bigger buffer in order
+    out.write(data(500, 10000));
+    assertEquals(10400, in.available());
+    assertArrayEquals(data(100, 10400), readFully(in, 10400));
+    // after shrinking back, the pipe still works
+    out.write(data(0, 100));
+    assertArrayEquals(data(0, 100), readFully(in, 100));
+
+    Blocked writer=write(out, data(0, 16*1024+1));
+    writer.startBlocked();
+    assertEquals(16*1024, in.available());
+    assertArrayEquals(data(0, 16*1024), readFully(in, 16*1024));
+    assertEquals(null, writer.await());
+    assertArrayEquals(data(16*1024, 1), readFully(in, 1));
+  }
+
+  @Test
+  public void endOfFile() throws Exception{
+    ChannelPipe pipe=new ChannelPipe(1024, 1024);
+    InputStream in=pipe.getInputStream();
+    OutputStream out=pipe.getOutputStream();
+    out.write(data(0, 10));
+    out.close();
+    // the data written before the end is still read
+    assertArrayEquals(data(0, 10), readFully(in, 10));
+    assertEquals(-1, in.read());
+    assertEquals(-1, in.read(new byte[10], 0, 10));
+    try{
+      out.write(1);
+      fail("write after close");
+    }
+    catch(IOException e){
+    }
+  }
+
+  @Test(timeout=10000)
+  public void blockedReaderSeesEndOfFile() throws Exception{
+    ChannelPipe pipe=new ChannelPipe(1024, 1024);
+    Blocked reader=read(pipe.getInputStream());
+    reader.startBlocked();
+    pipe.getOutputStream().write(42);
+    assertEquals(Integer.valueOf(42), reader.await());
+
+    reader=read(pipe.getInputStream());
+    reader.startBlocked();
+    pipe.getOutputStream().close();
+    assertEquals(Integer.valueOf(-1), reader.await());
+  }
+
+  @Test(timeout=10000)
+  public void blockedReaderIsReleasedByClose() throws Exception{
+    ChannelPipe pipe=new ChannelPipe(1024, 1024);
+    Blocked reader=read(pipe.getInputStream());
+    reader.startBlocked();
+    pipe.getInputStream().close();
+    assertTrue(reader.await() instanceof IOException);
+  }
+
+  @Test(timeout=10000)
+  public void blockedWriterIsReleasedByClosingTheReader() throws Exception{
+    ChannelPipe pipe=new ChannelPipe(1024, 1024);
+    OutputStream out=pipe.getOutputStream();
+    out.write(data(0, 1024));
+    Blocked writer=write(out, data(0, 1));
+    writer.startBlocked();
+    pipe.getInputStream().close();
+    assertTrue(writer.await() instanceof IOException);
+    try{
+      out.write(1);
+      fail("write after the reader closed");
+    }
+    catch(IOException e){
+    }
+  }
+
+  @Test(timeout=10000)
+  public void blockedWriterIsReleasedByClosingTheWriter() throws Exception{
+    // like Channel.disconnect() closing the pipe while the session's
+    // receiving thread waits for space
+    ChannelPipe pipe=new ChannelPipe(1024, 1024);
+    OutputStream out=pipe.getOutputStream();
+    out.write(data(0, 1024));
+    Blocked writer=write(out, data(0, 1));
+    writer.startBlocked();
+    out.close();
+    assertTrue(writer.await() instanceof IOException);
+  }
+
+  @Test
+  public void unreadDataIsNotCreditedToTheWindow() throws Exception{
+    Channel channel=new ChannelExec();
+    channel.setLocalWindowSizeMax(8192);
+    channel.setLocalWindowSize(8192);
+    ChannelPipe pipe=new ChannelPipe(1024, 0, channel);
+    assertTrue(pipe.isWindowed());
+    channel.in_pipe=pipe;
+    InputStream in=pipe.getInputStream();
+    OutputStream out=pipe.getOutputStream();
+
+    out.write(data(0, 6000));
+    channel.consumeLocalWindow(6000);
+    assertEquals(0, channel.takeLocalWindowAdjustment(0));
+
+    readFully(in, 5000);
+    assertEquals(5000, channel.takeLocalWindowAdjustment(0));
+    assertEquals(0, channel.takeLocalWindowAdjustment(0));
+
+    // the pipe holds at most the window
+    out.write(data(0, 7192));
+    channel.consumeLocalWindow(7192);
+    assertEquals(8192, in.available());
+    Blocked writer=write(out, data(0, 1));
+    writer.startBlocked();
+    readFully(in, 1);
+    assertEquals(null, writer.await());
+  }
+}
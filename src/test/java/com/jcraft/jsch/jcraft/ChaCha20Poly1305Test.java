@@ -0,0 +1,208 @@
+/* -*-mode:java; c-basic-offset:2; indent-tabs-mode:nil -*- */
+/*
+Copyright (c) 2002-2016 ymnk, JCraft,Inc. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+  1. Redistributions of source code must retain the above copyright notice,
+     this list of conditions and the following disclaimer.
+
+  2. Redistributions in binary form must reproduce the above copyright 
+     notice, this list of conditions and the following disclaimer in 
+     the documentation and/or other materials provided with the distribution.
+
+  3. The names of the authors may not be used to endorse or promote products
+     derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL JCRAFT,
+INC. OR ANY CONTRIBUTORS TO THIS SOFTWARE BE LIABLE FOR ANY DIRECT, INDIRECT,
+INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.jcraft.jsch.jcraft;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.fail;
+
+import com.jcraft.jsch.Cipher;
+
+import org.junit.Test;
+
+/**
+ * Known answer tests of {@link ChaCha20} and {@link Poly1305} from
+ * RFC 8439, and tests of {@link ChaCha20Poly1305} built on them.
+ *<p>
+ * RFC 8439 uses a 96-bit nonce and a 32-bit block counter, where
+ * {@link ChaCha20} has a 64-bit nonce and a 64-bit counter: the
+ * first four bytes of the RFC's nonce are the upper half of our
+ * counter.
+ *</p>
+ */
+public class ChaCha20Poly1305Test{
+
+  private static byte[] hex(String s){
+    s=s.replaceAll("[^0-9a-f]", "");
+    byte[] foo=new byte[s.length()/2];
+    for(int i=0; i<foo.length; i++){
+      foo[i]=(byte)Integer.parseInt(s.substring(2*i, 2*i+2), 16);
+    }
+    return foo;
+  }
+
+  private static byte[] sequence(int len){
+    byte[] foo=new byte[len];
+    for(int i=0; i<len; i++){
+      foo[i]=(byte)i;
+    }
+    return foo;
+  }
+
+  /**
+   * returns the counter of {@link ChaCha20} for a nonce and counter
+   * of RFC 8439.
+   */
+  private static long counter(byte[] nonce, int counter){
+    return ((long)ChaCha20.getInt(nonce, 0)<<32)|(counter&0xffffffffL);
+  }
+
+  // RFC 8439, 2.3.2
+  @Test
+  public void blockFunction(){
+    byte[] nonce=hex("00 00 00 09 00 00 00 4a 00 00 00 00");
+    ChaCha20 chacha=new ChaCha20();
+    chacha.setKey(sequence(32), 0);
+    chacha.setNonce(nonce, 4);
+    byte[] block=new byte[64];
+    chacha.update(block, 0, block.length, block, 0, counter(nonce, 1));
+    assertArrayEquals(hex("10 f1 e7 e4 d1 3b 59 15 50 0f dd 1f a3 20 71 c4"+
+                          "c7 d1 f4 c7 33 c0 68 03 04 22 aa 9a c3 d4 6c 4e"+
+                          "d2 82 64 46 07 9f aa 09 14 c2 d7 05 d9 8b 02 a2"+
+                          "b5 12 9c d1 de 16 4e b9 cb d0 83 e8 a2 50 3c 4e"),
+                      block);
+  }
+
+  private static final byte[] sunscreen=
+    ("Ladies and Gentlemen of the class of '99: If I could offer you "+
+     "only one tip for the future, sunscreen would be it.").getBytes();
+
+  private static final byte[] sunscreen_encrypted=
+    hex("6e 2e 35 9a 25 68 f9 80 41 ba 07 28 dd 0d 69 81"+
+        "e9 7e 7a ec 1d 43 60 c2 0a 27 af cc fd 9f ae 0b"+
+        "f9 1b 65 c5 52 47 33 ab 8f 59 3d ab cd 62 b3 57"+
+        "16 39 d6 24 e6 51 52 ab 8f 53 0c 35 9f 08 61 d8"+
+        "07 ca 0d bf 50 0d 6a 61 56 a3 8e 08 8a 22 b6 5e"+
+        "52 bc 51 4d 16 cc f8 06 81 8c e9 1a b7 79 37 36"+
+        "5a f9 0b bf 74 a3 5b e6 b4 0b 8e ed f2 78 5e 42"+
+        "87 4d");
+
+  // RFC 8439, 2.4.2
+  @Test
+  public void encryption(){
+    byte[] nonce=hex("00 00 00 00 00 00 00 4a 00 00 00 00");
+    ChaCha20 chacha=new ChaCha20();
+    chacha.setKey(sequence(32), 0);
+    chacha.setNonce(nonce, 4);
+    byte[] out=new byte[sunscreen.length];
+    chacha.update(sunscreen, 0, sunscreen.length, out, 0,
+                  counter(nonce, 1));
+    assertArrayEquals(sunscreen_encrypted, out);
+
+    // the same, in parts not aligned to the blocks
+    out=new byte[sunscreen.length];
+    chacha.update(sunscreen, 0, 30, out, 0, counter(nonce, 1), 0);
+    chacha.update(sunscreen, 30, 70, out, 30, counter(nonce, 1), 30);
+    chacha.update(sunscreen, 100, 14, out, 100, counter(nonce, 2), 36);
+    assertArrayEquals(sunscreen_encrypted, out);
+  }
+
+  private static final byte[] poly_key=
+    hex("85 d6 be 78 57 55 6d 33 7f 44 52 fe 42 d5 06 a8"+
+        "01 03 80 8a fb 0d b2 fd 4a bf f6 af 41 49 f5 1b");
+
+  private static final byte[] poly_tag=
+    hex("a8 06 1d c1 30 51 36 c6 c2 2b 8b af 0c 01 27 a9");
+
+  // RFC 8439, 2.5.2
+  @Test
+  public void poly1305(){
+    byte[] message="Cryptographic Forum Research Group".getBytes();
+    Poly1305 poly=new Poly1305();
+    byte[] tag=new byte[Poly1305.TAG_SIZE];
+    poly.init(poly_key, 0);
+    poly.update(message, 0, message.length);
+    poly.doFinal(tag, 0);
+    assertArrayEquals(poly_tag, tag);
+
+    // the same, in parts not aligned to the blocks
+    tag=new byte[Poly1305.TAG_SIZE];
+    poly.init(poly_key, 0);
+    poly.update(message, 0, 5);
+    poly.update(message, 5, 20);
+    poly.update(message, 25, message.length-25);
+    poly.doFinal(tag, 0);
+    assertArrayEquals(poly_tag, tag);
+  }
+
+  /**
+   * encrypts a packet starting with its 4 bytes of length, passing
+   * the first {@code split} bytes after the length to {@code update}.
+   */
+  private static byte[] seal(byte[] key, int seq, byte[] packet,
+                             int split) throws Exception{
+    ChaCha20Poly1305 cipher=new ChaCha20Poly1305();
+    cipher.init(Cipher.ENCRYPT_MODE, key, null);
+    byte[] buf=new byte[packet.length+cipher.getTagSize()];
+    System.arraycopy(packet, 0, buf, 0, packet.length);
+    cipher.setSequenceNumber(seq);
+    cipher.updateAAD(buf, 0, 4);
+    cipher.update(buf, 4, split, buf, 4);
+    cipher.doFinal(buf, 4+split, packet.length-4-split, buf, 4+split);
+    return buf;
+  }
+
+  @Test
+  public void updateBeforeDoFinal() throws Exception{
+    byte[] key=sequence(64);
+    byte[] packet=sequence(200);
+    byte[] sealed=seal(key, 7, packet, 0);
+    assertArrayEquals(sealed, seal(key, 7, packet, 1));
+    assertArrayEquals(sealed, seal(key, 7, packet, 60));
+    assertArrayEquals(sealed, seal(key, 7, packet, 196));
+
+    ChaCha20Poly1305 cipher=new ChaCha20Poly1305();
+    cipher.init(Cipher.DECRYPT_MODE, key, null);
+    byte[] buf=(byte[])sealed.clone();
+    cipher.setSequenceNumber(7);
+    cipher.updateAAD(buf, 0, 4);
+    cipher.update(buf, 4, 100, buf, 4);
+    cipher.doFinal(buf, 104, 96, buf, 104);
+    byte[] opened=new byte[packet.length];
+    System.arraycopy(buf, 0, opened, 0, opened.length);
+    assertArrayEquals(packet, opened);
+  }
+
+  @Test
+  public void tamperedPacket() throws Exception{
+    byte[] key=sequence(64);
+    byte[] buf=seal(key, 3, sequence(64), 0);
+    buf[20]^=1;
+    ChaCha20Poly1305 cipher=new ChaCha20Poly1305();
+    cipher.init(Cipher.DECRYPT_MODE, key, null);
+    cipher.setSequenceNumber(3);
+    cipher.updateAAD(buf, 0, 4);
+    try{
+      cipher.doFinal(buf, 4, 60, buf, 4);
+      fail("tag not checked");
+    }
+    catch(javax.crypto.BadPaddingException e){
+    }
+  }
+}